@@ -85,31 +85,41 @@ public class Atom {
 
 	private final int		_id;
 	private final String	_name;
+	private final byte[]	_encodedName;
+	private final int		_encodedNameLength;
 
 	/**
 	 * Constructor.
 	 *
 	 * @param id		The atom's ID.
+	 * @param name		The atom's name.
 	 */
 	public Atom (
 		int			id,
 		String		name
 	) {
+		byte[]		bytes = name.getBytes ();
+
 		_id = id;
 		_name = name;
+
+			// Padded, as sent in GetAtomName replies.
+		_encodedName = new byte[bytes.length + (-bytes.length & 3)];
+		System.arraycopy (bytes, 0, _encodedName, 0, bytes.length);
+		_encodedNameLength = bytes.length;
 	}
 
 	/**
-	 * Register the predefined atoms with the X server.
+	 * Register the predefined atoms with an atom table.
 	 *
-	 * @param xServer
+	 * @param table	The atom table.
 	 */
 	public static void
 	registerPredefinedAtoms (
-		XServer		xServer
+		AtomTable	table
 	) {
 		for (int i = 0; i < _predefinedAtoms.length; i++)
-			xServer.addAtom (new Atom (i + 1, _predefinedAtoms[i]));
+			table.add (new Atom (i + 1, _predefinedAtoms[i]));
 	}
 
 	/**
@@ -141,6 +151,7 @@ public class Atom {
 
 	/**
 	 * Process a GetAtomName request.
+	 * Called without the server lock.
 	 *
 	 * @param xServer	The X server.
 	 * @param client	The remote client.
@@ -171,17 +182,14 @@ public class Atom {
 			return;
 		}
 
-		byte[]		bytes = a._name.getBytes ();
-		int			length = bytes.length;
-		int			pad = -length & 3;
+		byte[]		name = a._encodedName;
 
 		synchronized (io) {
 			Util.writeReplyHeader (client, (byte) 0);
-			io.writeInt ((length + pad) / 4);	// Reply length.
-			io.writeShort ((short) length);	// Name length.
+			io.writeInt (name.length / 4);	// Reply length.
+			io.writeShort ((short) a._encodedNameLength);	// Name length.
 			io.writePadBytes (22);	// Unused.
-			io.writeBytes (bytes, 0, length);	// Name.
-			io.writePadBytes (pad);	// Unused.
+			io.writeBytes (name, 0, name.length);	// Name and padding.
 		}
 		io.flush ();
 	}
@@ -189,6 +197,7 @@ public class Atom {
 	/**
 	 * Process an InternAtom request.
 	 * Return or create an atom with the specified name.
+	 * Called without the server lock.
 	 *
 	 * @param xServer	The X server.
 	 * @param client	The remote client.
@@ -231,17 +240,15 @@ public class Atom {
 		io.readBytes (name, 0, n);	// The atom name.
 		io.readSkip (pad);	// Unused.
 
-		int			id = 0;
 		String		s = new String (name);
-		Atom		a = xServer.findAtom (s);
-
-		if (a != null) {
-			id = a.getId ();
-		} else if (!onlyIfExists) {
-			a = new Atom (xServer.nextFreeAtomId (), s);
-			xServer.addAtom (a);
-			id = a.getId ();
-		}
+		Atom		a;
+
+		if (onlyIfExists)
+			a = xServer.findAtom (s);
+		else
+			a = xServer.internAtom (s);
+
+		int			id = (a == null) ? 0 : a.getId ();
 
 		synchronized (io) {
 			Util.writeReplyHeader (client, (byte) 0);
@@ -0,0 +1,149 @@
+/**
+ * This class holds the X server's atoms.
+ */
+package au.com.darkside.XServer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class holds the X server's atoms, indexed by ID and by name.
+ *
+ * Atom IDs are allocated sequentially, so they index a dense array.
+ * Atoms are never freed, so lookups can be made by any thread without
+ * locking, which lets InternAtom and GetAtomName requests be processed
+ * without the X server lock. Creating an atom locks the table, so each
+ * name gets one ID.
+ */
+public class AtomTable {
+	private volatile AtomicReferenceArray<Atom>		_atoms;
+	private final ConcurrentHashMap<String, Atom>	_names;
+	private int										_maxAtomId = 0;
+
+	/**
+	 * Constructor. The table holds the predefined atoms.
+	 */
+	public AtomTable () {
+		_atoms = new AtomicReferenceArray<Atom>(256);
+		_names = new ConcurrentHashMap<String, Atom>();
+		Atom.registerPredefinedAtoms (this);
+	}
+
+	/**
+	 * Return the atom with the specified ID.
+	 *
+	 * @param id	The atom ID.
+	 * @return	The atom, or null if it doesn't exist.
+	 */
+	public Atom
+	get (
+		int			id
+	) {
+		AtomicReferenceArray<Atom>	atoms = _atoms;
+
+		if (id <= 0 || id >= atoms.length ())
+			return null;
+
+		return atoms.get (id);
+	}
+
+	/**
+	 * Return the atom with the specified name.
+	 *
+	 * @param name	The atom's name.
+	 * @return	The atom, or null if it doesn't exist.
+	 */
+	public Atom
+	find (
+		String		name
+	) {
+		return _names.get (name);
+	}
+
+	/**
+	 * Return the atom with the specified name, creating it if it doesn't
+	 * exist.
+	 *
+	 * @param name	The atom's name.
+	 * @return	The atom.
+	 */
+	public Atom
+	intern (
+		String		name
+	) {
+		Atom		a = _names.get (name);
+
+		if (a != null)
+			return a;
+
+		synchronized (this) {
+			a = _names.get (name);
+			if (a == null) {
+				a = new Atom (_maxAtomId + 1, name);
+				add (a);
+			}
+		}
+
+		return a;
+	}
+
+	/**
+	 * Add an atom. The atom is stored by ID before it can be found by
+	 * name, so a client that is told an atom's ID can always look it up.
+	 *
+	 * @param a	The atom to add.
+	 */
+	public synchronized void
+	add (
+		Atom		a
+	) {
+		AtomicReferenceArray<Atom>	atoms = _atoms;
+		int							id = a.getId ();
+
+		if (id >= atoms.length ()) {
+			int			n = atoms.length ();
+
+			while (n <= id)
+				n *= 2;
+
+			AtomicReferenceArray<Atom>	grown;
+
+			grown = new AtomicReferenceArray<Atom>(n);
+			for (int i = 0; i < atoms.length (); i++)
+				grown.set (i, atoms.get (i));
+
+			grown.set (id, a);
+			_atoms = grown;
+		} else {
+			atoms.set (id, a);
+		}
+
+		_names.put (a.getName (), a);
+		if (id > _maxAtomId)
+			_maxAtomId = id;
+	}
+
+	/**
+	 * Return the number of atoms.
+	 *
+	 * @return	The number of atoms.
+	 */
+	public int
+	size () {
+		return _names.size ();
+	}
+
+	/**
+	 * Remove all but the predefined atoms.
+	 * Called when the server is reset, so no clients are connected.
+	 */
+	public synchronized void
+	reset () {
+		_atoms = new AtomicReferenceArray<Atom>(256);
+		_names.clear ();
+		_maxAtomId = 0;
+		Atom.registerPredefinedAtoms (this);
+	}
+}
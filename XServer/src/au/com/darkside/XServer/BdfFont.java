@@ -0,0 +1,391 @@
+/**
+ * This class implements a font loaded from a BDF file.
+ */
+package au.com.darkside.XServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class implements a font loaded from a BDF (Glyph Bitmap
+ * Distribution Format) file.
+ *
+ * A BDF file is text, so it is scanned once when loaded to find each
+ * glyph and read its metrics. The glyph bitmaps, which are most of the
+ * file, are only parsed from the mapped file when they're drawn.
+ */
+public class BdfFont extends BitmapFont {
+	private final ByteBuffer	_buffer;
+	private int					_position = 0;
+	private short[]				_glyphMetrics = new short[6 * 256];
+	private int[]				_bitmapStarts = new int[256];
+	private int[]				_encodings = new int[256];
+	private int					_numGlyphs = 0;
+	private int[]				_glyphs;
+
+	/**
+	 * Is the buffer the contents of a BDF file?
+	 *
+	 * @param buffer	The contents of a file.
+	 * @return	True if it starts like a BDF file.
+	 */
+	public static boolean
+	isBdf (
+		ByteBuffer	buffer
+	) {
+		String		magic = "STARTFONT";
+
+		if (buffer.limit () < magic.length ())
+			return false;
+
+		for (int i = 0; i < magic.length (); i++)
+			if (buffer.get (i) != magic.charAt (i))
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param buffer	The contents of the BDF file.
+	 * @throws IOException	If it isn't a valid BDF file.
+	 */
+	public BdfFont (
+		ByteBuffer	buffer
+	) throws IOException {
+		String		line;
+		int			ascent = Integer.MIN_VALUE;
+		int			descent = Integer.MIN_VALUE;
+		int			boxHeight = 0;
+		int			boxY = 0;
+		int			dwidth = 0;
+
+		_buffer = buffer;
+		_defaultChar = 0;
+
+		while ((line = readLine ()) != null) {
+			String[]	fields = line.split ("\\s+", 2);
+			String		keyword = fields[0];
+
+			if (keyword.equals ("FONTBOUNDINGBOX")) {
+				int[]		box = parseInts (line, 4);
+
+				boxHeight = box[1];
+				boxY = box[3];
+			} else if (keyword.equals ("DWIDTH")) {
+				dwidth = parseInts (line, 1)[0];
+			} else if (keyword.equals ("STARTPROPERTIES")) {
+				while ((line = readLine ()) != null
+										&& !line.startsWith ("ENDPROPERTIES")) {
+					fields = line.split ("\\s+", 2);
+					if (fields.length < 2)
+						continue;
+
+					Object		value = parsePropertyValue (fields[1]);
+
+					_propertyNames.add (fields[0]);
+					_propertyValues.add (value);
+					if (!(value instanceof Integer))
+						continue;
+					else if (fields[0].equals ("FONT_ASCENT"))
+						ascent = (Integer) value;
+					else if (fields[0].equals ("FONT_DESCENT"))
+						descent = (Integer) value;
+					else if (fields[0].equals ("DEFAULT_CHAR"))
+						_defaultChar = (Integer) value & 0xffff;
+				}
+			} else if (keyword.equals ("STARTCHAR")) {
+				readGlyph (dwidth);
+			}
+		}
+
+		if (_numGlyphs == 0)
+			throw new IOException ("No glyphs");
+
+		_ascent = (short) ((ascent != Integer.MIN_VALUE) ? ascent
+														: boxHeight + boxY);
+		_descent = (short) ((descent != Integer.MIN_VALUE) ? descent
+																	: -boxY);
+		buildEncodings ();
+		calculateBounds ();
+		_encodings = null;	// Only needed while loading.
+	}
+
+	/**
+	 * Read the next line of the file.
+	 *
+	 * @return	The line, without surrounding white space, or null at the
+	 * 			end of the file.
+	 */
+	private String
+	readLine () {
+		int			limit = _buffer.limit ();
+
+		if (_position >= limit)
+			return null;
+
+		StringBuilder	sb = new StringBuilder ();
+
+		while (_position < limit) {
+			char		c = (char) (_buffer.get (_position++) & 0xff);
+
+			if (c == '\n')
+				break;
+
+			sb.append (c);
+		}
+
+		return sb.toString().trim ();
+	}
+
+	/**
+	 * Parse the integers following the keyword of a line.
+	 *
+	 * @param line	The line.
+	 * @param n	The number of integers.
+	 * @return	The integers.
+	 * @throws IOException	If the line doesn't have them.
+	 */
+	private static int[]
+	parseInts (
+		String		line,
+		int			n
+	) throws IOException {
+		String[]	fields = line.split ("\\s+");
+		int[]		values = new int[n];
+
+		if (fields.length <= n)
+			throw new IOException ("Bad line: " + line);
+
+		try {
+			for (int i = 0; i < n; i++)
+				values[i] = Integer.parseInt (fields[i + 1]);
+		} catch (NumberFormatException e) {
+			throw new IOException ("Bad line: " + line);
+		}
+
+		return values;
+	}
+
+	/**
+	 * Parse the value of a property, which is an integer or a string in
+	 * double quotes, with any quotes in it doubled.
+	 *
+	 * @param s	The value.
+	 * @return	An Integer, or a String.
+	 */
+	private static Object
+	parsePropertyValue (
+		String		s
+	) {
+		if (s.startsWith ("\"")) {
+			int			end = s.lastIndexOf ('"');
+
+			if (end <= 0)
+				end = s.length ();
+
+			return s.substring(1, end).replace ("\"\"", "\"");
+		}
+
+		try {
+			return Integer.valueOf (s.trim ());
+		} catch (NumberFormatException e) {
+			return s;
+		}
+	}
+
+	/**
+	 * Read a glyph's encoding and metrics, and find its bitmap. The file
+	 * position is after the STARTCHAR line. Glyphs without an encoding
+	 * are skipped.
+	 *
+	 * @param dwidth	The font's default width.
+	 * @throws IOException	If the glyph is bad.
+	 */
+	private void
+	readGlyph (
+		int			dwidth
+	) throws IOException {
+		String		line;
+		int			encoding = -1;
+		int[]		box = null;
+
+		while ((line = readLine ()) != null && !line.equals ("BITMAP")) {
+			if (line.startsWith ("ENCODING")) {
+				String[]	fields = line.split ("\\s+");
+
+				encoding = parseInts (line, 1)[0];
+				if (encoding < 0 && fields.length > 2)	// Non-standard.
+					encoding = parseInts (line, 2)[1];
+			} else if (line.startsWith ("DWIDTH")) {
+				dwidth = parseInts (line, 1)[0];
+			} else if (line.startsWith ("BBX")) {
+				box = parseInts (line, 4);
+			}
+		}
+
+		if (line == null || box == null)
+			throw new IOException ("Bad glyph");
+
+		if (encoding < 0 || encoding > 0xffff)
+			return;
+
+		int			n = _numGlyphs++;
+
+		if (n == _bitmapStarts.length) {
+			int[]		starts = new int[2 * n];
+			int[]		encodings = new int[2 * n];
+			short[]		metrics = new short[12 * n];
+
+			System.arraycopy (_bitmapStarts, 0, starts, 0, n);
+			System.arraycopy (_encodings, 0, encodings, 0, n);
+			System.arraycopy (_glyphMetrics, 0, metrics, 0, 6 * n);
+			_bitmapStarts = starts;
+			_encodings = encodings;
+			_glyphMetrics = metrics;
+		}
+
+		_encodings[n] = encoding;
+		_bitmapStarts[n] = _position;
+		_glyphMetrics[6 * n] = (short) box[2];	// Left side bearing.
+		_glyphMetrics[6 * n + 1] = (short) (box[2] + box[0]);	// Right.
+		_glyphMetrics[6 * n + 2] = (short) dwidth;	// Width.
+		_glyphMetrics[6 * n + 3] = (short) (box[1] + box[3]);	// Ascent.
+		_glyphMetrics[6 * n + 4] = (short) -box[3];	// Descent.
+		_glyphMetrics[6 * n + 5] = 0;	// Attributes.
+	}
+
+	/**
+	 * Build the table mapping characters to glyphs.
+	 */
+	private void
+	buildEncodings () {
+		_minByte1 = _minByte2 = 255;
+		_maxByte1 = _maxByte2 = 0;
+		for (int i = 0; i < _numGlyphs; i++) {
+			int			b1 = _encodings[i] >> 8;
+			int			b2 = _encodings[i] & 0xff;
+
+			_minByte1 = Math.min (_minByte1, b1);
+			_maxByte1 = Math.max (_maxByte1, b1);
+			_minByte2 = Math.min (_minByte2, b2);
+			_maxByte2 = Math.max (_maxByte2, b2);
+		}
+
+		_glyphs = new int[getNumCharInfos ()];
+		Arrays.fill (_glyphs, -1);
+		for (int i = 0; i < _numGlyphs; i++) {
+			int			b1 = _encodings[i] >> 8;
+			int			b2 = _encodings[i] & 0xff;
+			int			j = (b1 - _minByte1) * (_maxByte2 - _minByte2 + 1)
+															+ b2 - _minByte2;
+
+			if (_glyphs[j] < 0)
+				_glyphs[j] = i;
+		}
+	}
+
+	/**
+	 * Calculate the font's bounds from its glyphs.
+	 */
+	private void
+	calculateBounds () {
+		for (int i = 0; i < _numGlyphs; i++) {
+			for (int j = 0; j < 6; j++) {
+				short		v = _glyphMetrics[6 * i + j];
+
+				if (i == 0 || v < _minBounds[j])
+					_minBounds[j] = v;
+				if (i == 0 || v > _maxBounds[j])
+					_maxBounds[j] = v;
+			}
+		}
+	}
+
+	/**
+	 * Return the index of the glyph of a character.
+	 *
+	 * @param byte1	The first byte of the character.
+	 * @param byte2	The second byte of the character.
+	 * @return	The glyph index, or -1 if the font doesn't have it.
+	 */
+	@Override
+	protected int
+	getGlyph (
+		int			byte1,
+		int			byte2
+	) {
+		if (byte1 < _minByte1 || byte1 > _maxByte1 || byte2 < _minByte2
+														|| byte2 > _maxByte2)
+			return -1;
+
+		return _glyphs[(byte1 - _minByte1) * (_maxByte2 - _minByte2 + 1)
+														+ byte2 - _minByte2];
+	}
+
+	/**
+	 * Return the metrics of a glyph.
+	 *
+	 * @param glyph	The glyph index.
+	 * @param info	Return value. The glyph's CHARINFO fields.
+	 */
+	@Override
+	protected void
+	getGlyphMetrics (
+		int			glyph,
+		short[]		info
+	) {
+		System.arraycopy (_glyphMetrics, 6 * glyph, info, 0, 6);
+	}
+
+	/**
+	 * Draw a glyph into an array of pixels, setting its inked pixels.
+	 * Each row of the bitmap is a line of hexadecimal digits, with the
+	 * first pixel in the most significant bit.
+	 *
+	 * @param glyph	The glyph index.
+	 * @param info	The glyph's metrics.
+	 * @param pixels	The pixels to draw into.
+	 * @param offset	The index of the top left pixel of the glyph.
+	 * @param stride	The number of pixels in a row.
+	 * @param color	The color of the inked pixels.
+	 */
+	@Override
+	protected void
+	drawGlyph (
+		int			glyph,
+		short[]		info,
+		int[]		pixels,
+		int			offset,
+		int			stride,
+		int			color
+	) {
+		int			width = info[1] - info[0];
+		int			height = info[3] + info[4];
+		int			p = _bitmapStarts[glyph];
+		int			limit = _buffer.limit ();
+
+		for (int y = 0; y < height; y++) {
+			int			x = 0;
+
+			while (p < limit && Character.isWhitespace (_buffer.get (p)))
+				p++;
+
+			while (p < limit) {
+				int			d = Character.digit (_buffer.get (p), 16);
+
+				if (d < 0)
+					break;
+
+				p++;
+				for (int i = 0; i < 4; i++, x++)
+					if (x < width && (d & (8 >> i)) != 0)
+						pixels[offset + y * stride + x] = color;
+			}
+		}
+	}
+}
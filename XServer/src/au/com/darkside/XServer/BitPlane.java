@@ -0,0 +1,310 @@
+/**
+ * This class implements the packed pixels of a depth 1 drawable.
+ */
+package au.com.darkside.XServer;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class implements the packed pixels of a depth 1 drawable, one
+ * bit per pixel instead of the 32 bits of an ARGB bitmap.
+ *
+ * Each row is stored in whole ints, with the leftmost pixel in the most
+ * significant bit, which is also the bit order of X bitmaps. Drawing
+ * combines the source and destination bits with the GContext's function,
+ * 32 pixels at a time.
+ */
+public class BitPlane {
+	public static final int		FunctionCopy = 3;
+
+	private final int			_width;
+	private final int			_height;
+	private final int			_stride;
+	private final int[]			_bits;
+
+	/**
+	 * Constructor. All the pixels are initially zero.
+	 *
+	 * @param width	The width in pixels.
+	 * @param height	The height in pixels.
+	 */
+	public BitPlane (
+		int			width,
+		int			height
+	) {
+		_width = width;
+		_height = height;
+		_stride = (width + 31) >> 5;
+		_bits = new int[_stride * height];
+	}
+
+	/**
+	 * Return the width.
+	 *
+	 * @return	The width in pixels.
+	 */
+	public int
+	getWidth () {
+		return _width;
+	}
+
+	/**
+	 * Return the height.
+	 *
+	 * @return	The height in pixels.
+	 */
+	public int
+	getHeight () {
+		return _height;
+	}
+
+	/**
+	 * Return the number of bytes used by the pixels.
+	 *
+	 * @return	The number of bytes used by the pixels.
+	 */
+	public int
+	getByteCount () {
+		return _bits.length * 4;
+	}
+
+	/**
+	 * Return the value of a pixel.
+	 *
+	 * @param x	The X coordinate.
+	 * @param y	The Y coordinate.
+	 * @return	True if the pixel is one.
+	 */
+	public boolean
+	get (
+		int			x,
+		int			y
+	) {
+		return (_bits[y * _stride + (x >> 5)] & (0x80000000 >>> x)) != 0;
+	}
+
+	/**
+	 * Combine source and destination bits, 32 at a time, with an X
+	 * drawing function. The function is a truth table, indexed by
+	 * the source and destination bits, with a set source and destination
+	 * in the least significant bit.
+	 *
+	 * @param function	The X function, GXclear to GXset.
+	 * @param src	The source bits.
+	 * @param dst	The destination bits.
+	 * @return	The combined bits.
+	 */
+	private static int
+	combine (
+		int			function,
+		int			src,
+		int			dst
+	) {
+		int			result = 0;
+
+		if ((function & 1) != 0)
+			result |= src & dst;
+		if ((function & 2) != 0)
+			result |= src & ~dst;
+		if ((function & 4) != 0)
+			result |= ~src & dst;
+		if ((function & 8) != 0)
+			result |= ~src & ~dst;
+
+		return result;
+	}
+
+	/**
+	 * Return 32 bits from an array of packed bits, starting at a bit
+	 * position that need not be aligned. Bits outside the array are zero.
+	 *
+	 * @param a	The packed bits.
+	 * @param p	The position of the first bit. May be negative.
+	 * @return	The 32 bits, with the first in the most significant bit.
+	 */
+	private static int
+	get32 (
+		int[]		a,
+		int			p
+	) {
+		if (p <= -32)
+			return 0;
+		else if (p < 0)
+			return a[0] >>> -p;
+
+		int			i = p >> 5;
+		int			shift = p & 31;
+
+		if (i >= a.length)
+			return 0;
+		else if (shift == 0)
+			return a[i];
+		else if (i + 1 == a.length)
+			return a[i] << shift;
+		else
+			return (a[i] << shift) | (a[i + 1] >>> (32 - shift));
+	}
+
+	/**
+	 * Return the mask of the bits of a word that lie within a span of
+	 * pixels.
+	 *
+	 * @param wx	The X coordinate of the word's first pixel.
+	 * @param x1	The first pixel of the span.
+	 * @param x2	The pixel after the span.
+	 * @return	The mask.
+	 */
+	private static int
+	spanMask (
+		int			wx,
+		int			x1,
+		int			x2
+	) {
+		int			mask = -1;
+
+		if (x1 > wx)
+			mask = -1 >>> (x1 - wx);
+		if (x2 < wx + 32)
+			mask &= ~(-1 >>> (x2 - wx));
+
+		return mask;
+	}
+
+	/**
+	 * Combine a row of source bits with a span of pixels in a row.
+	 * Pixels outside the plane are ignored.
+	 *
+	 * @param x	The X coordinate of the span.
+	 * @param y	The row.
+	 * @param width	The number of pixels in the span.
+	 * @param src	The source bits, or null if they're all the same.
+	 * @param srcOffset	The position in src of the bit for pixel x.
+	 * @param srcValue	The source bits if src is null, 0 or -1.
+	 * @param mask	The bits to change, or null to change all of them.
+	 * @param maskOffset	The position in mask of the bit for pixel x.
+	 * @param function	The X function.
+	 */
+	public void
+	applyRow (
+		int			x,
+		int			y,
+		int			width,
+		int[]		src,
+		int			srcOffset,
+		int			srcValue,
+		int[]		mask,
+		int			maskOffset,
+		int			function
+	) {
+		int			x1 = Math.max (x, 0);
+		int			x2 = Math.min (x + width, _width);
+
+		if (y < 0 || y >= _height || x1 >= x2 || function == 5)	// No-op.
+			return;
+
+		int			row = y * _stride;
+
+		for (int wx = x1 & ~31; wx < x2; wx += 32) {
+			int			m = spanMask (wx, x1, x2);
+			int			i = row + (wx >> 5);
+			int			s;
+
+			if (mask != null)
+				m &= get32 (mask, maskOffset + wx - x);
+
+			if (m == 0)
+				continue;
+
+			s = (src == null) ? srcValue : get32 (src, srcOffset + wx - x);
+			_bits[i] = (_bits[i] & ~m) | (combine (function, s, _bits[i]) & m);
+		}
+	}
+
+	/**
+	 * Fill a rectangle, combining the pixels with a source value.
+	 *
+	 * @param x	The X coordinate of the rectangle.
+	 * @param y	The Y coordinate of the rectangle.
+	 * @param width	The width of the rectangle.
+	 * @param height	The height of the rectangle.
+	 * @param value	The source pixel value.
+	 * @param function	The X function.
+	 */
+	public void
+	fillRect (
+		int			x,
+		int			y,
+		int			width,
+		int			height,
+		boolean		value,
+		int			function
+	) {
+		int			y1 = Math.max (y, 0);
+		int			y2 = Math.min (y + height, _height);
+
+		for (int i = y1; i < y2; i++)
+			applyRow (x, i, width, null, 0, value ? -1 : 0, null, 0,
+																function);
+	}
+
+	/**
+	 * Copy the bits of a row of pixels into an array, with the first
+	 * pixel in the most significant bit of the first int.
+	 *
+	 * @param x	The X coordinate of the first pixel.
+	 * @param y	The row.
+	 * @param width	The number of pixels.
+	 * @param dst	The array to copy them into.
+	 */
+	public void
+	getRow (
+		int			x,
+		int			y,
+		int			width,
+		int[]		dst
+	) {
+		int			p = (y * _stride << 5) + x;
+
+		for (int i = 0; i < width; i += 32)
+			dst[i >> 5] = get32 (_bits, p + i);
+	}
+
+	/**
+	 * Convert a rectangle of pixels to ARGB colors.
+	 *
+	 * @param pixels	The array to store the colors in.
+	 * @param offset	The index of the first color.
+	 * @param stride	The number of colors in a row of the array.
+	 * @param x	X coordinate of the rectangle.
+	 * @param y	Y coordinate of the rectangle.
+	 * @param width	Width of the rectangle.
+	 * @param height	Height of the rectangle.
+	 * @param one	The color of pixels that are one.
+	 * @param zero	The color of pixels that are zero.
+	 */
+	public void
+	getColors (
+		int[]		pixels,
+		int			offset,
+		int			stride,
+		int			x,
+		int			y,
+		int			width,
+		int			height,
+		int			one,
+		int			zero
+	) {
+		for (int r = 0; r < height; r++) {
+			int			p = ((y + r) * _stride << 5) + x;
+			int			idx = offset + r * stride;
+
+			for (int i = 0; i < width; i += 32) {
+				int			bits = get32 (_bits, p + i);
+				int			n = Math.min (32, width - i);
+
+				for (int j = 0; j < n; j++, bits <<= 1)
+					pixels[idx++] = (bits < 0) ? one : zero;
+			}
+		}
+	}
+}
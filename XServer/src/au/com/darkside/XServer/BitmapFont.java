@@ -0,0 +1,824 @@
+/**
+ * This class implements a font loaded from a bitmap font file.
+ */
+package au.com.darkside.XServer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.zip.GZIPInputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.Log;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class implements a font loaded from a PCF or BDF file on the font
+ * path, such as the fixed-width fonts that xterm expects.
+ *
+ * The file is memory-mapped and its glyphs are read from the mapping
+ * when they are measured or drawn, so a large font uses little heap
+ * until its glyphs are needed, and the pages of glyphs that aren't used
+ * are never read. Compressed files are decompressed into the cache
+ * directory first.
+ *
+ * ListFontsWithInfo only needs a font's ranges and bounds, so those can
+ * be read without loading the font. A compressed file is then
+ * decompressed in memory as it's read, and nothing is written.
+ *
+ * Characters are encoded X-style, with the first byte of a 16-bit
+ * character in the top eight bits. Glyph metrics are the six shorts of a
+ * CHARINFO: left side bearing, right side bearing, width, ascent, descent,
+ * and attributes.
+ *
+ * Loaded fonts are shared and reference counted, like font faces.
+ * Drawing isn't thread-safe. The X server lock protects it.
+ */
+public abstract class BitmapFont {
+	private static final HashMap<String, BitmapFont>	_fonts =
+										new HashMap<String, BitmapFont>();
+	private static final byte[]	GzipMagic = {0x1f, (byte) 0x8b};
+	private static final byte[]	PcfMagic = {1, 'f', 'c', 'p'};
+
+	protected int				_minByte1 = 0;
+	protected int				_maxByte1 = 0;
+	protected int				_minByte2 = 0;
+	protected int				_maxByte2 = 0;
+	protected int				_defaultChar = 0;
+	protected short				_ascent = 0;
+	protected short				_descent = 0;
+	protected final short[]		_minBounds = new short[6];
+	protected final short[]		_maxBounds = new short[6];
+	protected final Vector<String>	_propertyNames = new Vector<String>();
+	protected final Vector<Object>	_propertyValues = new Vector<Object>();
+
+	private final short[]		_info = new short[6];
+	private int[]				_pixels = new int[0];
+	private int[]				_row = new int[0];
+	private String				_key = null;
+	private int					_refCount = 0;
+
+	/**
+	 * Return the font in a file, loading it if it isn't loaded. Each
+	 * successful call must be matched by a call to release.
+	 *
+	 * @param file	The PCF or BDF file, which may be gzipped.
+	 * @param cacheDir	A directory for decompressed files.
+	 * @return	The font, or null if the file can't be loaded.
+	 */
+	public static BitmapFont
+	acquire (
+		File		file,
+		File		cacheDir
+	) {
+		String		key = file.getAbsolutePath ();
+
+		synchronized (_fonts) {
+			BitmapFont	font = _fonts.get (key);
+
+			if (font == null) {
+				try {
+					font = load (file, cacheDir);
+				} catch (IOException e) {
+					Log.e ("XServer", "Loading " + file + ": "
+														+ e.getMessage ());
+				} catch (RuntimeException e) {	// A corrupt file.
+					Log.e ("XServer", "Loading " + file + ": " + e);
+				}
+
+				if (font == null)
+					return null;
+
+				font._key = key;
+				_fonts.put (key, font);
+			}
+
+			font._refCount++;
+
+			return font;
+		}
+	}
+
+	/**
+	 * Release a reference to the font. It is unloaded when the last
+	 * reference is released.
+	 */
+	public void
+	release () {
+		synchronized (_fonts) {
+			if (--_refCount == 0 && _fonts.get (_key) == this)
+				_fonts.remove (_key);
+		}
+	}
+
+	/**
+	 * Read the ranges and bounds of the font in a file without loading
+	 * it. Only the tables of a PCF file that hold them are read.
+	 *
+	 * @param file	The PCF or BDF file, which may be gzipped.
+	 * @return	The font's ranges and bounds, or null if the file can't
+	 * 			be read.
+	 */
+	public static Info
+	readInfo (
+		File		file
+	) {
+		try {
+			InputStream		is = new BufferedInputStream (
+												new FileInputStream (file));
+
+			try {
+				boolean		compressed = startsWith (is, GzipMagic);
+
+				if (compressed)
+					is = new BufferedInputStream (new GZIPInputStream (is));
+
+				if (startsWith (is, PcfMagic))
+					return PcfFont.readInfo (is);
+
+				ByteBuffer	buf = compressed ? ByteBuffer.wrap (readAll (is))
+																: map (file);
+
+				if (BdfFont.isBdf (buf))
+					return new Info (new BdfFont (buf));
+			} finally {
+				is.close ();
+			}
+		} catch (IOException e) {
+			Log.e ("XServer", "Reading " + file + ": " + e.getMessage ());
+		} catch (RuntimeException e) {	// A corrupt file.
+			Log.e ("XServer", "Reading " + file + ": " + e);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Does a stream start with the specified bytes? None of the stream
+	 * is consumed.
+	 *
+	 * @param is	The stream, which must support mark and reset.
+	 * @param magic	The bytes.
+	 * @return	True if the stream starts with the bytes.
+	 * @throws IOException
+	 */
+	private static boolean
+	startsWith (
+		InputStream	is,
+		byte[]		magic
+	) throws IOException {
+		boolean		match = true;
+
+		is.mark (magic.length);
+		for (byte b: magic)
+			if (is.read () != (b & 0xff)) {
+				match = false;
+				break;
+			}
+
+		is.reset ();
+
+		return match;
+	}
+
+	/**
+	 * Read the rest of a stream into memory.
+	 *
+	 * @param is	The stream.
+	 * @return	The bytes read.
+	 * @throws IOException
+	 */
+	private static byte[]
+	readAll (
+		InputStream	is
+	) throws IOException {
+		ByteArrayOutputStream	os = new ByteArrayOutputStream ();
+		byte[]		ba = new byte[8192];
+		int			n;
+
+		while ((n = is.read (ba)) > 0)
+			os.write (ba, 0, n);
+
+		return os.toByteArray ();
+	}
+
+	/**
+	 * Map a font file and parse it according to its contents.
+	 *
+	 * @param file	The font file.
+	 * @param cacheDir	A directory for decompressed files.
+	 * @return	The font, or null if it isn't a PCF or BDF file.
+	 * @throws IOException
+	 */
+	private static BitmapFont
+	load (
+		File		file,
+		File		cacheDir
+	) throws IOException {
+		ByteBuffer	buf = map (file);
+
+		if (buf.limit () >= 2 && buf.get (0) == (byte) 0x1f
+												&& buf.get (1) == (byte) 0x8b)
+			buf = map (decompress (file, cacheDir));
+
+		if (buf.limit () >= 4 && buf.get (0) == 1 && buf.get (1) == 'f'
+								&& buf.get (2) == 'c' && buf.get (3) == 'p')
+			return new PcfFont (buf);
+		else if (BdfFont.isBdf (buf))
+			return new BdfFont (buf);
+		else
+			return null;
+	}
+
+	/**
+	 * Map a file into memory, read-only.
+	 *
+	 * @param file	The file.
+	 * @return	A buffer holding the file's contents.
+	 * @throws IOException
+	 */
+	private static ByteBuffer
+	map (
+		File		file
+	) throws IOException {
+		RandomAccessFile	raf = new RandomAccessFile (file, "r");
+
+		try {
+			FileChannel		fc = raf.getChannel ();
+
+			return fc.map (FileChannel.MapMode.READ_ONLY, 0, fc.size ());
+		} finally {
+			raf.close ();	// The mapping stays valid.
+		}
+	}
+
+	/**
+	 * Decompress a gzipped file into the cache directory, unless that
+	 * has already been done.
+	 *
+	 * @param file	The gzipped file.
+	 * @param cacheDir	The cache directory.
+	 * @return	The decompressed file.
+	 * @throws IOException
+	 */
+	private static File
+	decompress (
+		File		file,
+		File		cacheDir
+	) throws IOException {
+		String		path = file.getAbsolutePath ();
+		File		out = new File (cacheDir, "font-"
+						+ Integer.toHexString (path.hashCode ()) + "-"
+						+ Long.toHexString (file.lastModified ()) + "-"
+						+ file.getName().replaceFirst ("\\.gz$", ""));
+
+		if (out.exists ())
+			return out;
+
+		File			tmp = new File (out.getPath () + ".tmp");
+		InputStream		is = new GZIPInputStream (new FileInputStream (file));
+
+		try {
+			FileOutputStream	os = new FileOutputStream (tmp);
+
+			try {
+				byte[]		ba = new byte[8192];
+				int			n;
+
+				while ((n = is.read (ba)) > 0)
+					os.write (ba, 0, n);
+			} finally {
+				os.close ();
+			}
+		} finally {
+			is.close ();
+		}
+
+		if (!tmp.renameTo (out))
+			throw new IOException ("Can't create " + out);
+
+		return out;
+	}
+
+	/**
+	 * Return the index of the glyph of a character.
+	 *
+	 * @param byte1	The first byte of the character.
+	 * @param byte2	The second byte of the character.
+	 * @return	The glyph index, or -1 if the font doesn't have it.
+	 */
+	protected abstract int
+	getGlyph (
+		int			byte1,
+		int			byte2
+	);
+
+	/**
+	 * Read the metrics of a glyph.
+	 *
+	 * @param glyph	The glyph index.
+	 * @param info	Return value. The glyph's CHARINFO fields.
+	 */
+	protected abstract void
+	getGlyphMetrics (
+		int			glyph,
+		short[]		info
+	);
+
+	/**
+	 * Draw a glyph into an array of pixels, setting its inked pixels.
+	 * The pixel at the offset corresponds to the top left corner of the
+	 * glyph's bounding box.
+	 *
+	 * @param glyph	The glyph index.
+	 * @param info	The glyph's metrics.
+	 * @param pixels	The pixels to draw into.
+	 * @param offset	The index of the top left pixel of the glyph.
+	 * @param stride	The number of pixels in a row.
+	 * @param color	The color of the inked pixels.
+	 */
+	protected abstract void
+	drawGlyph (
+		int			glyph,
+		short[]		info,
+		int[]		pixels,
+		int			offset,
+		int			stride,
+		int			color
+	);
+
+	/**
+	 * Return the minimum first byte of the font's characters.
+	 *
+	 * @return	The minimum first byte.
+	 */
+	public int
+	getMinByte1 () {
+		return _minByte1;
+	}
+
+	/**
+	 * Return the maximum first byte of the font's characters.
+	 *
+	 * @return	The maximum first byte.
+	 */
+	public int
+	getMaxByte1 () {
+		return _maxByte1;
+	}
+
+	/**
+	 * Return the minimum second byte of the font's characters.
+	 *
+	 * @return	The minimum second byte.
+	 */
+	public int
+	getMinByte2 () {
+		return _minByte2;
+	}
+
+	/**
+	 * Return the maximum second byte of the font's characters.
+	 *
+	 * @return	The maximum second byte.
+	 */
+	public int
+	getMaxByte2 () {
+		return _maxByte2;
+	}
+
+	/**
+	 * Return the character drawn in place of characters the font
+	 * doesn't have.
+	 *
+	 * @return	The default character.
+	 */
+	public int
+	getDefaultChar () {
+		return _defaultChar;
+	}
+
+	/**
+	 * Return the font's ascent.
+	 *
+	 * @return	The font's ascent.
+	 */
+	public short
+	getAscent () {
+		return _ascent;
+	}
+
+	/**
+	 * Return the font's descent.
+	 *
+	 * @return	The font's descent.
+	 */
+	public short
+	getDescent () {
+		return _descent;
+	}
+
+	/**
+	 * Return the minimum of each of the glyph metrics.
+	 *
+	 * @return	The minimum bounds. The array must not be modified.
+	 */
+	public short[]
+	getMinBounds () {
+		return _minBounds;
+	}
+
+	/**
+	 * Return the maximum of each of the glyph metrics.
+	 *
+	 * @return	The maximum bounds. The array must not be modified.
+	 */
+	public short[]
+	getMaxBounds () {
+		return _maxBounds;
+	}
+
+	/**
+	 * Return the names of the font's properties.
+	 *
+	 * @return	The property names.
+	 */
+	public Vector<String>
+	getPropertyNames () {
+		return _propertyNames;
+	}
+
+	/**
+	 * Return the values of the font's properties. Each is an Integer, or
+	 * a String to be returned as an atom.
+	 *
+	 * @return	The property values.
+	 */
+	public Vector<Object>
+	getPropertyValues () {
+		return _propertyValues;
+	}
+
+	/**
+	 * Return the number of CHARINFOs in a QueryFont reply, one for each
+	 * character in the font's range.
+	 *
+	 * @return	The number of CHARINFOs.
+	 */
+	public int
+	getNumCharInfos () {
+		return (_maxByte1 - _minByte1 + 1) * (_maxByte2 - _minByte2 + 1);
+	}
+
+	/**
+	 * Return a CHARINFO of a QueryFont reply. A character the font
+	 * doesn't have has zero metrics.
+	 *
+	 * @param index	The index of the CHARINFO.
+	 * @param info	Return value. The CHARINFO fields.
+	 */
+	public void
+	getCharInfo (
+		int			index,
+		short[]		info
+	) {
+		int			n = _maxByte2 - _minByte2 + 1;
+		int			glyph = getGlyph (_minByte1 + index / n,
+													_minByte2 + index % n);
+
+		if (glyph < 0)
+			Arrays.fill (info, (short) 0);
+		else
+			getGlyphMetrics (glyph, info);
+	}
+
+	/**
+	 * Return the glyph drawn for a character, which is the default
+	 * character's glyph if the font doesn't have the character.
+	 *
+	 * @param c	The character.
+	 * @return	The glyph index, or -1 if nothing is drawn.
+	 */
+	private int
+	getGlyph (
+		char		c
+	) {
+		int			glyph = getGlyph (c >> 8, c & 0xff);
+
+		if (glyph < 0)
+			glyph = getGlyph (_defaultChar >> 8, _defaultChar & 0xff);
+
+		return glyph;
+	}
+
+	/**
+	 * Calculate the extents of a string as the sum of its characters'
+	 * metrics, the way a QueryTextExtents reply reports them.
+	 *
+	 * @param chars	The characters.
+	 * @param length	The number of characters.
+	 * @param bounds	Return value. The overall left and right bearings,
+	 * 					and the negated ascent and the descent.
+	 * @return	The overall width.
+	 */
+	public synchronized int
+	measureText (
+		char[]		chars,
+		int			length,
+		Rect		bounds
+	) {
+		int			width = 0;
+		boolean		first = true;
+
+		bounds.setEmpty ();
+		for (int i = 0; i < length; i++) {
+			int			glyph = getGlyph (chars[i]);
+
+			if (glyph < 0)
+				continue;
+
+			getGlyphMetrics (glyph, _info);
+
+			int			left = width + _info[0];
+			int			right = width + _info[1];
+			int			top = -_info[3];
+			int			bottom = _info[4];
+
+			if (first) {
+				bounds.set (left, top, right, bottom);
+				first = false;
+			} else {
+				if (left < bounds.left)
+					bounds.left = left;
+				if (right > bounds.right)
+					bounds.right = right;
+				if (top < bounds.top)
+					bounds.top = top;
+				if (bottom > bounds.bottom)
+					bounds.bottom = bottom;
+			}
+
+			width += _info[2];
+		}
+
+		return width;
+	}
+
+	/**
+	 * Return the width of a string, the sum of its characters' widths.
+	 *
+	 * @param chars	The characters.
+	 * @param length	The number of characters.
+	 * @return	The width of the string.
+	 */
+	public synchronized int
+	getTextWidth (
+		char[]		chars,
+		int			length
+	) {
+		int			width = 0;
+
+		for (int i = 0; i < length; i++) {
+			int			glyph = getGlyph (chars[i]);
+
+			if (glyph >= 0) {
+				getGlyphMetrics (glyph, _info);
+				width += _info[2];
+			}
+		}
+
+		return width;
+	}
+
+	/**
+	 * Draw text. The glyphs are drawn into an array of pixels covering
+	 * the text's ink, which is drawn with a single call.
+	 *
+	 * @param canvas	The canvas to draw on.
+	 * @param chars	The characters to draw.
+	 * @param length	The number of characters.
+	 * @param x	X coordinate of the origin of the first character.
+	 * @param y	Y coordinate of the baseline.
+	 * @param paint	The paint to draw with, set to the foreground color.
+	 * @return	The width of the text.
+	 */
+	public synchronized int
+	drawText (
+		Canvas		canvas,
+		char[]		chars,
+		int			length,
+		int			x,
+		int			y,
+		Paint		paint
+	) {
+		Rect		bounds = new Rect ();
+		int			width = renderText (chars, length, bounds,
+														paint.getColor ());
+		int			stride = bounds.width ();
+
+		if (!bounds.isEmpty ())
+			canvas.drawBitmap (_pixels, 0, stride, x + bounds.left,
+						y + bounds.top, stride, bounds.height (), true, paint);
+
+		return width;
+	}
+
+	/**
+	 * Draw text with the XOR function. Only the pixels the glyphs cover
+	 * are combined with the foreground pixel value, since drawing the
+	 * whole array with an XOR paint would also change the pixels between
+	 * the glyphs.
+	 *
+	 * @param bitmap	The bitmap to draw on.
+	 * @param clip	Non-overlapping clip rectangles, or null.
+	 * @param chars	The characters to draw.
+	 * @param length	The number of characters.
+	 * @param x	X coordinate of the origin of the first character.
+	 * @param y	Y coordinate of the baseline.
+	 * @param pixel	The foreground pixel value.
+	 * @return	The width of the text.
+	 */
+	public synchronized int
+	xorText (
+		Bitmap		bitmap,
+		Rect[]		clip,
+		char[]		chars,
+		int			length,
+		int			x,
+		int			y,
+		int			pixel
+	) {
+		Rect		bounds = new Rect ();
+		int			width = renderText (chars, length, bounds, 0xffffffff);
+
+		if (bounds.isEmpty ())
+			return width;
+
+		int			stride = bounds.width ();
+		Rect		ink = new Rect (bounds);
+
+		ink.offset (x, y);
+		if (!ink.intersect (0, 0, bitmap.getWidth (), bitmap.getHeight ()))
+			return width;
+
+		if (clip == null) {
+			xorPixels (bitmap, ink, x + bounds.left, y + bounds.top, stride,
+																	pixel);
+		} else {
+			for (Rect r: clip) {
+				Rect		cr = new Rect (ink);
+
+				if (cr.intersect (r))
+					xorPixels (bitmap, cr, x + bounds.left, y + bounds.top,
+															stride, pixel);
+			}
+		}
+
+		return width;
+	}
+
+	/**
+	 * XOR a pixel value into the pixels of a bitmap covered by the glyphs
+	 * in the array of pixels.
+	 *
+	 * @param bitmap	The bitmap to draw on.
+	 * @param r	The rectangle of the bitmap to change.
+	 * @param left	X coordinate of the array's first column.
+	 * @param top	Y coordinate of the array's first row.
+	 * @param stride	The width of the array.
+	 * @param pixel	The pixel value.
+	 */
+	private void
+	xorPixels (
+		Bitmap		bitmap,
+		Rect		r,
+		int			left,
+		int			top,
+		int			stride,
+		int			pixel
+	) {
+		int			width = r.width ();
+
+		if (_row.length < width)
+			_row = new int[width];
+
+		for (int y = r.top; y < r.bottom; y++) {
+			int			offset = (y - top) * stride + r.left - left;
+
+			bitmap.getPixels (_row, 0, width, r.left, y, width, 1);
+			for (int i = 0; i < width; i++)
+				if (_pixels[offset + i] != 0)
+					_row[i] ^= pixel;
+			bitmap.setPixels (_row, 0, width, r.left, y, width, 1);
+		}
+	}
+
+	/**
+	 * Draw the glyphs of a string into the array of pixels, which is
+	 * made to cover the text's ink. Pixels outside the glyphs are zero.
+	 *
+	 * @param chars	The characters to draw.
+	 * @param length	The number of characters.
+	 * @param bounds	Returns the ink bounds relative to the origin.
+	 * @param color	The color of the glyphs' pixels.
+	 * @return	The width of the text.
+	 */
+	private int
+	renderText (
+		char[]		chars,
+		int			length,
+		Rect		bounds,
+		int			color
+	) {
+		int			width = measureText (chars, length, bounds);
+		int			stride = bounds.width ();
+		int			height = bounds.height ();
+
+		if (stride <= 0 || height <= 0) {
+			bounds.setEmpty ();
+			return width;
+		}
+
+		if (_pixels.length < stride * height)
+			_pixels = new int[stride * height];
+		else
+			Arrays.fill (_pixels, 0, stride * height, 0);
+
+		int			pen = 0;
+
+		for (int i = 0; i < length; i++) {
+			int			glyph = getGlyph (chars[i]);
+
+			if (glyph < 0)
+				continue;
+
+			getGlyphMetrics (glyph, _info);
+			if (_info[1] > _info[0] && _info[3] + _info[4] > 0)
+				drawGlyph (glyph, _info, _pixels,
+						(-_info[3] - bounds.top) * stride
+										+ pen + _info[0] - bounds.left,
+						stride, color);
+
+			pen += _info[2];
+		}
+
+		return width;
+	}
+
+	/**
+	 * This class holds the ranges and bounds of a font, which is all a
+	 * ListFontsWithInfo reply needs.
+	 *
+	 * @author Matthew Kwan
+	 */
+	public static class Info {
+		public int				_minByte1 = 0;
+		public int				_maxByte1 = 0;
+		public int				_minByte2 = 0;
+		public int				_maxByte2 = 0;
+		public int				_defaultChar = 0;
+		public short			_ascent = 0;
+		public short			_descent = 0;
+		public final short[]	_minBounds = new short[6];
+		public final short[]	_maxBounds = new short[6];
+
+		/**
+		 * Constructor, for a font whose details are filled in later.
+		 */
+		public Info () {
+		}
+
+		/**
+		 * Constructor, copying the details of a loaded font.
+		 *
+		 * @param font	The font.
+		 */
+		public Info (
+			BitmapFont	font
+		) {
+			_minByte1 = font._minByte1;
+			_maxByte1 = font._maxByte1;
+			_minByte2 = font._minByte2;
+			_maxByte2 = font._maxByte2;
+			_defaultChar = font._defaultChar;
+			_ascent = font._ascent;
+			_descent = font._descent;
+			System.arraycopy (font._minBounds, 0, _minBounds, 0, 6);
+			System.arraycopy (font._maxBounds, 0, _maxBounds, 0, 6);
+		}
+	}
+}
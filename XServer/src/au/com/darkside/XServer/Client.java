@@ -4,54 +4,74 @@
 package au.com.darkside.XServer;
 
 import java.io.IOException;
-import java.net.Socket;
-import java.util.Vector;
+import java.nio.channels.SocketChannel;
 
-import au.com.darkside.XServer.Xext.Extensions;
+import android.util.Log;
 
 /**
  * @author Matthew Kwan
  * 
  * This class handles communications with a client.
+ * It has no thread of its own. Data arriving on the client's channel is
+ * read by the selector thread that owns the connection, or for a local
+ * socket by the connection's reader thread, which then processes every
+ * complete request in the input buffer.
+ *
+ * A PutImage request too long to buffer whole is processed as it
+ * arrives instead. Its image is drawn a strip of rows at a time, so the
+ * input buffer only needs to hold a strip, however large the image.
  */
-public class Client extends Thread {
+public class Client {
 	public static final int		Destroy = 0;
 	public static final int		RetainPermanent = 1;
 	public static final int		RetainTemporary = 2;
 
+	public static final int		MaxBatchRequests = 64;
+	public static final int		MaxBatchMillis = 10;
+	public static final int		MaxBufferedImageLength = 64 * 1024;
+
 	private final XServer			_xServer;
-	private final Socket			_socket;
 	private final InputOutput		_inputOutput;
 	private final int				_resourceIdBase;
 	private final int				_resourceIdMask;
-	private final Vector<Resource>	_resources;
-	private int						_sequenceNumber = 0;
+	private volatile int			_sequenceNumber = 0;
+	private boolean					_setupComplete = false;
+	private boolean					_suspended = false;
 	private boolean					_closeConnection = false;
 	private boolean					_isConnected = true;
 	private int						_closeDownMode = Destroy;
 	private boolean					_imperviousToServerGrabs = false;
+	private int[]					_pixelBuffer = null;
+	private byte[]					_byteBuffer = null;
+	private final RequestMetrics	_requestMetrics;
+	private Drawable.ImageStream	_imageStream = null;
+	private byte					_imageStreamFormat;
+	private int						_imageStreamLength;
+	private long					_imageStreamNanos;
 
 	/**
 	 * Constructor.
 	 *
 	 * @param xserver	The X Server.
-	 * @param socket	The communications socket.
+	 * @param io	The input/output handle of the connection.
 	 * @param resourceIdBase	The lowest resource ID the client can use.
 	 * @param resourceIdMask	The range of resource IDs the client can use.
 	 * @throws IOException
 	 */
 	public Client (
 		XServer			xserver,
-		Socket			socket,
+		InputOutput		io,
 		int				resourceIdBase,
 		int				resourceIdMask
-	) throws IOException {
+	) {
 		_xServer = xserver;
-		_socket = socket;
-		_inputOutput = new InputOutput (socket);
+		_inputOutput = io;
+		_inputOutput.setFlushDelay (xserver.getFlushDelay ());
+		_inputOutput.setOutputQueueLimit (xserver.getOutputQueueLimit ());
+		_inputOutput.setOverflowPolicy (xserver.getOverflowPolicy ());
 		_resourceIdBase = resourceIdBase;
 		_resourceIdMask = resourceIdMask;
-		_resources = new Vector<Resource>();
+		_requestMetrics = new RequestMetrics ();
 	}
 
 	/**
@@ -74,6 +94,39 @@ public class Client extends Thread {
 		return _inputOutput;
 	}
 
+	/**
+	 * Return the communications channel.
+	 *
+	 * @return	The communications channel, or null for a local socket.
+	 */
+	public SocketChannel
+	getChannel () {
+		return _inputOutput.getChannel ();
+	}
+
+	/**
+	 * Return the lowest resource ID the client can use, which
+	 * identifies the client.
+	 *
+	 * @return	The client's resource ID base.
+	 */
+	public int
+	getResourceIdBase () {
+		return _resourceIdBase;
+	}
+
+	/**
+	 * Return the statistics of the requests processed for the client.
+	 * Requests that don't need the X server lock update them too, so
+	 * they must be locked while reading them.
+	 *
+	 * @return	The client's request statistics.
+	 */
+	public RequestMetrics
+	getRequestMetrics () {
+		return _requestMetrics;
+	}
+
 	/**
 	 * Get the sequence number of the latest request sent by the client.
 	 *
@@ -94,6 +147,18 @@ public class Client extends Thread {
 		return _isConnected;
 	}
 
+	/**
+	 * Return whether request processing is suspended because another
+	 * client has grabbed the server, or the client's output queue is
+	 * full.
+	 *
+	 * @return	True if processing is suspended.
+	 */
+	public boolean
+	isSuspended () {
+		return _suspended;
+	}
+
 	/**
 	 * Return whether the client is impervious to server grabs.
 	 *
@@ -117,46 +182,135 @@ public class Client extends Thread {
 	}
 
 	/**
-	 * Add to the client's list of resources.
+	 * Return a scratch buffer for decoding image data, which is reused
+	 * across requests. Only valid until the next call.
 	 *
-	 * @param r	The resource to add.
+	 * @param size	The minimum number of pixels needed.
+	 * @return	A buffer of at least the requested size.
 	 */
-	public synchronized void
-	addResource (
-		Resource	r
+	public int[]
+	getPixelBuffer (
+		int			size
 	) {
-		_resources.add (r);
+		if (_pixelBuffer == null || _pixelBuffer.length < size)
+			_pixelBuffer = new int[size];
+
+		return _pixelBuffer;
 	}
 
 	/**
-	 * Remove a resource from the client's list.
+	 * Set the PutImage request being processed in pieces. The rest of its
+	 * image is drawn as it arrives, before any later requests are
+	 * processed.
 	 *
-	 * @param id	The resource ID.
+	 * @param s	The progress of the image.
 	 */
-	public synchronized void
-	freeResource (
-		Resource		r
+	public void
+	setImageStream (
+		Drawable.ImageStream	s
+	) {
+		_imageStream = s;
+	}
+
+	/**
+	 * Return a scratch buffer for encoding image data, which is reused
+	 * across requests. Only valid until the next call.
+	 *
+	 * @param size	The minimum number of bytes needed.
+	 * @return	A buffer of at least the requested size.
+	 */
+	public byte[]
+	getByteBuffer (
+		int			size
 	) {
-		_resources.remove (r);
+		if (_byteBuffer == null || _byteBuffer.length < size)
+			_byteBuffer = new byte[size];
+
+		return _byteBuffer;
 	}
 
 	/**
-	 * Run the communications thread.
+	 * Read the data available on the channel and process any requests
+	 * that are complete. Called by the owning selector thread when the
+	 * channel is readable, or in a loop by a local socket's reader thread.
 	 */
 	public void
-	run () {
+	processInput () {
 		try {
-			doComms ();
+			if (_inputOutput.fill () < 0)
+				throw new IOException ();
+
+			processRequests ();
 		} catch (IOException e) {
+			synchronized (_xServer) {
+				close ();
+			}
+		} catch (RuntimeException e) {
+			fail (e);
+		} catch (OutOfMemoryError e) {
+			fail (e);
 		}
+	}
 
+	/**
+	 * Send output that was queued because the client wasn't reading.
+	 * Called by the owning selector thread when the channel is writable,
+	 * or in a loop by a local socket's writer thread. The client is
+	 * closed if its output queue overflowed.
+	 */
+	public void
+	processOutput () {
+		try {
+			_inputOutput.writeQueuedOutput ();
+		} catch (IOException e) {
+			synchronized (_xServer) {
+				close ();
+			}
+		} catch (RuntimeException e) {
+			fail (e);
+		} catch (OutOfMemoryError e) {
+			fail (e);
+		}
+	}
+
+	/**
+	 * Try again to process requests that were held back by a server grab
+	 * or a full output queue. Called by the owning selector thread or
+	 * local socket thread when the grab ends or the queue drains.
+	 */
+	public void
+	resumeProcessing () {
+		try {
+			processRequests ();
+		} catch (IOException e) {
+			synchronized (_xServer) {
+				close ();
+			}
+		} catch (RuntimeException e) {
+			fail (e);
+		} catch (OutOfMemoryError e) {
+			fail (e);
+		}
+	}
+
+	/**
+	 * Close the client after an unexpected exception or error while
+	 * handling it, so the thread it shares with other clients survives.
+	 *
+	 * @param t	What was thrown.
+	 */
+	private void
+	fail (
+		Throwable	t
+	) {
+		Log.e ("XServer", "Closing client: " + t);
 		synchronized (_xServer) {
 			close ();
 		}
 	}
 
 	/**
-	 * Cancel the communications thread.
+	 * Cancel communications with the client.
 	 */
 	public void
 	cancel () {
@@ -165,7 +319,7 @@ public class Client extends Thread {
 	}
 
 	/**
-	 * Close the communications thread and free resources.
+	 * Close the communications channel and free resources.
 	 */
 	private void
 	close () {
@@ -176,42 +330,329 @@ public class Client extends Thread {
 
 		try {
 			_inputOutput.close ();
-			_socket.close ();
 		} catch (IOException e) {
 		}
 
 			// Clear the resources associated with this client.
 		if (_closeDownMode == Destroy)
-			for (Resource r: _resources)
-				r.delete ();
-		
-		_resources.clear ();
+			_xServer.destroyClientResources (this);
+
+		_xServer.getScreen().sendPendingExposures ();
 		_xServer.removeClient (this);
 	}
 
 	/**
-	 * Handle communications with the client.
+	 * Process the connection setup and every complete request in the
+	 * input buffer. Stops when a partial request remains, or when the
+	 * server is grabbed by another client.
 	 * @throws IOException
 	 */
 	private void
-	doComms () throws IOException {
+	processRequests () throws IOException {
+		_suspended = false;
+		_inputOutput.beginBatch ();
+		try {
+			processBatch ();
+		} finally {
+			_inputOutput.endBatch ();
+		}
+
+		if (_closeConnection) {
+			synchronized (_xServer) {
+				close ();
+			}
+		}
+	}
+
+	/**
+	 * Process every complete request in the input buffer. Output is
+	 * flushed once, when the batch is finished.
+	 * The global lock is taken once for a run of requests rather than
+	 * once per request, and released after MaxBatchRequests requests or
+	 * MaxBatchMillis milliseconds so other threads aren't locked out.
+	 * Requests that don't need the lock, such as InternAtom, are
+	 * processed without it.
+	 * @throws IOException
+	 */
+	private void
+	processBatch () throws IOException {
+		if (!_setupComplete && !processConnectionSetup ())
+			return;
+
+		while (_isConnected && !_closeConnection && !_suspended
+											&& nextRequestLength () >= 0) {
+			if (nextRequestIsLockFree ()) {
+				if (!_xServer.processingAllowed (this)
+									|| _inputOutput.isOutputQueueFull ()) {
+					_suspended = true;
+					break;
+				}
+
+				processNextRequest ();
+				continue;
+			}
+
+			synchronized (_xServer) {
+				long	deadline = System.currentTimeMillis ()
+															+ MaxBatchMillis;
+				int		count = 0;
+
+				do {
+						// Deal with server grabs, and clients that aren't
+						// reading their replies.
+					if (!_xServer.processingAllowed (this)
+									|| _inputOutput.isOutputQueueFull ()) {
+						_suspended = true;
+						break;
+					}
+
+					processNextRequest ();
+					_xServer.getScreen().sendPendingExposures ();
+					_xServer.getPixmapBudget().trim ();
+					count++;
+				} while (_isConnected && !_closeConnection
+								&& count < MaxBatchRequests
+								&& System.currentTimeMillis () < deadline
+								&& nextRequestLength () >= 0
+								&& !nextRequestIsLockFree ());
+
+				if (count > 0)
+					_xServer.recordBatchSize (count);
+			}
+		}
+	}
+
+	/**
+	 * Can the next request be processed without the server lock?
+	 * The request must be complete in the input buffer.
+	 *
+	 * @return	True if the request doesn't need the server lock.
+	 */
+	private boolean
+	nextRequestIsLockFree () {
+		if (_imageStream != null)
+			return false;
+
+		return _xServer.isLockFreeRequest ((byte) _inputOutput.peekByte (0));
+	}
+
+	/**
+	 * Return the length of the next request, if all of it is in the
+	 * input buffer. A long PutImage request can be processed once its
+	 * image header has arrived, and the rest of it once its next row has.
+	 *
+	 * @return	The length of the request in bytes, or of the part of it
+	 * 			that has arrived, or -1 if it can't be processed yet.
+	 * @throws IOException
+	 */
+	private int
+	nextRequestLength () throws IOException {
+		int		available = _inputOutput.available ();
+
+		if (_imageStream != null) {
+			_inputOutput.ensureCapacity (_imageStream.getBufferLength ());
+			if (available < _imageStream.getChunkLength ())
+				return -1;
+
+			return available;
+		}
+
+		if (available < 4)
+			return -1;
+
+		int		requestLength = _inputOutput.peekShort (2);
+		int		headerLength = 4;
+		int		length;
+
+		if (requestLength == 0)	{	// Handle big requests.
+			if (available < 8)
+				return -1;
+
+			requestLength = _inputOutput.peekInt (4);
+			headerLength = 8;
+			if (requestLength < 0
+							|| requestLength > InputOutput.MaxRequestLength)
+				throw new IOException ("Request too long");
+			else if (requestLength > 2)
+				length = requestLength * 4;
+			else
+				length = 8;
+		} else {
+			length = requestLength * 4;
+		}
+
+		if (available >= length)
+			return length;
+
+		if (_inputOutput.peekByte (0) == RequestCode.PutImage
+									&& length > MaxBufferedImageLength) {
+			if (available < headerLength + 20)
+				return -1;	// Wait for the image header.
+			else if (isStreamableImage (headerLength, length))
+				return available;
+		}
+
+		_inputOutput.ensureCapacity (length);
+		return -1;
+	}
+
+	/**
+	 * Can the image of the PutImage request at the start of the input
+	 * buffer be drawn as its rows arrive? The fixed part of the request
+	 * must be in the buffer.
+	 *
+	 * @param headerLength	The length of the request header.
+	 * @param length	The length of the request.
+	 * @return	True if the image can be drawn as its rows arrive.
+	 */
+	private boolean
+	isStreamableImage (
+		int			headerLength,
+		int			length
+	) {
+		int			width = _inputOutput.peekShort (headerLength + 8);
+		int			height = _inputOutput.peekShort (headerLength + 10);
+		int			leftPad = _inputOutput.peekByte (headerLength + 16);
+		int			depth = _inputOutput.peekByte (headerLength + 17);
+
+		return Drawable.isStreamableImage ((byte) _inputOutput.peekByte (1),
+								width, height, leftPad, depth,
+								length - headerLength - 20);
+	}
+
+	/**
+	 * Process the next request, which must be complete in the input
+	 * buffer, unless it's a PutImage request that nextRequestLength says
+	 * can be processed in pieces. The caller must hold the X server lock,
+	 * unless nextRequestIsLockFree says the request doesn't need it.
+	 * @throws IOException
+	 */
+	private void
+	processNextRequest () throws IOException {
+		if (_imageStream != null) {
+			continueImageStream ();
+			return;
+		}
+
+		byte	opcode = (byte) _inputOutput.readByte ();
+		byte	arg = (byte) _inputOutput.readByte ();
+		int		requestLength = _inputOutput.readShort ();
+		int		headerLength = 4;
+		int		bytesRemaining;
+
+		if (requestLength == 0)	{	// Handle big requests.
+			requestLength = _inputOutput.readInt ();
+			headerLength = 8;
+			if (requestLength > 2)
+				bytesRemaining = requestLength * 4 - 8;
+			else
+				bytesRemaining = 0;
+		} else {
+			bytesRemaining = requestLength * 4 - 4;
+		}
+
+		long	startTime = System.nanoTime ();
+		long	bytesWritten = _inputOutput.getBytesWritten ();
+
+		_inputOutput.beginRequest (bytesRemaining);
+		try {
+			processRequest (opcode, arg, bytesRemaining);
+		} finally {
+			if (_imageStream != null)
+				_inputOutput.suspendRequest ();
+			else
+				_inputOutput.endRequest ();
+		}
+
+		long	nanos = System.nanoTime () - startTime;
+
+		if (_imageStream != null) {	// Recorded when the image is drawn.
+			_imageStreamFormat = arg;
+			_imageStreamLength = headerLength + bytesRemaining;
+			_imageStreamNanos = nanos;
+			return;
+		}
+
+		bytesWritten = _inputOutput.getBytesWritten () - bytesWritten;
+		synchronized (_requestMetrics) {
+			_requestMetrics.record (opcode, arg,
+							headerLength + bytesRemaining, bytesWritten, nanos);
+		}
+		_xServer.recordRequest (opcode, arg, headerLength + bytesRemaining,
+														bytesWritten, nanos);
+	}
+
+	/**
+	 * Draw the rows of the PutImage image being processed in pieces that
+	 * have arrived. Once the whole image has been drawn, the request is
+	 * recorded in the statistics. It wrote nothing, or it wouldn't have
+	 * been continued.
+	 * @throws IOException
+	 */
+	private void
+	continueImageStream () throws IOException {
+		long	startTime = System.nanoTime ();
+
+		_inputOutput.beginRequest (_imageStream.getBytesRemaining ());
+		try {
+			_imageStream.process (this);
+		} finally {
+			if (_imageStream.isComplete ())
+				_inputOutput.endRequest ();
+			else
+				_inputOutput.suspendRequest ();
+		}
+
+		_imageStreamNanos += System.nanoTime () - startTime;
+		if (!_imageStream.isComplete ())
+			return;
+
+		_imageStream = null;
+		synchronized (_requestMetrics) {
+			_requestMetrics.record (RequestCode.PutImage, _imageStreamFormat,
+								_imageStreamLength, 0, _imageStreamNanos);
+		}
+		_xServer.recordRequest (RequestCode.PutImage, _imageStreamFormat,
+								_imageStreamLength, 0, _imageStreamNanos);
+	}
+
+	/**
+	 * Process the connection setup, if it is complete in the input buffer.
+	 *
+	 * @return	True if the connection setup was processed.
+	 * @throws IOException
+	 */
+	private boolean
+	processConnectionSetup () throws IOException {
+		if (_inputOutput.available () < 12)
+			return false;
+
 			// Read the connection setup.
-		int		byteOrder = _inputOutput.readByte ();
+		int		byteOrder = _inputOutput.peekByte (0);
 
 		if (byteOrder == 0x42)
 			_inputOutput.setMSB (true);
 		else if (byteOrder == 0x6c)
 			_inputOutput.setMSB (false);
 		else
-			return;
+			throw new IOException ();
+
+		int		nameLength = _inputOutput.peekShort (6);
+		int		dataLength = _inputOutput.peekShort (8);
+		int		setupLength = 12 + nameLength + (-nameLength & 3)
+										+ dataLength + (-dataLength & 3);
 
+		if (_inputOutput.available () < setupLength) {
+			_inputOutput.ensureCapacity (setupLength);
+			return false;
+		}
+
+		_inputOutput.readByte ();	// Byte order.
 		_inputOutput.readByte ();	// Unused.
 		_inputOutput.readShort ();	// Protocol major version.
 		_inputOutput.readShort ();	// Protocol minor version.
-
-		int		nameLength = _inputOutput.readShort ();
-		int		dataLength = _inputOutput.readShort ();
-
+		_inputOutput.readShort ();	// Length of authorization name.
+		_inputOutput.readShort ();	// Length of authorization data.
 		_inputOutput.readShort ();	// Unused.
 
 		if (nameLength > 0) {
@@ -262,35 +703,9 @@ public class Client extends Thread {
 			_xServer.getScreen().write (_inputOutput);
 		}
 		_inputOutput.flush ();
+		_setupComplete = true;
 
-		while (!_closeConnection) {
-			byte	opcode = (byte) _inputOutput.readByte ();
-			byte	arg = (byte) _inputOutput.readByte ();
-			int		requestLength = _inputOutput.readShort ();
-			int		bytesRemaining;
-
-			if (requestLength == 0)	{	// Handle big requests.
-				requestLength = _inputOutput.readInt ();
-				if (requestLength > 2)
-					bytesRemaining = requestLength * 4 - 8;
-				else
-					bytesRemaining = 0;
-			} else {
-				bytesRemaining = requestLength * 4 - 4;
-			}
-
-				// Deal with server grabs.
-			while (!_xServer.processingAllowed (this)) {
-				try {
-					sleep (100);
-				} catch (InterruptedException e) {
-				}
-			}
-
-			synchronized (_xServer) {
-				processRequest (opcode, arg, bytesRemaining);
-			}
-		}
+		return true;
 	}
 
 	/**
@@ -299,8 +714,8 @@ public class Client extends Thread {
 	 * @param id	The resource ID.
 	 * @return	True if it is OK to create a resource with the ID.
 	 */
-	private boolean
-	validResourceId (
+	public boolean
+	isValidResourceId (
 		int			id
 	) {
 		return ((id & ~_resourceIdMask) == _resourceIdBase
@@ -309,6 +724,7 @@ public class Client extends Thread {
 
 	/**
 	 * Process a single request from the client.
+	 * The request is passed to the handler registered for its opcode.
 	 *
 	 * @param opcode	The request's opcode.
 	 * @param arg	Optional first argument.
@@ -321,493 +737,14 @@ public class Client extends Thread {
 		byte		arg,
 		int			bytesRemaining
 	) throws IOException {
+		RequestHandler	handler = _xServer.getRequestHandler (opcode);
+
 		_sequenceNumber++;
-		switch (opcode) {
-			case RequestCode.CreateWindow:
-				if (bytesRemaining < 28) {
-					_inputOutput.readSkip (bytesRemaining);
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					int			id = _inputOutput.readInt ();	// Window ID.
-					int			parent = _inputOutput.readInt ();	// Parent.
-					Resource	r = _xServer.getResource (parent);
-
-					bytesRemaining -= 8;
-					if (!validResourceId (id)) {
-						_inputOutput.readSkip (bytesRemaining);
-						ErrorCode.write (this, ErrorCode.IDChoice, opcode, id);
-					} else if (r == null || r.getType () != Resource.WINDOW) {
-						_inputOutput.readSkip (bytesRemaining);
-						ErrorCode.write (this, ErrorCode.Window, opcode,
-																	parent);
-					} else {
-						Window		w = (Window) r;
-
-						w.processCreateWindowRequest (_inputOutput, this,
-									_sequenceNumber, id, arg, bytesRemaining);
-					}
-				}
-				break;
-			case RequestCode.ChangeWindowAttributes:
-			case RequestCode.GetWindowAttributes:
-			case RequestCode.DestroyWindow:
-			case RequestCode.DestroySubwindows:
-			case RequestCode.ChangeSaveSet:
-			case RequestCode.ReparentWindow:
-			case RequestCode.MapWindow:
-			case RequestCode.MapSubwindows:
-			case RequestCode.UnmapWindow:
-			case RequestCode.UnmapSubwindows:
-			case RequestCode.ConfigureWindow:
-			case RequestCode.CirculateWindow:
-			case RequestCode.QueryTree:
-			case RequestCode.ChangeProperty:
-			case RequestCode.DeleteProperty:
-			case RequestCode.GetProperty:
-			case RequestCode.ListProperties:
-			case RequestCode.QueryPointer:
-			case RequestCode.GetMotionEvents:
-			case RequestCode.TranslateCoordinates:
-			case RequestCode.ClearArea:
-			case RequestCode.ListInstalledColormaps:
-			case RequestCode.RotateProperties:
-				if (bytesRemaining < 4) {
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					int			id = _inputOutput.readInt ();
-					Resource	r = _xServer.getResource (id);
-
-					bytesRemaining -= 4;
-					if (r == null || r.getType () != Resource.WINDOW) {
-						_inputOutput.readSkip (bytesRemaining);
-						ErrorCode.write (this, ErrorCode.Window, opcode, id);
-					} else {
-						r.processRequest (this, opcode, arg, bytesRemaining);
-					}
-				}
-				break;
-			case RequestCode.GetGeometry:
-			case RequestCode.CopyArea:
-			case RequestCode.CopyPlane:
-			case RequestCode.PolyPoint:
-			case RequestCode.PolyLine:
-			case RequestCode.PolySegment:
-			case RequestCode.PolyRectangle:
-			case RequestCode.PolyArc:
-			case RequestCode.FillPoly:
-			case RequestCode.PolyFillRectangle:
-			case RequestCode.PolyFillArc:
-			case RequestCode.PutImage:
-			case RequestCode.GetImage:
-			case RequestCode.PolyText8:
-			case RequestCode.PolyText16:
-			case RequestCode.ImageText8:
-			case RequestCode.ImageText16:
-			case RequestCode.QueryBestSize:
-				if (bytesRemaining < 4) {
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					int			id = _inputOutput.readInt ();
-					Resource	r = _xServer.getResource (id);
-
-					bytesRemaining -= 4;
-					if (r == null || !r.isDrawable ()) {
-						_inputOutput.readSkip (bytesRemaining);
-						ErrorCode.write (this, ErrorCode.Drawable, opcode, id);
-					} else {
-						r.processRequest (this, opcode, arg, bytesRemaining);
-					}
-				}
-				break;
-			case RequestCode.InternAtom:
-				Atom.processInternAtomRequest (_xServer, this, arg,
-															bytesRemaining);
-				break;
-			case RequestCode.GetAtomName:
-				Atom.processGetAtomNameRequest (_xServer, this,
-															bytesRemaining);
-				break;
-			case RequestCode.GetSelectionOwner:
-			case RequestCode.SetSelectionOwner:
-			case RequestCode.ConvertSelection:
-				Selection.processRequest (_xServer, this, opcode,
-															bytesRemaining);
-				break;
-			case RequestCode.SendEvent:
-			case RequestCode.GrabPointer:
-			case RequestCode.UngrabPointer:
-			case RequestCode.GrabButton:
-			case RequestCode.UngrabButton:
-			case RequestCode.ChangeActivePointerGrab:
-			case RequestCode.GrabKeyboard:
-			case RequestCode.UngrabKeyboard:
-			case RequestCode.GrabKey:
-			case RequestCode.UngrabKey:
-			case RequestCode.AllowEvents:
-			case RequestCode.SetInputFocus:
-			case RequestCode.GetInputFocus:
-				_xServer.getScreen().processRequest (_xServer, this, opcode,
-														arg, bytesRemaining);
-				break;
-			case RequestCode.GrabServer:
-				if (bytesRemaining != 0) {
-					_inputOutput.readSkip (bytesRemaining);
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					_xServer.grabServer (this);
-				}
-				break;
-			case RequestCode.UngrabServer:
-				if (bytesRemaining != 0) {
-					_inputOutput.readSkip (bytesRemaining);
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					_xServer.ungrabServer (this);
-				}
-				break;
-			case RequestCode.WarpPointer:
-			case RequestCode.ChangePointerControl:
-			case RequestCode.GetPointerControl:
-			case RequestCode.SetPointerMapping:
-			case RequestCode.GetPointerMapping:
-				_xServer.getPointer().processRequest (_xServer, this, opcode,
-														arg, bytesRemaining);
-				break;				
-			case RequestCode.OpenFont:
-				if (bytesRemaining < 8) {
-					_inputOutput.readSkip (bytesRemaining);
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					int			id = _inputOutput.readInt ();	// Font ID.
-
-					bytesRemaining -= 4;
-					if (!validResourceId (id)) {
-						_inputOutput.readSkip (bytesRemaining);
-						ErrorCode.write (this, ErrorCode.IDChoice, opcode, id);
-					} else {
-						Font.processOpenFontRequest (_xServer, this, id,
-															bytesRemaining);
-					}
-				}
-				break;
-			case RequestCode.CloseFont:
-				if (bytesRemaining != 4) {
-					_inputOutput.readSkip (bytesRemaining);
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					int			id = _inputOutput.readInt ();
-					Resource	r = _xServer.getResource (id);
-
-					bytesRemaining -= 4;
-					if (r == null || r.getType () != Resource.FONT)
-						ErrorCode.write (this, ErrorCode.Font, opcode, id);
-					else
-						r.processRequest (this, opcode, arg, bytesRemaining);
-				}
-				break;
-			case RequestCode.QueryFont:
-			case RequestCode.QueryTextExtents:
-				if (bytesRemaining != 4) {
-					_inputOutput.readSkip (bytesRemaining);
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					int			id = _inputOutput.readInt ();
-					Resource	r = _xServer.getResource (id);
-
-					bytesRemaining -= 4;
-					if (r == null || !r.isFontable ()) {
-						_inputOutput.readSkip (bytesRemaining);
-						ErrorCode.write (this, ErrorCode.Font, opcode, id);
-					} else {
-						r.processRequest (this, opcode, arg, bytesRemaining);
-					}
-				}
-				break;
-			case RequestCode.ListFonts:
-			case RequestCode.ListFontsWithInfo:
-				Font.processListFonts (this, opcode, bytesRemaining);
-				break;
-			case RequestCode.SetFontPath:
-				Font.processSetFontPath (_xServer, this, bytesRemaining);
-				break;
-			case RequestCode.GetFontPath:
-				if (bytesRemaining != 0) {
-					_inputOutput.readSkip (bytesRemaining);
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					Font.processGetFontPath (_xServer, this);
-				}
-				break;
-			case RequestCode.CreatePixmap:
-				if (bytesRemaining != 12) {
-					_inputOutput.readSkip (bytesRemaining);
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					int			id = _inputOutput.readInt ();	// Pixmap ID.
-					int			did = _inputOutput.readInt ();	// Drawable ID.
-					int			width = _inputOutput.readShort ();	// Width.
-					int			height = _inputOutput.readShort ();	// Height.
-					Resource	r = _xServer.getResource (did);
-
-					if (!validResourceId (id)) {
-						ErrorCode.write (this, ErrorCode.IDChoice, opcode, id);
-					} else if (r == null || !r.isDrawable ()) {
-						ErrorCode.write (this, ErrorCode.Drawable, opcode,
-																		did);
-					} else {
-						try {
-							Pixmap.processCreatePixmapRequest (_xServer, this,
-												id, width, height, arg, r);
-						} catch (OutOfMemoryError e) {
-							ErrorCode.write (this, ErrorCode.Alloc, opcode, 0);
-						}
-					}
-				}
-				break;
-			case RequestCode.FreePixmap:
-				if (bytesRemaining != 4) {
-					_inputOutput.readSkip (bytesRemaining);
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					int			id = _inputOutput.readInt ();
-					Resource	r = _xServer.getResource (id);
-
-					bytesRemaining -= 4;
-					if (r == null || r.getType () != Resource.PIXMAP)
-						ErrorCode.write (this, ErrorCode.Pixmap, opcode, id);
-					else
-						r.processRequest (this, opcode, arg, bytesRemaining);
-				}
-				break;
-			case RequestCode.CreateGC:
-				if (bytesRemaining < 12) {
-					_inputOutput.readSkip (bytesRemaining);
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					int			id = _inputOutput.readInt ();	// GContext ID.
-					int			d = _inputOutput.readInt ();	// Drawable ID.
-					Resource	r = _xServer.getResource (d);
-
-					bytesRemaining -= 8;
-					if (!validResourceId (id)) {
-						_inputOutput.readSkip (bytesRemaining);
-						ErrorCode.write (this, ErrorCode.IDChoice, opcode, id);
-					} else if (r == null || !r.isDrawable ()) {
-						_inputOutput.readSkip (bytesRemaining);
-						ErrorCode.write (this, ErrorCode.Drawable, opcode, d);
-					} else {
-						GContext.processCreateGCRequest (_xServer, this, id,
-															bytesRemaining);
-					}
-				}
-				break;
-			case RequestCode.ChangeGC:
-			case RequestCode.CopyGC:
-			case RequestCode.SetDashes:
-			case RequestCode.SetClipRectangles:
-			case RequestCode.FreeGC:
-				if (bytesRemaining < 4) {
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					int			id = _inputOutput.readInt ();
-					Resource	r = _xServer.getResource (id);
-
-					bytesRemaining -= 4;
-					if (r == null || r.getType () != Resource.GCONTEXT) {
-						_inputOutput.readSkip (bytesRemaining);
-						ErrorCode.write (this, ErrorCode.GContext, opcode, id);
-					} else {
-						r.processRequest (this, opcode, arg, bytesRemaining);
-					}
-				}
-				break;
-			case RequestCode.CreateColormap:
-				if (bytesRemaining != 12) {
-					_inputOutput.readSkip (bytesRemaining);
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					int			id = _inputOutput.readInt ();	// Colormap ID.
-
-					bytesRemaining -= 4;
-					if (!validResourceId (id)) {
-						_inputOutput.readSkip (bytesRemaining);
-						ErrorCode.write (this, ErrorCode.IDChoice, opcode, id);
-					} else {
-						Colormap.processCreateColormapRequest (_xServer, this,
-																	id, arg);
-					}
-				}
-				break;
-			case RequestCode.CopyColormapAndFree:
-				if (bytesRemaining != 8) {
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					int			id1 = _inputOutput.readInt ();
-					int			id2 = _inputOutput.readInt ();
-					Resource	r = _xServer.getResource (id2);
-
-					if (r == null || r.getType () != Resource.COLORMAP)
-						ErrorCode.write (this, ErrorCode.Colormap, opcode,
-																		id2);
-					else if (!validResourceId (id1))
-						ErrorCode.write (this, ErrorCode.IDChoice, opcode,
-																		id1);
-					else
-						((Colormap) r).processCopyColormapAndFree (this, id1);
-				}
-				break;
-			case RequestCode.FreeColormap:
-			case RequestCode.InstallColormap:
-			case RequestCode.UninstallColormap:
-			case RequestCode.AllocColor:
-			case RequestCode.AllocNamedColor:
-			case RequestCode.AllocColorCells:
-			case RequestCode.AllocColorPlanes:
-			case RequestCode.FreeColors:
-			case RequestCode.StoreColors:
-			case RequestCode.StoreNamedColor:
-			case RequestCode.QueryColors:
-			case RequestCode.LookupColor:
-				if (bytesRemaining < 4) {
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					int			id = _inputOutput.readInt ();
-					Resource	r = _xServer.getResource (id);
-
-					bytesRemaining -= 4;
-					if (r == null || r.getType () != Resource.COLORMAP) {
-						_inputOutput.readSkip (bytesRemaining);
-						ErrorCode.write (this, ErrorCode.Colormap, opcode, id);
-					} else {
-						r.processRequest (this, opcode, arg, bytesRemaining);
-					}
-				}
-				break;
-			case RequestCode.CreateCursor:
-			case RequestCode.CreateGlyphCursor:
-				if (bytesRemaining != 28) {
-					_inputOutput.readSkip (bytesRemaining);
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					int			id = _inputOutput.readInt ();	// Cursor ID.
-
-					bytesRemaining -= 4;
-					if (!validResourceId (id)) {
-						_inputOutput.readSkip (bytesRemaining);
-						ErrorCode.write (this, ErrorCode.IDChoice, opcode, id);
-					} else {
-						Cursor.processCreateRequest (_xServer, this, opcode,
-														id, bytesRemaining);
-					}
-				}
-				break;
-			case RequestCode.FreeCursor:
-			case RequestCode.RecolorCursor:
-				if (bytesRemaining < 4) {
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					int			id = _inputOutput.readInt ();
-					Resource	r = _xServer.getResource (id);
-
-					bytesRemaining -= 4;
-					if (r == null || r.getType () != Resource.CURSOR) {
-						_inputOutput.readSkip (bytesRemaining);
-						ErrorCode.write (this, ErrorCode.Colormap, opcode, id);
-					} else {
-						r.processRequest (this, opcode, arg, bytesRemaining);
-					}
-				}
-				break;
-			case RequestCode.QueryExtension:
-				_xServer.processQueryExtensionRequest (this, bytesRemaining);
-				break;
-			case RequestCode.ListExtensions:
-				if (bytesRemaining != 0) {
-					_inputOutput.readSkip (bytesRemaining);
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					_xServer.writeListExtensions (this);
-				}
-				break;
-			case RequestCode.QueryKeymap:
-			case RequestCode.ChangeKeyboardMapping:
-			case RequestCode.GetKeyboardMapping:
-			case RequestCode.ChangeKeyboardControl:
-			case RequestCode.SetModifierMapping:
-			case RequestCode.GetModifierMapping:
-			case RequestCode.GetKeyboardControl:
-			case RequestCode.Bell:
-				_xServer.getKeyboard().processRequest (_xServer, this, opcode,
-														arg, bytesRemaining);
-				break;
-			case RequestCode.SetScreenSaver:
-				if (bytesRemaining != 8) {
-					_inputOutput.readSkip (bytesRemaining);
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					int		timeout = _inputOutput.readShort ();	// Timeout.
-					int		interval = _inputOutput.readShort ();	// Interval
-					int		pb = _inputOutput.readByte ();	// Prefer-blanking.
-					int		ae = _inputOutput.readByte ();	// Allow-exposures.
-
-					_inputOutput.readSkip (2);	// Unused.
-					_xServer.setScreenSaver (timeout, interval, pb, ae);
-				}
-				break;
-			case RequestCode.GetScreenSaver:
-				if (bytesRemaining != 0) {
-					_inputOutput.readSkip (bytesRemaining);
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					_xServer.writeScreenSaver (this);
-				}
-				break;				
-			case RequestCode.ChangeHosts:
-				_xServer.processChangeHostsRequest (this, arg, bytesRemaining);
-				break;
-			case RequestCode.ListHosts:
-				if (bytesRemaining != 0) {
-					_inputOutput.readSkip (bytesRemaining);
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					_xServer.writeListHosts (this);
-				}
-				break;
-			case RequestCode.SetAccessControl:
-				if (bytesRemaining != 0) {
-					_inputOutput.readSkip (bytesRemaining);
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					_xServer.setAccessControl (arg == 1);
-				}
-				break;
-			case RequestCode.SetCloseDownMode:
-				processSetCloseDownModeRequest (arg, bytesRemaining);
-				break;
-			case RequestCode.KillClient:
-				processKillClientRequest (bytesRemaining);
-				break;
-			case RequestCode.ForceScreenSaver:
-				if (bytesRemaining != 0) {
-					_inputOutput.readSkip (bytesRemaining);
-					ErrorCode.write (this, ErrorCode.Length, opcode, 0);
-				} else {
-					_xServer.getScreen().blank (arg == 1);
-				}
-				break;
-			case RequestCode.NoOperation:
-				_inputOutput.readSkip (bytesRemaining);
-				break;
-			default:	// Opcode not implemented.
-				if (opcode < 0) {
-					Extensions.processRequest (_xServer, this, opcode, arg,
-															bytesRemaining);
-				} else {
-					_inputOutput.readSkip (bytesRemaining);
-					ErrorCode.write (this, ErrorCode.Implementation,
-																opcode, 0);
-				}
-				break;
+		if (handler != null) {
+			handler.processRequest (this, opcode, arg, bytesRemaining);
+		} else {	// Opcode not implemented.
+			_inputOutput.readSkip (bytesRemaining);
+			ErrorCode.write (this, ErrorCode.Implementation, opcode, 0);
 		}
 	}
 
@@ -831,7 +768,7 @@ public class Client extends Thread {
 		}
 
 		_closeDownMode = mode;
-		for (Resource r: _resources)
+		for (Resource r: _xServer.getClientResources (this))
 			r.setCloseDownMode (mode);
 	}
 
@@ -868,7 +805,7 @@ public class Client extends Thread {
 		}
 
 		if (client != null && client._isConnected)
-			client._closeConnection = true;
+			client.cancel ();
 		else if (client == null || client._closeDownMode != Destroy)
 			_xServer.destroyClientResources (client);
 	}
@@ -400,8 +400,6 @@ public class Colormap extends Resource {
 					ErrorCode.write (client, ErrorCode.Length, opcode, 0);
 				} else if (_id != _screen.getDefaultColormap().getId ()) {
 					_xServer.freeResource (_id);
-					if (_client != null)
-						_client.freeResource (this);
 				}
 				break;
 			case RequestCode.InstallColormap:
@@ -675,7 +673,6 @@ public class Colormap extends Resource {
 			Colormap	cmap = new Colormap (id, xServer, client, s);
 
 			xServer.addResource (cmap);
-			client.addResource (cmap);
 		}
 	}
 
@@ -695,6 +692,5 @@ public class Colormap extends Resource {
 
 			// Nothing to copy, nothing to free.
 		_xServer.addResource (cmap);
-		client.addResource (cmap);
 	}
 }
\ No newline at end of file
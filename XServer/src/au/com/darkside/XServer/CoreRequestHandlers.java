@@ -0,0 +1,739 @@
+/**
+ * This class registers the handlers of the core protocol requests.
+ */
+package au.com.darkside.XServer;
+
+import java.io.IOException;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class registers the handlers of the core protocol requests.
+ */
+public class CoreRequestHandlers {
+	private static final byte[]	WindowRequests = {
+		RequestCode.ChangeWindowAttributes,
+		RequestCode.GetWindowAttributes,
+		RequestCode.DestroyWindow,
+		RequestCode.DestroySubwindows,
+		RequestCode.ChangeSaveSet,
+		RequestCode.ReparentWindow,
+		RequestCode.MapWindow,
+		RequestCode.MapSubwindows,
+		RequestCode.UnmapWindow,
+		RequestCode.UnmapSubwindows,
+		RequestCode.ConfigureWindow,
+		RequestCode.CirculateWindow,
+		RequestCode.QueryTree,
+		RequestCode.ChangeProperty,
+		RequestCode.DeleteProperty,
+		RequestCode.GetProperty,
+		RequestCode.ListProperties,
+		RequestCode.QueryPointer,
+		RequestCode.GetMotionEvents,
+		RequestCode.TranslateCoordinates,
+		RequestCode.ClearArea,
+		RequestCode.ListInstalledColormaps,
+		RequestCode.RotateProperties
+	};
+
+	private static final byte[]	DrawableRequests = {
+		RequestCode.GetGeometry,
+		RequestCode.CopyArea,
+		RequestCode.CopyPlane,
+		RequestCode.PolyPoint,
+		RequestCode.PolyLine,
+		RequestCode.PolySegment,
+		RequestCode.PolyRectangle,
+		RequestCode.PolyArc,
+		RequestCode.FillPoly,
+		RequestCode.PolyFillRectangle,
+		RequestCode.PolyFillArc,
+		RequestCode.PutImage,
+		RequestCode.GetImage,
+		RequestCode.PolyText8,
+		RequestCode.PolyText16,
+		RequestCode.ImageText8,
+		RequestCode.ImageText16,
+		RequestCode.QueryBestSize
+	};
+
+	private static final byte[]	GContextRequests = {
+		RequestCode.ChangeGC,
+		RequestCode.CopyGC,
+		RequestCode.SetDashes,
+		RequestCode.SetClipRectangles,
+		RequestCode.FreeGC
+	};
+
+	private static final byte[]	ColormapRequests = {
+		RequestCode.FreeColormap,
+		RequestCode.InstallColormap,
+		RequestCode.UninstallColormap,
+		RequestCode.AllocColor,
+		RequestCode.AllocNamedColor,
+		RequestCode.AllocColorCells,
+		RequestCode.AllocColorPlanes,
+		RequestCode.FreeColors,
+		RequestCode.StoreColors,
+		RequestCode.StoreNamedColor,
+		RequestCode.QueryColors,
+		RequestCode.LookupColor
+	};
+
+	private static final byte[]	CursorRequests = {
+		RequestCode.FreeCursor,
+		RequestCode.RecolorCursor
+	};
+
+	private static final byte[]	ScreenRequests = {
+		RequestCode.SendEvent,
+		RequestCode.GrabPointer,
+		RequestCode.UngrabPointer,
+		RequestCode.GrabButton,
+		RequestCode.UngrabButton,
+		RequestCode.ChangeActivePointerGrab,
+		RequestCode.GrabKeyboard,
+		RequestCode.UngrabKeyboard,
+		RequestCode.GrabKey,
+		RequestCode.UngrabKey,
+		RequestCode.AllowEvents,
+		RequestCode.SetInputFocus,
+		RequestCode.GetInputFocus
+	};
+
+	private static final byte[]	PointerRequests = {
+		RequestCode.WarpPointer,
+		RequestCode.ChangePointerControl,
+		RequestCode.GetPointerControl,
+		RequestCode.SetPointerMapping,
+		RequestCode.GetPointerMapping
+	};
+
+	private static final byte[]	KeyboardRequests = {
+		RequestCode.QueryKeymap,
+		RequestCode.ChangeKeyboardMapping,
+		RequestCode.GetKeyboardMapping,
+		RequestCode.ChangeKeyboardControl,
+		RequestCode.SetModifierMapping,
+		RequestCode.GetModifierMapping,
+		RequestCode.GetKeyboardControl,
+		RequestCode.Bell
+	};
+
+	private static final byte[]	SelectionRequests = {
+		RequestCode.GetSelectionOwner,
+		RequestCode.SetSelectionOwner,
+		RequestCode.ConvertSelection
+	};
+
+	/**
+	 * Register a handler for each of a list of opcodes.
+	 *
+	 * @param xServer	The X server.
+	 * @param opcodes	The opcodes to handle.
+	 * @param handler	The handler.
+	 */
+	private static void
+	register (
+		XServer			xServer,
+		byte[]			opcodes,
+		RequestHandler	handler
+	) {
+		for (byte opcode: opcodes)
+			xServer.setRequestHandler (opcode, handler);
+	}
+
+	/**
+	 * Register the handlers of the core protocol requests.
+	 *
+	 * @param xServer	The X server.
+	 */
+	public static void
+	register (
+		final XServer	xServer
+	) {
+		register (xServer, WindowRequests, new ResourceRequestHandler (
+						xServer, Resource.WINDOW, ErrorCode.Window, false));
+		register (xServer, DrawableRequests, new ResourceRequestHandler (
+						xServer, ResourceRequestHandler.DRAWABLE,
+						ErrorCode.Drawable, false));
+		register (xServer, GContextRequests, new ResourceRequestHandler (
+						xServer, Resource.GCONTEXT, ErrorCode.GContext, false));
+		register (xServer, ColormapRequests, new ResourceRequestHandler (
+						xServer, Resource.COLORMAP, ErrorCode.Colormap, false));
+		register (xServer, CursorRequests, new ResourceRequestHandler (
+						xServer, Resource.CURSOR, ErrorCode.Cursor, false));
+
+		xServer.setRequestHandler (RequestCode.CloseFont,
+					new ResourceRequestHandler (xServer, Resource.FONT,
+													ErrorCode.Font, true));
+		xServer.setRequestHandler (RequestCode.QueryFont,
+					new ResourceRequestHandler (xServer,
+						ResourceRequestHandler.FONTABLE, ErrorCode.Font, true));
+		xServer.setRequestHandler (RequestCode.QueryTextExtents,
+					new ResourceRequestHandler (xServer,
+						ResourceRequestHandler.FONTABLE, ErrorCode.Font, false));
+		xServer.setRequestHandler (RequestCode.FreePixmap,
+					new ResourceRequestHandler (xServer, Resource.PIXMAP,
+													ErrorCode.Pixmap, true));
+
+		register (xServer, ScreenRequests, new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				xServer.getScreen().processRequest (xServer, client, opcode,
+														arg, bytesRemaining);
+			}
+		});
+
+		register (xServer, PointerRequests, new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				xServer.getPointer().processRequest (xServer, client, opcode,
+														arg, bytesRemaining);
+			}
+		});
+
+		register (xServer, KeyboardRequests, new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				xServer.getKeyboard().processRequest (xServer, client, opcode,
+														arg, bytesRemaining);
+			}
+		});
+
+		register (xServer, SelectionRequests, new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				Selection.processRequest (xServer, client, opcode,
+															bytesRemaining);
+			}
+		});
+
+		registerCreateRequests (xServer);
+		registerAtomAndFontRequests (xServer);
+		registerServerRequests (xServer);
+	}
+
+	/**
+	 * Register the handlers of the requests that create resources.
+	 *
+	 * @param xServer	The X server.
+	 */
+	private static void
+	registerCreateRequests (
+		final XServer	xServer
+	) {
+		xServer.setRequestHandler (RequestCode.CreateWindow,
+													new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				InputOutput		io = client.getInputOutput ();
+
+				if (bytesRemaining < 28) {
+					io.readSkip (bytesRemaining);
+					ErrorCode.write (client, ErrorCode.Length, opcode, 0);
+					return;
+				}
+
+				int			id = io.readInt ();	// Window ID.
+				int			parent = io.readInt ();	// Parent.
+				Resource	r = xServer.getResource (parent);
+
+				bytesRemaining -= 8;
+				if (!client.isValidResourceId (id)) {
+					io.readSkip (bytesRemaining);
+					ErrorCode.write (client, ErrorCode.IDChoice, opcode, id);
+				} else if (r == null || r.getType () != Resource.WINDOW) {
+					io.readSkip (bytesRemaining);
+					ErrorCode.write (client, ErrorCode.Window, opcode, parent);
+				} else {
+					Window		w = (Window) r;
+
+					w.processCreateWindowRequest (io, client,
+								client.getSequenceNumber (), id, arg,
+								bytesRemaining);
+				}
+			}
+		});
+
+		xServer.setRequestHandler (RequestCode.CreatePixmap,
+													new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				InputOutput		io = client.getInputOutput ();
+
+				if (bytesRemaining != 12) {
+					io.readSkip (bytesRemaining);
+					ErrorCode.write (client, ErrorCode.Length, opcode, 0);
+					return;
+				}
+
+				int			id = io.readInt ();	// Pixmap ID.
+				int			did = io.readInt ();	// Drawable ID.
+				int			width = io.readShort ();	// Width.
+				int			height = io.readShort ();	// Height.
+				Resource	r = xServer.getResource (did);
+
+				if (!client.isValidResourceId (id)) {
+					ErrorCode.write (client, ErrorCode.IDChoice, opcode, id);
+				} else if (r == null || !r.isDrawable ()) {
+					ErrorCode.write (client, ErrorCode.Drawable, opcode, did);
+				} else {
+					try {
+						Pixmap.processCreatePixmapRequest (xServer, client,
+												id, width, height, arg, r);
+					} catch (OutOfMemoryError e) {
+						ErrorCode.write (client, ErrorCode.Alloc, opcode, 0);
+					}
+				}
+			}
+		});
+
+		xServer.setRequestHandler (RequestCode.CreateGC,
+													new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				InputOutput		io = client.getInputOutput ();
+
+				if (bytesRemaining < 12) {
+					io.readSkip (bytesRemaining);
+					ErrorCode.write (client, ErrorCode.Length, opcode, 0);
+					return;
+				}
+
+				int			id = io.readInt ();	// GContext ID.
+				int			d = io.readInt ();	// Drawable ID.
+				Resource	r = xServer.getResource (d);
+
+				bytesRemaining -= 8;
+				if (!client.isValidResourceId (id)) {
+					io.readSkip (bytesRemaining);
+					ErrorCode.write (client, ErrorCode.IDChoice, opcode, id);
+				} else if (r == null || !r.isDrawable ()) {
+					io.readSkip (bytesRemaining);
+					ErrorCode.write (client, ErrorCode.Drawable, opcode, d);
+				} else {
+					GContext.processCreateGCRequest (xServer, client, id,
+															bytesRemaining);
+				}
+			}
+		});
+
+		xServer.setRequestHandler (RequestCode.CreateColormap,
+													new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				InputOutput		io = client.getInputOutput ();
+
+				if (bytesRemaining != 12) {
+					io.readSkip (bytesRemaining);
+					ErrorCode.write (client, ErrorCode.Length, opcode, 0);
+					return;
+				}
+
+				int			id = io.readInt ();	// Colormap ID.
+
+				bytesRemaining -= 4;
+				if (!client.isValidResourceId (id)) {
+					io.readSkip (bytesRemaining);
+					ErrorCode.write (client, ErrorCode.IDChoice, opcode, id);
+				} else {
+					Colormap.processCreateColormapRequest (xServer, client,
+																	id, arg);
+				}
+			}
+		});
+
+		xServer.setRequestHandler (RequestCode.CopyColormapAndFree,
+													new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				InputOutput		io = client.getInputOutput ();
+
+				if (bytesRemaining != 8) {
+					io.readSkip (bytesRemaining);
+					ErrorCode.write (client, ErrorCode.Length, opcode, 0);
+					return;
+				}
+
+				int			id1 = io.readInt ();
+				int			id2 = io.readInt ();
+				Resource	r = xServer.getResource (id2);
+
+				if (r == null || r.getType () != Resource.COLORMAP)
+					ErrorCode.write (client, ErrorCode.Colormap, opcode, id2);
+				else if (!client.isValidResourceId (id1))
+					ErrorCode.write (client, ErrorCode.IDChoice, opcode, id1);
+				else
+					((Colormap) r).processCopyColormapAndFree (client, id1);
+			}
+		});
+
+		RequestHandler	createCursor = new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				InputOutput		io = client.getInputOutput ();
+
+				if (bytesRemaining != 28) {
+					io.readSkip (bytesRemaining);
+					ErrorCode.write (client, ErrorCode.Length, opcode, 0);
+					return;
+				}
+
+				int			id = io.readInt ();	// Cursor ID.
+
+				bytesRemaining -= 4;
+				if (!client.isValidResourceId (id)) {
+					io.readSkip (bytesRemaining);
+					ErrorCode.write (client, ErrorCode.IDChoice, opcode, id);
+				} else {
+					Cursor.processCreateRequest (xServer, client, opcode,
+														id, bytesRemaining);
+				}
+			}
+		};
+
+		xServer.setRequestHandler (RequestCode.CreateCursor, createCursor);
+		xServer.setRequestHandler (RequestCode.CreateGlyphCursor,
+																createCursor);
+	}
+
+	/**
+	 * Register the handlers of the atom and font requests.
+	 *
+	 * @param xServer	The X server.
+	 */
+	private static void
+	registerAtomAndFontRequests (
+		final XServer	xServer
+	) {
+		xServer.setLockFreeRequestHandler (RequestCode.InternAtom,
+													new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				Atom.processInternAtomRequest (xServer, client, arg,
+															bytesRemaining);
+			}
+		});
+
+		xServer.setLockFreeRequestHandler (RequestCode.GetAtomName,
+													new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				Atom.processGetAtomNameRequest (xServer, client,
+															bytesRemaining);
+			}
+		});
+
+		xServer.setRequestHandler (RequestCode.OpenFont,
+													new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				InputOutput		io = client.getInputOutput ();
+
+				if (bytesRemaining < 8) {
+					io.readSkip (bytesRemaining);
+					ErrorCode.write (client, ErrorCode.Length, opcode, 0);
+					return;
+				}
+
+				int			id = io.readInt ();	// Font ID.
+
+				bytesRemaining -= 4;
+				if (!client.isValidResourceId (id)) {
+					io.readSkip (bytesRemaining);
+					ErrorCode.write (client, ErrorCode.IDChoice, opcode, id);
+				} else {
+					Font.processOpenFontRequest (xServer, client, id,
+															bytesRemaining);
+				}
+			}
+		});
+
+		RequestHandler	listFonts = new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				Font.processListFonts (xServer, client, opcode,
+																bytesRemaining);
+			}
+		};
+
+		xServer.setRequestHandler (RequestCode.ListFonts, listFonts);
+		xServer.setRequestHandler (RequestCode.ListFontsWithInfo, listFonts);
+
+		xServer.setRequestHandler (RequestCode.SetFontPath,
+													new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				Font.processSetFontPath (xServer, client, bytesRemaining);
+			}
+		});
+
+		xServer.setRequestHandler (RequestCode.GetFontPath,
+												new EmptyRequestHandler () {
+			protected void
+			process (
+				Client		client,
+				byte		arg
+			) throws IOException {
+				Font.processGetFontPath (xServer, client);
+			}
+		});
+	}
+
+	/**
+	 * Register the handlers of the requests that control the server.
+	 *
+	 * @param xServer	The X server.
+	 */
+	private static void
+	registerServerRequests (
+		final XServer	xServer
+	) {
+		xServer.setRequestHandler (RequestCode.GrabServer,
+												new EmptyRequestHandler () {
+			protected void
+			process (
+				Client		client,
+				byte		arg
+			) throws IOException {
+				xServer.grabServer (client);
+			}
+		});
+
+		xServer.setRequestHandler (RequestCode.UngrabServer,
+												new EmptyRequestHandler () {
+			protected void
+			process (
+				Client		client,
+				byte		arg
+			) throws IOException {
+				xServer.ungrabServer (client);
+			}
+		});
+
+		xServer.setRequestHandler (RequestCode.QueryExtension,
+													new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				xServer.processQueryExtensionRequest (client, bytesRemaining);
+			}
+		});
+
+		xServer.setRequestHandler (RequestCode.ListExtensions,
+												new EmptyRequestHandler () {
+			protected void
+			process (
+				Client		client,
+				byte		arg
+			) throws IOException {
+				xServer.writeListExtensions (client);
+			}
+		});
+
+		xServer.setRequestHandler (RequestCode.SetScreenSaver,
+													new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				InputOutput		io = client.getInputOutput ();
+
+				if (bytesRemaining != 8) {
+					io.readSkip (bytesRemaining);
+					ErrorCode.write (client, ErrorCode.Length, opcode, 0);
+					return;
+				}
+
+				int		timeout = io.readShort ();	// Timeout.
+				int		interval = io.readShort ();	// Interval
+				int		pb = io.readByte ();	// Prefer-blanking.
+				int		ae = io.readByte ();	// Allow-exposures.
+
+				io.readSkip (2);	// Unused.
+				xServer.setScreenSaver (timeout, interval, pb, ae);
+			}
+		});
+
+		xServer.setRequestHandler (RequestCode.GetScreenSaver,
+												new EmptyRequestHandler () {
+			protected void
+			process (
+				Client		client,
+				byte		arg
+			) throws IOException {
+				xServer.writeScreenSaver (client);
+			}
+		});
+
+		xServer.setRequestHandler (RequestCode.ChangeHosts,
+													new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				xServer.processChangeHostsRequest (client, arg,
+															bytesRemaining);
+			}
+		});
+
+		xServer.setRequestHandler (RequestCode.ListHosts,
+												new EmptyRequestHandler () {
+			protected void
+			process (
+				Client		client,
+				byte		arg
+			) throws IOException {
+				xServer.writeListHosts (client);
+			}
+		});
+
+		xServer.setRequestHandler (RequestCode.SetAccessControl,
+												new EmptyRequestHandler () {
+			protected void
+			process (
+				Client		client,
+				byte		arg
+			) throws IOException {
+				xServer.setAccessControl (arg == 1);
+			}
+		});
+
+		xServer.setRequestHandler (RequestCode.SetCloseDownMode,
+													new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				client.processSetCloseDownModeRequest (arg, bytesRemaining);
+			}
+		});
+
+		xServer.setRequestHandler (RequestCode.KillClient,
+													new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				client.processKillClientRequest (bytesRemaining);
+			}
+		});
+
+		xServer.setRequestHandler (RequestCode.ForceScreenSaver,
+												new EmptyRequestHandler () {
+			protected void
+			process (
+				Client		client,
+				byte		arg
+			) throws IOException {
+				xServer.getScreen().blank (arg == 1);
+			}
+		});
+
+		xServer.setRequestHandler (RequestCode.NoOperation,
+													new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				client.getInputOutput().readSkip (bytesRemaining);
+			}
+		});
+	}
+}
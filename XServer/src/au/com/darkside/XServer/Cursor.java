@@ -132,12 +132,12 @@ public class Cursor extends Resource {
 		_foregroundColor = foregroundColor;
 		_backgroundColor = backgroundColor;
 
-		Bitmap		bm = p.getDrawable().getBitmap ();
-		int			width = bm.getWidth ();
-		int			height = bm.getHeight ();
+		Drawable	d = p.getDrawable ();
+		int			width = d.getWidth ();
+		int			height = d.getHeight ();
 		int[]		pixels = new int [width * height];
 
-		bm.getPixels (pixels, 0, width, 0, 0, width, height);
+		d.getPixels (pixels, 0, width, 0, 0, width, height);
 		if (mp == null) {
 			for (int i = 0; i < pixels.length; i++) {
 				if (pixels[i] == 0xffffffff)
@@ -146,10 +146,9 @@ public class Cursor extends Resource {
 					pixels[i] = backgroundColor;
 			}
 		} else {
-			Bitmap		mbm = mp.getDrawable().getBitmap ();
 			int[]		mask = new int [width * height];
 
-			mbm.getPixels (mask, 0, width, 0, 0, width, height);
+			mp.getDrawable().getPixels (mask, 0, width, 0, 0, width, height);
 			for (int i = 0; i < pixels.length; i++) {
 				if (mask[i] != 0xffffffff)
 					pixels[i] = 0;
@@ -304,8 +303,6 @@ public class Cursor extends Resource {
 					ErrorCode.write (client, ErrorCode.Length, opcode, 0);
 				} else {
 					_xServer.freeResource (_id);
-					if (_client != null)
-						_client.freeResource (this);
 					break;
 				}
 			case RequestCode.RecolorCursor:
@@ -389,11 +386,11 @@ public class Cursor extends Resource {
 					return;
 				}
 
-				Bitmap		bm1 = p.getDrawable().getBitmap ();
-				Bitmap		bm2 = mp.getDrawable().getBitmap ();
+				Drawable	d1 = p.getDrawable ();
+				Drawable	d2 = mp.getDrawable ();
 
-				if (bm1.getWidth () != bm2.getWidth ()
-									|| bm1.getHeight () != bm2.getHeight ()) {
+				if (d1.getWidth () != d2.getWidth ()
+									|| d1.getHeight () != d2.getHeight ()) {
 					ErrorCode.write (client, ErrorCode.Match, opcode, mid);
 					return;
 				}
@@ -404,8 +401,11 @@ public class Cursor extends Resource {
 			Cursor		c = new Cursor (id, xServer, client, p, mp, x, y,
 																	fg, bg);
 
+			p.setUsedBy (CURSOR);
+			if (mp != null)
+				mp.setUsedBy (CURSOR);
+
 			xServer.addResource (c);
-			client.addResource (c);
 		} else if (opcode == RequestCode.CreateGlyphCursor) {
 			int			sid = io.readInt ();	// Source font ID.
 			int			mid = io.readInt ();	// Mask font ID.
@@ -437,7 +437,6 @@ public class Cursor extends Resource {
 									(Font) mr, sourceChar, maskChar, fg, bg);
 
 			xServer.addResource (c);
-			client.addResource (c);
 		}
 	}
 }
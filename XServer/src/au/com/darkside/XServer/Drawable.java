@@ -3,12 +3,17 @@
  */
 package au.com.darkside.XServer;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.PorterDuff;
 import android.graphics.Rect;
 import android.graphics.RectF;
 
@@ -17,11 +22,22 @@ import android.graphics.RectF;
  * @author Matthew Kwan
  * 
  * This class implements an X drawable.
+ *
+ * Depth 1 drawables, such as stipples and cursor and shape masks, have no
+ * bitmap. Their pixels are packed into a bit plane, which is drawn on
+ * with bitwise operations. Shapes that need a Canvas to draw them are
+ * drawn on a shared scratch bitmap the size of the shape, and the pixels
+ * it covers are then combined with the plane. The pixels are only
+ * converted to colors when they are copied to a drawable with colors.
  */
 public class Drawable {
-	private final Bitmap	_bitmap;
-	private final Canvas	_canvas;
+	private Bitmap			_bitmap;
+	private Canvas			_canvas;
+	private final BitPlane	_plane;
+	private final int		_width;
+	private final int		_height;
 	private final int		_depth;
+	private boolean			_bitmapShared = false;
 	private Bitmap			_backgroundBitmap;
 	private int				_backgroundColor;
 	private boolean[]		_shapeMask = null;
@@ -29,6 +45,13 @@ public class Drawable {
 	private static final byte	BITMAP_FORMAT = 0;
 	private static final byte	XY_PIXMAP_FORMAT = 1;
 	private static final byte	Z_PIXMAP_FORMAT = 2;
+	private static final int	ImageStripPixels = 65536;
+
+	private static Bitmap		_maskBitmap = null;
+	private static Canvas		_maskCanvas = null;
+	private static int[]		_maskPixels = null;
+	private static final Rect	_maskRect = new Rect ();
+	private static final Paint	_maskPaint = new Paint ();
 
 	/**
 	 * Constructor.
@@ -46,8 +69,19 @@ public class Drawable {
 		Bitmap		bgbitmap,
 		int			bgcolor
 	) {
-		_bitmap = Bitmap.createBitmap (width, height, Bitmap.Config.ARGB_8888);
-		_canvas = new Canvas (_bitmap);
+		if (depth == 1) {
+			_bitmap = null;
+			_canvas = null;
+			_plane = new BitPlane (width, height);
+		} else {
+			_bitmap = Bitmap.createBitmap (width, height,
+												Bitmap.Config.ARGB_8888);
+			_canvas = new Canvas (_bitmap);
+			_plane = null;
+		}
+
+		_width = width;
+		_height = height;
 		_depth = depth;
 		_backgroundBitmap = bgbitmap;
 		_backgroundColor = bgcolor;
@@ -60,7 +94,7 @@ public class Drawable {
 	 */
 	public int
 	getWidth () {
-		return _bitmap.getWidth ();
+		return _width;
 	}
 
 	/**
@@ -70,7 +104,7 @@ public class Drawable {
 	 */
 	public int
 	getHeight () {
-		return _bitmap.getHeight ();
+		return _height;
 	}
 
 	/**
@@ -84,13 +118,170 @@ public class Drawable {
 	}
 
 	/**
-	 * Return the drawable's bitmap.
+	 * Return the drawable's bitmap. A depth 1 drawable doesn't have one,
+	 * so its pixels are converted to a new bitmap, with ones white and
+	 * zeros black. Once a bitmap has been returned, it can no longer be
+	 * spilled to a swap file, because the caller may keep it.
 	 *
 	 * @return	The drawable's bitmap.
 	 */
 	public Bitmap
 	getBitmap () {
-		return _bitmap;
+		if (_plane == null) {
+			_bitmapShared = true;
+			return _bitmap;
+		}
+
+		int			width = _plane.getWidth ();
+		int			height = _plane.getHeight ();
+		int[]		pixels = new int[width * height];
+
+		getPixels (pixels, 0, width, 0, 0, width, height);
+
+		return Bitmap.createBitmap (pixels, width, height,
+												Bitmap.Config.ARGB_8888);
+	}
+
+	/**
+	 * Copy a rectangle of the drawable's pixels, as ARGB colors. The
+	 * pixels of a depth 1 drawable are white if they're one, and black if
+	 * they're zero.
+	 *
+	 * @param pixels	The array to store the colors in.
+	 * @param offset	The index of the first color.
+	 * @param stride	The number of colors in a row of the array.
+	 * @param x	X coordinate of the rectangle.
+	 * @param y	Y coordinate of the rectangle.
+	 * @param width	Width of the rectangle.
+	 * @param height	Height of the rectangle.
+	 */
+	public void
+	getPixels (
+		int[]		pixels,
+		int			offset,
+		int			stride,
+		int			x,
+		int			y,
+		int			width,
+		int			height
+	) {
+		if (_plane != null)
+			_plane.getColors (pixels, offset, stride, x, y, width, height,
+														0xffffffff, 0xff000000);
+		else
+			_bitmap.getPixels (pixels, offset, stride, x, y, width, height);
+	}
+
+	/**
+	 * Return the number of bytes saved by packing the pixels of a depth 1
+	 * drawable, compared with storing them in an ARGB bitmap.
+	 *
+	 * @return	The number of bytes saved.
+	 */
+	public long
+	getBytesSaved () {
+		if (_plane == null)
+			return 0;
+
+		return 4L * _plane.getWidth () * _plane.getHeight ()
+												- _plane.getByteCount ();
+	}
+
+	/**
+	 * Return the number of bytes used by the drawable's pixels.
+	 *
+	 * @return	The number of bytes used by the pixels.
+	 */
+	public int
+	getByteCount () {
+		if (_plane != null)
+			return _plane.getByteCount ();
+
+		return 4 * _width * _height;
+	}
+
+	/**
+	 * Can the drawable's pixels be spilled to a swap file? Only bitmaps
+	 * that haven't been returned by getBitmap can be.
+	 *
+	 * @return	True if the pixels can be spilled.
+	 */
+	public boolean
+	isSpillable () {
+		return (_bitmap != null && !_bitmapShared);
+	}
+
+	/**
+	 * Write the drawable's pixels to a memory-mapped swap file, and free
+	 * its bitmap. The drawable can't be used until its pixels are faulted
+	 * back in.
+	 *
+	 * @param file	The swap file.
+	 * @throws IOException	If the file can't be written.
+	 */
+	public void
+	spill (
+		File		file
+	) throws IOException {
+		RandomAccessFile	raf = new RandomAccessFile (file, "rw");
+
+		try {
+			ByteBuffer	bb = raf.getChannel().map (
+						FileChannel.MapMode.READ_WRITE, 0, getByteCount ());
+
+			_bitmap.copyPixelsToBuffer (bb);
+		} finally {
+			raf.close ();
+		}
+
+		_bitmap.recycle ();
+		_bitmap = null;
+		_canvas = null;
+	}
+
+	/**
+	 * Read the drawable's pixels back from a swap file they were spilled
+	 * to. If the file can't be read, or there isn't enough memory for a
+	 * new bitmap, it stays spilled and the file is left alone.
+	 *
+	 * @param file	The swap file.
+	 * @throws IOException	If the file can't be read.
+	 */
+	public void
+	fault (
+		File		file
+	) throws IOException {
+		Bitmap		bitmap = Bitmap.createBitmap (_width, _height,
+												Bitmap.Config.ARGB_8888);
+		Canvas		canvas = new Canvas (bitmap);
+
+		try {
+			RandomAccessFile	raf = new RandomAccessFile (file, "r");
+
+			try {
+				ByteBuffer	bb = raf.getChannel().map (
+						FileChannel.MapMode.READ_ONLY, 0, getByteCount ());
+
+				bitmap.copyPixelsFromBuffer (bb);
+			} finally {
+				raf.close ();
+			}
+		} catch (IOException e) {
+			bitmap.recycle ();
+			throw e;
+		}
+
+		_canvas = canvas;
+		_bitmap = bitmap;
+	}
+
+	/**
+	 * Free the drawable's bitmap.
+	 */
+	public void
+	recycle () {
+		if (_bitmap != null)
+			_bitmap.recycle ();
 	}
 
 	/**
@@ -117,6 +308,23 @@ public class Drawable {
 		_backgroundBitmap = bitmap;
 	}
 
+	/**
+	 * Copy the contents of another drawable into this one.
+	 * Used to retain a window's contents when it is resized.
+	 *
+	 * @param src	The drawable to copy from.
+	 * @param dx	X position of the contents in this drawable.
+	 * @param dy	Y position of the contents in this drawable.
+	 */
+	public void
+	copyFrom (
+		Drawable	src,
+		int			dx,
+		int			dy
+	) {
+		_canvas.drawBitmap (src._bitmap, dx, dy, null);
+	}
+
 	/**
 	 * Process an X request relating to this drawable.
 	 *
@@ -157,6 +365,7 @@ public class Drawable {
 					int			height = io.readShort ();	// Height.
 					Resource	r1 = xServer.getResource (did);
 					Resource	r2 = xServer.getResource (gcid);
+					Drawable	dst;
 
 					if (r1 == null || !r1.isDrawable ()) {
 						ErrorCode.write (client, ErrorCode.Drawable, opcode,
@@ -165,8 +374,10 @@ public class Drawable {
 									|| r2.getType () != Resource.GCONTEXT) {
 						ErrorCode.write (client, ErrorCode.GContext, opcode,
 																		gcid);
+					} else if ((dst = getDrawable (r1)) == null) {
+						ErrorCode.write (client, ErrorCode.Alloc, opcode, 0);
 					} else if (width > 0 && height > 0) {
-						copyArea (sx, sy, width, height, r1, dx, dy,
+						copyArea (sx, sy, width, height, r1, dst, dx, dy,
 															(GContext) r2);
 					}
 				}
@@ -187,6 +398,7 @@ public class Drawable {
 					int			bitPlane = io.readInt ();	// Bit plane.
 					Resource	r1 = xServer.getResource (did);
 					Resource	r2 = xServer.getResource (gcid);
+					Drawable	dst;
 
 					if (r1 == null || !r1.isDrawable ()) {
 						ErrorCode.write (client, ErrorCode.Drawable, opcode,
@@ -195,12 +407,14 @@ public class Drawable {
 									|| r2.getType () != Resource.GCONTEXT) {
 						ErrorCode.write (client, ErrorCode.GContext, opcode,
 																		gcid);
+					} else if ((dst = getDrawable (r1)) == null) {
+						ErrorCode.write (client, ErrorCode.Alloc, opcode, 0);
 					} else {
 						if (_depth != 32)
 							copyPlane (sx, sy, width, height, bitPlane, r1,
-													dx, dy, (GContext) r2);
+												dst, dx, dy, (GContext) r2);
 						else
-							copyArea (sx, sy, width, height, r1, dx, dy,
+							copyArea (sx, sy, width, height, r1, dst, dx, dy,
 															(GContext) r2);
 					}
 				}
@@ -290,90 +504,150 @@ public class Drawable {
 		int				width = io.readShort ();	// Width.
 		int				height = io.readShort ();	// Height.
 		int				planeMask = io.readInt ();	// Plane mask.
-		int				wh = width * height;
-		int				n, pad;
-		int[]			pixels;
-		byte[]			bytes = null;
+		int				planes;
+		int				rowBytes, n, pad;
+
+		if (_plane != null)
+			planeMask &= 1;
 
-		if (x < 0 || y < 0 || x + width > _bitmap.getWidth ()
-									|| y + height > _bitmap.getHeight ()) {
+		planes = Util.bitcount (planeMask);
+		if (x < 0 || y < 0 || x + width > getWidth ()
+											|| y + height > getHeight ()) {
 			ErrorCode.write (client, ErrorCode.Match, RequestCode.GetImage, 0);
 			return;
 		}
 
+		if (_plane != null && format == Z_PIXMAP_FORMAT) {
+				// A depth 1 ZPixmap is in bitmap format, like an XYPixmap.
+			rowBytes = (width + 7) / 8;
+			n = height * rowBytes;
+		} else if (format == Z_PIXMAP_FORMAT) {
+			rowBytes = 3 * width;
+			n = rowBytes * height;
+		} else {	// XY_PIXMAP_FORMAT is the only other valid value.
+			rowBytes = (width + 7) / 8;
+			n = planes * height * rowBytes;
+		}
+
+		pad = -n & 3;
+
+			// Encode the image a strip of rows at a time into reusable
+			// buffers, and write each strip with a single bulk write.
+		int			stripRows = (width == 0) ? height
+											: ImageStripPixels / width;
+		int[]		pixels;
+		byte[]		bytes;
+
+		if (stripRows < 1)
+			stripRows = 1;
+		else if (stripRows > height)
+			stripRows = height;
+
 		try {
-			pixels = new int[wh];
+			pixels = client.getPixelBuffer (stripRows * width);
+			bytes = client.getByteBuffer (stripRows * rowBytes);
 		} catch (OutOfMemoryError e) {
 			ErrorCode.write (client, ErrorCode.Alloc, RequestCode.GetImage, 0);
 			return;
 		}
 
-		_bitmap.getPixels (pixels, 0, width, x, y, width, height);
-
-		if (format == Z_PIXMAP_FORMAT) {
-			n = wh * 3;
-		} else {	// XY_PIXMAP_FORMAT is the only other valid value.
-			int			planes = Util.bitcount (planeMask);
-			int			rightPad = -width & 7;
-			int			xmax = width + rightPad;
-			int			offset = 0;
-
-			n = planes * height * (width + rightPad) / 8;
-
-			try {
-				bytes = new byte[n];
-			} catch (OutOfMemoryError e) {
-				ErrorCode.write (client, ErrorCode.Alloc,
-													RequestCode.GetImage, 0);
-				return;
-			}
+		synchronized (io) {
+			Util.writeReplyHeader (client, (byte) _depth);
+			io.writeInt ((n + pad) / 4);	// Reply length.
+			io.writeInt (0);	// Visual ID.
+			io.writePadBytes (20);	// Unused.
 
-			for (int plane = 31; plane >= 0; plane--) {
-				int		bit = 1 << plane;
+			if (_plane != null) {	// The packed plane, in bitmap format.
+				int[]		row = new int[(width + 31) >> 5];
+				int			lastMask = 0xff << (-width & 7);
+
+				for (int yi = 0; yi < height && n != 0; yi += stripRows) {
+					int			rows = Math.min (stripRows, height - yi);
+					int			offset = 0;
+
+					for (int r = 0; r < rows; r++) {
+						if (planeMask != 0)		// Otherwise the row is zero.
+							_plane.getRow (x, y + yi + r, width, row);
+						for (int i = 0; i < rowBytes; i++)
+							bytes[offset++] = (byte) (row[i >> 2]
+														>>> (24 - 8 * (i & 3)));
+						bytes[offset - 1] &= lastMask;
+					}
 
-				if ((planeMask & bit) == 0)
-					continue;
+					io.writeBytes (bytes, 0, offset);
+				}
+			} else if (format == Z_PIXMAP_FORMAT) {
+				for (int yi = 0; yi < height; yi += stripRows) {
+					int			rows = Math.min (stripRows, height - yi);
+					int			count = rows * width;
+					int			offset = 0;
+
+					_bitmap.getPixels (pixels, 0, width, x, y + yi, width, rows);
+					for (int i = 0; i < count; i++) {
+						int			p = pixels[i] & planeMask;
+
+						bytes[offset++] = (byte) p;
+						bytes[offset++] = (byte) (p >> 8);
+						bytes[offset++] = (byte) (p >> 16);
+					}
 
-				byte		b = 0;
+					io.writeBytes (bytes, 0, offset);
+				}
+			} else {
+				for (int plane = 31; plane >= 0; plane--) {
+					if ((planeMask & (1 << plane)) == 0)
+						continue;
 
-				for (int yi = 0; yi < height; yi++) {
-					for (int xi = 0; xi < xmax; xi++) {
-						b <<= 1;
-						if (xi < width
-								&& (pixels[yi * width + xi] & bit) != 0)
-							b |= 1;
+					for (int yi = 0; yi < height; yi += stripRows) {
+						int			rows = Math.min (stripRows, height - yi);
 
-						if ((xi & 7) == 7) {
-							bytes[offset++] = b;
-							b = 0;
-						}
+						_bitmap.getPixels (pixels, 0, width, x, y + yi, width,
+																	rows);
+						packPlaneRows (pixels, width, rows, plane, bytes);
+						io.writeBytes (bytes, 0, rows * rowBytes);
 					}
 				}
 			}
+
+			io.writePadBytes (pad);	// Unused.
 		}
+		io.flush ();
+	}
 
-		pad = -n & 3;
+	/**
+	 * Pack one plane of rows of pixels into XYPixmap format, with the
+	 * most significant bit of each byte first and rows padded to a byte.
+	 *
+	 * @param pixels	The pixels to pack.
+	 * @param width	The number of pixels in each row.
+	 * @param rows	The number of rows.
+	 * @param plane	The bit number of the plane to pack.
+	 * @param bytes	The array to store the packed plane in.
+	 */
+	private static void
+	packPlaneRows (
+		int[]		pixels,
+		int			width,
+		int			rows,
+		int			plane,
+		byte[]		bytes
+	) {
+		int			offset = 0;
 
-		synchronized (io) {
-			Util.writeReplyHeader (client, (byte) 32);
-			io.writeInt ((n + pad) / 4);	// Reply length.
-			io.writeInt (0);	// Visual ID.
-			io.writePadBytes (20);	// Unused.
+		for (int row = 0; row < rows; row++) {
+			int			rowStart = row * width;
+			int			rowEnd = rowStart + width;
 
-			if (format == 2) {
-				for (int i = 0; i < wh; i++) {
-					n = pixels[i] & planeMask;
-					io.writeByte ((byte) (n & 0xff));
-					io.writeByte ((byte) ((n >> 8) & 0xff));
-					io.writeByte ((byte) ((n >> 16) & 0xff));
-				}
-			} else {
-				io.writeBytes (bytes, 0, n);
-			}
+			for (int i = rowStart; i < rowEnd; i += 8) {
+				int			end = Math.min (i + 8, rowEnd);
+				int			b = 0;
 
-			io.writePadBytes (pad);	// Unused.
+				for (int j = i; j < end; j++)
+					b = (b << 1) | ((pixels[j] >>> plane) & 1);
+
+				bytes[offset++] = (byte) (b << (i + 8 - end));
+			}
 		}
-		io.flush ();
 	}
 
 	/**
@@ -446,6 +720,23 @@ public class Drawable {
 		}
 	}
 
+	/**
+	 * Return the drawable of a pixmap or window.
+	 *
+	 * @param r	The pixmap or window.
+	 * @return	The drawable, or null if the pixels of a pixmap that was
+	 * 			spilled can't be faulted back in.
+	 */
+	private static Drawable
+	getDrawable (
+		Resource	r
+	) {
+		if (r.getType () == Resource.PIXMAP)
+			return ((Pixmap) r).getDrawable ();
+		else
+			return ((Window) r).getDrawable ();
+	}
+
 	/**
 	 * Copy a rectangle from this drawable to another.
 	 *
@@ -454,6 +745,7 @@ public class Drawable {
 	 * @param width	Width of the rectangle.
 	 * @param height	Height of the rectangle.
 	 * @param dr	The pixmap or window to draw the rectangle in.
+	 * @param dst	The drawable of the pixmap or window.
 	 * @param dx	The destination X coordinate.
 	 * @param dy	The destination Y coordinate.
 	 * @param gc	The GContext.
@@ -466,16 +758,11 @@ public class Drawable {
 		int			width,
 		int			height,
 		Resource	dr,
+		Drawable	dst,
 		int			dx,
 		int			dy,
 		GContext	gc
 	) throws IOException {
-		Drawable	dst;
-
-		if (dr.getType () == Resource.PIXMAP)
-			dst = ((Pixmap) dr).getDrawable ();
-		else
-			dst = ((Window) dr).getDrawable ();
 
 		if (sx < 0) {
 			width += sx;
@@ -489,18 +776,48 @@ public class Drawable {
 			sy = 0;
 		}
 
-		if (sx + width > _bitmap.getWidth ())
-			width = _bitmap.getWidth () - sx;
+		if (sx + width > getWidth ())
+			width = getWidth () - sx;
 
-		if (sy + height > _bitmap.getHeight ())
-			height = _bitmap.getHeight () - sy;
+		if (sy + height > getHeight ())
+			height = getHeight () - sy;
 
 		if (width <= 0 || height <= 0)
 			return;
 
-		Bitmap		bm = Bitmap.createBitmap (_bitmap, sx, sy, width, height);
+		if (dst._plane != null) {
+			Rect[]		clip = gc.getClipRectangles ();
+			int[]		row = new int[(width + 31) >> 5];
+			int[]		pixels = (_plane != null) ? null : new int[width];
+			boolean		upwards = (dst == this && dy > sy);
 
-		dst._canvas.drawBitmap (bm, dx, dy, gc.getPaint ());
+				// Each row is copied out before it's written, so only the
+				// order of the rows matters when the rectangles overlap.
+			for (int i = 0; i < height; i++) {
+				int			r = upwards ? height - 1 - i : i;
+
+				if (_plane != null) {
+					_plane.getRow (sx, sy + r, width, row);
+				} else {
+					_bitmap.getPixels (pixels, 0, width, sx, sy + r, width, 1);
+					packBits (pixels, width, 1, row);
+				}
+
+				dst.applyPlaneRow (clip, dx, dy + r, width, row, 0, 0, null, 0,
+														gc.getFunction ());
+			}
+		} else if (_plane != null) {
+			int[]		pixels = new int[width * height];
+
+			getPixels (pixels, 0, width, sx, sy, width, height);
+			dst._canvas.drawBitmap (pixels, 0, width, dx, dy, width, height,
+													true, gc.getPaint ());
+		} else {
+			Bitmap		bm = Bitmap.createBitmap (_bitmap, sx, sy, width,
+																	height);
+
+			dst._canvas.drawBitmap (bm, dx, dy, gc.getPaint ());
+		}
 
 		if (dr.getType () == Resource.WINDOW)
 			((Window) dr).invalidate (dx, dy, width, height);
@@ -512,6 +829,8 @@ public class Drawable {
 
 	/**
 	 * Copy a rectangle from a plane of this drawable to another rectangle.
+	 * Pixels with the plane's bit set are drawn in the foreground color,
+	 * and the others in the background color.
 	 *
 	 * @param sx	X coordinate of this rectangle.
 	 * @param sy	Y coordinate of this rectangle.
@@ -519,6 +838,7 @@ public class Drawable {
 	 * @param height	Height of the rectangle.
 	 * @param bitPlane	The bit plane being copied.
 	 * @param dr	The pixmap or window to draw the rectangle in.
+	 * @param dst	The drawable of the pixmap or window.
 	 * @param dx	The destination X coordinate.
 	 * @param dy	The destination Y coordinate.
 	 * @param gc	The GContext.
@@ -532,27 +852,61 @@ public class Drawable {
 		int			height,
 		int			bitPlane,
 		Resource	dr,
+		Drawable	dst,
 		int			dx,
 		int			dy,
 		GContext	gc
 	) throws IOException {
-		Drawable	dst;
+		Rect		sr = new Rect (sx, sy, sx + width, sy + height);
 
-		if (dr.getType () == Resource.PIXMAP)
-			dst = ((Pixmap) dr).getDrawable ();
-		else
-			dst = ((Window) dr).getDrawable ();
+		if (!sr.intersect (0, 0, getWidth (), getHeight ()))
+			return;
+
+		dx += sr.left - sx;
+		dy += sr.top - sy;
+		sx = sr.left;
+		sy = sr.top;
+		width = sr.width ();
+		height = sr.height ();
 
-		int			fg = (_depth == 1) ? 0xffffffff : gc.getForegroundColor ();
-		int			bg = (_depth == 1) ? 0 : gc.getBackgroundColor ();
-		int[]		pixels = new int [width * height];
+		int			fg = gc.getForegroundColor ();
+		int			bg = gc.getBackgroundColor ();
 
-		_bitmap.getPixels (pixels, 0, width, sx, sy, width, height);
-		for (int i = 0; i < pixels.length; i++)
-			pixels[i] = ((pixels[i] & bitPlane) != 0) ? fg : bg;
+		if (dst._plane != null) {
+			Rect[]		clip = gc.getClipRectangles ();
+			int[]		row = new int[(width + 31) >> 5];
+			int[]		pixels = (_plane != null) ? null : new int[width];
+			boolean		upwards = (dst == this && dy > sy);
+
+			for (int i = 0; i < height; i++) {
+				int			r = upwards ? height - 1 - i : i;
+
+				if (_plane != null) {
+					_plane.getRow (sx, sy + r, width, row);
+				} else {
+					_bitmap.getPixels (pixels, 0, width, sx, sy + r, width, 1);
+					packBits (pixels, width, bitPlane, row);
+				}
 
-		dst._canvas.drawBitmap (pixels, 0, width, dx, dy, width, height,
-												true, gc.getPaint ());
+				selectBits (row, (fg & 1) != 0, (bg & 1) != 0);
+				dst.applyPlaneRow (clip, dx, dy + r, width, row, 0, 0, null, 0,
+														gc.getFunction ());
+			}
+		} else {
+			int[]		pixels = new int [width * height];
+
+			if (_plane != null) {
+				_plane.getColors (pixels, 0, width, sx, sy, width, height, fg,
+																		bg);
+			} else {
+				_bitmap.getPixels (pixels, 0, width, sx, sy, width, height);
+				for (int i = 0; i < pixels.length; i++)
+					pixels[i] = ((pixels[i] & bitPlane) != 0) ? fg : bg;
+			}
+
+			dst._canvas.drawBitmap (pixels, 0, width, dx, dy, width, height,
+													true, gc.getPaint ());
+		}
 
 		if (dr.getType () == Resource.WINDOW)
 			((Window) dr).invalidate (dx, dy, width, height);
@@ -562,33 +916,431 @@ public class Drawable {
 													RequestCode.CopyPlane);
 	}
 
+	/**
+	 * Pack one plane of a row of pixels into bits, with the first pixel
+	 * in the most significant bit.
+	 *
+	 * @param pixels	The pixels.
+	 * @param width	The number of pixels.
+	 * @param plane	Mask of the plane's bit in each pixel.
+	 * @param row	The array to store the bits in.
+	 */
+	private static void
+	packBits (
+		int[]		pixels,
+		int			width,
+		int			plane,
+		int[]		row
+	) {
+		for (int i = 0; i < width; i += 32) {
+			int			n = Math.min (32, width - i);
+			int			bits = 0;
+
+			for (int j = 0; j < n; j++)
+				if ((pixels[i + j] & plane) != 0)
+					bits |= 0x80000000 >>> j;
+
+			row[i >> 5] = bits;
+		}
+	}
+
+	/**
+	 * Replace a row of bits with the foreground pixel value where they're
+	 * set, and the background pixel value where they're clear.
+	 *
+	 * @param row	The bits.
+	 * @param fg	The foreground pixel value.
+	 * @param bg	The background pixel value.
+	 */
+	private static void
+	selectBits (
+		int[]		row,
+		boolean		fg,
+		boolean		bg
+	) {
+		for (int i = 0; i < row.length; i++)
+			row[i] = (fg ? row[i] : 0) | (bg ? ~row[i] : 0);
+	}
+
+	/**
+	 * Combine a row of source bits with a span of this drawable's packed
+	 * pixels, only changing pixels inside the clip rectangles.
+	 *
+	 * @param clip	The clip rectangles, which don't overlap, or null.
+	 * @param x	The X coordinate of the span.
+	 * @param y	The row.
+	 * @param width	The number of pixels in the span.
+	 * @param src	The source bits, or null if they're all the same.
+	 * @param srcOffset	The position in src of the bit for pixel x.
+	 * @param srcValue	The source bits if src is null, 0 or -1.
+	 * @param mask	The bits to change, or null to change all of them.
+	 * @param maskOffset	The position in mask of the bit for pixel x.
+	 * @param function	The X function.
+	 */
+	private void
+	applyPlaneRow (
+		Rect[]		clip,
+		int			x,
+		int			y,
+		int			width,
+		int[]		src,
+		int			srcOffset,
+		int			srcValue,
+		int[]		mask,
+		int			maskOffset,
+		int			function
+	) {
+		if (clip == null) {
+			_plane.applyRow (x, y, width, src, srcOffset, srcValue, mask,
+														maskOffset, function);
+			return;
+		}
+
+		for (Rect r: clip) {
+			int			x1 = Math.max (x, r.left);
+			int			x2 = Math.min (x + width, r.right);
+
+			if (y >= r.top && y < r.bottom && x1 < x2)
+				_plane.applyRow (x1, y, x2 - x1, src, srcOffset + x1 - x,
+							srcValue, mask, maskOffset + x1 - x, function);
+		}
+	}
+
+	/**
+	 * Fill a rectangle of this drawable's packed pixels.
+	 *
+	 * @param gc	The GContext, for its clip rectangles.
+	 * @param x	X coordinate of the rectangle.
+	 * @param y	Y coordinate of the rectangle.
+	 * @param width	Width of the rectangle.
+	 * @param height	Height of the rectangle.
+	 * @param value	The pixel value to fill it with.
+	 * @param function	The X function.
+	 */
+	private void
+	fillPlaneRect (
+		GContext	gc,
+		int			x,
+		int			y,
+		int			width,
+		int			height,
+		boolean		value,
+		int			function
+	) {
+		Rect[]		clip = gc.getClipRectangles ();
+		int			y1 = Math.max (y, 0);
+		int			y2 = Math.min (y + height, _plane.getHeight ());
+
+		for (int i = y1; i < y2; i++)
+			applyPlaneRow (clip, x, i, width, null, 0, value ? -1 : 0, null,
+															0, function);
+	}
+
+	/**
+	 * Return the canvas to draw a shape on. Drawables with a bitmap use
+	 * its canvas, which is already clipped. Depth 1 drawables use the
+	 * scratch bitmap, positioned over the shape's bounds, and endDraw must
+	 * be called once the shape is drawn.
+	 *
+	 * @param left	The left edge of the shape.
+	 * @param top	The top edge of the shape.
+	 * @param right	The right edge of the shape.
+	 * @param bottom	The bottom edge of the shape.
+	 * @return	The canvas.
+	 */
+	private Canvas
+	beginDraw (
+		float		left,
+		float		top,
+		float		right,
+		float		bottom
+	) {
+		if (_plane == null)
+			return _canvas;
+
+			// Leave room for wide lines and their joins.
+		int			pad = 2 * (int) _maskPaint.getStrokeWidth () + 2;
+
+		_maskRect.set ((int) Math.floor (left) - pad,
+					(int) Math.floor (top) - pad,
+					(int) Math.ceil (right) + pad,
+					(int) Math.ceil (bottom) + pad);
+		if (!_maskRect.intersect (0, 0, _plane.getWidth (),
+														_plane.getHeight ()))
+			_maskRect.setEmpty ();
+
+		int			width = Math.max (_maskRect.width (), 1);
+		int			height = Math.max (_maskRect.height (), 1);
+
+		if (_maskBitmap == null || _maskBitmap.getWidth () < width
+										|| _maskBitmap.getHeight () < height) {
+			if (_maskBitmap != null) {
+				width = Math.max (width, _maskBitmap.getWidth ());
+				height = Math.max (height, _maskBitmap.getHeight ());
+				_maskBitmap.recycle ();
+			}
+
+			_maskBitmap = Bitmap.createBitmap (width, height,
+												Bitmap.Config.ARGB_8888);
+			_maskCanvas = new Canvas (_maskBitmap);
+		}
+
+			// The scratch bitmap is clear outside the rectangle in use.
+		_maskCanvas.save ();
+		_maskCanvas.clipRect (0, 0, _maskRect.width (), _maskRect.height ());
+		_maskCanvas.translate (-_maskRect.left, -_maskRect.top);
+
+		return _maskCanvas;
+	}
+
+	/**
+	 * Return the canvas to draw a series of points or lines on.
+	 *
+	 * @param points	The X and Y coordinates of the points.
+	 * @return	The canvas.
+	 */
+	private Canvas
+	beginDraw (
+		float[]		points
+	) {
+		if (_plane == null || points.length < 2)
+			return beginDraw (0, 0, 0, 0);
+
+		float		left = points[0];
+		float		right = points[0];
+		float		top = points[1];
+		float		bottom = points[1];
+
+		for (int i = 2; i + 1 < points.length; i += 2) {
+			left = Math.min (left, points[i]);
+			right = Math.max (right, points[i]);
+			top = Math.min (top, points[i + 1]);
+			bottom = Math.max (bottom, points[i + 1]);
+		}
+
+		return beginDraw (left, top, right, bottom);
+	}
+
+	/**
+	 * Return the canvas to draw a path on.
+	 *
+	 * @param path	The path.
+	 * @return	The canvas.
+	 */
+	private Canvas
+	beginDraw (
+		Path		path
+	) {
+		if (_plane == null)
+			return _canvas;
+
+		RectF		r = new RectF ();
+
+		path.computeBounds (r, true);
+
+		return beginDraw (r.left, r.top, r.right, r.bottom);
+	}
+
+	/**
+	 * Finish drawing a shape. For a depth 1 drawable, the pixels covered
+	 * by the shape on the scratch bitmap are combined with the foreground
+	 * pixel value, and the scratch bitmap is cleared.
+	 *
+	 * @param gc	The GContext.
+	 * @param function	The X function.
+	 */
+	private void
+	endDraw (
+		GContext	gc,
+		int			function
+	) {
+		if (_plane == null)
+			return;
+
+		int			width = _maskRect.width ();
+		int			height = _maskRect.height ();
+
+		if (width > 0 && height > 0) {
+			Rect[]		clip = gc.getClipRectangles ();
+			int			fg = ((gc.getForegroundColor () & 1) != 0) ? -1 : 0;
+			int[]		row = new int[(width + 31) >> 5];
+
+			if (_maskPixels == null || _maskPixels.length < width)
+				_maskPixels = new int[width];
+
+			for (int i = 0; i < height; i++) {
+				_maskBitmap.getPixels (_maskPixels, 0, width, 0, i, width, 1);
+				packBits (_maskPixels, width, 0x80000000, row);
+				applyPlaneRow (clip, _maskRect.left, _maskRect.top + i, width,
+										null, 0, fg, row, 0, function);
+			}
+
+			_maskCanvas.drawColor (0, PorterDuff.Mode.CLEAR);
+		}
+
+		_maskCanvas.restore ();
+	}
+
+	/**
+	 * Finish drawing a shape with the GContext's function.
+	 *
+	 * @param gc	The GContext.
+	 */
+	private void
+	endDraw (
+		GContext	gc
+	) {
+		endDraw (gc, gc.getFunction ());
+	}
+
+	/**
+	 * Return the paint to draw shapes with. Depth 1 drawables draw shapes
+	 * opaque on the scratch bitmap, with the GContext's lines and text
+	 * size, and apply the function and foreground pixel value afterwards.
+	 *
+	 * @param gc	The GContext.
+	 * @return	The paint.
+	 */
+	private Paint
+	getPaint (
+		GContext	gc
+	) {
+		Paint		paint = gc.getPaint ();
+
+		if (_plane == null)
+			return paint;
+
+		_maskPaint.set (paint);
+		_maskPaint.setXfermode (null);
+		_maskPaint.setColor (0xffffffff);
+
+		return _maskPaint;
+	}
+
+	/**
+	 * Draw text at the specified location in the GContext's font and
+	 * foreground color. Fonts loaded from files draw their own glyphs,
+	 * and with the XOR function only the pixels the glyphs cover are
+	 * changed. Otherwise the glyphs are copied from the font's atlas,
+	 * unless the GContext's function needs them drawn directly.
+	 *
+	 * @param chars	The characters to draw.
+	 * @param length	The number of characters.
+	 * @param x	X coordinate.
+	 * @param y	Y coordinate.
+	 * @param gc	Graphics context for drawing the text.
+	 * @return	The width of the text.
+	 */
+	private int
+	drawText (
+		char[]		chars,
+		int			length,
+		int			x,
+		int			y,
+		GContext	gc
+	) {
+		Paint		paint = gc.getPaint ();
+		Font		font = gc.getFont ();
+		BitmapFont	bf = font.getBitmapFont ();
+
+		if (_plane != null)
+			return drawPlaneText (chars, length, x, y, gc, gc.getFunction ());
+
+		if (bf != null && gc.getFunction () == 6)	// XOR.
+			return bf.xorText (_bitmap, gc.getClipRectangles (), chars,
+						length, x, y, gc.getForegroundColor () & 0xffffff);
+
+		if (bf != null)
+			return bf.drawText (_canvas, chars, length, x, y, paint);
+
+		if (gc.getFunction () != 6)	// Not XOR.
+			return font.getAtlas().drawText (_canvas, chars, length, x, y,
+														paint.getColor ());
+
+		paint.setStyle (Paint.Style.FILL);
+		_canvas.drawText (chars, 0, length, x, y, paint);
+
+		return font.getMetrics().getTextWidth (chars, length);
+	}
+
+	/**
+	 * Draw text on a depth 1 drawable, combining the pixels the glyphs
+	 * cover with the foreground pixel value.
+	 *
+	 * @param chars	The characters to draw.
+	 * @param length	The number of characters.
+	 * @param x	X coordinate.
+	 * @param y	Y coordinate.
+	 * @param gc	Graphics context for drawing the text.
+	 * @param function	The X function.
+	 * @return	The width of the text.
+	 */
+	private int
+	drawPlaneText (
+		char[]		chars,
+		int			length,
+		int			x,
+		int			y,
+		GContext	gc,
+		int			function
+	) {
+		Font		font = gc.getFont ();
+		BitmapFont	bf = font.getBitmapFont ();
+		int			width = font.getTextWidth (chars, length);
+		int			ascent = font.getAscent ();
+		int			descent = font.getDescent ();
+		int			overhang = ascent + descent;
+		Canvas		canvas = beginDraw (x - overhang, y - ascent,
+										x + width + overhang, y + descent);
+
+		if (bf != null)
+			bf.drawText (canvas, chars, length, x, y, getPaint (gc));
+		else
+			font.getAtlas().drawText (canvas, chars, length, x, y,
+																0xffffffff);
+
+		endDraw (gc, function);
+
+		return width;
+	}
+
 	/**
 	 * Draw text at the specified location, on top of a bounding rectangle
 	 * drawn in the background color.
 	 *
-	 * @param s	The string to write.
+	 * @param chars	The characters to draw.
 	 * @param x	X coordinate.
 	 * @param y	Y coordinate.
 	 * @param gc	Graphics context for drawing the text.
 	 */
 	private void
 	drawImageText (
-		String		s,
+		char[]		chars,
 		int			x,
 		int			y,
 		GContext	gc
 	) {
 		Paint		paint = gc.getPaint ();
 		Font		font = gc.getFont ();
-		Rect		rect = new Rect ();
+		int			width = font.getTextWidth (chars, chars.length);
+
+		if (_plane != null) {	// Image text ignores the function.
+			fillPlaneRect (gc, x, y - font.getAscent (), width,
+						font.getAscent () + font.getDescent (),
+						(gc.getBackgroundColor () & 1) != 0,
+						BitPlane.FunctionCopy);
+			drawPlaneText (chars, chars.length, x, y, gc,
+												BitPlane.FunctionCopy);
+			return;
+		}
 
-		font.getTextBounds (s, x, y, rect);
 		paint.setColor (gc.getBackgroundColor ());
 		paint.setStyle (Paint.Style.FILL);
-		_canvas.drawRect (rect, paint);
-		
+		_canvas.drawRect (x, y - font.getAscent (), x + width,
+										y + font.getDescent (), paint);
+
 		paint.setColor (gc.getForegroundColor ());
-		_canvas.drawText (s, x, y, paint);
+		drawText (chars, chars.length, x, y, gc);
 	}
 
 	/**
@@ -616,12 +1368,13 @@ public class Drawable {
 		int				bytesRemaining
 	) throws IOException {
 		InputOutput		io = client.getInputOutput ();
-		Paint			paint = gc.getPaint ();
+		Paint			paint = getPaint (gc);
 		boolean			changed = false;
-		int				originalColor = paint.getColor ();
 
-		_canvas.save ();
-		gc.applyClipRectangles (_canvas);
+		if (_canvas != null) {
+			_canvas.save ();
+			gc.applyClipRectangles (_canvas);
+		}
 
 		switch (opcode) {
 			case RequestCode.PolyPoint:
@@ -630,25 +1383,28 @@ public class Drawable {
 					ErrorCode.write (client, ErrorCode.Length, opcode, 0);
 				} else {
 					float[]		points = new float[bytesRemaining / 2];
-					int			i = 0;
+					int			i;
 
-					while (bytesRemaining > 0) {
-						float		p = (short) io.readShort ();
+					io.readShortsAsFloats (points, 0, points.length);
+					if (arg != 0)	// Relative to previous.
+						for (i = 2; i < points.length; i++)
+							points[i] += points[i - 2];
 
-						bytesRemaining -= 2;
-						if (arg == 0 || i < 2)	// Relative to origin.
-							points[i] = p;
-						else
-							points[i] = points[i - 2] + p;	// Rel to previous.
-						i++;
-					}
+					if (_plane != null) {
+						boolean		fg = (gc.getForegroundColor () & 1) != 0;
 
-					try {
-						_canvas.drawPoints (points, paint);
-					} catch (UnsupportedOperationException e) {
 						for (i = 0; i < points.length; i += 2)
-							_canvas.drawPoint (points[i], points[i + 1],
+							fillPlaneRect (gc, (int) points[i],
+										(int) points[i + 1], 1, 1, fg,
+										gc.getFunction ());
+					} else {
+						try {
+							_canvas.drawPoints (points, paint);
+						} catch (UnsupportedOperationException e) {
+							for (i = 0; i < points.length; i += 2)
+								_canvas.drawPoint (points[i], points[i + 1],
 																	paint);
+						}
 					}
 					changed = true;
 				}
@@ -659,23 +1415,23 @@ public class Drawable {
 					ErrorCode.write (client, ErrorCode.Length, opcode, 0);
 				} else {
 					Path		path = new Path ();
-					int			i = 0;
+					float[]		points = new float[bytesRemaining / 2];
 
-					while (bytesRemaining > 0) {
-						float		x = (short) io.readShort ();
-						float		y = (short) io.readShort ();
+					io.readShortsAsFloats (points, 0, points.length);
+					for (int i = 0; i < points.length; i += 2) {
+						float		x = points[i];
+						float		y = points[i + 1];
 
-						bytesRemaining -= 4;
 						if (i == 0)
 							path.moveTo (x, y);
 						else if (arg == 0)	// Relative to origin.
 							path.lineTo (x, y);
 						else	// Relative to previous.
 							path.rLineTo (x, y);
-						i++;
 					}
 					paint.setStyle (Paint.Style.STROKE);
-					_canvas.drawPath (path, paint);
+					beginDraw(path).drawPath (path, paint);
+					endDraw (gc);
 					changed = true;
 				}
 				break;
@@ -685,14 +1441,10 @@ public class Drawable {
 					ErrorCode.write (client, ErrorCode.Length, opcode, 0);
 				} else {
 					float[]		points = new float[bytesRemaining / 2];
-					int			i = 0;
 
-					while (bytesRemaining > 0) {
-						points[i++] = (short) io.readShort ();
-						bytesRemaining -= 2;
-					}
-
-					_canvas.drawLines (points, paint);
+					io.readShortsAsFloats (points, 0, points.length);
+					beginDraw(points).drawLines (points, paint);
+					endDraw (gc);
 					changed = true;
 				}
 				break;
@@ -707,14 +1459,31 @@ public class Drawable {
 					else
 						paint.setStyle (Paint.Style.FILL);
 
+					ByteBuffer	bb = io.getRequestBuffer ();
+
 					while (bytesRemaining > 0) {
-						float		x = (short) io.readShort ();
-						float		y = (short) io.readShort ();
-						float		width = io.readShort ();
-						float		height = io.readShort ();
+						float		x = bb.getShort ();
+						float		y = bb.getShort ();
+						float		width = bb.getShort () & 0xffff;
+						float		height = bb.getShort () & 0xffff;
 
 						bytesRemaining -= 8;
-						_canvas.drawRect (x, y, x + width, y + height, paint);
+						if (_plane == null) {
+							_canvas.drawRect (x, y, x + width, y + height,
+																	paint);
+						} else if (opcode == RequestCode.PolyFillRectangle) {
+							fillPlaneRect (gc, (int) x, (int) y, (int) width,
+									(int) height,
+									(gc.getForegroundColor () & 1) != 0,
+									gc.getFunction ());
+						} else {
+							Canvas		canvas = beginDraw (x, y, x + width,
+																y + height);
+
+							canvas.drawRect (x, y, x + width, y + height,
+																	paint);
+							endDraw (gc);
+						}
 						changed = true;
 					}
 				}
@@ -728,29 +1497,30 @@ public class Drawable {
 
 					int			mode = io.readByte ();	// Coordinate mode.
 					Path		path = new Path ();
-					int			i = 0;
 
 					io.readSkip (2);	// Unused.
 					bytesRemaining -= 4;
 
-					while (bytesRemaining > 0) {
-						float		x = (short) io.readShort ();
-						float		y = (short) io.readShort ();
+					float[]		points = new float[bytesRemaining / 2];
+
+					io.readShortsAsFloats (points, 0, points.length);
+					for (int i = 0; i < points.length; i += 2) {
+						float		x = points[i];
+						float		y = points[i + 1];
 
-						bytesRemaining -= 4;
 						if (i == 0)
 							path.moveTo (x, y);
 						else if (mode == 0)	// Relative to origin.
 							path.lineTo (x, y);
 						else	// Relative to previous.
 							path.rLineTo (x, y);
-						i++;
 					}
 
 					path.close ();
 					path.setFillType (gc.getFillType ());
 					paint.setStyle (Paint.Style.FILL);
-					_canvas.drawPath (path, paint);
+					beginDraw(path).drawPath (path, paint);
+					endDraw (gc);
 					changed = true;
 				}
 				break;
@@ -770,24 +1540,31 @@ public class Drawable {
 							useCenter = true;
 					}
 
+					ByteBuffer	bb = io.getRequestBuffer ();
+
 					while (bytesRemaining > 0) {
-						float		x = (short) io.readShort ();
-						float		y = (short) io.readShort ();
-						float		width = io.readShort ();
-						float		height = io.readShort ();
-						float		angle1 = (short) io.readShort ();
-						float		angle2 = (short) io.readShort ();
+						float		x = bb.getShort ();
+						float		y = bb.getShort ();
+						float		width = bb.getShort () & 0xffff;
+						float		height = bb.getShort () & 0xffff;
+						float		angle1 = bb.getShort ();
+						float		angle2 = bb.getShort ();
 						RectF		r = new RectF (x, y, x + width, y + height);
 
+						Canvas		canvas = beginDraw (x, y, x + width,
+																y + height);
+
 						bytesRemaining -= 12;
-						_canvas.drawArc (r, angle1 / -64.0f, angle2 / -64.0f,
+						canvas.drawArc (r, angle1 / -64.0f, angle2 / -64.0f,
 														useCenter, paint);
+						endDraw (gc);
 						changed = true;
 					}
 				}
 				break;
 			case RequestCode.PutImage:
-				changed = processPutImage (client, gc, arg, bytesRemaining);
+				changed = processPutImage (xServer, client, id, gc, arg,
+														bytesRemaining);
 				break;
 			case RequestCode.PolyText8:
 			case RequestCode.PolyText16:
@@ -801,11 +1578,13 @@ public class Drawable {
 					int			x = (short) io.readShort ();
 					int			y = (short) io.readShort ();
 					int			pad = -arg & 3;
-					byte[]		bytes = new byte[arg];
+					char[]		chars = new char[arg];
+
+					for (int i = 0; i < arg; i++)
+						chars[i] = (char) io.readByte ();
 
-					io.readBytes (bytes, 0, arg);
 					io.readSkip (pad);
-					drawImageText (new String (bytes), x, y, gc);
+					drawImageText (chars, x, y, gc);
 					changed = true;
 				}
 				break;
@@ -827,7 +1606,7 @@ public class Drawable {
 					}
 
 					io.readSkip (pad);
-					drawImageText (new String (chars), x, y, gc);
+					drawImageText (chars, x, y, gc);
 					changed = true;
 				}
 				break;
@@ -837,10 +1616,8 @@ public class Drawable {
 				break;
 		}
 
-		if (_depth == 1)
-			paint.setColor (originalColor);
-
-		_canvas.restore ();		// Undo any clip rectangles.
+		if (_canvas != null)
+			_canvas.restore ();		// Undo any clip rectangles.
 
 		return changed;
 	}
@@ -848,15 +1625,20 @@ public class Drawable {
 	/**
 	 * Process a PutImage request.
 	 *
+	 * @param xServer	The X server.
 	 * @param client	The remote client.
+	 * @param id	The ID of the pixmap or window using this drawable.
 	 * @param gc	The GContext to use for drawing.
+	 * @param format	The image format.
 	 * @param bytesRemaining	Bytes yet to be read in the request.
 	 * @return	True if the drawable is modified.
 	 * @throws IOException
 	 */
 	private boolean
 	processPutImage (
+		XServer			xServer,
 		Client			client,
+		int				id,
 		GContext		gc,
 		byte			format,
 		int				bytesRemaining
@@ -872,11 +1654,11 @@ public class Drawable {
 
 		int			width = io.readShort ();
 		int			height = io.readShort ();
-		float		dstX = (short) io.readShort ();
-		float		dstY = (short) io.readShort ();
+		int			dstX = (short) io.readShort ();
+		int			dstY = (short) io.readShort ();
 		int			leftPad = io.readByte ();
 		int			depth = io.readByte ();
-		int			n, pad, rightPad;
+		int			n, pad, rightPad, rowBytes;
 
 		io.readSkip(2);		// Unused.
 		bytesRemaining -= 12;
@@ -904,20 +1686,20 @@ public class Drawable {
 
 		boolean		isShapeMask = false;
 
-		if (format == Z_PIXMAP_FORMAT) {
+		if (format == Z_PIXMAP_FORMAT && depth == 32) {
 			rightPad = 0;
-			if (depth == 32) {
-				n = 3 * width * height;
-			} else {
-				n = (width * height + 7) / 8;
-				if (bytesRemaining != n + (-n & 3)) {
-					isShapeMask = true;
-					n = (width + 1) / 2 * height;
-				}
-			}
-		} else {	// XYPixmap or Bitmap.
+			rowBytes = 3 * width;
+			n = rowBytes * height;
+		} else {	// XYPixmap, Bitmap, or ZPixmap with depth = 1.
 			rightPad = -(width + leftPad) & 7;
+			rowBytes = (width + leftPad + rightPad) / 8;
 			n = ((width + leftPad + rightPad) * height * depth + 7) / 8;
+
+				// Any other length of depth 1 ZPixmap is a shape mask.
+			if (format == Z_PIXMAP_FORMAT && bytesRemaining != n + (-n & 3)) {
+				isShapeMask = true;
+				n = (width + 1) / 2 * height;
+			}
 		}
 		pad = -n & 3;
 
@@ -928,110 +1710,323 @@ public class Drawable {
 			return false;
 		}
 
-		int[]		colors;
+		if (isShapeMask) {	// ZPixmap, depth = 1, shape mask.
+			_shapeMask = new boolean[width * height];
+			io.readShapeMask (_shapeMask, width, height);
+			io.readSkip (pad);
 
-		try {
-			colors = new int[width * height];
-		} catch (OutOfMemoryError e) {
-			ErrorCode.write (client, ErrorCode.Alloc, RequestCode.PutImage,
-																		0);
+			return false;	// Don't redraw.
+		}
+
+		if (width == 0 || height == 0) {
+			io.readSkip (n + pad);
 			return false;
 		}
 
-		if (format == BITMAP_FORMAT) {
-			int			fg = gc.getForegroundColor ();
-			int			bg = gc.getBackgroundColor ();
-			int			offset = 0;
-			int			count = 0;
-			int			x = 0;
-			int			y = 0;
-			int			mask = 128;
-			int			val = 0;
-
-			for (;;) {
-				if ((count++ & 7) == 0) {
-					val = io.readByte ();
-					mask = 128;
-				}
+		if (_plane == null) {
+			try {
+				client.getPixelBuffer (stripRows (width, height) * width);
+			} catch (OutOfMemoryError e) {
+				io.readSkip (n + pad);
+				ErrorCode.write (client, ErrorCode.Alloc,
+												RequestCode.PutImage, 0);
+				return false;
+			}
+		}
 
-				if (x >= leftPad && x < leftPad + width)
-					colors[offset++] = ((val & mask) == 0) ? bg : fg;
+			// Decode and draw the image a strip of rows at a time, so
+			// no decoded copy of the whole image is made. If only part
+			// of a long image has arrived, the client draws the rest of
+			// it as its rows arrive, so it's never held whole in the
+			// input buffer either.
+		ImageStream		s = new ImageStream (xServer, id, gc.getId (), _depth,
+								format, depth, width, height, dstX, dstY,
+								leftPad, rowBytes, n + pad);
+		boolean			changed = putImageRows (client, gc, s);
 
-				mask >>= 1;
-				if (++x == leftPad + width + rightPad) {
-					x = 0;
-					if (++y == height)
-						break;
-				}
-			}
-		} else if (format == XY_PIXMAP_FORMAT) {
-			int		planeBit = 1 << (depth - 1);
-
-			for (int i = 0; i < depth; i++) {
-				int			offset = 0;
-				int			count = 0;
-				int			x = 0;
-				int			y = 0;
-				int			mask = 128;
-				int			val = 0;
-	
-				for (;;) {
-					if ((count++ & 7) == 0) {
-						val = io.readByte ();
-						mask = 128;
-					}
+		if (!s.isComplete ())
+			client.setImageStream (s);
+
+		return changed;
+	}
+
+	/**
+	 * Can the image of a PutImage request be drawn as its rows arrive,
+	 * before the whole request is in the input buffer? An XYPixmap with
+	 * more than one plane can't, since its planes follow each other, and
+	 * nor can a depth 1 ZPixmap shape mask, which is only recognised by
+	 * its length.
+	 *
+	 * @param format	The image format.
+	 * @param width	The width of the image.
+	 * @param height	The height of the image.
+	 * @param leftPad	Bits to skip at the start of each row.
+	 * @param depth	The depth of the image.
+	 * @param length	The number of bytes of image data and padding.
+	 * @return	True if the image can be drawn as its rows arrive.
+	 */
+	public static boolean
+	isStreamableImage (
+		byte			format,
+		int				width,
+		int				height,
+		int				leftPad,
+		int				depth,
+		int				length
+	) {
+		if (format == XY_PIXMAP_FORMAT)
+			return depth == 1;
+		else if (format != Z_PIXMAP_FORMAT || depth != 1)
+			return true;
+
+		int			n = ((width + leftPad + (-(width + leftPad) & 7)) * height
+																	+ 7) / 8;
+
+		return length == n + (-n & 3);
+	}
+
+	/**
+	 * Return the number of rows of an image to decode at a time.
+	 *
+	 * @param width	The width of the image.
+	 * @param height	The height of the image.
+	 * @return	The number of rows in a strip.
+	 */
+	private static int
+	stripRows (
+		int			width,
+		int			height
+	) {
+		int			rows = ImageStripPixels / width;
 
-					if (x >= leftPad && x < leftPad + width)
-						colors[offset++] |= ((val & mask) == 0) ? 0 : planeBit;
-	
-					mask >>= 1;
-					if (++x == leftPad + width + rightPad) {
-						x = 0;
-						if (++y == height)
-							break;
+		if (rows < 1)
+			return 1;
+		else if (rows > height)
+			return height;
+		else
+			return rows;
+	}
+
+	/**
+	 * Draw the rows of a PutImage image that have arrived since the
+	 * request was begun or last continued, with the GContext's clip
+	 * rectangles.
+	 *
+	 * @param client	The remote client.
+	 * @param gc	The GContext to use for drawing.
+	 * @param s	The progress of the image.
+	 * @return	True if the drawable is modified.
+	 * @throws IOException
+	 */
+	private boolean
+	continuePutImage (
+		Client			client,
+		GContext		gc,
+		ImageStream		s
+	) throws IOException {
+		boolean			changed;
+
+		if (_canvas != null) {
+			_canvas.save ();
+			gc.applyClipRectangles (_canvas);
+		}
+
+		changed = putImageRows (client, gc, s);
+
+		if (_canvas != null)
+			_canvas.restore ();
+
+		return changed;
+	}
+
+	/**
+	 * Decode and draw the rows of a PutImage image that are complete in
+	 * the request buffer, a strip of rows at a time. The padding after
+	 * the image is skipped once every row has been drawn.
+	 *
+	 * @param client	The remote client.
+	 * @param gc	The GContext to use for drawing.
+	 * @param s	The progress of the image.
+	 * @return	True if any rows were drawn.
+	 * @throws IOException
+	 */
+	private boolean
+	putImageRows (
+		Client			client,
+		GContext		gc,
+		ImageStream		s
+	) throws IOException {
+		InputOutput		io = client.getInputOutput ();
+		ByteBuffer		bb = io.getRequestBuffer ();
+		int				start = bb.position ();
+		int				width = s._width;
+		int				rowBytes = s._rowBytes;
+		int				rows;
+
+		if (s._planes > 1)	// Every plane is needed to decode a row.
+			rows = (bb.remaining () < s._planes * rowBytes * s._height) ? 0
+																: s._height;
+		else
+			rows = Math.min (bb.remaining () / rowBytes, s._height - s._row);
+
+		if (_plane != null) {
+			putPlaneRows (gc, s, bb, start, rows);
+		} else if (rows > 0) {
+			int			stripRows = stripRows (width, rows);
+			int[]		colors = client.getPixelBuffer (stripRows * width);
+			boolean		useShapeMask = (s._format == Z_PIXMAP_FORMAT
+										&& s._depth == 32
+										&& _shapeMask != null
+										&& _shapeMask.length
+													== width * s._height);
+			Paint		paint = gc.getPaint ();
+
+			for (int y = 0; y < rows; y += stripRows) {
+				int			count = Math.min (stripRows, rows - y);
+
+				if (s._format == BITMAP_FORMAT) {
+					decodePlaneRows (bb, start, rowBytes, s._leftPad, width,
+								y, count, colors, 0, gc.getForegroundColor (),
+								gc.getBackgroundColor ());
+				} else if (s._format == XY_PIXMAP_FORMAT) {
+					int			planeBytes = rowBytes * s._height;
+					int			planeBit = 1 << (s._depth - 1);
+
+					for (int i = 0; i < s._depth; i++) {
+							// The first plane sets the pixels, later ones
+							// add to them.
+						decodePlaneRows (bb, start + i * planeBytes,
+								rowBytes, s._leftPad, width, y, count,
+								colors, (i == 0) ? 0 : -1, planeBit, 0);
+						planeBit >>>= 1;
+					}
+				} else {	// ZPixmap. Depth 1 drawables have a bit plane.
+					byte[]		ba = bb.array ();
+					int			offset = bb.arrayOffset () + start
+															+ y * rowBytes;
+					int			first = (s._row + y) * width;
+
+					for (int i = 0; i < count * width; i++) {
+						int		b = ba[offset++] & 0xff;
+						int		g = ba[offset++] & 0xff;
+						int		r = ba[offset++] & 0xff;
+						int		alpha = (useShapeMask
+											&& !_shapeMask[first + i])
+															? 0 : 0xff000000;
+
+						colors[i] = alpha | (r << 16) | (g << 8) | b;
 					}
 				}
 
-				planeBit >>= 1;
-			}
-		} else if (depth == 32) {	// 32-bit ZPixmap.
-			boolean		useShapeMask = (_shapeMask != null
-									&& colors.length == _shapeMask.length);
-
-			for (int i = 0; i < colors.length; i++) {
-				int		b = io.readByte ();
-				int		g = io.readByte ();
-				int		r = io.readByte ();
-				int		alpha = (useShapeMask && !_shapeMask[i]) ? 0
-															: 0xff000000;
-
-				colors[i] = alpha | (r << 16) | (g << 8) | b;
+				_canvas.drawBitmap (colors, 0, width, s._dstX,
+								s._dstY + s._row + y, width, count, true,
+								paint);
 			}
 
-			if (useShapeMask)
+			if (useShapeMask && s._row + rows == s._height)
 				_shapeMask = null;
-		} else if (isShapeMask) {	// ZPixmap, depth = 1, shape mask.
-			_shapeMask = new boolean[colors.length];
-			io.readShapeMask (_shapeMask, width, height);
-			io.readSkip (pad);
+		}
 
-			return false;	// Don't redraw.
-		} else {	// ZPixmap with depth = 1.
-			int			fg = gc.getForegroundColor ();
-			int			bg = gc.getBackgroundColor ();
-			boolean[]	bits = new boolean[colors.length];
+		int			used = s._planes * rowBytes * rows;
 
-			io.readBits (bits, 0, colors.length);
+		bb.position (start + used);
+		s._row += rows;
+		s._bytesRemaining -= used;
 
-			for (int i = 0; i < colors.length; i++)
-				colors[i] = bits[i] ? fg : bg;
+		if (s._row == s._height && bb.remaining () >= s._bytesRemaining) {
+			io.readSkip (s._bytesRemaining);	// Padding.
+			s._bytesRemaining = 0;
 		}
 
-		io.readSkip (pad);
-		_canvas.drawBitmap (colors, 0, width, dstX, dstY, width, height,
-													true, gc.getPaint ());
+		return rows > 0;
+	}
 
-		return true;
+	/**
+	 * Draw rows of a PutImage image on a depth 1 drawable. Bitmaps are
+	 * drawn with the foreground pixel value where their bits are set, and
+	 * the background where they're clear.
+	 *
+	 * @param gc	The GContext to use for drawing.
+	 * @param s	The progress of the image.
+	 * @param bb	The buffer holding the rows.
+	 * @param start	The offset of the first row in the buffer.
+	 * @param rows	The number of rows to draw.
+	 */
+	private void
+	putPlaneRows (
+		GContext		gc,
+		ImageStream		s,
+		ByteBuffer		bb,
+		int				start,
+		int				rows
+	) {
+		int			rowBytes = s._rowBytes;
+		int[]		row = new int[(s._width + s._leftPad + 31) >> 5];
+		Rect[]		clip = gc.getClipRectangles ();
+		boolean		fg = (gc.getForegroundColor () & 1) != 0;
+		boolean		bg = (gc.getBackgroundColor () & 1) != 0;
+
+		for (int y = 0; y < rows; y++) {	// Rows padded to a byte, MSB first.
+			for (int i = 0; i < rowBytes; i++) {
+				int			b = bb.get (start + y * rowBytes + i) & 0xff;
+
+				if ((i & 3) == 0)
+					row[i >> 2] = 0;
+				row[i >> 2] |= b << (24 - 8 * (i & 3));
+			}
+
+			if (s._format == BITMAP_FORMAT)
+				selectBits (row, fg, bg);
+
+			applyPlaneRow (clip, s._dstX, s._dstY + s._row + y, s._width, row,
+									s._leftPad, 0, null, 0, gc.getFunction ());
+		}
+	}
+
+	/**
+	 * Decode rows of a bitmap or one plane of an XYPixmap, which has the
+	 * most significant bit of each byte first and rows padded to a byte.
+	 * Each pixel becomes (pixel & keep) | (bit ? set : clear).
+	 *
+	 * @param bb	The buffer holding the image.
+	 * @param offset	The offset of the plane within the buffer.
+	 * @param rowBytes	The number of bytes in each row of the plane.
+	 * @param leftPad	The number of bits to skip at the start of a row.
+	 * @param width	The width of the image.
+	 * @param y	The first row to decode.
+	 * @param rows	The number of rows to decode.
+	 * @param colors	The pixels of the decoded rows.
+	 * @param keep	Mask of the pixel bits to keep.
+	 * @param set	Bits to add to the pixel when the bit is set.
+	 * @param clear	Bits to add to the pixel when the bit is clear.
+	 */
+	private static void
+	decodePlaneRows (
+		ByteBuffer	bb,
+		int			offset,
+		int			rowBytes,
+		int			leftPad,
+		int			width,
+		int			y,
+		int			rows,
+		int[]		colors,
+		int			keep,
+		int			set,
+		int			clear
+	) {
+		int			idx = 0;
+
+		for (int row = 0; row < rows; row++) {
+			int			rowOffset = offset + (y + row) * rowBytes;
+
+			for (int x = leftPad; x < leftPad + width; x++) {
+				int			b = bb.get (rowOffset + (x >> 3));
+				int			bits = ((b & (0x80 >> (x & 7))) != 0) ? set : clear;
+
+				colors[idx] = (colors[idx] & keep) | bits;
+				idx++;
+			}
+		}
 	}
 
 	/**
@@ -1059,8 +2054,8 @@ public class Drawable {
 			return false;
 		}
 
-		float		x = (short) io.readShort ();
-		float		y = (short) io.readShort ();
+		int			x = (short) io.readShort ();
+		int			y = (short) io.readShort ();
 
 		bytesRemaining -= 4;
 		while (bytesRemaining > 1) {
@@ -1091,19 +2086,16 @@ public class Drawable {
 				if (!gc.setFont (fid))
 					ErrorCode.write (client, ErrorCode.Font, opcode, fid);
 			} else {	// It's a string.
-				int			delta = io.readByte ();
-				String		s;
+				int			delta = (byte) io.readByte ();
+				char[]		chars = new char[length];
 
 				bytesRemaining--;
 				if (opcode == RequestCode.PolyText8) {
-					byte[]		bytes = new byte[length];
+					for (int i = 0; i < length; i++)
+						chars[i] = (char) io.readByte ();
 
-					io.readBytes (bytes, 0, length);
 					bytesRemaining -= length;
-					s = new String (bytes);
 				} else {
-					char[]		chars = new char[length];
-
 					for (int i = 0; i < length; i++) {
 						int			b1 = io.readByte ();
 						int			b2 = io.readByte ();
@@ -1112,18 +2104,171 @@ public class Drawable {
 					}
 
 					bytesRemaining -= length * 2;
-					s = new String (chars);
 				}
 
-				Paint		paint = gc.getPaint ();
-
 				x += delta;
-				_canvas.drawText (s, x, y, paint);
-				x += paint.measureText (s);
+				x += drawText (chars, length, x, y, gc);
 			}
 		}
 		io.readSkip (bytesRemaining);
 
 		return true;
 	}
+
+	/**
+	 * This class holds the progress of a PutImage request whose image is
+	 * drawn as its rows arrive. The drawable and GContext are looked up
+	 * again each time more rows arrive, since they may have been freed in
+	 * the meantime.
+	 *
+	 * @author Matthew Kwan
+	 */
+	public static class ImageStream {
+		private final XServer		_xServer;
+		private final int			_drawableId;
+		private final int			_gcId;
+		private final int			_drawableDepth;
+		private final byte			_format;
+		private final int			_depth;
+		private final int			_width;
+		private final int			_height;
+		private final int			_dstX;
+		private final int			_dstY;
+		private final int			_leftPad;
+		private final int			_rowBytes;
+		private final int			_planes;
+		private int					_row = 0;
+		private int					_bytesRemaining;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param xServer	The X server.
+		 * @param drawableId	The ID of the pixmap or window drawn on.
+		 * @param gcId	The ID of the GContext to draw with.
+		 * @param drawableDepth	The depth of the drawable.
+		 * @param format	The image format.
+		 * @param depth	The depth of the image.
+		 * @param width	The width of the image.
+		 * @param height	The height of the image.
+		 * @param dstX	The X coordinate to draw the image at.
+		 * @param dstY	The Y coordinate to draw the image at.
+		 * @param leftPad	Bits to skip at the start of each row.
+		 * @param rowBytes	The number of bytes in a row of one plane.
+		 * @param length	The number of bytes of image data and padding.
+		 */
+		public ImageStream (
+			XServer		xServer,
+			int			drawableId,
+			int			gcId,
+			int			drawableDepth,
+			byte		format,
+			int			depth,
+			int			width,
+			int			height,
+			int			dstX,
+			int			dstY,
+			int			leftPad,
+			int			rowBytes,
+			int			length
+		) {
+			_xServer = xServer;
+			_drawableId = drawableId;
+			_gcId = gcId;
+			_drawableDepth = drawableDepth;
+			_format = format;
+			_depth = depth;
+			_width = width;
+			_height = height;
+			_dstX = dstX;
+			_dstY = dstY;
+			_leftPad = leftPad;
+			_rowBytes = rowBytes;
+			_planes = (format == XY_PIXMAP_FORMAT) ? depth : 1;
+			_bytesRemaining = length;
+		}
+
+		/**
+		 * Return whether the whole image has been read.
+		 *
+		 * @return	True if the whole image has been read.
+		 */
+		public boolean
+		isComplete () {
+			return _bytesRemaining == 0;
+		}
+
+		/**
+		 * Return the number of bytes of the request yet to be read.
+		 *
+		 * @return	The number of bytes yet to be read.
+		 */
+		public int
+		getBytesRemaining () {
+			return _bytesRemaining;
+		}
+
+		/**
+		 * Return the number of bytes that must be in the input buffer
+		 * before more of the image can be drawn.
+		 *
+		 * @return	The length of the next row, or of the rest of the
+		 * 			request if the rows can't be drawn separately.
+		 */
+		public int
+		getChunkLength () {
+			if (_row < _height && _planes == 1)
+				return _rowBytes;
+
+			return _bytesRemaining;
+		}
+
+		/**
+		 * Return the size the input buffer should be to hold a strip of
+		 * rows, so each strip can be drawn once it has arrived.
+		 *
+		 * @return	The input buffer size, in bytes.
+		 */
+		public int
+		getBufferLength () {
+			if (_planes > 1)
+				return _bytesRemaining;
+
+			return Math.min (_bytesRemaining,
+									stripRows (_width, _height) * _rowBytes);
+		}
+
+		/**
+		 * Draw the rows of the image that are complete in the request
+		 * buffer. If the drawable or GContext has been freed, the rest of
+		 * the request is discarded.
+		 *
+		 * @param client	The remote client.
+		 * @throws IOException
+		 */
+		public void
+		process (
+			Client		client
+		) throws IOException {
+			Resource	r = _xServer.getResource (_drawableId);
+			Resource	gc = _xServer.getResource (_gcId);
+			Drawable	d = null;
+
+			if (r != null && r.getType () == Resource.WINDOW)
+				d = ((Window) r).getDrawable ();
+			else if (r != null && r.getType () == Resource.PIXMAP)
+				d = ((Pixmap) r).getDrawable ();
+
+			if (d == null || d._depth != _drawableDepth || gc == null
+									|| gc.getType () != Resource.GCONTEXT) {
+				client.getInputOutput().readSkip (_bytesRemaining);
+				_bytesRemaining = 0;
+				return;
+			}
+
+			if (d.continuePutImage (client, (GContext) gc, this)
+									&& r.getType () == Resource.WINDOW)
+				((Window) r).invalidate ();
+		}
+	}
 }
\ No newline at end of file
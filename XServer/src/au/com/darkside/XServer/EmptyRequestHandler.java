@@ -0,0 +1,52 @@
+/**
+ * This class handles requests that have no arguments after the header.
+ */
+package au.com.darkside.XServer;
+
+import java.io.IOException;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class handles requests that have no arguments after the header.
+ * It returns a Length error if the request has any, otherwise it
+ * passes the request on to be processed.
+ */
+public abstract class EmptyRequestHandler implements RequestHandler {
+	/**
+	 * Process a request.
+	 *
+	 * @param client	The remote client.
+	 * @param opcode	The request's major opcode.
+	 * @param arg	Optional first argument.
+	 * @param bytesRemaining	Bytes yet to be read in the request.
+	 * @throws IOException
+	 */
+	public void
+	processRequest (
+		Client		client,
+		byte		opcode,
+		byte		arg,
+		int			bytesRemaining
+	) throws IOException {
+		if (bytesRemaining != 0) {
+			client.getInputOutput().readSkip (bytesRemaining);
+			ErrorCode.write (client, ErrorCode.Length, opcode, 0);
+		} else {
+			process (client, arg);
+		}
+	}
+
+	/**
+	 * Process a request whose length has been checked.
+	 *
+	 * @param client	The remote client.
+	 * @param arg	Optional first argument.
+	 * @throws IOException
+	 */
+	protected abstract void
+	process (
+		Client		client,
+		byte		arg
+	) throws IOException;
+}
@@ -77,7 +77,8 @@ public class EventCode {
 		| MaskButton4Motion | MaskButton5Motion | MaskButtonMotion;
 
 	/**
-	 * Write an event header.
+	 * Write an event header. The event is dropped if the client's output
+	 * queue is full and its overflow policy allows events to be dropped.
 	 * 
 	 * @param client	The client to write to.
 	 * @param code	The event code.
@@ -92,6 +93,7 @@ public class EventCode {
 	) throws IOException {
 		InputOutput		io = client.getInputOutput ();
 
+		io.beginEvent ();
 		io.writeByte ((byte) code);
 		io.writeByte ((byte) arg);
 		io.writeShort ((short) (client.getSequenceNumber () & 0xffff));
@@ -294,7 +296,8 @@ public class EventCode {
 	}
 
 	/**
-	 * Send a motion notify event.
+	 * Send a motion notify event. If the previous motion event for the
+	 * same window and state hasn't been sent yet, it is updated instead.
 	 *
 	 * @param client	The client to write to.
 	 * @param timestamp	Time in milliseconds since last server reset.
@@ -324,13 +327,20 @@ public class EventCode {
 		int				state
 	) throws IOException {
 		InputOutput		io = client.getInputOutput ();
+		int				cid = (child == null) ? 0 : child.getId ();
 
 		synchronized (io) {
+			if (io.mergeMotionEvent (client.getSequenceNumber (), detail,
+							timestamp, eventWindow.getId (), cid, rootX, rootY,
+							eventX, eventY, state))
+				return;		// Already waiting to be flushed.
+
+			io.beginMotionEvent ();
 			writeHeader (client, MotionNotify, detail);
 			io.writeInt (timestamp);	// Time.
 			io.writeInt (root.getId ());	// Root.
 			io.writeInt (eventWindow.getId ());	// Event.
-			io.writeInt (child == null ? 0 : child.getId ());	// Child.
+			io.writeInt (cid);	// Child.
 			io.writeShort ((short) rootX);	// Root X.
 			io.writeShort ((short) rootY);	// Root Y.
 			io.writeShort ((short) eventX);	// Event X.
@@ -1086,7 +1096,7 @@ public class EventCode {
 			io.writeByte ((byte) state);	// State.
 			io.writePadBytes (15);	// Unused.
 		}
-		io.flush ();
+		io.flushNow ();
 	}
 
 	/**
@@ -1114,7 +1124,7 @@ public class EventCode {
 			io.writeInt (atom.getId ());	// Selection.
 			io.writePadBytes (16);	// Unused.
 		}
-		io.flush ();
+		io.flushNow ();
 	}
 
 	/**
@@ -1151,7 +1161,7 @@ public class EventCode {
 			io.writeInt (property == null ? 0 : property.getId ());
 			io.writePadBytes (4);	// Unused.
 		}
-		io.flush ();
+		io.flushNow ();
 	}
 
 	/**
@@ -1185,7 +1195,7 @@ public class EventCode {
 			io.writeInt (property == null ? 0 : property.getId ());
 			io.writePadBytes (8);	// Unused.
 		}
-		io.flush ();
+		io.flushNow ();
 	}
 
 	/**
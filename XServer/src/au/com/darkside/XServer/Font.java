@@ -3,10 +3,12 @@
  */
 package au.com.darkside.XServer;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Vector;
 
-import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.Typeface;
 
@@ -15,58 +17,18 @@ import android.graphics.Typeface;
  * @author Matthew Kwan
  *
  * This class implements an X font.
+ *
+ * A font is drawn with an Android typeface, unless the font path has a
+ * PCF or BDF file for it, in which case it is drawn from the file. The
+ * typeface is still used by GContexts as their paint's typeface.
  */
 public class Font extends Resource {
 	private static int	_dpi = 250;
 
-	private final Paint		_paint;
-	private final float		_minWidth;
-	private final float		_maxWidth;
-	private final short		_ascent;
-	private final short		_descent;
-	private final short		_maxAscent;
-	private final short		_maxDescent;
-	private final char		_maxChar;
-	private Atom			_nameAtom = null;
-
-	private static final String[]	_allFonts = {
-		"-android-default-medium-r-normal--0-0-0-0-p-0-iso8859-1",
-		"-android-default-bold-r-normal--0-0-0-0-p-0-iso8859-1",
-		"-android-default-medium-i-normal--0-0-0-0-p-0-iso8859-1",
-		"-android-default-bold-i-normal--0-0-0-0-p-0-iso8859-1",
-		"-android-default-medium-r-normal--0-0-0-0-p-0-iso10646-1",
-		"-android-default-bold-r-normal--0-0-0-0-p-0-iso10646-1",
-		"-android-default-medium-i-normal--0-0-0-0-p-0-iso10646-1",
-		"-android-default-bold-i-normal--0-0-0-0-p-0-iso10646-1",
-		"-android-monospace-medium-r-normal--0-0-0-0-m-0-iso8859-1",
-		"-android-monospace-bold-r-normal--0-0-0-0-m-0-iso8859-1",
-		"-android-monospace-medium-i-normal--0-0-0-0-m-0-iso8859-1",
-		"-android-monospace-bold-i-normal--0-0-0-0-m-0-iso8859-1",
-		"-android-monospace-medium-r-normal--0-0-0-0-m-0-iso10646-1",
-		"-android-monospace-bold-r-normal--0-0-0-0-m-0-iso10646-1",
-		"-android-monospace-medium-i-normal--0-0-0-0-m-0-iso10646-1",
-		"-android-monospace-bold-i-normal--0-0-0-0-m-0-iso10646-1",
-		"-android-serif-medium-r-normal--0-0-0-0-p-0-iso8859-1",
-		"-android-serif-bold-r-normal--0-0-0-0-p-0-iso8859-1",
-		"-android-serif-medium-i-normal--0-0-0-0-p-0-iso8859-1",
-		"-android-serif-bold-i-normal--0-0-0-0-p-0-iso8859-1",
-		"-android-serif-medium-r-normal--0-0-0-0-p-0-iso10646-1",
-		"-android-serif-bold-r-normal--0-0-0-0-p-0-iso10646-1",
-		"-android-serif-medium-i-normal--0-0-0-0-p-0-iso10646-1",
-		"-android-serif-bold-i-normal--0-0-0-0-p-0-iso10646-1",
-		"-android-sans serif-medium-r-normal--0-0-0-0-p-0-iso8859-1",
-		"-android-sans serif-bold-r-normal--0-0-0-0-p-0-iso8859-1",
-		"-android-sans serif-medium-i-normal--0-0-0-0-p-0-iso8859-1",
-		"-android-sans serif-bold-i-normal--0-0-0-0-p-0-iso8859-1",
-		"-android-sans serif-medium-r-normal--0-0-0-0-p-0-iso10646-1",
-		"-android-sans serif-bold-r-normal--0-0-0-0-p-0-iso10646-1",
-		"-android-sans serif-medium-i-normal--0-0-0-0-p-0-iso10646-1",
-		"-android-sans serif-bold-i-normal--0-0-0-0-p-0-iso10646-1",
-		"fixed",
-		"cursor"
-	};
-
-	private static String[][]	_allFontFields = null;
+	private final FontFace		_face;
+	private final GlyphMetrics	_metrics;
+	private final BitmapFont	_bitmapFont;
+	private Atom				_nameAtom = null;
 
 	/**
 	 * Set the dots-per-inch resolution at which fonts will be displayed.
@@ -80,6 +42,16 @@ public class Font extends Resource {
 		_dpi = dpi;
 	}
 
+	/**
+	 * Return the dots-per-inch resolution at which fonts are displayed.
+	 *
+	 * @return	The dots-per-inch resolution.
+	 */
+	public static int
+	getDpi () {
+		return _dpi;
+	}
+
 	/**
 	 * Constructor.
 	 *
@@ -96,80 +68,33 @@ public class Font extends Resource {
 	) {
 		super (FONT, id, xServer, client);
 
-		char		maxChar = 255;
-
-		_paint = new Paint ();
-		if (name == null || name.equalsIgnoreCase ("cursor")) {
-			_paint.setTypeface (Typeface.DEFAULT);
-		} else if (name.equalsIgnoreCase ("fixed")) {
-			_paint.setTypeface (Typeface.MONOSPACE);
-		} else {
-			String[]	fields = name.split ("-");
-			Typeface	base = Typeface.DEFAULT;
-			int			style = Typeface.NORMAL;
-
-			if (fields.length == 15) {
-				if (fields[3].equalsIgnoreCase ("bold"))
-					style |= Typeface.BOLD;
-				if (fields[4].equalsIgnoreCase ("i"))
-					style |= Typeface.ITALIC;
-
-				try {
-					int		n = Integer.valueOf (fields[7]);
-
-					if (n > 0)
-						_paint.setTextSize (n);
-				} catch (java.lang.NumberFormatException e) {
-				}
-
-				if (!fields[11].equalsIgnoreCase ("p"))
-					base = Typeface.MONOSPACE;
-				else if (fields[2].equalsIgnoreCase ("default"))
-					base = Typeface.DEFAULT;
-				else if (fields[2].equalsIgnoreCase ("serif"))
-					base = Typeface.SERIF;
-				else if (fields[2].equalsIgnoreCase ("sans serif"))
-					base = Typeface.SANS_SERIF;
-				else
-					base = Typeface.create (fields[2], style);
-
-				if (fields[13].equalsIgnoreCase ("iso10646"))
-					maxChar = 65534;
-			}
-
-			_paint.setTypeface (Typeface.create (base, style));
-		}
-
-		_maxChar = maxChar;
-
-			// Calculate the minimum and maximum widths.
-		byte[]		bytes = new byte[126 - 32 + 1];
-		float[]		widths = new float[bytes.length];
-
-		for (int i = 0; i < bytes.length; i++)
-			bytes[i] = (byte) (i + 32);
-
-		_paint.getTextWidths (new String (bytes), widths);
-
-		float		minw = widths[0];
-		float		maxw = widths[0];
+		_face = FontFace.acquire (name);
+		_metrics = _face.getMetrics ();
+		_bitmapFont = acquireBitmapFont (xServer, name);
+	}
 
-		for (float width: widths) {
-			if (width < minw)
-				minw = width;
-			if (width > maxw)
-				maxw = width;
-		}
+	/**
+	 * Load the bitmap font file of a font name, if it has one.
+	 *
+	 * @param xServer	The X server.
+	 * @param name	The name of the font. May be null.
+	 * @return	The bitmap font, or null if it isn't loaded from a file.
+	 */
+	private static BitmapFont
+	acquireBitmapFont (
+		XServer		xServer,
+		String		name
+	) {
+		File		file = null;
 
-		_minWidth = minw;
-		_maxWidth = maxw;
+		if (name != null)
+			file = xServer.getFontCatalogue().getFile (name);
 
-		Paint.FontMetricsInt	metrics = _paint.getFontMetricsInt ();
+		if (file == null)
+			return null;
 
-		_ascent = (short) -metrics.ascent;
-		_descent = (short) metrics.descent;
-		_maxAscent = (short) -metrics.top;
-		_maxDescent = (short) metrics.bottom;
+		return BitmapFont.acquire (file,
+									xServer.getContext().getCacheDir ());
 	}
 
 	/**
@@ -179,7 +104,7 @@ public class Font extends Resource {
 	 */
 	public Typeface
 	getTypeface () {
-		return _paint.getTypeface ();
+		return _face.getTypeface ();
 	}
 
 	/**
@@ -189,28 +114,93 @@ public class Font extends Resource {
 	 */
 	public int
 	getSize () {
-		return (int) _paint.getTextSize ();
+		return _face.getSize ();
 	}
 
 	/**
-	 * Calculate the bounding rectangle for text drawn at a location.
+	 * Return the font's glyph metrics.
 	 *
-	 * @param s	The text.
-	 * @param x	X coordinate.
-	 * @param y	Y coordinate.
-	 * @param rect	Return value. The bounding rectangle.
+	 * @return	The font's glyph metrics.
 	 */
-	public void
-	getTextBounds (
-		String		s,
-		int			x,
-		int			y,
-		Rect		rect
+	public GlyphMetrics
+	getMetrics () {
+		return _metrics;
+	}
+
+	/**
+	 * Return the font's bitmap font.
+	 *
+	 * @return	The bitmap font, or null if the font uses a typeface.
+	 */
+	public BitmapFont
+	getBitmapFont () {
+		return _bitmapFont;
+	}
+
+	/**
+	 * Return the font's ascent.
+	 *
+	 * @return	The font's ascent.
+	 */
+	public short
+	getAscent () {
+		if (_bitmapFont != null)
+			return _bitmapFont.getAscent ();
+
+		return _metrics.getAscent ();
+	}
+
+	/**
+	 * Return the font's descent.
+	 *
+	 * @return	The font's descent.
+	 */
+	public short
+	getDescent () {
+		if (_bitmapFont != null)
+			return _bitmapFont.getDescent ();
+
+		return _metrics.getDescent ();
+	}
+
+	/**
+	 * Return the width of a string, the sum of its characters' widths.
+	 *
+	 * @param chars	The characters.
+	 * @param length	The number of characters.
+	 * @return	The width of the string.
+	 */
+	public int
+	getTextWidth (
+		char[]		chars,
+		int			length
 	) {
-		rect.left = x;
-		rect.right = x + (int) _paint.measureText (s);
-		rect.top = y - _ascent;
-		rect.bottom = y + _descent;
+		if (_bitmapFont != null)
+			return _bitmapFont.getTextWidth (chars, length);
+
+		return _metrics.getTextWidth (chars, length);
+	}
+
+	/**
+	 * Return the atlas of the font's rasterized glyphs.
+	 *
+	 * @return	The font's glyph atlas.
+	 */
+	public GlyphAtlas
+	getAtlas () {
+		return _face.getAtlas ();
+	}
+
+	/**
+	 * Free the font, releasing its face and bitmap font.
+	 */
+	@Override
+	public void
+	delete () {
+		_face.release ();
+		if (_bitmapFont != null)
+			_bitmapFont.release ();
+		super.delete ();
 	}
 
 	/**
@@ -238,9 +228,7 @@ public class Font extends Resource {
 					io.readSkip (bytesRemaining);
 					ErrorCode.write (client, ErrorCode.Length, opcode, 0);
 				} else {
-					_xServer.freeResource (_id);
-					if (_client != null)
-						_client.freeResource (this);
+					delete ();
 				}
 				break;
 			case RequestCode.QueryFont:
@@ -252,7 +240,8 @@ public class Font extends Resource {
 				}
 				break;
 			case RequestCode.QueryTextExtents:
-				if (bytesRemaining < 4 || (bytesRemaining & 3) != 0) {
+				if ((bytesRemaining & 3) != 0
+								|| (bytesRemaining == 0 && arg != 0)) {
 					io.readSkip (bytesRemaining);
 					ErrorCode.write (client, ErrorCode.Length, opcode, 0);
 				} else {
@@ -268,8 +257,7 @@ public class Font extends Resource {
 					}
 
 					io.readSkip (pad);
-					processQueryTextExtentsRequest (client,
-														new String (chars));
+					processQueryTextExtentsRequest (client, chars);
 				}
 				break;
 			default:
@@ -314,20 +302,15 @@ public class Font extends Resource {
 		io.readSkip (pad);
 
 		String		name = new String (nameBytes);
-		Font		f = new Font (id, xServer, client, name);
+		Font		f;
+
+		name = xServer.getFontCatalogue().resolve (name);
+		f = new Font (id, xServer, client, name);
 
 		xServer.addResource (f);
-		client.addResource (f);
 
 			// Create an atom containing the font name.
-		Atom		a = xServer.findAtom (name);
-
-		if (a == null) {
-			a = new Atom (xServer.nextFreeAtomId (), name);
-			xServer.addAtom (a);
-		}
-
-		f._nameAtom = a;
+		f._nameAtom = xServer.internAtom (name);
 	}
 
 	/**
@@ -340,19 +323,15 @@ public class Font extends Resource {
 	processQueryFontRequest (
 		Client			client
 	) throws IOException {
+		if (_bitmapFont != null) {
+			processBitmapQueryFontRequest (client);
+			return;
+		}
+
 		InputOutput		io = client.getInputOutput ();
 		int				numFontProperties = (_nameAtom == null) ? 0 : 1;
-		int				numCharInfos = _maxChar - 31;
-		char[]			chars = new char[numCharInfos];
-
-		for (char c = 32; c <= _maxChar; c++)
-			chars[c - 32] = c;
-
-		String			s = new String (chars);
-		Rect			bounds = new Rect ();
-		float[]			widths = new float[numCharInfos];
-
-		_paint.getTextWidths (s, widths);
+		int				numCharInfos = _metrics.getNumCharInfos ();
+		byte[]			charInfos = _metrics.getCharInfos (io.isMSB ());
 
 		synchronized (io) {
 			Util.writeReplyHeader (client, (byte) 0);
@@ -362,7 +341,7 @@ public class Font extends Resource {
 				// Min bounds.
 			io.writeShort ((short) 0);	// Left side bearing.
 			io.writeShort ((short) 0);	// Right side bearing.
-			io.writeShort ((short) _minWidth);	// Character width.
+			io.writeShort (_metrics.getMinWidth ());	// Character width.
 			io.writeShort ((short) 0);	// Ascent.
 			io.writeShort ((short) 0);	// Descent.
 			io.writeShort ((short) 0);	// Attributes.
@@ -370,23 +349,26 @@ public class Font extends Resource {
 
 				// Max bounds.
 			io.writeShort ((short) 0);	// Left side bearing.
-			io.writeShort ((short) _maxWidth);	// Right side bearing.
-			io.writeShort ((short) _maxWidth);	// Character width.
-			io.writeShort (_maxAscent);	// Ascent.
-			io.writeShort (_maxDescent);	// Descent.
+			io.writeShort (_metrics.getMaxWidth ());	// Right side bearing.
+			io.writeShort (_metrics.getMaxWidth ());	// Character width.
+			io.writeShort (_metrics.getMaxAscent ());	// Ascent.
+			io.writeShort (_metrics.getMaxDescent ());	// Descent.
 			io.writeShort ((short) 0);	// Attributes.
 			io.writePadBytes (4);	// Unused.
 
-			io.writeShort ((short) 32);	// Min char or byte2.
-			io.writeShort ((short) _maxChar);	// Max char or byte2.
-			io.writeShort ((short) 32);	// Default char.
+				// Min char or byte2.
+			io.writeShort ((short) GlyphMetrics.MinChar);
+				// Max char or byte2.
+			io.writeShort ((short) _metrics.getMaxChar ());
+				// Default char.
+			io.writeShort ((short) GlyphMetrics.MinChar);
 			io.writeShort ((short) numFontProperties);
 			io.writeByte ((byte) 0);	// Draw direction = left-to-right.
 			io.writeByte ((byte) 0);	// Min byte 1.
 			io.writeByte ((byte) 0);	// Max byte 1.
 			io.writeByte ((byte) 0);	// All chars exist = false.
-			io.writeShort (_ascent);	// Font ascent.
-			io.writeShort (_descent);	// Font descent.
+			io.writeShort (_metrics.getAscent ());	// Font ascent.
+			io.writeShort (_metrics.getDescent ());	// Font descent.
 			io.writeInt (numCharInfos);
 
 				// If name atom is specified, write the FONT property.
@@ -397,14 +379,91 @@ public class Font extends Resource {
 				io.writeInt (_nameAtom.getId ());	// Value.
 			}
 
+				// The CHARINFOs, shared by all fonts with these metrics.
+			io.writeBytes (charInfos, 0, charInfos.length);
+		}
+		io.flush ();
+	}
+
+	/**
+	 * Process a QueryFont request for a font loaded from a file.
+	 * The file's properties are returned, and its CHARINFOs are read
+	 * from the file as they're written.
+	 *
+	 * @param client	The client issuing the request.
+	 * @throws IOException
+	 */
+	private void
+	processBitmapQueryFontRequest (
+		Client			client
+	) throws IOException {
+		InputOutput		io = client.getInputOutput ();
+		BitmapFont		bf = _bitmapFont;
+		Vector<String>	names = bf.getPropertyNames ();
+		Vector<Object>	values = bf.getPropertyValues ();
+		int[]			properties = new int[2 * names.size () + 2];
+		int				numFontProperties = 0;
+		int				numCharInfos = bf.getNumCharInfos ();
+		short[]			info = new short[6];
+
+		if (_nameAtom != null) {
+			properties[0] = _xServer.findAtom("FONT").getId ();
+			properties[1] = _nameAtom.getId ();
+			numFontProperties++;
+		}
+
+		for (int i = 0; i < names.size (); i++) {
+			String		name = names.get (i);
+			Object		value = values.get (i);
+
+			if (name.equals ("FONT") && _nameAtom != null)
+				continue;
+
+			properties[2 * numFontProperties] =
+									_xServer.internAtom(name).getId ();
+			if (value instanceof Integer)
+				properties[2 * numFontProperties + 1] = (Integer) value;
+			else
+				properties[2 * numFontProperties + 1] =
+							_xServer.internAtom((String) value).getId ();
+			numFontProperties++;
+		}
+
+		synchronized (io) {
+			Util.writeReplyHeader (client, (byte) 0);
+				// Reply length.
+			io.writeInt (7 + numFontProperties * 2 + numCharInfos * 3);
+
+			for (short v: bf.getMinBounds ())	// Min bounds.
+				io.writeShort (v);
+			io.writePadBytes (4);	// Unused.
+
+			for (short v: bf.getMaxBounds ())	// Max bounds.
+				io.writeShort (v);
+			io.writePadBytes (4);	// Unused.
+
+				// Min char or byte2.
+			io.writeShort ((short) bf.getMinByte2 ());
+				// Max char or byte2.
+			io.writeShort ((short) bf.getMaxByte2 ());
+				// Default char.
+			io.writeShort ((short) bf.getDefaultChar ());
+			io.writeShort ((short) numFontProperties);
+			io.writeByte ((byte) 0);	// Draw direction = left-to-right.
+			io.writeByte ((byte) bf.getMinByte1 ());	// Min byte 1.
+			io.writeByte ((byte) bf.getMaxByte1 ());	// Max byte 1.
+			io.writeByte ((byte) 0);	// All chars exist = false.
+			io.writeShort (bf.getAscent ());	// Font ascent.
+			io.writeShort (bf.getDescent ());	// Font descent.
+			io.writeInt (numCharInfos);
+
+			for (int i = 0; i < 2 * numFontProperties; i++)
+				io.writeInt (properties[i]);
+
 			for (int i = 0; i < numCharInfos; i++) {
-				_paint.getTextBounds (s, i, i + 1, bounds);
-				io.writeShort ((short) bounds.left);	// Left side bearing.
-				io.writeShort ((short) bounds.right);	// Right side bearing.
-				io.writeShort ((short) widths[i]);	// Character width.
-				io.writeShort ((short) -bounds.top);	// Ascent.
-				io.writeShort ((short) bounds.bottom);	// Descent.
-				io.writeShort ((short) 0);	// Attributes.
+				bf.getCharInfo (i, info);
+				for (short v: info)
+					io.writeShort (v);
 			}
 		}
 		io.flush ();
@@ -413,26 +472,32 @@ public class Font extends Resource {
 	/**
 	 * Process a QueryTextExtents request.
 	 *
+	 * The extents are the sum of the characters' metrics, so they agree
+	 * with the CHARINFOs of a QueryFont reply.
+	 *
 	 * @param client	The remote client.
-	 * @param s		The string whose extents are being queried.
+	 * @param chars	The string whose extents are being queried.
 	 * @throws IOException
 	 */
 	private void
 	processQueryTextExtentsRequest (
 		Client			client,
-		String			s
+		char[]			chars
 	) throws IOException {
 		InputOutput		io = client.getInputOutput ();
-		int				width = (int) _paint.measureText (s);
 		Rect			bounds = new Rect ();
+		int				width;
 
-		_paint.getTextBounds (s, 0, s.length (), bounds);
+		if (_bitmapFont != null)
+			width = _bitmapFont.measureText (chars, chars.length, bounds);
+		else
+			width = _metrics.measureText (chars, chars.length, bounds);
 
 		synchronized (io) {
 			Util.writeReplyHeader (client, (byte) 0);
 			io.writeInt (0);	// Reply length.
-			io.writeShort (_ascent);	// Font ascent.
-			io.writeShort (_descent);	// Font descent.
+			io.writeShort (getAscent ());	// Font ascent.
+			io.writeShort (getDescent ());	// Font descent.
 			io.writeShort ((short) -bounds.top);	// Overall ascent.
 			io.writeShort ((short) bounds.bottom);	// Overall descent.
 			io.writeInt (width);	// Overall width.
@@ -546,104 +611,10 @@ public class Font extends Resource {
 			xServer.setFontPath (fontPaths);
 	}
 
-	/**
-	 * Does the font name match the pattern?
-	 *
-	 * @param idx	The index of the font being matched.
-	 * @param pattern	The pattern being matched.
-	 * @param pfields	The pattern, broken into its components.
-	 * @return	The name of the matching font, or null if it doesn't match.
-	 */
-	private static String
-	fontMatchesPattern (
-		int			idx,
-		String		pattern,
-		String[]	pfields
-	) {
-		String		font = _allFonts[idx];
-
-		if (pattern.equals ("*"))
-			return font;
-
-		String[]	fields;
-
-		if (_allFontFields == null)
-			_allFontFields = new String[_allFonts.length][];
-
-		if (_allFontFields[idx] == null)
-			fields = _allFontFields[idx] = font.split ("-");
-		else
-			fields = _allFontFields[idx];
-
-		if (fields.length < pfields.length)
-			return null;
-
-		if (fields.length == 1)
-			return pattern.equalsIgnoreCase (font) ? font : null;
-
-		int			offset = 0;
-		boolean		rescale = false;
-
-		if (pfields[0].equals ("*"))
-			offset = fields.length - pfields.length;
-
-		for (int i = 0; i < pfields.length; i++) {
-			if (pfields[i].equals ("*"))
-				continue;
-
-			int			foff = offset + i;
-
-			if (foff == 0 || foff == 9 || foff == 10)
-				continue;	// First field not used. And ignore resolution.
-			else if (fields[foff].equalsIgnoreCase (pfields[i]))
-				continue;
-			// else if (fields[foff].matches (pfields[i]))
-				// continue;	// Pattern matching.
-			else if (foff >= 7 && foff <= 8)	// Pixel and point size.
-				rescale = true;
-			else
-				return null;
-		}
-
-		if (rescale) {
-			int			pixels = 0;
-			int			points = 0;
-
-			if (offset <= 7) {
-				try {
-					pixels = Integer.parseInt (pfields[7 - offset]);
-				} catch (Exception e) {
-				}
-			}
-
-			if (offset <= 8) {
-				try {
-					points = Integer.parseInt (pfields[8 - offset]);
-				} catch (Exception e) {
-				}
-			}
-
-			if (pixels == 0 && points == 0)
-				return font;
-			else if (pixels == 0 && points != 0)
-				pixels = (int) Math.round (points * _dpi / 722.7);
-			else if (pixels != 0 && points == 0)
-				points = (int) Math.round (pixels * 722.7 / _dpi);
-
-			return "-" + fields[1] + "-" + fields[2]
-					+ "-" + fields[3] + "-" + fields[4]
-					+ "-" + fields[5] + "-" + fields[6]
-					+ "-" + pixels + "-" + points + "-" + _dpi + "-" + _dpi
-					+ "-" + fields[11] + "-" + fields[12]
-					+ "-" + fields[13] + "-" + fields[14];
-		}
-
-		return font;
-	}
-
 	/**
 	 * Process a ListFonts or ListFontsWithInfo request.
 	 *
+	 * @param xServer	The X server.
 	 * @param client	The remote client.
 	 * @param opcode	The request's opcode.
 	 * @param bytesRemaining	Bytes yet to be read in the request.
@@ -651,6 +622,7 @@ public class Font extends Resource {
 	 */
 	public static void
 	processListFonts (
+		XServer			xServer,
 		Client			client,
 		byte			opcode,
 		int				bytesRemaining
@@ -680,20 +652,11 @@ public class Font extends Resource {
 		io.readSkip (pad);	// Unused.
 
 		String			pattern = new String (bytes);
-		String[]		pfields = pattern.split ("-");
-		Vector<String>	fonts = new Vector<String>();
-
-		for (int i = 0; i < _allFonts.length; i++) {
-			String		f = fontMatchesPattern (i, pattern, pfields);
-
-			if (f != null) {
-				fonts.add (f);
-				if (fonts.size () >= maxNames)
-					break;
-			}
-		}
+		FontCatalogue	catalogue = xServer.getFontCatalogue ();
 
 		if (opcode == RequestCode.ListFonts) {
+			Vector<String>	fonts = catalogue.listFonts (pattern, maxNames);
+
 			length = 0;
 			for (String s: fonts)
 				length += s.length () + 1;
@@ -717,13 +680,30 @@ public class Font extends Resource {
 			}
 			io.flush ();
 		} else {
-			int		remaining = fonts.size ();
+			boolean		msb = io.isMSB ();
+			byte[][]	replies = catalogue.getFontInfoReplies (pattern,
+															maxNames, msb);
 
-			for (String s: fonts)
-				writeFontWithInfo (client, s, remaining--);
+			if (replies == null) {
+				Vector<String>	fonts = catalogue.listFonts (pattern,
+																maxNames);
+
+				replies = new byte[fonts.size ()][];
+				for (int i = 0; i < replies.length; i++)
+					replies[i] = encodeFontWithInfo (xServer, fonts.get (i),
+												replies.length - i, msb);
+
+				catalogue.putFontInfoReplies (pattern, maxNames, msb,
+																	replies);
+			}
 
-				// Last in series indicator.
 			synchronized (io) {
+				for (byte[] ba: replies) {
+					Util.writeReplyHeader (client, ba[1]);
+					io.writeBytes (ba, 4, ba.length - 4);
+				}
+
+					// Last in series indicator.
 				Util.writeReplyHeader (client, (byte) 0);
 				io.writeInt (7);	// Reply length.
 				io.writePadBytes (52);	// Unused.
@@ -733,65 +713,105 @@ public class Font extends Resource {
 	}
 
 	/**
-	 * Write information about a named font.
+	 * Encode information about a named font.
 	 * This is one of multiple replies to a ListFontsWithInfo request.
+	 * The sequence number is left as zero, to be filled in when the
+	 * reply is written.
 	 *
-	 * @param client	The remote client.
+	 * @param xServer	The X server.
 	 * @param name	The name of the font.
 	 * @param fontsRemaining	Number of replies before request is complete.
-	 * @throws IOException
+	 * @param msb	Whether the most significant byte comes first.
+	 * @return	The encoded reply.
 	 */
-	private static void
-	writeFontWithInfo (
-		Client			client,
+	private static byte[]
+	encodeFontWithInfo (
+		XServer			xServer,
 		String			name,
-		int				fontsRemaining
-	) throws IOException {
-		InputOutput		io = client.getInputOutput ();
-		Font			font = new Font (0, null, null, name);
+		int				fontsRemaining,
+		boolean			msb
+	) {
+		FontCatalogue	catalogue = xServer.getFontCatalogue ();
+		File			file = catalogue.getFile (name);
+		BitmapFont.Info	info = (file == null) ? null
+											: catalogue.getFileInfo (file);
+		short[]			minBounds = new short[6];
+		short[]			maxBounds = new short[6];
+		int				minChar;
+		int				maxChar;
+		int				defaultChar;
+		int				minByte1;
+		int				maxByte1;
+		short			ascent;
+		short			descent;
+
+		if (info != null) {
+			System.arraycopy (info._minBounds, 0, minBounds, 0, 6);
+			System.arraycopy (info._maxBounds, 0, maxBounds, 0, 6);
+			minChar = info._minByte2;
+			maxChar = info._maxByte2;
+			defaultChar = info._defaultChar;
+			minByte1 = info._minByte1;
+			maxByte1 = info._maxByte1;
+			ascent = info._ascent;
+			descent = info._descent;
+		} else {
+			FontFace		face = FontFace.acquire (name);
+			GlyphMetrics	metrics = face.getMetrics ();
+
+			minBounds[2] = metrics.getMinWidth ();
+			maxBounds[1] = metrics.getMaxWidth ();
+			maxBounds[2] = metrics.getMaxWidth ();
+			maxBounds[3] = metrics.getMaxAscent ();
+			maxBounds[4] = metrics.getMaxDescent ();
+			minChar = GlyphMetrics.MinChar;
+			maxChar = metrics.getMaxChar ();
+			defaultChar = GlyphMetrics.MinChar;
+			minByte1 = 0;
+			maxByte1 = 0;
+			ascent = metrics.getAscent ();
+			descent = metrics.getDescent ();
+			face.release ();	// Only its metrics are needed.
+		}
+
 		int				numFontProperties = 0;
-		byte			nameLength = (byte) name.length ();
+		byte[]			nameBytes = name.getBytes ();
+		int				nameLength = nameBytes.length;
 		int				pad = -nameLength & 3;
-		Paint.FontMetricsInt	metrics = font._paint.getFontMetricsInt ();
-
-		synchronized (io) {
-			Util.writeReplyHeader (client, nameLength);
-				// Reply length.
-			io.writeInt (7 + numFontProperties * 2 + (nameLength + pad) / 4);
-
-				// Min bounds.
-			io.writeShort ((short) 0);	// Left side bearing.
-			io.writeShort ((short) 0);	// Right side bearing.
-			io.writeShort ((short) font._minWidth);	// Character width.
-			io.writeShort ((short) 0);	// Ascent.
-			io.writeShort ((short) 0);	// Descent.
-			io.writeShort ((short) 0);	// Attributes.
-			io.writePadBytes (4);	// Unused.
-
-				// Max bounds.
-			io.writeShort ((short) 0);	// Left side bearing.
-			io.writeShort ((short) font._maxWidth);	// Right side bearing.
-			io.writeShort ((short) font._maxWidth);	// Character width.
-			io.writeShort ((short) -metrics.top);	// Ascent.
-			io.writeShort ((short) metrics.bottom);	// Descent.
-			io.writeShort ((short) 0);	// Attributes.
-			io.writePadBytes (4);	// Unused.
-
-			io.writeShort ((short) 32);	// Min char or byte2.
-			io.writeShort ((short) font._maxChar);	// Max char or byte2.
-			io.writeShort ((short) 32);	// Default char.
-			io.writeShort ((short) numFontProperties);
-			io.writeByte ((byte) 0);	// Draw direction = left-to-right.
-			io.writeByte ((byte) 0);	// Min byte 1.
-			io.writeByte ((byte) 0);	// Max byte 1.
-			io.writeByte ((byte) 0);	// All chars exist = false.
-			io.writeShort ((short) -metrics.ascent);	// Font ascent.
-			io.writeShort ((short) metrics.descent);	// Font descent.
-			io.writeInt (fontsRemaining);	// Replies hint.
-					// No font properties.
-			io.writeBytes (name.getBytes (), 0, nameLength);	// Name.
-			io.writePadBytes (pad);	// Unused.
-		}
-		io.flush ();
+		byte[]			ba = new byte[60 + numFontProperties * 8
+														+ nameLength + pad];
+		ByteBuffer		bb = ByteBuffer.wrap (ba);
+
+		bb.order (msb ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+
+		bb.put ((byte) 1);	// Reply.
+		bb.put ((byte) nameLength);
+		bb.putShort ((short) 0);	// Sequence number.
+			// Reply length.
+		bb.putInt (7 + numFontProperties * 2 + (nameLength + pad) / 4);
+
+		for (short v: minBounds)	// Min bounds.
+			bb.putShort (v);
+		bb.putInt (0);	// Unused.
+
+		for (short v: maxBounds)	// Max bounds.
+			bb.putShort (v);
+		bb.putInt (0);	// Unused.
+
+		bb.putShort ((short) minChar);	// Min char or byte2.
+		bb.putShort ((short) maxChar);	// Max char or byte2.
+		bb.putShort ((short) defaultChar);	// Default char.
+		bb.putShort ((short) numFontProperties);
+		bb.put ((byte) 0);	// Draw direction = left-to-right.
+		bb.put ((byte) minByte1);	// Min byte 1.
+		bb.put ((byte) maxByte1);	// Max byte 1.
+		bb.put ((byte) 0);	// All chars exist = false.
+		bb.putShort (ascent);	// Font ascent.
+		bb.putShort (descent);	// Font descent.
+		bb.putInt (fontsRemaining);	// Replies hint.
+				// No font properties.
+		bb.put (nameBytes, 0, nameLength);	// Name.
+
+		return ba;	// The padding is already zero.
 	}
 }
\ No newline at end of file
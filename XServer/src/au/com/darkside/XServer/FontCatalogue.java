@@ -0,0 +1,716 @@
+/**
+ * This class implements the catalogue of font names.
+ */
+package au.com.darkside.XServer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Vector;
+
+import android.util.Log;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class implements the catalogue of font names that ListFonts and
+ * ListFontsWithInfo search.
+ *
+ * The catalogue holds the built-in fonts, followed by the fonts listed
+ * in the fonts.dir and fonts.alias files of each directory on the font
+ * path, in path order. A name found more than once keeps its first entry.
+ *
+ * Patterns are matched against whole names, ignoring case, with '?'
+ * matching any character and '*' matching any sequence of characters.
+ * To avoid testing every name, the XLFD names are indexed by field. The
+ * fields of a pattern that come before its first wildcard, or after its
+ * last, must be at the same positions in a matching XLFD name, as must
+ * every field of a pattern with fifteen fields, so only the names having
+ * the rarest of those fields are tested.
+ *
+ * A scalable font, whose sizes are zero, also matches an XLFD pattern
+ * that asks for a particular size, and is listed at that size.
+ *
+ * The ListFontsWithInfo replies of recent patterns are kept, so a client
+ * that repeats a search gets the same bytes without measuring the fonts
+ * again. The ranges and bounds of each font file are kept too, so a file
+ * is read once however many patterns list it. Changing the font path
+ * creates a new catalogue.
+ *
+ * It is not thread-safe. The X server lock protects it.
+ */
+public class FontCatalogue {
+	private static final int	XlfdFields = 15;
+	private static final int	PixelSizeField = 7;
+	private static final int	PointSizeField = 8;
+	private static final int	ResolutionXField = 9;
+	private static final int	ResolutionYField = 10;
+	private static final int	AverageWidthField = 12;
+	private static final int	MaxCachedReplies = 32;
+
+	private static final String[]	_builtInFonts = {
+		"-android-default-medium-r-normal--0-0-0-0-p-0-iso8859-1",
+		"-android-default-bold-r-normal--0-0-0-0-p-0-iso8859-1",
+		"-android-default-medium-i-normal--0-0-0-0-p-0-iso8859-1",
+		"-android-default-bold-i-normal--0-0-0-0-p-0-iso8859-1",
+		"-android-default-medium-r-normal--0-0-0-0-p-0-iso10646-1",
+		"-android-default-bold-r-normal--0-0-0-0-p-0-iso10646-1",
+		"-android-default-medium-i-normal--0-0-0-0-p-0-iso10646-1",
+		"-android-default-bold-i-normal--0-0-0-0-p-0-iso10646-1",
+		"-android-monospace-medium-r-normal--0-0-0-0-m-0-iso8859-1",
+		"-android-monospace-bold-r-normal--0-0-0-0-m-0-iso8859-1",
+		"-android-monospace-medium-i-normal--0-0-0-0-m-0-iso8859-1",
+		"-android-monospace-bold-i-normal--0-0-0-0-m-0-iso8859-1",
+		"-android-monospace-medium-r-normal--0-0-0-0-m-0-iso10646-1",
+		"-android-monospace-bold-r-normal--0-0-0-0-m-0-iso10646-1",
+		"-android-monospace-medium-i-normal--0-0-0-0-m-0-iso10646-1",
+		"-android-monospace-bold-i-normal--0-0-0-0-m-0-iso10646-1",
+		"-android-serif-medium-r-normal--0-0-0-0-p-0-iso8859-1",
+		"-android-serif-bold-r-normal--0-0-0-0-p-0-iso8859-1",
+		"-android-serif-medium-i-normal--0-0-0-0-p-0-iso8859-1",
+		"-android-serif-bold-i-normal--0-0-0-0-p-0-iso8859-1",
+		"-android-serif-medium-r-normal--0-0-0-0-p-0-iso10646-1",
+		"-android-serif-bold-r-normal--0-0-0-0-p-0-iso10646-1",
+		"-android-serif-medium-i-normal--0-0-0-0-p-0-iso10646-1",
+		"-android-serif-bold-i-normal--0-0-0-0-p-0-iso10646-1",
+		"-android-sans serif-medium-r-normal--0-0-0-0-p-0-iso8859-1",
+		"-android-sans serif-bold-r-normal--0-0-0-0-p-0-iso8859-1",
+		"-android-sans serif-medium-i-normal--0-0-0-0-p-0-iso8859-1",
+		"-android-sans serif-bold-i-normal--0-0-0-0-p-0-iso8859-1",
+		"-android-sans serif-medium-r-normal--0-0-0-0-p-0-iso10646-1",
+		"-android-sans serif-bold-r-normal--0-0-0-0-p-0-iso10646-1",
+		"-android-sans serif-medium-i-normal--0-0-0-0-p-0-iso10646-1",
+		"-android-sans serif-bold-i-normal--0-0-0-0-p-0-iso10646-1",
+		"fixed",
+		"cursor"
+	};
+
+	private final Vector<String>	_names = new Vector<String>();
+	private final Vector<String>	_targets = new Vector<String>();
+	private final Vector<File>		_files = new Vector<File>();
+	private final HashMap<String, Integer>	_ids =
+											new HashMap<String, Integer>();
+	private final HashMap<String, int[]>	_index =
+											new HashMap<String, int[]>();
+	private final Map<String, byte[][]>		_replies =
+			new LinkedHashMap<String, byte[][]>(MaxCachedReplies, 0.75f, true) {
+		@Override
+		protected boolean
+		removeEldestEntry (
+			Map.Entry<String, byte[][]>		eldest
+		) {
+			return size () > MaxCachedReplies;
+		}
+	};
+	private final HashMap<File, BitmapFont.Info>	_fileInfo =
+									new HashMap<File, BitmapFont.Info>();
+	private String[]	_lowerNames;
+	private boolean[]	_scalable;
+	private int[]		_xlfdIds;
+	private int[]		_otherIds;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param fontPath	The directories to search for fonts. May be null.
+	 */
+	public FontCatalogue (
+		String[]	fontPath
+	) {
+		for (String name: _builtInFonts)
+			add (name, null, null);
+
+		if (fontPath != null)
+			for (String dir: fontPath)
+				addDirectory (new File (dir));
+
+		buildIndex ();
+	}
+
+	/**
+	 * Return the number of fonts in the catalogue.
+	 *
+	 * @return	The number of fonts.
+	 */
+	public int
+	getNumFonts () {
+		return _names.size ();
+	}
+
+	/**
+	 * Return the name of the font that a name refers to. This is the
+	 * target of an alias, or else the name itself.
+	 *
+	 * @param name	The font name.
+	 * @return	The name of the font it refers to.
+	 */
+	public String
+	resolve (
+		String		name
+	) {
+		Integer		id = _ids.get (name.toLowerCase (Locale.US));
+
+		if (id == null || _targets.get (id) == null)
+			return name;
+
+		return _targets.get (id);
+	}
+
+	/**
+	 * Return the file holding a font.
+	 *
+	 * @param name	The font name.
+	 * @return	The font file, or null if it isn't loaded from a file.
+	 */
+	public File
+	getFile (
+		String		name
+	) {
+		Integer		id = _ids.get (name.toLowerCase (Locale.US));
+
+		return (id == null) ? null : _files.get (id);
+	}
+
+	/**
+	 * Return the ranges and bounds of the font in a file, reading them
+	 * the first time they're needed.
+	 *
+	 * @param file	The font file.
+	 * @return	The ranges and bounds, or null if the file can't be read.
+	 */
+	public BitmapFont.Info
+	getFileInfo (
+		File		file
+	) {
+		if (_fileInfo.containsKey (file))
+			return _fileInfo.get (file);
+
+		BitmapFont.Info		info = BitmapFont.readInfo (file);
+
+		_fileInfo.put (file, info);
+
+		return info;
+	}
+
+	/**
+	 * Add a font to the catalogue, unless it has one by that name.
+	 *
+	 * @param name	The font name.
+	 * @param target	The font that the name is an alias of, or null.
+	 * @param file	The file holding the font, or null.
+	 */
+	private void
+	add (
+		String		name,
+		String		target,
+		File		file
+	) {
+		String		lower = name.toLowerCase (Locale.US);
+
+		if (name.length () == 0 || name.length () > 255
+												|| _ids.containsKey (lower))
+			return;
+
+		_ids.put (lower, _names.size ());
+		_names.add (name);
+		_targets.add (target);
+		_files.add (file);
+	}
+
+	/**
+	 * Add the fonts listed in a directory's fonts.dir and fonts.alias
+	 * files. Directories without them are ignored.
+	 *
+	 * @param dir	The directory.
+	 */
+	private void
+	addDirectory (
+		File		dir
+	) {
+		File		fontsDir = new File (dir, "fonts.dir");
+		File		fontsAlias = new File (dir, "fonts.alias");
+
+		try {
+			if (fontsDir.canRead ()) {
+				BufferedReader	br = new BufferedReader (new FileReader (
+																fontsDir));
+
+				try {
+					String		line;
+
+					br.readLine ();	// The number of fonts.
+					while ((line = br.readLine ()) != null) {
+						String[]	fields = line.trim().split ("\\s+", 2);
+
+						if (fields.length == 2)
+							add (fields[1], null, new File (dir, fields[0]));
+					}
+				} finally {
+					br.close ();
+				}
+			}
+
+			if (fontsAlias.canRead ()) {
+				BufferedReader	br = new BufferedReader (new FileReader (
+																fontsAlias));
+
+				try {
+					String		line;
+
+					while ((line = br.readLine ()) != null) {
+						line = line.trim ();
+						if (line.length () == 0 || line.charAt (0) == '!')
+							continue;
+
+						String[]	fields = splitAlias (line);
+
+						if (fields != null)
+							add (fields[0], fields[1], null);
+					}
+				} finally {
+					br.close ();
+				}
+			}
+		} catch (IOException e) {
+			Log.e ("XServer", "Reading fonts in " + dir + ": "
+														+ e.getMessage ());
+		}
+	}
+
+	/**
+	 * Split a line of a fonts.alias file into the alias and the name of
+	 * the font it refers to. Either may be in double quotes.
+	 *
+	 * @param line	The line, with no surrounding white space.
+	 * @return	The alias and font name, or null if it isn't an alias.
+	 */
+	private static String[]
+	splitAlias (
+		String		line
+	) {
+		String[]	fields = new String[2];
+		int			start = 0;
+
+		for (int i = 0; i < 2; i++) {
+			int			end;
+
+			while (start < line.length ()
+							&& Character.isWhitespace (line.charAt (start)))
+				start++;
+
+			if (start == line.length ())
+				return null;
+
+			if (line.charAt (start) == '"') {
+				end = line.indexOf ('"', ++start);
+				if (end < 0)
+					return null;
+				fields[i] = line.substring (start, end++);
+			} else if (i == 1) {
+				end = line.length ();
+				fields[i] = line.substring (start).trim ();
+			} else {
+				for (end = start; end < line.length ()
+							&& !Character.isWhitespace (line.charAt (end));)
+					end++;
+				fields[i] = line.substring (start, end);
+			}
+
+			start = end;
+		}
+
+		if (fields[0].equals ("FILE_NAMES_ALIASES"))
+			return null;
+
+		return fields;
+	}
+
+	/**
+	 * Index the XLFD names by the value of each field.
+	 */
+	private void
+	buildIndex () {
+		int							n = _names.size ();
+		HashMap<String, Vector<Integer>>	lists =
+									new HashMap<String, Vector<Integer>>();
+		Vector<Integer>				xlfdIds = new Vector<Integer>();
+		Vector<Integer>				otherIds = new Vector<Integer>();
+
+		_lowerNames = new String[n];
+		_scalable = new boolean[n];
+		for (int id = 0; id < n; id++) {
+			String		lower = _names.get(id).toLowerCase (Locale.US);
+			String[]	fields = lower.split ("-", -1);
+
+			_lowerNames[id] = lower;
+			if (fields.length != XlfdFields) {
+				otherIds.add (id);
+				continue;
+			}
+
+			xlfdIds.add (id);
+			_scalable[id] = (_targets.get (id) == null
+							&& fields[PixelSizeField].equals ("0")
+							&& fields[PointSizeField].equals ("0")
+							&& fields[AverageWidthField].equals ("0"));
+
+			for (int i = 0; i < XlfdFields; i++) {
+				String			key = i + "-" + fields[i];
+				Vector<Integer>	list = lists.get (key);
+
+				if (list == null) {
+					list = new Vector<Integer>();
+					lists.put (key, list);
+				}
+
+				list.add (id);
+			}
+		}
+
+		for (Map.Entry<String, Vector<Integer>> e: lists.entrySet ())
+			_index.put (e.getKey (), toArray (e.getValue ()));
+
+		_xlfdIds = toArray (xlfdIds);
+		_otherIds = toArray (otherIds);
+	}
+
+	/**
+	 * Convert a list of IDs to an array.
+	 *
+	 * @param list	The IDs.
+	 * @return	An array of the IDs.
+	 */
+	private static int[]
+	toArray (
+		Vector<Integer>		list
+	) {
+		int[]		a = new int[list.size ()];
+
+		for (int i = 0; i < a.length; i++)
+			a[i] = list.get (i);
+
+		return a;
+	}
+
+	/**
+	 * Return the names of the fonts matching a pattern, in catalogue
+	 * order. Scalable fonts are named at the size the pattern asks for.
+	 *
+	 * @param pattern	The pattern.
+	 * @param maxNames	The maximum number of names to return.
+	 * @return	The names of the matching fonts.
+	 */
+	public Vector<String>
+	listFonts (
+		String		pattern,
+		int			maxNames
+	) {
+		String		lower = pattern.toLowerCase (Locale.US);
+		String[]	pfields = lower.split ("-", -1);
+		String[]	sizes = pfields.clone ();
+		String		scalablePattern = null;
+		int[]		ids = new int[16];
+		int			n = 0;
+
+		if (pfields.length == XlfdFields) {
+			pfields[PixelSizeField] = zeroSize (pfields[PixelSizeField]);
+			pfields[PointSizeField] = zeroSize (pfields[PointSizeField]);
+			pfields[ResolutionXField] = zeroSize (pfields[ResolutionXField]);
+			pfields[ResolutionYField] = zeroSize (pfields[ResolutionYField]);
+			pfields[AverageWidthField] =
+								zeroSize (pfields[AverageWidthField]);
+
+			StringBuilder	sb = new StringBuilder (pfields[0]);
+
+			for (int i = 1; i < XlfdFields; i++)
+				sb.append ('-').append (pfields[i]);
+
+			scalablePattern = sb.toString ();
+		}
+
+		for (int id: candidates (lower)) {
+			if (matches (lower, _lowerNames[id])) {
+				ids = append (ids, n++, id);
+			}
+		}
+
+		if (scalablePattern != null) {
+			for (int id: candidates (scalablePattern)) {
+				if (_scalable[id] && !matches (lower, _lowerNames[id])
+								&& matches (scalablePattern, _lowerNames[id])) {
+					ids = append (ids, n++, id);
+				}
+			}
+		}
+
+		for (int id: _otherIds) {
+			if (matches (lower, _lowerNames[id])) {
+				ids = append (ids, n++, id);
+			}
+		}
+
+		Arrays.sort (ids, 0, n);
+
+		Vector<String>	fonts = new Vector<String>();
+
+		for (int i = 0; i < n && fonts.size () < maxNames; i++) {
+			int			id = ids[i];
+
+			if (_scalable[id] && scalablePattern != null)
+				fonts.add (scale (_names.get (id), sizes));
+			else
+				fonts.add (_names.get (id));
+		}
+
+		return fonts;
+	}
+
+	/**
+	 * Store an ID in an array, enlarging it if it's full.
+	 *
+	 * @param ids	The array.
+	 * @param n	The index to store the ID at.
+	 * @param id	The ID.
+	 * @return	The array, or a larger copy of it.
+	 */
+	private static int[]
+	append (
+		int[]		ids,
+		int			n,
+		int			id
+	) {
+		if (n == ids.length) {
+			int[]		a = new int[2 * n];
+
+			System.arraycopy (ids, 0, a, 0, n);
+			ids = a;
+		}
+
+		ids[n] = id;
+
+		return ids;
+	}
+
+	/**
+	 * Return the XLFD names that may match a pattern. These are the names
+	 * having every field of the pattern that has a known position.
+	 * Wildcards in a pattern with as many dashes as an XLFD name can't
+	 * match a dash, so all of its fields have known positions.
+	 *
+	 * @param pattern	The pattern, in lower case.
+	 * @return	The IDs of the candidate names, in increasing order.
+	 */
+	private int[]
+	candidates (
+		String		pattern
+	) {
+		String[]	pfields = pattern.split ("-", -1);
+		int[]		best = _xlfdIds;
+		int			first = 0;
+		int			last = pfields.length - 1;
+
+		while (first < pfields.length && !hasWildcard (pfields[first]))
+			first++;
+
+		if (first == pfields.length) {	// No wildcards.
+			if (pfields.length != XlfdFields)
+				return new int[0];
+			last = 0;
+		} else {
+			while (last > first && !hasWildcard (pfields[last]))
+				last--;
+		}
+
+		for (int i = 0; i < pfields.length; i++) {
+			int			position;
+
+			if (hasWildcard (pfields[i]))
+				continue;
+			else if (i < first || pfields.length == XlfdFields)
+				position = i;
+			else if (i > last)
+				position = XlfdFields - pfields.length + i;
+			else
+				continue;
+
+			if (position < 0 || position >= XlfdFields)
+				return new int[0];
+
+			int[]		ids = _index.get (position + "-" + pfields[i]);
+
+			if (ids == null)
+				return new int[0];
+			if (ids.length < best.length)
+				best = ids;
+		}
+
+		return best;
+	}
+
+	/**
+	 * Does a pattern field contain a wildcard?
+	 *
+	 * @param field	The pattern field.
+	 * @return	True if the field contains '?' or '*'.
+	 */
+	private static boolean
+	hasWildcard (
+		String		field
+	) {
+		return field.indexOf ('*') >= 0 || field.indexOf ('?') >= 0;
+	}
+
+	/**
+	 * Return the value a scalable font has in a size field that matches
+	 * the pattern field. A number or a wildcard matches zero.
+	 *
+	 * @param field	The pattern field.
+	 * @return	The field to match against a scalable font.
+	 */
+	private static String
+	zeroSize (
+		String		field
+	) {
+		if (field.equals ("*"))
+			return field;
+
+		for (int i = 0; i < field.length (); i++)
+			if (!Character.isDigit (field.charAt (i)))
+				return field;
+
+		return "0";
+	}
+
+	/**
+	 * Does a name match a pattern? The pattern may contain '?', which
+	 * matches any character, and '*', which matches any sequence of
+	 * characters.
+	 *
+	 * @param pattern	The pattern, in lower case.
+	 * @param name	The name, in lower case.
+	 * @return	True if the name matches the pattern.
+	 */
+	private static boolean
+	matches (
+		String		pattern,
+		String		name
+	) {
+		int			p = 0;
+		int			n = 0;
+		int			starP = -1;
+		int			starN = 0;
+
+		while (n < name.length ()) {
+			if (p < pattern.length ()) {
+				char		c = pattern.charAt (p);
+
+				if (c == '*') {
+					starP = p++;
+					starN = n;
+					continue;
+				} else if (c == '?' || c == name.charAt (n)) {
+					p++;
+					n++;
+					continue;
+				}
+			}
+
+			if (starP < 0)
+				return false;
+
+			p = starP + 1;	// Let the last '*' match one more character.
+			n = ++starN;
+		}
+
+		while (p < pattern.length () && pattern.charAt (p) == '*')
+			p++;
+
+		return p == pattern.length ();
+	}
+
+	/**
+	 * Return the name of a scalable font at the size a pattern asks for.
+	 * If neither the pixel size nor the point size is given, it keeps the
+	 * font's own name.
+	 *
+	 * @param name	The name of the scalable font.
+	 * @param pfields	The fields of the pattern.
+	 * @return	The name of the font at the pattern's size.
+	 */
+	private static String
+	scale (
+		String		name,
+		String[]	pfields
+	) {
+		int			pixels = 0;
+		int			points = 0;
+		int			dpi = Font.getDpi ();
+
+		try {
+			pixels = Integer.parseInt (pfields[PixelSizeField]);
+		} catch (NumberFormatException e) {
+		}
+
+		try {
+			points = Integer.parseInt (pfields[PointSizeField]);
+		} catch (NumberFormatException e) {
+		}
+
+		if (pixels == 0 && points == 0)
+			return name;
+		else if (pixels == 0)
+			pixels = (int) Math.round (points * dpi / 722.7);
+		else if (points == 0)
+			points = (int) Math.round (pixels * 722.7 / dpi);
+
+		String[]	fields = name.split ("-", -1);
+
+		return "-" + fields[1] + "-" + fields[2]
+				+ "-" + fields[3] + "-" + fields[4]
+				+ "-" + fields[5] + "-" + fields[6]
+				+ "-" + pixels + "-" + points + "-" + dpi + "-" + dpi
+				+ "-" + fields[11] + "-" + fields[12]
+				+ "-" + fields[13] + "-" + fields[14];
+	}
+
+	/**
+	 * Return the cached ListFontsWithInfo replies of a pattern.
+	 *
+	 * @param pattern	The pattern.
+	 * @param maxNames	The maximum number of names requested.
+	 * @param msb	Whether the replies are most significant byte first.
+	 * @return	The replies, or null if they aren't cached.
+	 */
+	public byte[][]
+	getFontInfoReplies (
+		String		pattern,
+		int			maxNames,
+		boolean		msb
+	) {
+		return _replies.get ((msb ? "B" : "l") + maxNames + "-" + pattern);
+	}
+
+	/**
+	 * Cache the ListFontsWithInfo replies of a pattern.
+	 *
+	 * @param pattern	The pattern.
+	 * @param maxNames	The maximum number of names requested.
+	 * @param msb	Whether the replies are most significant byte first.
+	 * @param replies	The replies.
+	 */
+	public void
+	putFontInfoReplies (
+		String		pattern,
+		int			maxNames,
+		boolean		msb,
+		byte[][]	replies
+	) {
+		_replies.put ((msb ? "B" : "l") + maxNames + "-" + pattern, replies);
+	}
+}
@@ -0,0 +1,203 @@
+/**
+ * This class implements a font face shared by X fonts.
+ */
+package au.com.darkside.XServer;
+
+import java.util.HashMap;
+
+import android.graphics.Paint;
+import android.graphics.Typeface;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class implements a font face, which is a typeface at a size with
+ * its glyph metrics.
+ *
+ * Faces are immutable and shared. Every font opened with the same family,
+ * style, size and character range uses the same face, however it was
+ * named, so opening a font that is already open only parses its name.
+ * Faces are reference counted, and a face leaves the registry when the
+ * last font using it is freed. A font that is still used by a GC after
+ * it is freed keeps its face.
+ */
+public class FontFace {
+	private static final HashMap<String, FontFace>	_faces =
+											new HashMap<String, FontFace>();
+
+	private final String			_key;
+	private final Paint				_paint;
+	private final GlyphMetrics		_metrics;
+	private GlyphAtlas				_atlas = null;
+	private int						_refCount = 0;
+
+	/**
+	 * Return the face of a font name, creating it if no open font uses
+	 * it. Each call must be matched by a call to release.
+	 *
+	 * @param name	The name of the font. May be null.
+	 * @return	The font's face.
+	 */
+	public static FontFace
+	acquire (
+		String		name
+	) {
+		String		family = "default";
+		int			style = Typeface.NORMAL;
+		int			size = 0;
+		char		maxChar = 255;
+
+		if (name == null || name.equalsIgnoreCase ("cursor")) {
+			family = "default";
+		} else if (name.equalsIgnoreCase ("fixed")) {
+			family = "monospace";
+		} else {
+			String[]	fields = name.split ("-");
+
+			if (fields.length == 15) {
+				if (fields[3].equalsIgnoreCase ("bold"))
+					style |= Typeface.BOLD;
+				if (fields[4].equalsIgnoreCase ("i"))
+					style |= Typeface.ITALIC;
+
+				try {
+					int		n = Integer.valueOf (fields[7]);
+
+					if (n > 0)
+						size = n;
+				} catch (java.lang.NumberFormatException e) {
+				}
+
+				if (!fields[11].equalsIgnoreCase ("p"))
+					family = "monospace";
+				else
+					family = fields[2].toLowerCase ();
+
+				if (fields[13].equalsIgnoreCase ("iso10646"))
+					maxChar = 65534;
+			}
+		}
+
+		String		key = family + "-" + style + "-" + size + "-"
+															+ (int) maxChar;
+
+		synchronized (_faces) {
+			FontFace	face = _faces.get (key);
+
+			if (face == null) {
+				face = new FontFace (key, family, style, size, maxChar);
+				_faces.put (key, face);
+			}
+
+			face._refCount++;
+
+			return face;
+		}
+	}
+
+	/**
+	 * Release a reference to the face. It leaves the registry when
+	 * the last reference is released.
+	 */
+	public void
+	release () {
+		synchronized (_faces) {
+			if (--_refCount == 0 && _faces.get (_key) == this)
+				_faces.remove (_key);
+		}
+	}
+
+	/**
+	 * Return the number of faces in use.
+	 *
+	 * @return	The number of faces in use.
+	 */
+	public static int
+	getNumFaces () {
+		synchronized (_faces) {
+			return _faces.size ();
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param key	The key of the face in the registry.
+	 * @param family	The typeface family, in lower case.
+	 * @param style	The typeface style.
+	 * @param size	The size in pixels, or 0 for the default size.
+	 * @param maxChar	The maximum character.
+	 */
+	private FontFace (
+		String		key,
+		String		family,
+		int			style,
+		int			size,
+		char		maxChar
+	) {
+		Typeface	base;
+
+		if (family.equals ("default"))
+			base = Typeface.DEFAULT;
+		else if (family.equals ("monospace"))
+			base = Typeface.MONOSPACE;
+		else if (family.equals ("serif"))
+			base = Typeface.SERIF;
+		else if (family.equals ("sans serif"))
+			base = Typeface.SANS_SERIF;
+		else
+			base = Typeface.create (family, style);
+
+		_key = key;
+		_paint = new Paint ();
+		_paint.setTypeface (Typeface.create (base, style));
+		if (size > 0)
+			_paint.setTextSize (size);
+
+		_metrics = GlyphMetrics.get (key, _paint, maxChar);
+	}
+
+	/**
+	 * Return the face's typeface.
+	 *
+	 * @return	The face's typeface.
+	 */
+	public Typeface
+	getTypeface () {
+		return _paint.getTypeface ();
+	}
+
+	/**
+	 * Return the face's size.
+	 *
+	 * @return	The face's size.
+	 */
+	public int
+	getSize () {
+		return (int) _paint.getTextSize ();
+	}
+
+	/**
+	 * Return the face's glyph metrics.
+	 *
+	 * @return	The face's glyph metrics.
+	 */
+	public GlyphMetrics
+	getMetrics () {
+		return _metrics;
+	}
+
+	/**
+	 * Return the face's glyph atlas, creating it when text is first
+	 * drawn in the face.
+	 *
+	 * @return	The face's glyph atlas.
+	 */
+	public synchronized GlyphAtlas
+	getAtlas () {
+		if (_atlas == null)
+			_atlas = new GlyphAtlas (_metrics, getTypeface (), getSize ());
+
+		return _atlas;
+	}
+}
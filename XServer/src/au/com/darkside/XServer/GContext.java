@@ -4,6 +4,7 @@
 package au.com.darkside.XServer;
 
 import java.io.IOException;
+import java.util.Vector;
 
 import android.graphics.Canvas;
 import android.graphics.Paint;
@@ -11,6 +12,7 @@ import android.graphics.Path;
 import android.graphics.PixelXorXfermode;
 import android.graphics.Rect;
 import android.graphics.Region;
+import android.graphics.RegionIterator;
 
 
 /**
@@ -123,6 +125,16 @@ public class GContext extends Resource {
 		return _foregroundColor;
 	}
 
+	/**
+	 * Return the GContext's function.
+	 *
+	 * @return	The GContext's function.
+	 */
+	public int
+	getFunction () {
+		return _attributes[AttrFunction];
+	}
+
 	/**
 	 * Return the fill type.
 	 *
@@ -186,6 +198,32 @@ public class GContext extends Resource {
 		return true;
 	}
 
+	/**
+	 * Return the GContext's clip rectangles, split where necessary so
+	 * that none of them overlap.
+	 *
+	 * @return	The clip rectangles, or null if drawing isn't clipped.
+	 */
+	public Rect[]
+	getClipRectangles () {
+		if (_clipRectangles == null || _clipRectangles.length < 2)
+			return _clipRectangles;
+
+		Region			region = new Region ();
+		Vector<Rect>	rects = new Vector<Rect>();
+		Rect			r = new Rect ();
+
+		for (Rect cr: _clipRectangles)
+			region.op (cr, Region.Op.UNION);
+
+		RegionIterator	ri = new RegionIterator (region);
+
+		while (ri.next (r))
+			rects.add (new Rect (r));
+
+		return rects.toArray (new Rect[rects.size ()]);
+	}
+
 	/**
 	 * Apply the GContext's clip rectangles to the canvas.
 	 *
@@ -307,8 +345,6 @@ public class GContext extends Resource {
 					ErrorCode.write (client, ErrorCode.Length, opcode, 0);
 				} else {
 					_xServer.freeResource (_id);
-					if (_client != null)
-						_client.freeResource (this);
 					break;
 				}
 			default:
@@ -338,7 +374,6 @@ public class GContext extends Resource {
 
 		if (gc.processValues (client, RequestCode.CreateGC, bytesRemaining)) {
 			xServer.addResource (gc);
-			client.addResource (gc);
 		}
 	}
 
@@ -404,9 +439,8 @@ public class GContext extends Resource {
 			case AttrSubwindowMode:
 			case AttrGraphicsExposures:
 			case AttrDashes:
-			case AttrArcMode:
-				_attributes[maskBit] = io.readByte ();
-				io.readSkip (3);
+			case AttrArcMode:	// Low byte of a 32-bit value.
+				_attributes[maskBit] = io.readInt () & 0xff;
 				break;
 			case AttrPlaneMask:
 			case AttrForeground:
@@ -432,6 +466,22 @@ public class GContext extends Resource {
 		}
 	}
 
+	/**
+	 * Record that a pixmap is used by a GContext, as its tile, stipple
+	 * or clip mask.
+	 *
+	 * @param id	The pixmap ID, or zero for none.
+	 */
+	private void
+	markPixmapUse (
+		int			id
+	) {
+		Resource	r = _xServer.getResource (id);
+
+		if (r != null && r.getType () == Resource.PIXMAP)
+			((Pixmap) r).setUsedBy (GCONTEXT);
+	}
+
 	/**
 	 * Apply the attribute values to the Paint.
 	 *
@@ -488,6 +538,10 @@ public class GContext extends Resource {
 		else	// Defaults to even-odd.
 			_fillType = Path.FillType.EVEN_ODD;
 
+		markPixmapUse (_attributes[AttrTile]);
+		markPixmapUse (_attributes[AttrStipple]);
+		markPixmapUse (_attributes[AttrClipMask]);
+
 		int		fid = _attributes[AttrFont];
 
 		if (_font == null || fid == 0)
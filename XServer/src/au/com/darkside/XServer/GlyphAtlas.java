@@ -0,0 +1,368 @@
+/**
+ * This class implements a cache of rasterized glyphs.
+ */
+package au.com.darkside.XServer;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class implements a cache of rasterized glyphs for a font face.
+ *
+ * Each glyph is drawn once for each foreground color into a cell of an
+ * atlas bitmap, and text is drawn by copying cells. The cells are the
+ * same size, large enough for the face's usual glyphs, and glyphs with
+ * ink outside a cell are drawn directly. Glyphs without ink, such as
+ * spaces, get a cell that is never copied. When the atlas is full, cells
+ * are reused in roughly least-recently-used order, using the clock
+ * algorithm.
+ *
+ * Text is positioned using the glyph widths that QueryFont reports, so
+ * it lines up with what clients compute.
+ *
+ * It is not thread-safe. The X server lock protects it.
+ */
+public class GlyphAtlas {
+	private static final int	MaxCells = 512;
+	private static final int	MaxPixels = 512 * 1024;
+	private static final int	MaxWidth = 512;
+
+	private static long			_hits = 0;
+	private static long			_misses = 0;
+	private static long			_evictions = 0;
+
+	private final GlyphMetrics	_metrics;
+	private final Paint			_paint;
+	private final int			_cellWidth;
+	private final int			_cellHeight;
+	private final int			_originX;
+	private final int			_originY;
+	private final int			_columns;
+	private final int			_maxCells;
+	private final int[]			_blank;
+	private final long[]		_cellKeys;
+	private final int[]			_cellWidths;
+	private final boolean[]		_referenced;
+	private final boolean[]		_hasInk;
+	private final long[]		_keys;
+	private final int[]			_cells;
+	private final short[]		_info = new short[6];
+	private final char[]		_glyph = new char[1];
+	private final Rect			_src = new Rect ();
+	private final Rect			_dst = new Rect ();
+	private Bitmap				_bitmap = null;
+	private Canvas				_canvas = null;
+	private int					_rows = 0;
+	private int					_numCells = 0;
+	private int					_hand = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param metrics	The face's glyph metrics.
+	 * @param typeface	The face's typeface.
+	 * @param size	The face's size.
+	 */
+	public GlyphAtlas (
+		GlyphMetrics	metrics,
+		Typeface		typeface,
+		int				size
+	) {
+		_metrics = metrics;
+		_paint = new Paint ();
+		_paint.setTypeface (typeface);
+		_paint.setTextSize (size);
+		_paint.setStyle (Paint.Style.FILL);
+
+			// Leave a margin for italic overhangs.
+		_originX = metrics.getMaxWidth () / 2 + 1;
+		_originY = metrics.getMaxAscent () + 1;
+		_cellWidth = metrics.getMaxWidth () + 2 * _originX;
+		_cellHeight = _originY + metrics.getMaxDescent () + 1;
+		_columns = Math.max (1, MaxWidth / _cellWidth);
+		_maxCells = Math.max (_columns,
+				Math.min (MaxCells, MaxPixels / (_cellWidth * _cellHeight)));
+		_blank = new int[_cellWidth * _cellHeight];
+		_cellKeys = new long[_maxCells];
+		_cellWidths = new int[_maxCells];
+		_referenced = new boolean[_maxCells];
+		_hasInk = new boolean[_maxCells];
+
+		int			n = 1;
+
+		while (n < 2 * _maxCells)
+			n *= 2;
+
+		_keys = new long[n];
+		_cells = new int[n];
+	}
+
+	/**
+	 * Return the number of glyphs drawn from the atlas.
+	 *
+	 * @return	The number of hits.
+	 */
+	public static long
+	getHits () {
+		return _hits;
+	}
+
+	/**
+	 * Return the number of glyphs that weren't in the atlas.
+	 *
+	 * @return	The number of misses.
+	 */
+	public static long
+	getMisses () {
+		return _misses;
+	}
+
+	/**
+	 * Return the number of glyphs removed to make room for others.
+	 *
+	 * @return	The number of evictions.
+	 */
+	public static long
+	getEvictions () {
+		return _evictions;
+	}
+
+	/**
+	 * Draw text, copying its glyphs from the atlas.
+	 *
+	 * @param canvas	The canvas to draw on.
+	 * @param chars	The characters to draw.
+	 * @param length	The number of characters.
+	 * @param x	X coordinate of the origin of the first character.
+	 * @param y	Y coordinate of the baseline.
+	 * @param color	The foreground color.
+	 * @return	The width of the text.
+	 */
+	public int
+	drawText (
+		Canvas		canvas,
+		char[]		chars,
+		int			length,
+		int			x,
+		int			y,
+		int			color
+	) {
+		int			startX = x;
+		char		maxChar = _metrics.getMaxChar ();
+
+		for (int i = 0; i < length; i++) {
+			char		c = chars[i];
+
+			if (c < GlyphMetrics.MinChar || c > maxChar)
+				c = GlyphMetrics.MinChar;
+
+			long		key = ((color & 0xffffffffL) << 16) | c;
+			int			cell = find (key);
+
+			if (cell >= 0) {
+				_hits++;
+				_referenced[cell] = true;
+			} else {
+				_misses++;
+				_metrics.getCharInfo (c, _info);
+				if (_info[1] > _info[0] && (_info[0] < -_originX
+						|| _info[1] > _cellWidth - _originX
+						|| _info[3] > _originY
+						|| _info[4] > _cellHeight - _originY)) {
+					_glyph[0] = c;
+					_paint.setColor (color);
+					canvas.drawText (_glyph, 0, 1, x, y, _paint);
+					x += _info[2];
+					continue;
+				}
+
+				cell = rasterize (key, c, color);
+			}
+
+			if (!_hasInk[cell]) {	// A space.
+				x += _cellWidths[cell];
+				continue;
+			}
+
+			int			cx = (cell % _columns) * _cellWidth;
+			int			cy = (cell / _columns) * _cellHeight;
+
+			_src.set (cx, cy, cx + _cellWidth, cy + _cellHeight);
+			_dst.set (x - _originX, y - _originY,
+					x - _originX + _cellWidth, y - _originY + _cellHeight);
+			canvas.drawBitmap (_bitmap, _src, _dst, null);
+			x += _cellWidths[cell];
+		}
+
+		return x - startX;
+	}
+
+	/**
+	 * Draw a glyph into a free cell, evicting one if necessary.
+	 * The glyph's metrics must already be in _info.
+	 *
+	 * @param key	The glyph's key.
+	 * @param c	The character.
+	 * @param color	The foreground color.
+	 * @return	The glyph's cell.
+	 */
+	private int
+	rasterize (
+		long		key,
+		char		c,
+		int			color
+	) {
+		int			cell;
+
+		if (_numCells < _maxCells) {
+			cell = _numCells++;
+			if (cell / _columns >= _rows)
+				grow ();
+		} else {
+			while (_referenced[_hand]) {
+				_referenced[_hand] = false;
+				_hand = (_hand + 1) % _numCells;
+			}
+
+			cell = _hand;
+			_hand = (_hand + 1) % _numCells;
+			remove (_cellKeys[cell]);
+			_evictions++;
+		}
+
+		int			cx = (cell % _columns) * _cellWidth;
+		int			cy = (cell / _columns) * _cellHeight;
+
+		_hasInk[cell] = (_info[1] > _info[0]);
+		if (_hasInk[cell]) {
+			_bitmap.setPixels (_blank, 0, _cellWidth, cx, cy, _cellWidth,
+																_cellHeight);
+			_glyph[0] = c;
+			_paint.setColor (color);
+			_canvas.drawText (_glyph, 0, 1, cx + _originX, cy + _originY,
+																	_paint);
+		}
+
+		_cellKeys[cell] = key;
+		_cellWidths[cell] = _info[2];
+		_referenced[cell] = true;
+		put (key, cell);
+
+		return cell;
+	}
+
+	/**
+	 * Double the number of rows in the atlas bitmap, copying the cells
+	 * already drawn.
+	 */
+	private void
+	grow () {
+		int			maxRows = (_maxCells + _columns - 1) / _columns;
+		int			rows = Math.min (maxRows, Math.max (1, 2 * _rows));
+		Bitmap		bitmap = Bitmap.createBitmap (_columns * _cellWidth,
+									rows * _cellHeight, Bitmap.Config.ARGB_8888);
+		Canvas		canvas = new Canvas (bitmap);
+
+		if (_bitmap != null) {
+			canvas.drawBitmap (_bitmap, 0, 0, null);
+			_bitmap.recycle ();
+		}
+
+		_bitmap = bitmap;
+		_canvas = canvas;
+		_rows = rows;
+	}
+
+	/**
+	 * Return the index table slot where a key's search starts.
+	 *
+	 * @param key	The glyph's key.
+	 * @return	The starting slot.
+	 */
+	private int
+	hash (
+		long		key
+	) {
+		int			h = (int) (key ^ (key >>> 32)) * 0x9e3779b9;
+
+		return (h ^ (h >>> 16)) & (_keys.length - 1);
+	}
+
+	/**
+	 * Return the cell holding a glyph.
+	 *
+	 * @param key	The glyph's key.
+	 * @return	The cell, or -1 if the glyph isn't in the atlas.
+	 */
+	private int
+	find (
+		long		key
+	) {
+		int			mask = _keys.length - 1;
+
+		for (int i = hash (key); _cells[i] != 0; i = (i + 1) & mask)
+			if (_keys[i] == key)
+				return _cells[i] - 1;
+
+		return -1;
+	}
+
+	/**
+	 * Add a glyph to the index. Its key must not already be there.
+	 *
+	 * @param key	The glyph's key.
+	 * @param cell	The cell holding the glyph.
+	 */
+	private void
+	put (
+		long		key,
+		int			cell
+	) {
+		int			mask = _keys.length - 1;
+		int			i;
+
+		for (i = hash (key); _cells[i] != 0; i = (i + 1) & mask)
+			;
+
+		_keys[i] = key;
+		_cells[i] = cell + 1;
+	}
+
+	/**
+	 * Remove a glyph from the index. Later entries whose search passes
+	 * the hole are moved back, so no deleted markers are needed.
+	 *
+	 * @param key	The glyph's key.
+	 */
+	private void
+	remove (
+		long		key
+	) {
+		int			mask = _keys.length - 1;
+		int			i;
+
+		for (i = hash (key); _cells[i] != 0; i = (i + 1) & mask)
+			if (_keys[i] == key)
+				break;
+
+		if (_cells[i] == 0)
+			return;
+
+		for (int j = (i + 1) & mask; _cells[j] != 0; j = (j + 1) & mask) {
+			int			h = hash (_keys[j]);
+
+			if (((j - h) & mask) >= ((j - i) & mask)) {
+				_keys[i] = _keys[j];
+				_cells[i] = _cells[j];
+				i = j;
+			}
+		}
+
+		_cells[i] = 0;
+	}
+}
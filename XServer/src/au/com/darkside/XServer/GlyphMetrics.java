@@ -0,0 +1,393 @@
+/**
+ * This class holds the metrics of a font's glyphs.
+ */
+package au.com.darkside.XServer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class holds the metrics of a font's glyphs, shared by every font
+ * with the same typeface, style and size.
+ *
+ * Measuring glyphs with a Paint is slow, and a font covering the 16-bit
+ * range has 65,503 of them, so each glyph is measured once per process.
+ * The metrics are measured a page of 256 glyphs at a time, when they're
+ * first needed, and kept as the CHARINFO fields of a QueryFont reply.
+ * The CHARINFOs are encoded once for each byte order, and the encoded
+ * bytes are written to every client that queries the font.
+ */
+public class GlyphMetrics {
+	public static final char	MinChar = 32;	// Also the default char.
+
+	private static final int	PageBits = 8;
+	private static final int	PageSize = 1 << PageBits;
+	private static final int	CharInfoShorts = 6;
+	private static final int	MaxCached = 16;
+
+	private static final Map<String, GlyphMetrics>	_cache =
+			new LinkedHashMap<String, GlyphMetrics>(MaxCached, 0.75f, true) {
+		@Override
+		protected boolean
+		removeEldestEntry (
+			Map.Entry<String, GlyphMetrics>		eldest
+		) {
+			return size () > MaxCached;
+		}
+	};
+
+	private final Paint			_paint;
+	private final char			_maxChar;
+	private final short[][]		_pages;
+	private final short			_minWidth;
+	private final short			_maxWidth;
+	private final short			_ascent;
+	private final short			_descent;
+	private final short			_maxAscent;
+	private final short			_maxDescent;
+	private byte[]				_msbCharInfos = null;
+	private byte[]				_lsbCharInfos = null;
+
+	/**
+	 * Return the metrics of a font, measuring them if no font with the
+	 * same key has been measured. The most recently used are kept.
+	 *
+	 * @param key	Identifies the typeface, style, size and maximum
+	 * 				character of the font.
+	 * @param paint	A paint set to the font's typeface and size.
+	 * @param maxChar	The font's maximum character.
+	 * @return	The font's metrics.
+	 */
+	public static GlyphMetrics
+	get (
+		String		key,
+		Paint		paint,
+		char		maxChar
+	) {
+		synchronized (_cache) {
+			GlyphMetrics	gm = _cache.get (key);
+
+			if (gm == null) {
+				gm = new GlyphMetrics (paint, maxChar);
+				_cache.put (key, gm);
+			}
+
+			return gm;
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param paint	A paint set to the font's typeface and size.
+	 * @param maxChar	The font's maximum character.
+	 */
+	private GlyphMetrics (
+		Paint		paint,
+		char		maxChar
+	) {
+		_paint = new Paint (paint);
+		_maxChar = maxChar;
+		_pages = new short[(maxChar >> PageBits) + 1][];
+
+			// Calculate the minimum and maximum widths.
+		char[]		chars = new char[126 - 32 + 1];
+		float[]		widths = new float[chars.length];
+
+		for (int i = 0; i < chars.length; i++)
+			chars[i] = (char) (i + 32);
+
+		_paint.getTextWidths (chars, 0, chars.length, widths);
+
+		float		minw = widths[0];
+		float		maxw = widths[0];
+
+		for (float width: widths) {
+			if (width < minw)
+				minw = width;
+			if (width > maxw)
+				maxw = width;
+		}
+
+		_minWidth = (short) minw;
+		_maxWidth = (short) maxw;
+
+		Paint.FontMetricsInt	metrics = _paint.getFontMetricsInt ();
+
+		_ascent = (short) -metrics.ascent;
+		_descent = (short) metrics.descent;
+		_maxAscent = (short) -metrics.top;
+		_maxDescent = (short) metrics.bottom;
+	}
+
+	/**
+	 * Return the maximum character.
+	 *
+	 * @return	The maximum character.
+	 */
+	public char
+	getMaxChar () {
+		return _maxChar;
+	}
+
+	/**
+	 * Return the minimum width of the printable ASCII characters.
+	 *
+	 * @return	The minimum width.
+	 */
+	public short
+	getMinWidth () {
+		return _minWidth;
+	}
+
+	/**
+	 * Return the maximum width of the printable ASCII characters.
+	 *
+	 * @return	The maximum width.
+	 */
+	public short
+	getMaxWidth () {
+		return _maxWidth;
+	}
+
+	/**
+	 * Return the font's ascent.
+	 *
+	 * @return	The font's ascent.
+	 */
+	public short
+	getAscent () {
+		return _ascent;
+	}
+
+	/**
+	 * Return the font's descent.
+	 *
+	 * @return	The font's descent.
+	 */
+	public short
+	getDescent () {
+		return _descent;
+	}
+
+	/**
+	 * Return the maximum ascent of the font's glyphs.
+	 *
+	 * @return	The maximum ascent.
+	 */
+	public short
+	getMaxAscent () {
+		return _maxAscent;
+	}
+
+	/**
+	 * Return the maximum descent of the font's glyphs.
+	 *
+	 * @return	The maximum descent.
+	 */
+	public short
+	getMaxDescent () {
+		return _maxDescent;
+	}
+
+	/**
+	 * Return the page holding a character's metrics, measuring it if
+	 * necessary. Each character has six shorts: left side bearing, right
+	 * side bearing, width, ascent, descent, and attributes.
+	 *
+	 * @param c	The character.
+	 * @return	The page holding the character's metrics.
+	 */
+	private short[]
+	getPage (
+		char		c
+	) {
+		int			p = c >> PageBits;
+		short[]		page = _pages[p];
+
+		if (page != null)
+			return page;
+
+		int			first = p << PageBits;
+		int			n = Math.min (PageSize, _maxChar + 1 - first);
+		char[]		chars = new char[n];
+		float[]		widths = new float[n];
+		Rect		bounds = new Rect ();
+
+		for (int i = 0; i < n; i++)
+			chars[i] = (char) (first + i);
+
+		page = new short[n * CharInfoShorts];
+		_paint.getTextWidths (chars, 0, n, widths);
+		for (int i = 0, j = 0; i < n; i++) {
+			_paint.getTextBounds (chars, i, 1, bounds);
+			page[j++] = (short) bounds.left;	// Left side bearing.
+			page[j++] = (short) bounds.right;	// Right side bearing.
+			page[j++] = (short) widths[i];	// Character width.
+			page[j++] = (short) -bounds.top;	// Ascent.
+			page[j++] = (short) bounds.bottom;	// Descent.
+			page[j++] = (short) 0;	// Attributes.
+		}
+
+		_pages[p] = page;
+
+		return page;
+	}
+
+	/**
+	 * Return the number of CHARINFOs in a QueryFont reply, one for each
+	 * character from MinChar to the maximum character.
+	 *
+	 * @return	The number of CHARINFOs.
+	 */
+	public int
+	getNumCharInfos () {
+		return _maxChar - MinChar + 1;
+	}
+
+	/**
+	 * Return the CHARINFOs of a QueryFont reply, encoded in a byte order.
+	 * The array is shared, so it must not be modified.
+	 *
+	 * @param msb	Whether the most significant byte comes first.
+	 * @return	The encoded CHARINFOs.
+	 */
+	public synchronized byte[]
+	getCharInfos (
+		boolean		msb
+	) {
+		byte[]		ba = msb ? _msbCharInfos : _lsbCharInfos;
+
+		if (ba != null)
+			return ba;
+
+		ByteBuffer	bb;
+
+		ba = new byte[getNumCharInfos () * CharInfoShorts * 2];
+		bb = ByteBuffer.wrap (ba);
+		bb.order (msb ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+
+		for (int c = MinChar; c <= _maxChar; c = (c | (PageSize - 1)) + 1) {
+			short[]		page = getPage ((char) c);
+			int			offset = (c & (PageSize - 1)) * CharInfoShorts;
+			int			n = page.length - offset;
+
+			bb.asShortBuffer().put (page, offset, n);
+			bb.position (bb.position () + 2 * n);
+		}
+
+		if (msb)
+			_msbCharInfos = ba;
+		else
+			_lsbCharInfos = ba;
+
+		return ba;
+	}
+
+	/**
+	 * Return the metrics of a character. Characters the font doesn't
+	 * have are measured as the default character.
+	 *
+	 * @param c	The character.
+	 * @param info	Return value. The left side bearing, right side
+	 * 				bearing, width, ascent, descent and attributes.
+	 */
+	public synchronized void
+	getCharInfo (
+		char		c,
+		short[]		info
+	) {
+		if (c < MinChar || c > _maxChar)
+			c = MinChar;
+
+		short[]		page = getPage (c);
+		int			j = (c & (PageSize - 1)) * CharInfoShorts;
+
+		System.arraycopy (page, j, info, 0, CharInfoShorts);
+	}
+
+	/**
+	 * Return the width of a string, the sum of its characters' widths.
+	 *
+	 * @param chars	The characters.
+	 * @param length	The number of characters.
+	 * @return	The width of the string.
+	 */
+	public synchronized int
+	getTextWidth (
+		char[]		chars,
+		int			length
+	) {
+		int			width = 0;
+
+		for (int i = 0; i < length; i++) {
+			char		c = chars[i];
+
+			if (c < MinChar || c > _maxChar)
+				c = MinChar;
+
+			width += getPage (c)[(c & (PageSize - 1)) * CharInfoShorts + 2];
+		}
+
+		return width;
+	}
+
+	/**
+	 * Calculate the extents of a string as the sum of its characters'
+	 * metrics, the way a QueryTextExtents reply reports them. Characters
+	 * the font doesn't have are measured as the default character.
+	 *
+	 * @param chars	The characters.
+	 * @param length	The number of characters.
+	 * @param bounds	Return value. The overall left and right bearings,
+	 * 					and the negated ascent and the descent.
+	 * @return	The overall width.
+	 */
+	public synchronized int
+	measureText (
+		char[]		chars,
+		int			length,
+		Rect		bounds
+	) {
+		int			width = 0;
+
+		bounds.setEmpty ();
+		for (int i = 0; i < length; i++) {
+			char		c = chars[i];
+
+			if (c < MinChar || c > _maxChar)
+				c = MinChar;
+
+			short[]		page = getPage (c);
+			int			j = (c & (PageSize - 1)) * CharInfoShorts;
+			int			left = width + page[j];
+			int			right = width + page[j + 1];
+			int			top = -page[j + 3];
+			int			bottom = page[j + 4];
+
+			if (i == 0) {
+				bounds.set (left, top, right, bottom);
+			} else {
+				if (left < bounds.left)
+					bounds.left = left;
+				if (right > bounds.right)
+					bounds.right = right;
+				if (top < bounds.top)
+					bounds.top = top;
+				if (bottom > bounds.bottom)
+					bounds.bottom = bottom;
+			}
+
+			width += page[j + 2];
+		}
+
+		return width;
+	}
+}
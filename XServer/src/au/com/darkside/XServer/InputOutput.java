@@ -3,20 +3,91 @@
  */
 package au.com.darkside.XServer;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.net.Socket;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+
+import android.net.LocalSocket;
 
 /**
  * @author Matthew Kwan
  *
  * This class handles buffered bi-directional communications.
+ * Input is read from a non-blocking channel into a buffer by the
+ * selector thread that owns the connection, and requests are only
+ * decoded once they are complete in the buffer. The exception is a
+ * request too long to buffer whole, such as a large PutImage, which is
+ * processed in pieces as its body arrives. Connections on a local
+ * (Unix domain) socket are read the same way, but with blocking reads
+ * by a thread dedicated to the connection. Output is encoded into
+ * a reusable buffer in the client's byte order, one put per field, and
+ * sent to the channel with bulk writes.
+ *
+ * Calls to flush are coalesced. While a batch of requests is being
+ * processed the output is only sent when the batch ends, and output
+ * generated at other times, such as input events, is sent when the
+ * flush delay expires. Events another client is waiting for in order to
+ * continue, such as those of a selection transfer, skip the delay.
+ *
+ * Writers never block on a slow client. Output the socket can't accept
+ * immediately is queued, and the queue is drained by the selector
+ * thread when the channel becomes writable, or by a thread dedicated to
+ * the connection for a local socket. If the queue grows beyond its
+ * limit, the client is either disconnected or its events are dropped,
+ * depending on the overflow policy. In the latter case the client's
+ * requests aren't read until the queue is back under its limit, since
+ * replies can't be dropped.
+ *
+ * While output is queued, a MotionNotify event that is still in the
+ * output buffer is updated in place by the next one for the same window
+ * and state, so a slow client only sees the latest pointer position.
  */
 public class InputOutput {
-	private final BufferedInputStream	_inStream;
-	private final BufferedOutputStream	_outStream;
+	public static final int		OverflowDisconnect = 0;
+	public static final int		OverflowDropEvents = 1;
+	public static final int		DefaultOutputQueueLimit = 16 * 1024 * 1024;
+	public static final int		EventLength = 32;
+	public static final int		MaxRequestLength = 4 * 1024 * 1024;
+	private static final int	InputBufferSize = 4096;
+	private static final int	MaxIdleInputBufferSize = 64 * 1024;
+
+	private final SocketChannel			_channel;
+	private final LocalSocket			_localSocket;
+	private final InputStream			_inStream;
+	private final OutputStream			_outStream;
+	private ByteBuffer					_inBuffer;
+	private int							_requestLimit = -1;
+	private int							_requestPending = 0;
+	private int							_skipInput = 0;
+	private int							_peakInputBufferSize = InputBufferSize;
+	private final ByteBuffer			_outBuffer;
+	private final LinkedList<ByteBuffer>	_outputQueue;
+	private int							_queuedBytes = 0;
+	private int							_peakQueuedBytes = 0;
+	private int							_outputQueueLimit = DefaultOutputQueueLimit;
+	private int							_overflowPolicy = OverflowDisconnect;
+	private boolean						_overflowed = false;
+	private boolean						_closed = false;
+	private int							_discardBytes = 0;
+	private long						_droppedEventCount = 0;
+	private long						_stallStart = 0;
+	private long						_stalledMillis = 0;
+	private int							_motionEventOffset = -1;
+	private long						_mergedMotionCount = 0;
 	private boolean						_msb = true;
+	private SelectorThread				_selectorThread = null;
+	private int							_flushDelay = 0;
+	private boolean						_batching = false;
+	private boolean						_flushPending = false;
+	private long						_flushDeadline = 0;
+	private long						_flushRequestCount = 0;
+	private long						_flushCount = 0;
+	private long						_bytesSent = 0;
 	private static final byte[]		PadBytes = new byte[] {
 		0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
 		0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0
@@ -25,15 +96,567 @@ public class InputOutput {
 	/**
 	 * Constructor.
 	 *
-	 * @param socket	Communicate via this socket.
+	 * @param channel	Communicate via this non-blocking channel.
 	 * @throws IOException
 	 */
 	public InputOutput (
-		Socket		socket
+		SocketChannel	channel
 	) throws IOException {
-		_inStream = new BufferedInputStream (socket.getInputStream (), 16384);
-		_outStream = new BufferedOutputStream (socket.getOutputStream (),
-																	16384);
+		_channel = channel;
+		_localSocket = null;
+		_inStream = null;
+		_outStream = null;
+		_inBuffer = ByteBuffer.allocate (InputBufferSize);
+		_inBuffer.order (ByteOrder.BIG_ENDIAN);
+		_inBuffer.flip ();
+		_outBuffer = ByteBuffer.allocate (16384);
+		_outBuffer.order (ByteOrder.BIG_ENDIAN);
+		_outputQueue = new LinkedList<ByteBuffer>();
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param socket	Communicate via this local socket.
+	 * @throws IOException
+	 */
+	public InputOutput (
+		LocalSocket		socket
+	) throws IOException {
+		_channel = null;
+		_localSocket = socket;
+		_inStream = socket.getInputStream ();
+		_outStream = socket.getOutputStream ();
+		_inBuffer = ByteBuffer.allocate (InputBufferSize);
+		_inBuffer.order (ByteOrder.BIG_ENDIAN);
+		_inBuffer.flip ();
+		_outBuffer = ByteBuffer.allocate (16384);
+		_outBuffer.order (ByteOrder.BIG_ENDIAN);
+		_outputQueue = new LinkedList<ByteBuffer>();
+	}
+
+	/**
+	 * Return the channel used for communications.
+	 *
+	 * @return	The channel used for communications, or null if a local
+	 * 			socket is being used.
+	 */
+	public SocketChannel
+	getChannel () {
+		return _channel;
+	}
+
+	/**
+	 * Set the selector thread that performs delayed flushes.
+	 *
+	 * @param st	The selector thread that owns the channel.
+	 */
+	public synchronized void
+	setSelectorThread (
+		SelectorThread	st
+	) {
+		_selectorThread = st;
+	}
+
+	/**
+	 * Set the maximum time that output outside a batch of requests may
+	 * wait before being sent.
+	 *
+	 * @param delay	The delay in milliseconds. 0 means flush immediately.
+	 */
+	public synchronized void
+	setFlushDelay (
+		int			delay
+	) {
+		_flushDelay = delay;
+	}
+
+	/**
+	 * Return the time at which delayed output must be sent.
+	 * Not synchronized, since it is called by the selector thread while
+	 * it holds the lock on its list of delayed flushes.
+	 *
+	 * @return	The flush deadline, in milliseconds.
+	 */
+	public long
+	getFlushDeadline () {
+		return _flushDeadline;
+	}
+
+	/**
+	 * Return the number of times a flush has been requested.
+	 *
+	 * @return	The number of flush requests.
+	 */
+	public synchronized long
+	getFlushRequestCount () {
+		return _flushRequestCount;
+	}
+
+	/**
+	 * Return the number of times output was actually written to the
+	 * channel. The difference from the number of flush requests is the
+	 * number of writes saved by coalescing.
+	 *
+	 * @return	The number of channel writes.
+	 */
+	public synchronized long
+	getFlushCount () {
+		return _flushCount;
+	}
+
+	/**
+	 * Set the maximum number of bytes that may be queued waiting for
+	 * the client to read them.
+	 *
+	 * @param limit	The queue limit, in bytes.
+	 */
+	public synchronized void
+	setOutputQueueLimit (
+		int			limit
+	) {
+		_outputQueueLimit = limit;
+	}
+
+	/**
+	 * Set what happens when the output queue exceeds its limit.
+	 *
+	 * @param policy	OverflowDisconnect or OverflowDropEvents.
+	 */
+	public synchronized void
+	setOverflowPolicy (
+		int			policy
+	) {
+		_overflowPolicy = policy;
+	}
+
+	/**
+	 * Return the number of bytes queued waiting for the client to read
+	 * them.
+	 *
+	 * @return	The depth of the output queue, in bytes.
+	 */
+	public synchronized int
+	getOutputQueueDepth () {
+		return _queuedBytes;
+	}
+
+	/**
+	 * Return the largest number of bytes that have been queued.
+	 *
+	 * @return	The peak depth of the output queue, in bytes.
+	 */
+	public synchronized int
+	getPeakOutputQueueDepth () {
+		return _peakQueuedBytes;
+	}
+
+	/**
+	 * Return the largest size the input buffer has grown to.
+	 *
+	 * @return	The peak size of the input buffer, in bytes.
+	 */
+	public int
+	getPeakInputBufferSize () {
+		return _peakInputBufferSize;
+	}
+
+	/**
+	 * Return the total time the client has had output queued because
+	 * it wasn't reading fast enough.
+	 *
+	 * @return	The stalled time, in milliseconds.
+	 */
+	public synchronized long
+	getStalledMillis () {
+		if (_stallStart == 0)
+			return _stalledMillis;
+
+		return _stalledMillis + System.currentTimeMillis () - _stallStart;
+	}
+
+	/**
+	 * Return the number of events dropped because the output queue was
+	 * full. Non-zero means the client has missed events.
+	 *
+	 * @return	The number of events dropped.
+	 */
+	public synchronized long
+	getDroppedEventCount () {
+		return _droppedEventCount;
+	}
+
+	/**
+	 * Return whether the output queue exceeded its limit and the client
+	 * is to be disconnected.
+	 *
+	 * @return	True if the output queue overflowed.
+	 */
+	public synchronized boolean
+	isOverflowed () {
+		return _overflowed;
+	}
+
+	/**
+	 * Return whether the output queue is over its limit, in which case
+	 * the client's requests shouldn't be read.
+	 *
+	 * @return	True if the output queue is full.
+	 */
+	public synchronized boolean
+	isOutputQueueFull () {
+		return _queuedBytes > _outputQueueLimit;
+	}
+
+	/**
+	 * Wait until the output queue is back under its limit, or the
+	 * connection is closed. Called by a local socket's reader thread.
+	 *
+	 * @throws InterruptedException
+	 */
+	public synchronized void
+	waitForOutputQueue () throws InterruptedException {
+		while (_queuedBytes > _outputQueueLimit && !_closed)
+			wait ();
+	}
+
+	/**
+	 * Return whether output is queued waiting for the channel to become
+	 * writable.
+	 *
+	 * @return	True if output is queued.
+	 */
+	public synchronized boolean
+	hasQueuedOutput () {
+		return !_outputQueue.isEmpty () || _overflowed;
+	}
+
+	/**
+	 * Return the number of MotionNotify events merged into an earlier
+	 * one before being sent.
+	 *
+	 * @return	The number of motion events merged.
+	 */
+	public synchronized long
+	getMergedMotionCount () {
+		return _mergedMotionCount;
+	}
+
+	/**
+	 * Note that a MotionNotify event is about to be written, so it can be
+	 * updated by a later one while it's still in the output buffer.
+	 * The caller must hold the lock on this object until the event is
+	 * written.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void
+	beginMotionEvent () throws IOException {
+		reserve (EventLength);	// So it isn't split by a flush.
+		_motionEventOffset = _outBuffer.position ();
+	}
+
+	/**
+	 * Merge a MotionNotify event into the previous one, if that is the
+	 * last thing in the output buffer and has the same detail, event
+	 * window, child and state. The previous event is given the new
+	 * position, time and sequence number.
+	 *
+	 * @param sequence	Sequence number of the last request processed.
+	 * @param detail	0=Normal, 1=Hint.
+	 * @param timestamp	Time in milliseconds since last server reset.
+	 * @param eventWindow	ID of the window interested in the event.
+	 * @param child	ID of the child window, or 0.
+	 * @param rootX	Pointer root X coordinate.
+	 * @param rootY	Pointer root Y coordinate.
+	 * @param eventX	Pointer X coordinate relative to event window.
+	 * @param eventY	Pointer Y coordinate relative to event window.
+	 * @param state	Bitmask of the buttons and modifier keys.
+	 * @return	True if the event was merged and needn't be written.
+	 */
+	public synchronized boolean
+	mergeMotionEvent (
+		int			sequence,
+		int			detail,
+		int			timestamp,
+		int			eventWindow,
+		int			child,
+		int			rootX,
+		int			rootY,
+		int			eventX,
+		int			eventY,
+		int			state
+	) {
+		int			off = _motionEventOffset;
+
+		if (off < 0 || _outBuffer.position () != off + EventLength)
+			return false;
+
+		if (_outBuffer.get (off + 1) != (byte) detail
+							|| _outBuffer.getInt (off + 12) != eventWindow
+							|| _outBuffer.getInt (off + 16) != child
+							|| _outBuffer.getShort (off + 28) != (short) state)
+			return false;
+
+		_outBuffer.putShort (off + 2, (short) sequence);
+		_outBuffer.putInt (off + 4, timestamp);
+		_outBuffer.putShort (off + 20, (short) rootX);
+		_outBuffer.putShort (off + 22, (short) rootY);
+		_outBuffer.putShort (off + 24, (short) eventX);
+		_outBuffer.putShort (off + 26, (short) eventY);
+		_mergedMotionCount++;
+
+		return true;
+	}
+
+	/**
+	 * Start writing an event, which is EventLength bytes long. If the
+	 * output queue is full and events may be dropped, the event's bytes
+	 * are discarded as they are written. The caller should hold the lock
+	 * on this object until the whole event is written.
+	 */
+	public synchronized void
+	beginEvent () {
+		if (_overflowPolicy == OverflowDropEvents
+								&& _queuedBytes > _outputQueueLimit) {
+			_discardBytes = EventLength;
+			_droppedEventCount++;
+			_motionEventOffset = -1;
+		}
+	}
+
+	/**
+	 * Return the number of bytes written so far, including those still
+	 * buffered.
+	 *
+	 * @return	The number of bytes written.
+	 */
+	public synchronized long
+	getBytesWritten () {
+		return _bytesSent + _outBuffer.position ();
+	}
+
+	/**
+	 * Start processing a batch of requests. Flushes are deferred until
+	 * the batch ends.
+	 */
+	public synchronized void
+	beginBatch () {
+		_batching = true;
+	}
+
+	/**
+	 * Finish processing a batch of requests and send any output that
+	 * was generated.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void
+	endBatch () throws IOException {
+		_batching = false;
+		flushPending ();
+	}
+
+	/**
+	 * Send any output whose flush was deferred.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void
+	flushPending () throws IOException {
+		if (!_flushPending)
+			return;
+
+		_flushPending = false;
+		flushUnlessQueued ();
+	}
+
+	/**
+	 * Read as many bytes as are available from the channel into the
+	 * input buffer without blocking. A local socket blocks until at
+	 * least one byte is available.
+	 *
+	 * @return	The number of bytes read, or -1 at end of stream.
+	 * @throws IOException
+	 */
+	public int
+	fill () throws IOException {
+		if (_inBuffer.remaining () == _inBuffer.capacity ())
+			ensureCapacity (_inBuffer.capacity () * 2);
+
+		_inBuffer.compact ();
+
+		int		n;
+
+		try {
+			if (_channel != null) {
+				n = _channel.read (_inBuffer);
+			} else {
+				n = _inStream.read (_inBuffer.array (), _inBuffer.arrayOffset ()
+							+ _inBuffer.position (), _inBuffer.remaining ());
+				if (n > 0)
+					_inBuffer.position (_inBuffer.position () + n);
+			}
+		} finally {
+			_inBuffer.flip ();
+		}
+
+		if (_skipInput > 0) {	// The rest of a request being discarded.
+			int			skip = Math.min (_skipInput, _inBuffer.remaining ());
+
+			_inBuffer.position (_inBuffer.position () + skip);
+			_skipInput -= skip;
+		}
+
+		return n;
+	}
+
+	/**
+	 * Make sure the input buffer can hold at least the specified number
+	 * of unread bytes.
+	 *
+	 * @param n	The number of bytes the buffer must be able to hold.
+	 */
+	public void
+	ensureCapacity (
+		int			n
+	) {
+		if (n <= _inBuffer.capacity ())
+			return;
+
+		ByteBuffer	bb = ByteBuffer.allocate (n);
+
+		bb.order (_inBuffer.order ());
+		bb.put (_inBuffer);
+		bb.flip ();
+		_inBuffer = bb;
+
+		if (n > _peakInputBufferSize)
+			_peakInputBufferSize = n;
+	}
+
+	/**
+	 * Return the number of unread bytes in the input buffer.
+	 *
+	 * @return	The number of unread bytes in the input buffer.
+	 */
+	public int
+	available () {
+		return _inBuffer.remaining ();
+	}
+
+	/**
+	 * Return an unread 8-bit integer from the input buffer without
+	 * consuming it.
+	 *
+	 * @param offset	Offset from the current read position.
+	 * @return	An 8-bit integer in the range 0 to 255.
+	 */
+	public int
+	peekByte (
+		int			offset
+	) {
+		return _inBuffer.get (_inBuffer.position () + offset) & 0xff;
+	}
+
+	/**
+	 * Return an unread 16-bit integer from the input buffer without
+	 * consuming it.
+	 *
+	 * @param offset	Offset from the current read position.
+	 * @return	A 16-bit integer in the range 0 to 65535.
+	 */
+	public int
+	peekShort (
+		int			offset
+	) {
+		return _inBuffer.getShort (_inBuffer.position () + offset) & 0xffff;
+	}
+
+	/**
+	 * Return an unread 32-bit integer from the input buffer without
+	 * consuming it.
+	 *
+	 * @param offset	Offset from the current read position.
+	 * @return	A 32-bit signed integer.
+	 */
+	public int
+	peekInt (
+		int			offset
+	) {
+		return _inBuffer.getInt (_inBuffer.position () + offset);
+	}
+
+	/**
+	 * Restrict reading to the next length bytes of the input buffer,
+	 * which hold the body of the request about to be processed.
+	 * If only part of the body has arrived, reading is restricted to that
+	 * part, and the rest can only be skipped.
+	 *
+	 * @param length	The number of bytes in the request body.
+	 */
+	public void
+	beginRequest (
+		int			length
+	) {
+		int			available = _inBuffer.remaining ();
+
+		_requestLimit = _inBuffer.limit ();
+		if (length > available) {
+			_requestPending = length - available;
+		} else {
+			_requestPending = 0;
+			_inBuffer.limit (_inBuffer.position () + length);
+		}
+	}
+
+	/**
+	 * Discard any unread bytes of the current request and lift the
+	 * restriction set by beginRequest. Bytes of the request that haven't
+	 * arrived yet are discarded when they do. If the input buffer was
+	 * enlarged to hold a big request, it's shrunk back once that request
+	 * is done.
+	 */
+	public void
+	endRequest () {
+		if (_requestLimit < 0)
+			return;
+
+		_inBuffer.position (_inBuffer.limit ());
+		_inBuffer.limit (_requestLimit);
+		_requestLimit = -1;
+		_skipInput += _requestPending;
+		_requestPending = 0;
+
+		int			capacity = _inBuffer.capacity ();
+		int			remaining = _inBuffer.remaining ();
+
+		if (capacity <= MaxIdleInputBufferSize || remaining > capacity / 2)
+			return;
+
+		ByteBuffer	bb = ByteBuffer.allocate (Math.max (InputBufferSize,
+																remaining));
+
+		bb.order (_inBuffer.order ());
+		bb.put (_inBuffer);
+		bb.flip ();
+		_inBuffer = bb;
+	}
+
+	/**
+	 * Lift the restriction set by beginRequest, leaving the unread bytes
+	 * of the current request in the input buffer. Used by a request that
+	 * is processed in pieces, to read them with the rest of its body when
+	 * more of it arrives.
+	 */
+	public void
+	suspendRequest () {
+		if (_requestLimit < 0)
+			return;
+
+		_inBuffer.limit (_requestLimit);
+		_requestLimit = -1;
+		_requestPending = 0;
 	}
 
 	/**
@@ -46,6 +669,45 @@ public class InputOutput {
 		boolean			msb
 	) {
 		_msb = msb;
+		_inBuffer.order (msb ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+		_outBuffer.order (_inBuffer.order ());
+	}
+
+	/**
+	 * Return whether the most significant byte comes first.
+	 *
+	 * @return	True if the most significant byte comes first.
+	 */
+	public boolean
+	isMSB () {
+		return _msb;
+	}
+
+	/**
+	 * Return the buffer holding the body of the request being processed.
+	 * It uses the client's byte order, its position is the next unread
+	 * byte, and its limit is the end of the request. Handlers can decode
+	 * directly from it instead of reading a byte at a time.
+	 *
+	 * @return	The buffer holding the current request.
+	 */
+	public ByteBuffer
+	getRequestBuffer () {
+		return _inBuffer;
+	}
+
+	/**
+	 * Throw an exception if fewer than n bytes remain to be read.
+	 *
+	 * @param n	The number of bytes about to be read.
+	 * @throws IOException
+	 */
+	private void
+	checkAvailable (
+		int			n
+	) throws IOException {
+		if (_inBuffer.remaining () < n)
+			throw new IOException ();
 	}
 
 	/**
@@ -56,12 +718,10 @@ public class InputOutput {
 	 */
 	public int
 	readByte () throws IOException {
-		int		n = _inStream.read ();
-
-		if (n < 0)
+		if (!_inBuffer.hasRemaining ())
 			throw new IOException ();
-		else
-			return n;
+
+		return _inBuffer.get () & 0xff;
 	}
 
 	/**
@@ -78,16 +738,8 @@ public class InputOutput {
 		int			offset,
 		int			length
 	) throws IOException {
-		while  (length > 0) {
-			int			n = _inStream.read (ba, offset, length);
-
-			if (n < 0) {
-				throw new IOException ();
-			} else {
-				length -= n;
-				offset += n;
-			}
-		}
+		checkAvailable (length);
+		_inBuffer.get (ba, offset, length);
 	}
 
 	/**
@@ -164,15 +816,51 @@ public class InputOutput {
 	 */
 	public int
 	readShort () throws IOException {
-		if (_msb) {
-			int		n = readByte ();
+		checkAvailable (2);
 
-			return (n << 8) | readByte ();
-		} else {
-			int		n = readByte ();
+		return _inBuffer.getShort () & 0xffff;
+	}
 
-			return n | (readByte () << 8);
-		}
+	/**
+	 * Read an array of 16-bit integers from the input stream.
+	 *
+	 * @param values	The array to store the integers to.
+	 * @param offset	The start position in the array.
+	 * @param length	The number of integers to read.
+	 * @throws IOException
+	 */
+	public void
+	readShorts (
+		short[]		values,
+		int			offset,
+		int			length
+	) throws IOException {
+		checkAvailable (2 * length);
+		_inBuffer.asShortBuffer().get (values, offset, length);
+		_inBuffer.position (_inBuffer.position () + 2 * length);
+	}
+
+	/**
+	 * Read an array of signed 16-bit integers, such as coordinates, from
+	 * the input stream and store them as floats.
+	 *
+	 * @param values	The array to store the values to.
+	 * @param offset	The start position in the array.
+	 * @param length	The number of values to read.
+	 * @throws IOException
+	 */
+	public void
+	readShortsAsFloats (
+		float[]		values,
+		int			offset,
+		int			length
+	) throws IOException {
+		checkAvailable (2 * length);
+
+		final ByteBuffer	bb = _inBuffer;
+
+		for (int i = 0; i < length; i++)
+			values[offset + i] = bb.getShort ();
 	}
 
 	/**
@@ -183,19 +871,28 @@ public class InputOutput {
 	 */
 	public int
 	readInt () throws IOException {
-		int		n = readByte ();
+		checkAvailable (4);
 
-		if (_msb) {
-			n = (n << 8) | readByte ();
-			n = (n << 8) | readByte ();
-			n = (n << 8) | readByte ();
-		} else {
-			n |= readByte () << 8;
-			n |= readByte () << 16;
-			n |= readByte () << 24;
-		}
+		return _inBuffer.getInt ();
+	}
 
-		return n;
+	/**
+	 * Read an array of 32-bit integers from the input stream.
+	 *
+	 * @param values	The array to store the integers to.
+	 * @param offset	The start position in the array.
+	 * @param length	The number of integers to read.
+	 * @throws IOException
+	 */
+	public void
+	readInts (
+		int[]		values,
+		int			offset,
+		int			length
+	) throws IOException {
+		checkAvailable (4 * length);
+		_inBuffer.asIntBuffer().get (values, offset, length);
+		_inBuffer.position (_inBuffer.position () + 4 * length);
 	}
 
 	/**
@@ -206,31 +903,14 @@ public class InputOutput {
 	 */
 	public long
 	readLong () throws IOException {
-		long	n = readByte ();
-		
-		if (_msb) {
-			n = (n << 8) | readByte ();
-			n = (n << 8) | readByte ();
-			n = (n << 8) | readByte ();
-			n = (n << 8) | readByte ();
-			n = (n << 8) | readByte ();
-			n = (n << 8) | readByte ();
-			n = (n << 8) | readByte ();
-		} else {
-			n |= readByte () << 8;
-			n |= readByte () << 16;
-			n |= readByte () << 24;
-			n |= readByte () << 32;
-			n |= readByte () << 40;
-			n |= readByte () << 48;
-			n |= readByte () << 56;
-		}
+		checkAvailable (8);
 
-		return n;
+		return _inBuffer.getLong ();
 	}
 
 	/**
-	 * Skip bytes from the input stream.
+	 * Skip bytes from the input stream. Bytes of the current request that
+	 * haven't arrived yet are skipped when they do.
 	 *
 	 * @param n		The number of bytes to skip.
 	 * @throws IOException
@@ -239,8 +919,54 @@ public class InputOutput {
 	readSkip (
 		int		n
 	) throws IOException {
-		while (n > 0)
-			n -= _inStream.skip (n);
+		int			available = _inBuffer.remaining ();
+
+		if (n > available && n - available <= _requestPending) {
+				// Skip bytes of the request that haven't arrived yet.
+			_inBuffer.position (_inBuffer.limit ());
+			_requestPending -= n - available;
+			_skipInput += n - available;
+			return;
+		}
+
+		checkAvailable (n);
+		_inBuffer.position (_inBuffer.position () + n);
+	}
+
+	/**
+	 * Should the bytes about to be written be discarded? They are if
+	 * they belong to a dropped event, or the output queue overflowed.
+	 *
+	 * @param n	The number of bytes about to be written.
+	 * @return	True if the bytes are to be discarded.
+	 */
+	private boolean
+	discard (
+		int			n
+	) {
+		if (_overflowed)
+			return true;
+
+		if (_discardBytes <= 0)
+			return false;
+
+		_discardBytes -= n;
+		return true;
+	}
+
+	/**
+	 * Make sure there is room in the output buffer for n more bytes,
+	 * sending its contents to the channel if necessary.
+	 *
+	 * @param n	The number of bytes about to be written.
+	 * @throws IOException
+	 */
+	private void
+	reserve (
+		int			n
+	) throws IOException {
+		if (_outBuffer.remaining () < n)
+			flushBuffer ();
 	}
 
 	/**
@@ -249,28 +975,45 @@ public class InputOutput {
 	 * @param n		The byte to write.
 	 * @throws IOException
 	 */
-	public void
+	public synchronized void
 	writeByte (
 		byte		n
 	) throws IOException {
-		_outStream.write (n);
+		if (discard (1))
+			return;
+
+		reserve (1);
+		_outBuffer.put (n);
 	}
 
 	/**
 	 * Write bytes to the output stream.
+	 * Large arrays are sent to the channel directly rather than being
+	 * copied into the output buffer.
 	 *
 	 * @param ba		The array to be written.
 	 * @param offset	The start position in the array to write from.
 	 * @param length	The number of bytes to write.
 	 * @throws IOException
 	 */
-	public void
+	public synchronized void
 	writeBytes (
 		byte[]		ba,
 		int			offset,
 		int			length
 	) throws IOException {
-		_outStream.write (ba, offset, length);
+		if (discard (length))
+			return;
+
+		if (length <= _outBuffer.remaining ()) {
+			_outBuffer.put (ba, offset, length);
+		} else {
+			flushBuffer ();
+			if (length <= _outBuffer.remaining ())
+				_outBuffer.put (ba, offset, length);
+			else
+				queueOutput (ByteBuffer.wrap (ba, offset, length));
+		}
 	}
 
 	/**
@@ -279,16 +1022,49 @@ public class InputOutput {
 	 * @param n		The short to write.
 	 * @throws IOException
 	 */
-	public void
+	public synchronized void
 	writeShort (
 		short		n
 	) throws IOException {
-		if (_msb) {
-			_outStream.write ((byte) ((n >> 8) & 0xff));
-			_outStream.write ((byte) (n & 0xff));
-		} else {
-			_outStream.write ((byte) (n & 0xff));
-			_outStream.write ((byte) ((n >> 8) & 0xff));
+		if (discard (2))
+			return;
+
+		reserve (2);
+		_outBuffer.putShort (n);
+	}
+
+	/**
+	 * Write an array of 16-bit integers to the output stream.
+	 *
+	 * @param values	The array to be written.
+	 * @param offset	The start position in the array to write from.
+	 * @param length	The number of integers to write.
+	 * @throws IOException
+	 */
+	public synchronized void
+	writeShorts (
+		short[]		values,
+		int			offset,
+		int			length
+	) throws IOException {
+		if (discard (2 * length))
+			return;
+
+		while (length > 0) {
+			int		n = _outBuffer.remaining () / 2;
+
+			if (n == 0) {
+				flushBuffer ();
+				continue;
+			}
+
+			if (n > length)
+				n = length;
+
+			_outBuffer.asShortBuffer().put (values, offset, n);
+			_outBuffer.position (_outBuffer.position () + 2 * n);
+			offset += n;
+			length -= n;
 		}
 	}
 
@@ -298,20 +1074,49 @@ public class InputOutput {
 	 * @param n		The integer to write.
 	 * @throws IOException
 	 */
-	public void
+	public synchronized void
 	writeInt (
 		int		n
 	) throws IOException {
-		if (_msb) {
-			_outStream.write ((byte) ((n >> 24) & 0xff));
-			_outStream.write ((byte) ((n >> 16) & 0xff));
-			_outStream.write ((byte) ((n >> 8) & 0xff));
-			_outStream.write ((byte) (n & 0xff));
-		} else {
-			_outStream.write ((byte) ((n) & 0xff));
-			_outStream.write ((byte) ((n >> 8) & 0xff));
-			_outStream.write ((byte) ((n >> 16) & 0xff));
-			_outStream.write ((byte) ((n >> 24) & 0xff));
+		if (discard (4))
+			return;
+
+		reserve (4);
+		_outBuffer.putInt (n);
+	}
+
+	/**
+	 * Write an array of 32-bit integers to the output stream.
+	 *
+	 * @param values	The array to be written.
+	 * @param offset	The start position in the array to write from.
+	 * @param length	The number of integers to write.
+	 * @throws IOException
+	 */
+	public synchronized void
+	writeInts (
+		int[]		values,
+		int			offset,
+		int			length
+	) throws IOException {
+		if (discard (4 * length))
+			return;
+
+		while (length > 0) {
+			int		n = _outBuffer.remaining () / 4;
+
+			if (n == 0) {
+				flushBuffer ();
+				continue;
+			}
+
+			if (n > length)
+				n = length;
+
+			_outBuffer.asIntBuffer().put (values, offset, n);
+			_outBuffer.position (_outBuffer.position () + 4 * n);
+			offset += n;
+			length -= n;
 		}
 	}
 
@@ -321,29 +1126,15 @@ public class InputOutput {
 	 * @param n		The integer to write.
 	 * @throws IOException
 	 */
-	public void
+	public synchronized void
 	writeLong (
 		long	n
 	) throws IOException{
-		if (_msb) {
-			_outStream.write ((byte) ((n >> 56) & 0xff));
-			_outStream.write ((byte) ((n >> 48) & 0xff));
-			_outStream.write ((byte) ((n >> 40) & 0xff));
-			_outStream.write ((byte) ((n >> 32) & 0xff));
-			_outStream.write ((byte) ((n >> 24) & 0xff));
-			_outStream.write ((byte) ((n >> 16) & 0xff));
-			_outStream.write ((byte) ((n >> 8) & 0xff));
-			_outStream.write ((byte) (n & 0xff));
-		} else {
-			_outStream.write ((byte) ((n) & 0xff));
-			_outStream.write ((byte) ((n >> 8) & 0xff));
-			_outStream.write ((byte) ((n >> 16) & 0xff));
-			_outStream.write ((byte) ((n >> 24) & 0xff));
-			_outStream.write ((byte) ((n >> 32) & 0xff));
-			_outStream.write ((byte) ((n >> 40) & 0xff));
-			_outStream.write ((byte) ((n >> 48) & 0xff));
-			_outStream.write ((byte) ((n >> 56) & 0xff));
-		}
+		if (discard (8))
+			return;
+
+		reserve (8);
+		_outBuffer.putLong (n);
 	}
 
 	/**
@@ -352,39 +1143,280 @@ public class InputOutput {
 	 * @param n		The number of bytes to write.
 	 * @throws IOException
 	 */
-	public void
+	public synchronized void
 	writePadBytes (
 		int		n
 	) throws IOException {
 		final int	max = PadBytes.length;
 
-		while (n > max) {
-			_outStream.write (PadBytes, 0, max);
-			n -= max;
+		if (discard (n))
+			return;
+
+		while (n > 0) {
+			int		len = (n > max) ? max : n;
+
+			reserve (len);
+			_outBuffer.put (PadBytes, 0, len);
+			n -= len;
+		}
+	}
+
+	/**
+	 * Request that all unwritten output bytes be sent. Inside a batch
+	 * the output is sent when the batch ends. Otherwise it is sent by
+	 * the selector thread when the flush delay expires.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void
+	flush () throws IOException {
+		_flushRequestCount++;
+		if (_flushPending || _outBuffer.position () == 0)
+			return;
+
+		if (_batching) {
+			_flushPending = true;
+		} else if (_flushDelay <= 0 || _selectorThread == null) {
+			flushUnlessQueued ();
+		} else {
+			_flushPending = true;
+			_flushDeadline = System.currentTimeMillis () + _flushDelay;
+			_selectorThread.scheduleFlush (this);
+		}
+	}
+
+	/**
+	 * Request that all unwritten output bytes be sent without waiting
+	 * for the flush delay. Used for events that hand control to another
+	 * client, such as a chunk of a selection transfer, where the delay
+	 * would be paid once for every step. Inside a batch the output is
+	 * still sent when the batch ends.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void
+	flushNow () throws IOException {
+		_flushRequestCount++;
+		if (_outBuffer.position () == 0)
+			return;
+
+		if (_batching) {
+			_flushPending = true;
+		} else {
+			_flushPending = false;
+			flushUnlessQueued ();
+		}
+	}
+
+	/**
+	 * Send the contents of the output buffer to the channel, unless
+	 * earlier output is still queued. In that case the buffer is held
+	 * back, where motion events can still be merged, until the queue
+	 * drains.
+	 *
+	 * @throws IOException
+	 */
+	private void
+	flushUnlessQueued () throws IOException {
+		if (_outputQueue.isEmpty () || _overflowed)
+			flushBuffer ();
+	}
+
+	/**
+	 * Send the contents of the output buffer to the channel.
+	 *
+	 * @throws IOException
+	 */
+	private void
+	flushBuffer () throws IOException {
+		if (_outBuffer.position () == 0)
+			return;
+
+		_flushCount++;
+		_motionEventOffset = -1;
+		_outBuffer.flip ();
+		try {
+			queueOutput (_outBuffer);
+		} finally {
+			_outBuffer.clear ();
 		}
+	}
+
+	/**
+	 * Send the bytes remaining in a buffer to the channel, without
+	 * blocking. Whatever the channel can't accept immediately, and all
+	 * output for a local socket, is copied to the output queue.
+	 *
+	 * @param bb	The bytes to send.
+	 * @throws IOException
+	 */
+	private void
+	queueOutput (
+		ByteBuffer	bb
+	) throws IOException {
+		if (_overflowed)
+			return;
+
+		_bytesSent += bb.remaining ();
+		if (_channel != null) {
+			drainOutputQueue ();
+			if (_outputQueue.isEmpty ()) {
+				_channel.write (bb);
+				if (!bb.hasRemaining ())
+					return;
+			}
+		}
+
+		ByteBuffer	copy = ByteBuffer.allocate (bb.remaining ());
+
+		copy.put (bb);
+		copy.flip ();
+
+		if (_outputQueue.isEmpty ())
+			_stallStart = System.currentTimeMillis ();
 
-		if (n > 0)
-			_outStream.write (PadBytes, 0, n);
+		_outputQueue.add (copy);
+		_queuedBytes += copy.remaining ();
+		if (_queuedBytes > _peakQueuedBytes)
+			_peakQueuedBytes = _queuedBytes;
+
+		if (_queuedBytes > _outputQueueLimit
+								&& _overflowPolicy == OverflowDisconnect) {
+			_overflowed = true;
+			if (_localSocket != null) {
+				try {	// Release a writer thread blocked on the socket.
+					_localSocket.shutdownOutput ();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		if (_channel == null)
+			notifyAll ();	// Wake the local socket's writer thread.
+		else if (_selectorThread != null)
+			_selectorThread.requestWrite (this);
 	}
 
 	/**
-	 * Flush all unwritten output bytes.
+	 * Send as much of the output queue to the channel as it will accept
+	 * without blocking. The caller must hold the lock on this object.
 	 *
 	 * @throws IOException
 	 */
+	private void
+	drainOutputQueue () throws IOException {
+		while (!_outputQueue.isEmpty ()) {
+			ByteBuffer	bb = _outputQueue.getFirst ();
+
+			_queuedBytes -= _channel.write (bb);
+			if (bb.hasRemaining ())
+				return;
+
+			_outputQueue.removeFirst ();
+		}
+
+		endStall ();
+	}
+
+	/**
+	 * Add the time the output queue was non-empty to the stalled time,
+	 * once the queue has been emptied.
+	 */
+	private void
+	endStall () {
+		if (_stallStart != 0) {
+			_stalledMillis += System.currentTimeMillis () - _stallStart;
+			_stallStart = 0;
+		}
+	}
+
+	/**
+	 * Send queued output. For a channel this sends as much as the
+	 * channel will accept without blocking, and is called by the
+	 * selector thread when the channel is writable. For a local socket
+	 * it waits until output is queued, then sends the first buffer in
+	 * the queue, and is called in a loop by the connection's writer
+	 * thread.
+	 *
+	 * @throws IOException	If the connection is closed, or the output
+	 * 						queue overflowed.
+	 */
 	public void
-	flush () throws IOException {
-		_outStream.flush ();
+	writeQueuedOutput () throws IOException {
+		ByteBuffer	bb;
+
+		synchronized (this) {
+			if (_channel != null) {
+				if (_overflowed)
+					throw new IOException ("Output queue overflow");
+
+				drainOutputQueue ();
+				if (_outputQueue.isEmpty ())
+					flushBuffer ();		// Output held back by the queue.
+
+				return;
+			}
+
+			while (_outputQueue.isEmpty () && !_overflowed && !_closed) {
+				try {
+					wait ();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException ();
+				}
+			}
+
+			if (_overflowed)
+				throw new IOException ("Output queue overflow");
+			if (_closed)
+				throw new IOException ();
+
+			bb = _outputQueue.getFirst ();
+		}
+
+			// Write outside the lock, so other threads can keep queuing.
+		_outStream.write (bb.array (), bb.arrayOffset () + bb.position (),
+															bb.remaining ());
+
+		synchronized (this) {
+			if (_outputQueue.isEmpty () || _outputQueue.getFirst () != bb)
+				return;		// Discarded by close.
+
+			_queuedBytes -= bb.remaining ();
+			_outputQueue.removeFirst ();
+			if (_outputQueue.isEmpty ()) {
+				endStall ();
+				flushBuffer ();		// Output held back by the queue.
+			}
+
+			notifyAll ();	// Wake a reader waiting for the queue to drain.
+		}
 	}
 
 	/**
-	 * Close the input and output streams.
+	 * Close the channel or local socket.
+	 * It is closed before taking the output lock, so a local socket's
+	 * writer thread blocked on a full socket buffer is released.
 	 *
 	 * @throws IOException
 	 */
 	public void
 	close () throws IOException {
-		_inStream.close ();
-		_outStream.close ();
+		if (_channel != null) {
+			_channel.close ();
+		} else {
+			try {
+				_localSocket.shutdownInput ();
+			} catch (IOException e) {
+			}
+			_localSocket.close ();
+		}
+
+		synchronized (this) {
+			_closed = true;
+			_outputQueue.clear ();
+			_queuedBytes = 0;
+			endStall ();
+			notifyAll ();	// Release the local socket's writer thread.
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,625 @@
+/**
+ * This class implements a font loaded from a PCF file.
+ */
+package au.com.darkside.XServer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class implements a font loaded from a PCF (Portable Compiled
+ * Format) file.
+ *
+ * A PCF file is a table of contents followed by tables of properties,
+ * accelerators, metrics, bitmaps and encodings. Each table has its own
+ * format, giving its byte order and, for bitmaps, the bit order, row
+ * padding and scan unit. Only the table headers and the properties are
+ * read when the font is loaded. The metrics, encodings and bitmaps of
+ * glyphs are read from the mapped file when they're used.
+ *
+ * The ranges and bounds that ListFontsWithInfo needs can also be read
+ * from a stream, which is only read as far as the tables holding them.
+ */
+public class PcfFont extends BitmapFont {
+	private static final int	PropertiesTable = 1 << 0;
+	private static final int	AcceleratorsTable = 1 << 1;
+	private static final int	MetricsTable = 1 << 2;
+	private static final int	BitmapsTable = 1 << 3;
+	private static final int	EncodingsTable = 1 << 5;
+	private static final int	BdfAcceleratorsTable = 1 << 8;
+
+	private static final int	FormatMask = 0xffffff00;
+	private static final int	CompressedMetrics = 0x100;
+	private static final int	ByteOrderMsb = 1 << 2;
+	private static final int	BitOrderMsb = 1 << 3;
+
+	private final ByteBuffer	_buffer;
+	private final ByteBuffer	_metrics;
+	private final int			_metricsStart;
+	private final boolean		_compressedMetrics;
+	private final int			_numGlyphs;
+	private final ByteBuffer	_bitmaps;
+	private final int			_offsetsStart;
+	private final int			_bitmapsStart;
+	private final int			_bitmapsLength;
+	private final int			_rowPad;
+	private final boolean		_msbFirst;
+	private final int			_swapMask;
+	private final ByteBuffer	_encodings;
+	private final int			_encodingsStart;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param buffer	The contents of the PCF file.
+	 * @throws IOException	If it isn't a valid PCF file.
+	 */
+	public PcfFont (
+		ByteBuffer	buffer
+	) throws IOException {
+		ByteBuffer	bb;
+		int			format;
+
+		_buffer = buffer;
+
+			// Metrics.
+		bb = _metrics = findTable (MetricsTable);
+		format = getFormat (bb);
+		_compressedMetrics = (format & FormatMask) == CompressedMetrics;
+		if (_compressedMetrics) {
+			_numGlyphs = bb.getShort (4) & 0xffff;
+			_metricsStart = 6;
+		} else {
+			_numGlyphs = bb.getInt (4);
+			_metricsStart = 8;
+		}
+
+		checkLength (bb, _metricsStart + _numGlyphs
+										* (_compressedMetrics ? 5 : 12));
+
+			// Bitmaps.
+		bb = _bitmaps = findTable (BitmapsTable);
+		format = getFormat (bb);
+		if (bb.getInt (4) != _numGlyphs)
+			throw new IOException ("Bitmap and metric counts differ");
+
+		_offsetsStart = 8;
+		_rowPad = 1 << (format & 3);
+		_bitmapsStart = _offsetsStart + _numGlyphs * 4 + 16;
+		_bitmapsLength = bb.getInt (_offsetsStart + _numGlyphs * 4
+														+ (format & 3) * 4);
+		_msbFirst = (format & BitOrderMsb) != 0;
+		if (((format & ByteOrderMsb) != 0) == _msbFirst)
+			_swapMask = 0;
+		else	// The bytes in a scan unit are in the wrong order.
+			_swapMask = (1 << ((format >> 4) & 3)) - 1;
+
+		checkLength (bb, _bitmapsStart + _bitmapsLength);
+
+			// Encodings.
+		bb = _encodings = findTable (EncodingsTable);
+		_minByte2 = bb.getShort (4) & 0xffff;
+		_maxByte2 = bb.getShort (6) & 0xffff;
+		_minByte1 = bb.getShort (8) & 0xffff;
+		_maxByte1 = bb.getShort (10) & 0xffff;
+		_defaultChar = bb.getShort (12) & 0xffff;
+		_encodingsStart = 14;
+		if (_maxByte2 > 255 || _minByte2 > _maxByte2 || _maxByte1 > 255
+													|| _minByte1 > _maxByte1)
+			throw new IOException ("Bad encoding range");
+
+		checkLength (bb, _encodingsStart + getNumCharInfos () * 2);
+
+			// Accelerators, for the font ascent and descent and bounds.
+		bb = findTable (BdfAcceleratorsTable);
+		if (bb == null)
+			bb = findTable (AcceleratorsTable);
+
+		if (bb != null) {
+			_ascent = (short) bb.getInt (12);
+			_descent = (short) bb.getInt (16);
+			for (int i = 0; i < 6; i++) {
+				_minBounds[i] = bb.getShort (24 + 2 * i);
+				_maxBounds[i] = bb.getShort (36 + 2 * i);
+			}
+		} else {
+			calculateBounds (_metrics, _metricsStart, _compressedMetrics,
+										_numGlyphs, _minBounds, _maxBounds);
+			_ascent = _maxBounds[3];
+			_descent = _maxBounds[4];
+		}
+
+		bb = findTable (PropertiesTable);
+		if (bb != null)
+			readProperties (bb);
+	}
+
+	/**
+	 * Find a table in the file. The returned buffer starts at the table,
+	 * and uses the table's byte order.
+	 *
+	 * @param type	The type of table.
+	 * @return	The table, or null if it isn't required and is missing.
+	 * @throws IOException	If a required table is missing or bad.
+	 */
+	private ByteBuffer
+	findTable (
+		int			type
+	) throws IOException {
+		ByteBuffer	toc = _buffer.duplicate ();
+		int			n;
+
+		toc.order (ByteOrder.LITTLE_ENDIAN);
+		n = toc.getInt (4);
+		for (int i = 0; i < n; i++) {
+			int			entry = 8 + i * 16;
+
+			if (toc.getInt (entry) != type)
+				continue;
+
+			int			format = toc.getInt (entry + 4);
+			int			offset = toc.getInt (entry + 12);
+
+			if (offset < 0 || offset > _buffer.limit () - 4)
+				throw new IOException ("Bad table offset");
+
+			toc.position (offset);
+
+			ByteBuffer	bb = toc.slice ();
+
+			bb.order ((format & ByteOrderMsb) != 0 ? ByteOrder.BIG_ENDIAN
+													: ByteOrder.LITTLE_ENDIAN);
+
+			return bb;
+		}
+
+		if (type == MetricsTable || type == BitmapsTable
+													|| type == EncodingsTable)
+			throw new IOException ("Missing table " + type);
+
+		return null;
+	}
+
+	/**
+	 * Return the format of a table, which is always least significant
+	 * byte first, whatever the byte order of the rest of the table.
+	 *
+	 * @param bb	The table.
+	 * @return	The table's format.
+	 */
+	private static int
+	getFormat (
+		ByteBuffer	bb
+	) {
+		int			format = bb.getInt (0);
+
+		if (bb.order () == ByteOrder.BIG_ENDIAN)
+			format = Integer.reverseBytes (format);
+
+		return format;
+	}
+
+	/**
+	 * Check that a table is long enough.
+	 *
+	 * @param bb	The table.
+	 * @param length	The length it must have.
+	 * @throws IOException	If the table is too short.
+	 */
+	private static void
+	checkLength (
+		ByteBuffer	bb,
+		int			length
+	) throws IOException {
+		if (length < 0 || length > bb.limit ())
+			throw new IOException ("Truncated table");
+	}
+
+	/**
+	 * Calculate a font's bounds from the metrics of its glyphs. This is
+	 * only needed if it has no accelerator table.
+	 *
+	 * @param metrics	The metrics table.
+	 * @param start	The offset of the first glyph's metrics.
+	 * @param compressed	Whether the metrics are compressed.
+	 * @param numGlyphs	The number of glyphs.
+	 * @param minBounds	Return value. The minimum of each metric.
+	 * @param maxBounds	Return value. The maximum of each metric.
+	 */
+	private static void
+	calculateBounds (
+		ByteBuffer	metrics,
+		int			start,
+		boolean		compressed,
+		int			numGlyphs,
+		short[]		minBounds,
+		short[]		maxBounds
+	) {
+		short[]		info = new short[6];
+
+		for (int i = 0; i < numGlyphs; i++) {
+			readGlyphMetrics (metrics, start, compressed, i, info);
+			for (int j = 0; j < 6; j++) {
+				if (i == 0 || info[j] < minBounds[j])
+					minBounds[j] = info[j];
+				if (i == 0 || info[j] > maxBounds[j])
+					maxBounds[j] = info[j];
+			}
+		}
+	}
+
+	/**
+	 * Read the ranges and bounds of a font from the contents of a PCF
+	 * file, without loading it. Only the table of contents and the
+	 * tables holding them are read, which are the accelerators and the
+	 * start of the encodings, or the metrics if there are no
+	 * accelerators. The tables are read in file order, skipping the rest.
+	 *
+	 * @param is	The contents of the PCF file.
+	 * @return	The font's ranges and bounds.
+	 * @throws IOException	If it isn't a valid PCF file.
+	 */
+	public static BitmapFont.Info
+	readInfo (
+		InputStream	is
+	) throws IOException {
+		ByteBuffer	toc = readBytes (is, 8);
+		int			n = toc.getInt (4);
+
+		if (n < 0 || n > 64)
+			throw new IOException ("Bad table count");
+
+		toc = readBytes (is, n * 16);
+
+		int			accelerators = findEntry (toc, BdfAcceleratorsTable);
+		int			encodings = findEntry (toc, EncodingsTable);
+		int			metrics = -1;
+
+		if (accelerators < 0)
+			accelerators = findEntry (toc, AcceleratorsTable);
+		if (accelerators < 0)
+			metrics = findEntry (toc, MetricsTable);
+		if (encodings < 0 || (accelerators < 0 && metrics < 0))
+			throw new IOException ("Missing table");
+
+		int[]		entries = {accelerators, encodings, metrics};
+		ByteBuffer[]	tables = new ByteBuffer[entries.length];
+		long		position = 8 + n * 16;
+
+		for (;;) {	// Read the tables in the order they're in the file.
+			int			next = -1;
+
+			for (int i = 0; i < entries.length; i++)
+				if (entries[i] >= 0 && tables[i] == null && (next < 0
+							|| toc.getInt (entries[i] + 12)
+										< toc.getInt (entries[next] + 12)))
+					next = i;
+
+			if (next < 0)
+				break;
+
+			int			format = toc.getInt (entries[next] + 4);
+			int			size = toc.getInt (entries[next] + 8);
+			int			offset = toc.getInt (entries[next] + 12);
+
+			if (offset < position)
+				throw new IOException ("Bad table offset");
+			if (next == 1)		// Only the encoding ranges are needed.
+				size = Math.min (size, 14);
+
+			skipBytes (is, offset - position);
+			tables[next] = readBytes (is, size);
+			tables[next].order ((format & ByteOrderMsb) != 0
+							? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+			position = offset + size;
+		}
+
+		BitmapFont.Info	info = new BitmapFont.Info ();
+		ByteBuffer	bb = tables[1];
+
+		checkLength (bb, 14);
+		info._minByte2 = bb.getShort (4) & 0xffff;
+		info._maxByte2 = bb.getShort (6) & 0xffff;
+		info._minByte1 = bb.getShort (8) & 0xffff;
+		info._maxByte1 = bb.getShort (10) & 0xffff;
+		info._defaultChar = bb.getShort (12) & 0xffff;
+		if (info._maxByte2 > 255 || info._minByte2 > info._maxByte2
+				|| info._maxByte1 > 255 || info._minByte1 > info._maxByte1)
+			throw new IOException ("Bad encoding range");
+
+		bb = tables[0];
+		if (bb != null) {
+			checkLength (bb, 48);
+			info._ascent = (short) bb.getInt (12);
+			info._descent = (short) bb.getInt (16);
+			for (int i = 0; i < 6; i++) {
+				info._minBounds[i] = bb.getShort (24 + 2 * i);
+				info._maxBounds[i] = bb.getShort (36 + 2 * i);
+			}
+		} else {
+			boolean		compressed;
+			int			numGlyphs;
+			int			start;
+
+			bb = tables[2];
+			checkLength (bb, 8);
+			compressed = (getFormat (bb) & FormatMask) == CompressedMetrics;
+			if (compressed) {
+				numGlyphs = bb.getShort (4) & 0xffff;
+				start = 6;
+			} else {
+				numGlyphs = bb.getInt (4);
+				start = 8;
+			}
+
+			checkLength (bb, start + numGlyphs * (compressed ? 5 : 12));
+			calculateBounds (bb, start, compressed, numGlyphs,
+										info._minBounds, info._maxBounds);
+			info._ascent = info._maxBounds[3];
+			info._descent = info._maxBounds[4];
+		}
+
+		return info;
+	}
+
+	/**
+	 * Find an entry in a table of contents.
+	 *
+	 * @param toc	The table of contents, without the file header.
+	 * @param type	The type of table.
+	 * @return	The offset of the entry, or -1 if there isn't one.
+	 */
+	private static int
+	findEntry (
+		ByteBuffer	toc,
+		int			type
+	) {
+		for (int entry = 0; entry < toc.limit (); entry += 16)
+			if (toc.getInt (entry) == type)
+				return entry;
+
+		return -1;
+	}
+
+	/**
+	 * Read bytes from a stream into a little-endian buffer.
+	 *
+	 * @param is	The stream.
+	 * @param length	The number of bytes.
+	 * @return	A buffer holding the bytes.
+	 * @throws IOException	If there aren't enough bytes.
+	 */
+	private static ByteBuffer
+	readBytes (
+		InputStream	is,
+		int			length
+	) throws IOException {
+		if (length < 0)
+			throw new IOException ("Bad table size");
+
+		byte[]		ba = new byte[length];
+		int			n = 0;
+
+		while (n < length) {
+			int			count = is.read (ba, n, length - n);
+
+			if (count < 0)
+				throw new EOFException ();
+
+			n += count;
+		}
+
+		ByteBuffer	bb = ByteBuffer.wrap (ba);
+
+		bb.order (ByteOrder.LITTLE_ENDIAN);
+
+		return bb;
+	}
+
+	/**
+	 * Skip bytes of a stream.
+	 *
+	 * @param is	The stream.
+	 * @param length	The number of bytes to skip.
+	 * @throws IOException	If there aren't enough bytes.
+	 */
+	private static void
+	skipBytes (
+		InputStream	is,
+		long		length
+	) throws IOException {
+		while (length > 0) {
+			long		n = is.skip (length);
+
+			if (n <= 0) {	// Skip may not detect the end of the stream.
+				if (is.read () < 0)
+					throw new EOFException ();
+
+				n = 1;
+			}
+
+			length -= n;
+		}
+	}
+
+	/**
+	 * Read the font's properties.
+	 *
+	 * @param bb	The properties table.
+	 * @throws IOException	If the table is bad.
+	 */
+	private void
+	readProperties (
+		ByteBuffer	bb
+	) throws IOException {
+		int			n = bb.getInt (4);
+		int			strings = 8 + n * 9 + (-n & 3) + 4;
+
+		checkLength (bb, strings);
+		for (int i = 0; i < n; i++) {
+			int			p = 8 + i * 9;
+			String		name = readString (bb, strings + bb.getInt (p));
+			int			value = bb.getInt (p + 5);
+
+			_propertyNames.add (name);
+			if (bb.get (p + 4) != 0)
+				_propertyValues.add (readString (bb, strings + value));
+			else
+				_propertyValues.add (Integer.valueOf (value));
+		}
+	}
+
+	/**
+	 * Read a null-terminated Latin-1 string.
+	 *
+	 * @param bb	The buffer holding the string.
+	 * @param offset	The offset of the string.
+	 * @return	The string.
+	 * @throws IOException	If it isn't terminated.
+	 */
+	private static String
+	readString (
+		ByteBuffer	bb,
+		int			offset
+	) throws IOException {
+		StringBuilder	sb = new StringBuilder ();
+
+		if (offset < 0)
+			throw new IOException ("Bad string offset");
+
+		for (int i = offset; ; i++) {
+			if (i >= bb.limit ())
+				throw new IOException ("Unterminated string");
+
+			byte		b = bb.get (i);
+
+			if (b == 0)
+				break;
+
+			sb.append ((char) (b & 0xff));
+		}
+
+		return sb.toString ();
+	}
+
+	/**
+	 * Return the index of the glyph of a character.
+	 *
+	 * @param byte1	The first byte of the character.
+	 * @param byte2	The second byte of the character.
+	 * @return	The glyph index, or -1 if the font doesn't have it.
+	 */
+	@Override
+	protected int
+	getGlyph (
+		int			byte1,
+		int			byte2
+	) {
+		if (byte1 < _minByte1 || byte1 > _maxByte1 || byte2 < _minByte2
+														|| byte2 > _maxByte2)
+			return -1;
+
+		int			i = (byte1 - _minByte1) * (_maxByte2 - _minByte2 + 1)
+														+ byte2 - _minByte2;
+		int			glyph = _encodings.getShort (_encodingsStart + 2 * i)
+																	& 0xffff;
+
+		return (glyph < _numGlyphs) ? glyph : -1;
+	}
+
+	/**
+	 * Read the metrics of a glyph.
+	 *
+	 * @param glyph	The glyph index.
+	 * @param info	Return value. The glyph's CHARINFO fields.
+	 */
+	@Override
+	protected void
+	getGlyphMetrics (
+		int			glyph,
+		short[]		info
+	) {
+		readGlyphMetrics (_metrics, _metricsStart, _compressedMetrics, glyph,
+																	info);
+	}
+
+	/**
+	 * Read the metrics of a glyph from a metrics table.
+	 *
+	 * @param metrics	The metrics table.
+	 * @param start	The offset of the first glyph's metrics.
+	 * @param compressed	Whether the metrics are compressed.
+	 * @param glyph	The glyph index.
+	 * @param info	Return value. The glyph's CHARINFO fields.
+	 */
+	private static void
+	readGlyphMetrics (
+		ByteBuffer	metrics,
+		int			start,
+		boolean		compressed,
+		int			glyph,
+		short[]		info
+	) {
+		if (compressed) {
+			int			p = start + glyph * 5;
+
+			for (int i = 0; i < 5; i++)
+				info[i] = (short) ((metrics.get (p + i) & 0xff) - 0x80);
+			info[5] = 0;
+		} else {
+			int			p = start + glyph * 12;
+
+			for (int i = 0; i < 6; i++)
+				info[i] = metrics.getShort (p + 2 * i);
+		}
+	}
+
+	/**
+	 * Draw a glyph into an array of pixels, setting its inked pixels.
+	 *
+	 * @param glyph	The glyph index.
+	 * @param info	The glyph's metrics.
+	 * @param pixels	The pixels to draw into.
+	 * @param offset	The index of the top left pixel of the glyph.
+	 * @param stride	The number of pixels in a row.
+	 * @param color	The color of the inked pixels.
+	 */
+	@Override
+	protected void
+	drawGlyph (
+		int			glyph,
+		short[]		info,
+		int[]		pixels,
+		int			offset,
+		int			stride,
+		int			color
+	) {
+		int			width = info[1] - info[0];
+		int			height = info[3] + info[4];
+		int			rowBytes = (width + 8 * _rowPad - 1) / (8 * _rowPad)
+																* _rowPad;
+		int			start = _bitmaps.getInt (_offsetsStart + glyph * 4);
+
+		if (start < 0 || start > _bitmapsLength - rowBytes * height)
+			return;	// Corrupt.
+
+		start += _bitmapsStart;
+		for (int y = 0; y < height; y++) {
+			int			row = start + y * rowBytes;
+
+			for (int x = 0; x < width; x++) {
+				int			b = _bitmaps.get (row + ((x >> 3) ^ _swapMask));
+				int			mask = _msbFirst ? (0x80 >> (x & 7))
+												: (1 << (x & 7));
+
+				if ((b & mask) != 0)
+					pixels[offset + y * stride + x] = color;
+			}
+		}
+	}
+}
@@ -14,6 +14,7 @@ import java.io.IOException;
 public class Pixmap extends Resource {
 	private final Drawable		_drawable;
 	public final ScreenView		_screen;
+	private int					_usedBy = 0;
 
 	/**
 	 * Constructor.
@@ -52,12 +53,18 @@ public class Pixmap extends Resource {
 	}
 
 	/**
-	 * Return the pixmap's drawable.
+	 * Return the pixmap's drawable, to be used by the current request.
+	 * If its pixels were spilled to a swap file, they're faulted back in.
+	 * Depth 1 pixmaps are never spilled.
 	 *
-	 * @return	The pixmap's drawable.
+	 * @return	The pixmap's drawable, or null if its pixels couldn't be
+	 * 			faulted back in.
 	 */
 	public Drawable
 	getDrawable () {
+		if (!_xServer.getPixmapBudget().touch (this))
+			return null;
+
 		return _drawable;
 	}
 
@@ -71,6 +78,51 @@ public class Pixmap extends Resource {
 		return _drawable.getDepth ();
 	}
 
+	/**
+	 * Return the number of bytes saved by packing the pixmap's pixels.
+	 * Unlike getDrawable, this doesn't fault in spilled pixels.
+	 *
+	 * @return	The number of bytes saved.
+	 */
+	public long
+	getBytesSaved () {
+		return _drawable.getBytesSaved ();
+	}
+
+	/**
+	 * Record the type of resource that uses the pixmap's contents, such
+	 * as a cursor using it as its shape, if no other type has.
+	 *
+	 * @param type	The resource type.
+	 */
+	public void
+	setUsedBy (
+		int			type
+	) {
+		if (_usedBy == 0)
+			_usedBy = type;
+	}
+
+	/**
+	 * Return the type of resource that first used the pixmap's contents.
+	 *
+	 * @return	The resource type, or zero if none has.
+	 */
+	public int
+	getUsedBy () {
+		return _usedBy;
+	}
+
+	/**
+	 * Destroy the pixmap.
+	 */
+	@Override
+	public void
+	delete () {
+		_xServer.getPixmapBudget().remove (this);
+		super.delete ();
+	}
+
 	/**
 	 * Process an X request relating to this pixmap.
 	 *
@@ -96,10 +148,8 @@ public class Pixmap extends Resource {
 					io.readSkip (bytesRemaining);
 					ErrorCode.write (client, ErrorCode.Length, opcode, 0);
 				} else {
-					_xServer.freeResource (_id);
-					if (_client != null)
-						_client.freeResource (this);
-					_drawable.getBitmap().recycle ();
+					delete ();
+					_drawable.recycle ();
 				}
 				break;
 			case RequestCode.GetGeometry:
@@ -127,8 +177,13 @@ public class Pixmap extends Resource {
 			case RequestCode.ImageText8:
 			case RequestCode.ImageText16:
 			case RequestCode.QueryBestSize:
-				_drawable.processRequest (_xServer, client, _id, opcode, arg,
-															bytesRemaining);
+				if (getDrawable () == null) {
+					io.readSkip (bytesRemaining);
+					ErrorCode.write (client, ErrorCode.Alloc, opcode, 0);
+				} else {
+					_drawable.processRequest (_xServer, client, _id, opcode,
+														arg, bytesRemaining);
+				}
 				return;
 			default:
 				io.readSkip (bytesRemaining);
@@ -166,7 +221,8 @@ public class Pixmap extends Resource {
 	}
 
 	/**
-	 * Process a CreatePixmap request.
+	 * Process a CreatePixmap request. If there isn't enough memory,
+	 * other pixmaps are spilled to swap files and it's tried again.
 	 *
 	 * @param xServer	The X server.
 	 * @param client	The client issuing the request.
@@ -193,15 +249,48 @@ public class Pixmap extends Resource {
 		else
 			screen = ((Window) drawable).getScreen ();
 
-		try {
-			p = new Pixmap (id, xServer, client, screen, width, height, depth);
-		} catch (OutOfMemoryError e) {
+		p = createPixmap (xServer, client, id, screen, width, height, depth);
+		if (p == null && xServer.getPixmapBudget().spillAll ())
+			p = createPixmap (xServer, client, id, screen, width, height,
+																	depth);
+
+		if (p == null) {
 			ErrorCode.write (client, ErrorCode.Alloc,
 												RequestCode.CreatePixmap, 0);
 			return;
 		}
 
 		xServer.addResource (p);
-		client.addResource (p);
+		xServer.getPixmapBudget().add (p, p._drawable);
+	}
+
+	/**
+	 * Create a pixmap, if there's enough memory.
+	 *
+	 * @param xServer	The X server.
+	 * @param client	The client issuing the request.
+	 * @param id	The pixmap's ID.
+	 * @param screen	The screen.
+	 * @param width	The pixmap width.
+	 * @param height	The pixmap height.
+	 * @param depth	The pixmap depth.
+	 * @return	The pixmap, or null if there isn't enough memory.
+	 */
+	private static Pixmap
+	createPixmap (
+		XServer		xServer,
+		Client		client,
+		int			id,
+		ScreenView	screen,
+		int			width,
+		int			height,
+		int			depth
+	) {
+		try {
+			return new Pixmap (id, xServer, client, screen, width, height,
+																	depth);
+		} catch (OutOfMemoryError e) {
+			return null;
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,365 @@
+/**
+ * This class implements a memory budget for pixmaps.
+ */
+package au.com.darkside.XServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class implements a memory budget for the pixels of pixmaps.
+ *
+ * Pixmaps are kept in least-recently-used order. When their pixels use
+ * more memory than the budget, the least recently used are spilled to
+ * memory-mapped swap files in the cache directory and their bitmaps
+ * freed. A spilled pixmap is faulted back in the next time it's drawn on,
+ * copied or otherwise used.
+ *
+ * The budget is enforced between requests, so the pixmaps a request uses
+ * are never spilled while it's processed. Depth 1 pixmaps, which are
+ * already small, and pixmaps whose bitmap is shared with a window are
+ * counted but never spilled.
+ *
+ * It is not thread-safe. The X server lock protects it.
+ */
+public class PixmapBudget {
+	private static final String	SwapPrefix = "pixmap";
+	private static final String	SwapSuffix = ".swap";
+
+	private final File			_swapDir;
+	private long				_limit;
+	private final LinkedHashMap<Pixmap, Entry>	_resident;
+	private final HashMap<Pixmap, Entry>		_spilled;
+	private long				_residentBytes = 0;
+	private long				_spilledBytes = 0;
+	private int					_request = 0;
+	private long				_spills = 0;
+	private long				_faults = 0;
+	private long				_faultNanos = 0;
+	private long				_maxFaultNanos = 0;
+
+	/**
+	 * Constructor. Any swap files left by an earlier run are deleted.
+	 *
+	 * @param swapDir	The directory to create swap files in.
+	 * @param limit	The number of bytes of pixels to keep in memory.
+	 */
+	public PixmapBudget (
+		File		swapDir,
+		long		limit
+	) {
+		_swapDir = swapDir;
+		_limit = limit;
+		_resident = new LinkedHashMap<Pixmap, Entry>(16, 0.75f, true);
+		_spilled = new HashMap<Pixmap, Entry>();
+
+		File[]		files = swapDir.listFiles ();
+
+		if (files != null)
+			for (File f: files)
+				if (f.getName().startsWith (SwapPrefix))
+					f.delete ();
+	}
+
+	/**
+	 * Return the number of bytes of pixels kept in memory.
+	 *
+	 * @return	The budget, in bytes.
+	 */
+	public long
+	getLimit () {
+		return _limit;
+	}
+
+	/**
+	 * Set the number of bytes of pixels to keep in memory. It takes
+	 * effect after the next request.
+	 *
+	 * @param limit	The budget, in bytes.
+	 */
+	public void
+	setLimit (
+		long		limit
+	) {
+		_limit = limit;
+	}
+
+	/**
+	 * Return the number of bytes of pixels in memory.
+	 *
+	 * @return	The number of bytes in memory.
+	 */
+	public long
+	getResidentBytes () {
+		return _residentBytes;
+	}
+
+	/**
+	 * Return the number of bytes of pixels spilled to swap files.
+	 *
+	 * @return	The number of bytes spilled.
+	 */
+	public long
+	getSpilledBytes () {
+		return _spilledBytes;
+	}
+
+	/**
+	 * Return the number of times a pixmap has been spilled.
+	 *
+	 * @return	The number of spills.
+	 */
+	public long
+	getSpills () {
+		return _spills;
+	}
+
+	/**
+	 * Return the number of times a spilled pixmap has been faulted in.
+	 *
+	 * @return	The number of faults.
+	 */
+	public long
+	getFaults () {
+		return _faults;
+	}
+
+	/**
+	 * Return the total time spent faulting pixmaps in.
+	 *
+	 * @return	The total fault time, in nanoseconds.
+	 */
+	public long
+	getFaultNanos () {
+		return _faultNanos;
+	}
+
+	/**
+	 * Return the longest time spent faulting a pixmap in.
+	 *
+	 * @return	The longest fault time, in nanoseconds.
+	 */
+	public long
+	getMaxFaultNanos () {
+		return _maxFaultNanos;
+	}
+
+	/**
+	 * Add a new pixmap. It counts as used by the current request.
+	 *
+	 * @param pixmap	The pixmap.
+	 * @param drawable	The pixmap's drawable.
+	 */
+	public void
+	add (
+		Pixmap		pixmap,
+		Drawable	drawable
+	) {
+		Entry		e = new Entry (drawable);
+
+		e._request = _request;
+		_resident.put (pixmap, e);
+		_residentBytes += e._bytes;
+	}
+
+	/**
+	 * Remove a pixmap that is being freed, deleting its swap file.
+	 *
+	 * @param pixmap	The pixmap.
+	 */
+	public void
+	remove (
+		Pixmap		pixmap
+	) {
+		Entry		e = _resident.remove (pixmap);
+
+		if (e != null) {
+			_residentBytes -= e._bytes;
+			return;
+		}
+
+		e = _spilled.remove (pixmap);
+		if (e != null) {
+			_spilledBytes -= e._bytes;
+			e._swapFile.delete ();
+		}
+	}
+
+	/**
+	 * Note that a pixmap is being used by the current request, making it
+	 * the most recently used. If it was spilled, its pixels are faulted
+	 * back in.
+	 *
+	 * @param pixmap	The pixmap.
+	 * @return	False if its pixels couldn't be faulted back in.
+	 */
+	public boolean
+	touch (
+		Pixmap		pixmap
+	) {
+		Entry		e = _resident.get (pixmap);
+
+		if (e == null) {
+			e = _spilled.get (pixmap);
+			if (e == null)
+				return true;	// Not added, or already freed.
+
+			if (!fault (e))
+				return false;
+
+			_spilled.remove (pixmap);
+			_resident.put (pixmap, e);
+		}
+
+		e._request = _request;
+
+		return true;
+	}
+
+	/**
+	 * Fault a spilled pixmap's pixels back in. If there isn't enough
+	 * memory, every other pixmap that can be is spilled, and it's tried
+	 * again. If there still isn't enough, or the swap file can't be read,
+	 * the pixmap stays spilled and keeps its swap file.
+	 *
+	 * @param e	The pixmap's entry.
+	 * @return	False if the pixels couldn't be faulted in.
+	 */
+	private boolean
+	fault (
+		Entry		e
+	) {
+		long		start = System.nanoTime ();
+
+		try {
+			try {
+				e._drawable.fault (e._swapFile);
+			} catch (OutOfMemoryError oome) {
+				spill (0);
+				e._drawable.fault (e._swapFile);
+			}
+		} catch (OutOfMemoryError oome) {
+			Log.e ("XServer", "Cannot fault pixmap in: out of memory");
+			return false;
+		} catch (IOException ioe) {
+			Log.e ("XServer", "Cannot read pixmap swap file "
+												+ ioe.getMessage ());
+			return false;
+		}
+
+		long		nanos = System.nanoTime () - start;
+
+		e._swapFile.delete ();
+		e._swapFile = null;
+		_spilledBytes -= e._bytes;
+		_residentBytes += e._bytes;
+		_faults++;
+		_faultNanos += nanos;
+		if (nanos > _maxFaultNanos)
+			_maxFaultNanos = nanos;
+
+		return true;
+	}
+
+	/**
+	 * Spill every pixmap that can be, other than those used by the
+	 * current request. This is a last resort when memory runs out.
+	 *
+	 * @return	True if any pixmaps were spilled.
+	 */
+	public boolean
+	spillAll () {
+		long		spills = _spills;
+
+		spill (0);
+
+		return (_spills != spills);
+	}
+
+	/**
+	 * Called after each request, to spill least recently used pixmaps
+	 * until the budget is met.
+	 */
+	public void
+	trim () {
+		_request++;
+		if (_residentBytes > _limit)
+			spill (_limit);
+	}
+
+	/**
+	 * Spill the least recently used pixmaps, other than those used by
+	 * the current request, until the pixels in memory fit in the limit.
+	 *
+	 * @param limit	The number of bytes to keep in memory.
+	 */
+	private void
+	spill (
+		long		limit
+	) {
+		Iterator<Map.Entry<Pixmap, Entry>>	it =
+												_resident.entrySet().iterator ();
+
+		while (_residentBytes > limit && it.hasNext ()) {
+			Map.Entry<Pixmap, Entry>	me = it.next ();
+			Entry						e = me.getValue ();
+
+			if (e._request == _request || !e._drawable.isSpillable ())
+				continue;
+
+			try {
+				_swapDir.mkdirs ();
+				e._swapFile = File.createTempFile (SwapPrefix, SwapSuffix,
+																	_swapDir);
+				e._drawable.spill (e._swapFile);
+			} catch (IOException ioe) {
+				Log.e ("XServer", "Cannot write pixmap swap file "
+												+ ioe.getMessage ());
+				if (e._swapFile != null) {
+					e._swapFile.delete ();
+					e._swapFile = null;
+				}
+
+				return;		// Probably out of space, so stop trying.
+			}
+
+			it.remove ();
+			_spilled.put (me.getKey (), e);
+			_residentBytes -= e._bytes;
+			_spilledBytes += e._bytes;
+			_spills++;
+		}
+	}
+
+	/**
+	 * This class holds the budget's details of a pixmap.
+	 *
+	 * @author Matthew Kwan
+	 */
+	private static class Entry {
+		public final Drawable	_drawable;
+		public final int		_bytes;
+		public File				_swapFile = null;
+		public int				_request = 0;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param d	The pixmap's drawable.
+		 */
+		public Entry (
+			Drawable	d
+		) {
+			_drawable = d;
+			_bytes = d.getByteCount ();
+		}
+	}
+}
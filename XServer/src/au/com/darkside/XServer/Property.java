@@ -17,7 +17,13 @@ public class Property {
 	private final int	_id;
 	private int			_type;
 	private byte		_format;
-	private byte[]		_data = null;
+	private byte[][]	_chunks = null;
+	private int[]		_chunkOffsets = null;
+	private int			_numChunks = 0;
+	private int			_length = 0;
+
+		// Smaller pieces of data are merged into a neighbouring chunk.
+	private static final int	MinChunkSize = 4096;
 
 	/**
 	 * Constructor.
@@ -37,7 +43,8 @@ public class Property {
 	}
 
 	/**
-	 * Constructor.
+	 * Constructor. The copy shares the property's chunk arrays, so only
+	 * one of them may be changed afterwards.
 	 *
 	 * @param p	The property to copy.
 	 */
@@ -47,7 +54,10 @@ public class Property {
 		_id = p._id;
 		_type = p._type;
 		_format = p._format;
-		_data = p._data;
+		_chunks = p._chunks;
+		_chunkOffsets = p._chunkOffsets;
+		_numChunks = p._numChunks;
+		_length = p._length;
 	}
 
 	/**
@@ -60,6 +70,167 @@ public class Property {
 		return _id;
 	}
 
+	/**
+	 * Replace the property's data.
+	 * The data is stored in chunks that are never modified once they are
+	 * added, so the array is kept rather than copied.
+	 *
+	 * @param data	The new data.
+	 */
+	private void
+	setData (
+		byte[]		data
+	) {
+		_chunks = null;
+		_chunkOffsets = null;
+		_numChunks = 0;
+		_length = 0;
+		appendData (data);
+	}
+
+	/**
+	 * Append data to the property. This takes amortized constant time,
+	 * so properties built up by many appends don't cost quadratic time.
+	 *
+	 * @param data	The data to append. Kept rather than copied.
+	 */
+	private void
+	appendData (
+		byte[]		data
+	) {
+		int			n = data.length;
+
+		if (n == 0)
+			return;
+
+		if (_numChunks > 0 && n < MinChunkSize) {
+			byte[]		last = _chunks[_numChunks - 1];
+
+			if (last.length < MinChunkSize) {
+				byte[]		merged = new byte[last.length + n];
+
+				System.arraycopy (last, 0, merged, 0, last.length);
+				System.arraycopy (data, 0, merged, last.length, n);
+				_chunks[_numChunks - 1] = merged;
+				_length += n;
+				return;
+			}
+		}
+
+		ensureChunkCapacity ();
+		_chunks[_numChunks] = data;
+		_chunkOffsets[_numChunks] = _length;
+		_numChunks++;
+		_length += n;
+	}
+
+	/**
+	 * Prepend data to the property.
+	 *
+	 * @param data	The data to prepend. Kept rather than copied.
+	 */
+	private void
+	prependData (
+		byte[]		data
+	) {
+		int			n = data.length;
+
+		if (n == 0)
+			return;
+
+		if (_numChunks > 0 && n < MinChunkSize
+									&& _chunks[0].length < MinChunkSize) {
+			byte[]		first = _chunks[0];
+			byte[]		merged = new byte[n + first.length];
+
+			System.arraycopy (data, 0, merged, 0, n);
+			System.arraycopy (first, 0, merged, n, first.length);
+			_chunks[0] = merged;
+		} else {
+			ensureChunkCapacity ();
+			System.arraycopy (_chunks, 0, _chunks, 1, _numChunks);
+			System.arraycopy (_chunkOffsets, 0, _chunkOffsets, 1, _numChunks);
+			_chunks[0] = data;
+			_chunkOffsets[0] = 0;
+			_numChunks++;
+		}
+
+		for (int i = 1; i < _numChunks; i++)
+			_chunkOffsets[i] += n;
+
+		_length += n;
+	}
+
+	/**
+	 * Make room for another chunk.
+	 */
+	private void
+	ensureChunkCapacity () {
+		if (_chunks == null) {
+			_chunks = new byte[4][];
+			_chunkOffsets = new int[4];
+		} else if (_numChunks == _chunks.length) {
+			byte[][]	chunks = new byte[2 * _numChunks][];
+			int[]		offsets = new int[2 * _numChunks];
+
+			System.arraycopy (_chunks, 0, chunks, 0, _numChunks);
+			System.arraycopy (_chunkOffsets, 0, offsets, 0, _numChunks);
+			_chunks = chunks;
+			_chunkOffsets = offsets;
+		}
+	}
+
+	/**
+	 * Write part of the property's data. A slice within one chunk is
+	 * written straight from it. A slice spanning several chunks is
+	 * gathered first, so it is sent in one write rather than one per
+	 * chunk.
+	 *
+	 * @param io	The connection to write to.
+	 * @param offset	Offset of the first byte to write.
+	 * @param length	Number of bytes to write.
+	 * @throws IOException
+	 */
+	private void
+	writeData (
+		InputOutput		io,
+		int				offset,
+		int				length
+	) throws IOException {
+		int			lo = 0;
+		int			hi = _numChunks - 1;
+
+		while (lo < hi) {	// Find the last chunk starting at or before offset.
+			int			mid = (lo + hi + 1) >>> 1;
+
+			if (_chunkOffsets[mid] <= offset)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+
+		int			start = offset - _chunkOffsets[lo];
+
+		if (start + length <= _chunks[lo].length) {
+			io.writeBytes (_chunks[lo], start, length);
+			return;
+		}
+
+		byte[]		slice = new byte[length];
+		int			pos = 0;
+
+		for (int i = lo; pos < length; i++) {
+			byte[]		chunk = _chunks[i];
+			int			n = Math.min (chunk.length - start, length - pos);
+
+			System.arraycopy (chunk, start, slice, pos, n);
+			pos += n;
+			start = 0;
+		}
+
+		io.writeBytes (slice, 0, length);
+	}
+
 	/**
 	 * Process an X request relating to properties.
 	 *
@@ -191,7 +362,7 @@ public class Property {
 		if (mode == 0) {	// Replace.
 			p._type = tid;
 			p._format = format;
-			p._data = data;
+			p.setData (data);
 		} else {
 			if (tid != p._type || format != p._format) {
 				ErrorCode.write (client, ErrorCode.Match,
@@ -199,23 +370,10 @@ public class Property {
 				return;
 			}
 
-			if (p._data == null) {
-				p._data = data;
-			} else {
-				byte[]		d1, d2;
-
-				if (mode == 1) {	// Prepend.
-					d1 = data;
-					d2 = p._data;
-				} else {	// Append.
-					d1 = p._data;
-					d2 = data;
-				}
-
-				p._data = new byte[d1.length + d2.length];
-				System.arraycopy (d1, 0, p._data, 0, d1.length);
-				System.arraycopy (d2, 0, p._data, d1.length, d2.length);
-			}
+			if (mode == 1)	// Prepend.
+				p.prependData (data);
+			else	// Append.
+				p.appendData (data);
 		}
 
 		Vector<Client>		sc;
@@ -275,7 +433,9 @@ public class Property {
 
 		byte		format = 0;
 		int			bytesAfter = 0;
-		byte[]		value = null;
+		Property	value = null;
+		int			valueOffset = 0;
+		int			length = 0;
 		boolean		generateNotify = false;
 
 		if (properties.containsKey (pid)) {
@@ -285,11 +445,11 @@ public class Property {
 			format = p._format;
 
 			if (tid != 0 && tid != p._type) {
-				bytesAfter = (p._data == null) ? 0 : p._data.length;
+				bytesAfter = p._length;
 			} else {
 				int		n, i, t, l;
 
-				n = (p._data == null) ? 0 : p._data.length;
+				n = p._length;
 				i = 4 * longOffset;
 				t = n - i;
 
@@ -303,15 +463,16 @@ public class Property {
 
 				bytesAfter = n - (i + l);
 
-				if (l < 0) {
+				if (i < 0 || l < 0) {
 					ErrorCode.write (client, ErrorCode.Value,
 												RequestCode.GetProperty, 0);
 					return;
 				}
 
 				if (l > 0) {
-					value = new byte[l];
-					System.arraycopy (p._data, i, value, 0, l);
+					value = p;
+					valueOffset = i;
+					length = l;
 				}
 
 				if (delete && bytesAfter == 0) {
@@ -323,7 +484,6 @@ public class Property {
 			tid = 0;
 		}
 
-		int			length = (value == null) ? 0 : value.length;
 		int			pad = -length & 3;
 		int			valueLength;
 
@@ -345,7 +505,7 @@ public class Property {
 			io.writePadBytes (12);	// Unused.
 
 			if (value != null) {
-				io.writeBytes (value, 0, value.length);	// Value.
+				value.writeData (io, valueOffset, length);	// Value.
 				io.writePadBytes (pad);	// Unused.
 			}
 		}
@@ -364,7 +524,27 @@ public class Property {
 	}
 
 	/**
-	 * Process a RotateProperties request.
+	 * Return the index of the first occurrence of a value in an array.
+	 *
+	 * @param a	The array.
+	 * @param v	The value.
+	 * @return	The index, or -1 if it isn't in the array.
+	 */
+	private static int
+	indexOf (
+		int[]		a,
+		int			v
+	) {
+		for (int i = 0; i < a.length; i++)
+			if (a[i] == v)
+				return i;
+
+		return -1;
+	}
+
+	/**
+	 * Process a RotateProperties request. The same atom may not appear
+	 * twice, so the rotated properties never share their chunk arrays.
 	 *
 	 * @param xServer	The X server.
 	 * @param client	The remote client.
@@ -416,7 +596,8 @@ public class Property {
 				ErrorCode.write (client, ErrorCode.Atom,
 									RequestCode.RotateProperties, aids[i]);
 				return;
-			} else if (!properties.containsKey (aids[i])) {
+			} else if (!properties.containsKey (aids[i])
+											|| indexOf (aids, aids[i]) < i) {
 				ErrorCode.write (client, ErrorCode.Match,
 									RequestCode.RotateProperties, aids[i]);
 				return;
@@ -432,7 +613,10 @@ public class Property {
 
 			p._type = pc._type;
 			p._format = pc._format;
-			p._data = pc._data;
+			p._chunks = pc._chunks;
+			p._chunkOffsets = pc._chunkOffsets;
+			p._numChunks = pc._numChunks;
+			p._length = pc._length;
 		}
 
 		Vector<Client>		sc;
@@ -0,0 +1,33 @@
+/**
+ * This interface handles requests with a particular major opcode.
+ */
+package au.com.darkside.XServer;
+
+import java.io.IOException;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This interface handles requests with a particular major opcode.
+ * The X server holds a table of handlers indexed by major opcode, into
+ * which the core protocol and the extensions register their handlers.
+ */
+public interface RequestHandler {
+	/**
+	 * Process a request. The request header has been read, and the
+	 * request's sequence number assigned.
+	 *
+	 * @param client	The remote client.
+	 * @param opcode	The request's major opcode.
+	 * @param arg	Optional first argument.
+	 * @param bytesRemaining	Bytes yet to be read in the request.
+	 * @throws IOException
+	 */
+	public void
+	processRequest (
+		Client		client,
+		byte		opcode,
+		byte		arg,
+		int			bytesRemaining
+	) throws IOException;
+}
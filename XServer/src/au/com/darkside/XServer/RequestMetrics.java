@@ -0,0 +1,393 @@
+/**
+ * This class records statistics about the requests processed.
+ */
+package au.com.darkside.XServer;
+
+import java.io.PrintWriter;
+import java.util.Vector;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class records statistics about the requests processed, for each
+ * major opcode and, for extensions, each minor opcode. It keeps the
+ * number of requests, the bytes received and sent, and a histogram of
+ * processing times.
+ *
+ * Recording doesn't allocate once an opcode has been seen, so it can be
+ * left enabled. It is not thread-safe, so the caller must lock it.
+ */
+public class RequestMetrics {
+	public static final int		SubBuckets = 4;
+	public static final int		NumBuckets = 128;
+
+	private final Entry[]		_core;
+	private final Entry[][]		_extensions;
+
+	/**
+	 * Constructor.
+	 */
+	public RequestMetrics () {
+		_core = new Entry[128];
+		_extensions = new Entry[128][];
+	}
+
+	/**
+	 * Record the processing of a request.
+	 *
+	 * @param opcode	The request's major opcode.
+	 * @param minor	The request's minor opcode. Ignored for core requests.
+	 * @param bytesIn	The length of the request, in bytes.
+	 * @param bytesOut	The number of bytes sent in response.
+	 * @param nanos	The processing time, in nanoseconds.
+	 */
+	public void
+	record (
+		byte		opcode,
+		byte		minor,
+		int			bytesIn,
+		long		bytesOut,
+		long		nanos
+	) {
+		int			major = opcode & 0xff;
+		Entry		e;
+
+		if (major < 128) {
+			e = _core[major];
+			if (e == null)
+				e = _core[major] = new Entry (major, -1);
+		} else {
+			Entry[]		minors = _extensions[major - 128];
+
+			if (minors == null)
+				minors = _extensions[major - 128] = new Entry[256];
+
+			e = minors[minor & 0xff];
+			if (e == null)
+				e = minors[minor & 0xff] = new Entry (major, minor & 0xff);
+		}
+
+		e.record (bytesIn, bytesOut, nanos);
+	}
+
+	/**
+	 * Return a copy of the statistics.
+	 *
+	 * @return	A copy of the statistics.
+	 */
+	public RequestMetrics
+	copy () {
+		RequestMetrics	m = new RequestMetrics ();
+
+		for (int i = 0; i < _core.length; i++)
+			if (_core[i] != null)
+				m._core[i] = new Entry (_core[i]);
+
+		for (int i = 0; i < _extensions.length; i++) {
+			Entry[]		minors = _extensions[i];
+
+			if (minors == null)
+				continue;
+
+			m._extensions[i] = new Entry[minors.length];
+			for (int j = 0; j < minors.length; j++)
+				if (minors[j] != null)
+					m._extensions[i][j] = new Entry (minors[j]);
+		}
+
+		return m;
+	}
+
+	/**
+	 * Return the statistics of a request type.
+	 *
+	 * @param opcode	The major opcode.
+	 * @param minor	The minor opcode. Ignored for core requests.
+	 * @return	The statistics, or null if no such requests were seen.
+	 */
+	public Entry
+	getEntry (
+		int			opcode,
+		int			minor
+	) {
+		int			major = opcode & 0xff;
+
+		if (major < 128)
+			return _core[major];
+
+		Entry[]		minors = _extensions[major - 128];
+
+		return (minors == null) ? null : minors[minor & 0xff];
+	}
+
+	/**
+	 * Return the statistics of every request type seen, ordered by
+	 * opcode.
+	 *
+	 * @return	The statistics of each request type.
+	 */
+	public Vector<Entry>
+	getEntries () {
+		Vector<Entry>	v = new Vector<Entry>();
+
+		for (Entry e: _core)
+			if (e != null)
+				v.add (e);
+
+		for (Entry[] minors: _extensions)
+			if (minors != null)
+				for (Entry e: minors)
+					if (e != null)
+						v.add (e);
+
+		return v;
+	}
+
+	/**
+	 * Write the statistics as text, one line per request type.
+	 *
+	 * @param pw	The writer to write to.
+	 */
+	public void
+	write (
+		PrintWriter		pw
+	) {
+		pw.println ("opcode\tcount\tbytes-in\tbytes-out\tmean-us\tp50-us"
+												+ "\tp99-us\tmax-us");
+
+		for (Entry e: getEntries ()) {
+			String		name = Integer.toString (e.getOpcode ());
+
+			if (e.getMinorOpcode () >= 0)
+				name += "." + e.getMinorOpcode ();
+
+			pw.println (name + "\t" + e.getCount () + "\t" + e.getBytesIn ()
+							+ "\t" + e.getBytesOut ()
+							+ "\t" + e.getTotalNanos () / 1000 / e.getCount ()
+							+ "\t" + e.getPercentileMicros (50)
+							+ "\t" + e.getPercentileMicros (99)
+							+ "\t" + e.getMaxNanos () / 1000);
+		}
+	}
+
+	/**
+	 * Return the histogram bucket of a processing time.
+	 * There are SubBuckets linear buckets per power of two microseconds,
+	 * so the relative error is bounded at any magnitude.
+	 *
+	 * @param micros	The processing time, in microseconds.
+	 * @return	The bucket index.
+	 */
+	public static int
+	bucketIndex (
+		long		micros
+	) {
+		if (micros < SubBuckets)
+			return (micros < 0) ? 0 : (int) micros;
+
+		int			msb = 63 - Long.numberOfLeadingZeros (micros);
+		int			idx = SubBuckets * (msb - 1)
+								+ (int) ((micros >>> (msb - 2)) & 3);
+
+		return (idx < NumBuckets) ? idx : NumBuckets - 1;
+	}
+
+	/**
+	 * Return the lowest processing time that falls into a bucket.
+	 *
+	 * @param idx	The bucket index.
+	 * @return	The lowest time of the bucket, in microseconds.
+	 */
+	public static long
+	bucketLowerBound (
+		int			idx
+	) {
+		if (idx < SubBuckets)
+			return idx;
+
+		int			msb = idx / SubBuckets + 1;
+
+		return (long) (SubBuckets + (idx & 3)) << (msb - 2);
+	}
+
+	/**
+	 * This class holds the statistics of one request type.
+	 *
+	 * @author Matthew Kwan
+	 */
+	public static class Entry {
+		private final int		_opcode;
+		private final int		_minorOpcode;
+		private long			_count = 0;
+		private long			_bytesIn = 0;
+		private long			_bytesOut = 0;
+		private long			_totalNanos = 0;
+		private long			_maxNanos = 0;
+		private final long[]	_histogram;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param opcode	The major opcode.
+		 * @param minorOpcode	The minor opcode, or -1 for core requests.
+		 */
+		private Entry (
+			int			opcode,
+			int			minorOpcode
+		) {
+			_opcode = opcode;
+			_minorOpcode = minorOpcode;
+			_histogram = new long[NumBuckets];
+		}
+
+		/**
+		 * Copy constructor.
+		 *
+		 * @param e	The statistics to copy.
+		 */
+		private Entry (
+			Entry		e
+		) {
+			_opcode = e._opcode;
+			_minorOpcode = e._minorOpcode;
+			_count = e._count;
+			_bytesIn = e._bytesIn;
+			_bytesOut = e._bytesOut;
+			_totalNanos = e._totalNanos;
+			_maxNanos = e._maxNanos;
+			_histogram = e._histogram.clone ();
+		}
+
+		/**
+		 * Record the processing of a request.
+		 *
+		 * @param bytesIn	The length of the request, in bytes.
+		 * @param bytesOut	The number of bytes sent in response.
+		 * @param nanos	The processing time, in nanoseconds.
+		 */
+		private void
+		record (
+			int			bytesIn,
+			long		bytesOut,
+			long		nanos
+		) {
+			_count++;
+			_bytesIn += bytesIn;
+			_bytesOut += bytesOut;
+			_totalNanos += nanos;
+			if (nanos > _maxNanos)
+				_maxNanos = nanos;
+
+			_histogram[bucketIndex (nanos / 1000)]++;
+		}
+
+		/**
+		 * Return the major opcode.
+		 *
+		 * @return	The major opcode.
+		 */
+		public int
+		getOpcode () {
+			return _opcode;
+		}
+
+		/**
+		 * Return the minor opcode.
+		 *
+		 * @return	The minor opcode, or -1 for core requests.
+		 */
+		public int
+		getMinorOpcode () {
+			return _minorOpcode;
+		}
+
+		/**
+		 * Return the number of requests processed.
+		 *
+		 * @return	The number of requests.
+		 */
+		public long
+		getCount () {
+			return _count;
+		}
+
+		/**
+		 * Return the total length of the requests.
+		 *
+		 * @return	The number of bytes received.
+		 */
+		public long
+		getBytesIn () {
+			return _bytesIn;
+		}
+
+		/**
+		 * Return the total number of bytes sent while processing the
+		 * requests. This includes any events sent to the client at
+		 * the same time.
+		 *
+		 * @return	The number of bytes sent.
+		 */
+		public long
+		getBytesOut () {
+			return _bytesOut;
+		}
+
+		/**
+		 * Return the total processing time.
+		 *
+		 * @return	The total processing time, in nanoseconds.
+		 */
+		public long
+		getTotalNanos () {
+			return _totalNanos;
+		}
+
+		/**
+		 * Return the longest processing time.
+		 *
+		 * @return	The longest processing time, in nanoseconds.
+		 */
+		public long
+		getMaxNanos () {
+			return _maxNanos;
+		}
+
+		/**
+		 * Return the processing time histogram. Bucket i counts the
+		 * requests taking at least bucketLowerBound(i) microseconds.
+		 *
+		 * @return	The histogram. Not a copy.
+		 */
+		public long[]
+		getHistogram () {
+			return _histogram;
+		}
+
+		/**
+		 * Return an estimate of a percentile of the processing time.
+		 *
+		 * @param percent	The percentile, from 0 to 100.
+		 * @return	The lower bound of the percentile's bucket, in
+		 * 			microseconds.
+		 */
+		public long
+		getPercentileMicros (
+			double		percent
+		) {
+			long		target = (long) Math.ceil (_count * percent / 100);
+			long		n = 0;
+
+			if (target < 1)
+				target = 1;
+
+			for (int i = 0; i < NumBuckets; i++) {
+				n += _histogram[i];
+				if (n >= target)
+					return bucketLowerBound (i);
+			}
+
+			return 0;
+		}
+	}
+}
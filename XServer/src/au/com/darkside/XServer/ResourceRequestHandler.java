@@ -0,0 +1,102 @@
+/**
+ * This class handles requests whose first argument is a resource ID.
+ */
+package au.com.darkside.XServer;
+
+import java.io.IOException;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class handles requests whose first argument is a resource ID.
+ * It checks the request length, looks up the resource and checks its
+ * type, then passes the request to the resource to process.
+ */
+public class ResourceRequestHandler implements RequestHandler {
+	public static final int		DRAWABLE = -1;
+	public static final int		FONTABLE = -2;
+
+	private final XServer		_xServer;
+	private final int			_type;
+	private final byte			_error;
+	private final boolean		_exactLength;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param xServer	The X server.
+	 * @param type	The resource type, DRAWABLE or FONTABLE.
+	 * @param error	The error code to return if the resource is invalid.
+	 * @param exactLength	If true, the resource ID is the only argument.
+	 */
+	public ResourceRequestHandler (
+		XServer		xServer,
+		int			type,
+		byte		error,
+		boolean		exactLength
+	) {
+		_xServer = xServer;
+		_type = type;
+		_error = error;
+		_exactLength = exactLength;
+	}
+
+	/**
+	 * Process a request.
+	 *
+	 * @param client	The remote client.
+	 * @param opcode	The request's major opcode.
+	 * @param arg	Optional first argument.
+	 * @param bytesRemaining	Bytes yet to be read in the request.
+	 * @throws IOException
+	 */
+	public void
+	processRequest (
+		Client		client,
+		byte		opcode,
+		byte		arg,
+		int			bytesRemaining
+	) throws IOException {
+		InputOutput		io = client.getInputOutput ();
+
+		if (bytesRemaining < 4 || (_exactLength && bytesRemaining != 4)) {
+			io.readSkip (bytesRemaining);
+			ErrorCode.write (client, ErrorCode.Length, opcode, 0);
+			return;
+		}
+
+		int			id = io.readInt ();
+		Resource	r = _xServer.getResource (id);
+
+		bytesRemaining -= 4;
+		if (!isValid (r)) {
+			io.readSkip (bytesRemaining);
+			ErrorCode.write (client, _error, opcode, id);
+		} else {
+			r.processRequest (client, opcode, arg, bytesRemaining);
+		}
+	}
+
+	/**
+	 * Does the resource have the type required by the request?
+	 *
+	 * @param r	The resource. May be null.
+	 * @return	True if the resource has the required type.
+	 */
+	private boolean
+	isValid (
+		Resource	r
+	) {
+		if (r == null)
+			return false;
+
+		switch (_type) {
+			case DRAWABLE:
+				return r.isDrawable ();
+			case FONTABLE:
+				return r.isFontable ();
+			default:
+				return r.getType () == _type;
+		}
+	}
+}
@@ -0,0 +1,350 @@
+/**
+ * This class holds the X server's resources, indexed by ID.
+ */
+package au.com.darkside.XServer;
+
+import java.util.Vector;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class holds the X server's resources, indexed by ID.
+ *
+ * The top bits of a resource ID identify the client that allocated it,
+ * so the resources are kept in one table per client, selected by those
+ * bits. Each table is an open-addressing hash table with primitive int
+ * keys, so lookups don't allocate, and a client's resources can be found
+ * without looking at any others. The server's own resources are in the
+ * table of client zero.
+ *
+ * It is not thread-safe. The X server lock protects it.
+ */
+public class ResourceTable {
+	private final int			_clientIdBits;
+	private final Slot[]		_slots;
+	private int					_size = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param clientIdBits	The number of resource ID bits a client may
+	 * 						allocate. The remaining bits identify the client.
+	 */
+	public ResourceTable (
+		int			clientIdBits
+	) {
+		_clientIdBits = clientIdBits;
+		_slots = new Slot[1 << (32 - clientIdBits)];
+	}
+
+	/**
+	 * Return the resource with the specified ID.
+	 *
+	 * @param id	The resource ID.
+	 * @return	The resource, or null if it doesn't exist.
+	 */
+	public Resource
+	get (
+		int			id
+	) {
+		Slot		s = _slots[id >>> _clientIdBits];
+
+		return (s == null) ? null : s.get (id);
+	}
+
+	/**
+	 * Does a resource with the specified ID exist?
+	 *
+	 * @param id	The resource ID.
+	 * @return	True if the resource exists.
+	 */
+	public boolean
+	contains (
+		int			id
+	) {
+		return get (id) != null;
+	}
+
+	/**
+	 * Add a resource, replacing any with the same ID.
+	 *
+	 * @param r	The resource to add.
+	 */
+	public void
+	put (
+		Resource	r
+	) {
+		int			id = r.getId ();
+		int			idx = id >>> _clientIdBits;
+		Slot		s = _slots[idx];
+
+		if (s == null)
+			s = _slots[idx] = new Slot ();
+
+		if (s.put (id, r))
+			_size++;
+	}
+
+	/**
+	 * Remove the resource with the specified ID.
+	 *
+	 * @param id	The resource ID.
+	 */
+	public void
+	remove (
+		int			id
+	) {
+		int			idx = id >>> _clientIdBits;
+		Slot		s = _slots[idx];
+
+		if (s == null || !s.remove (id))
+			return;
+
+		_size--;
+		if (s.size () == 0)
+			_slots[idx] = null;
+	}
+
+	/**
+	 * Return the number of resources.
+	 *
+	 * @return	The number of resources.
+	 */
+	public int
+	size () {
+		return _size;
+	}
+
+	/**
+	 * Return the resources allocated by a client.
+	 *
+	 * @param idBase	The client's resource ID base.
+	 * @return	A copy of the client's resources.
+	 */
+	public Resource[]
+	getClientResources (
+		int			idBase
+	) {
+		Slot		s = _slots[idBase >>> _clientIdBits];
+
+		return (s == null) ? new Resource[0] : s.toArray ();
+	}
+
+	/**
+	 * Return the resources allocated by all clients, leaving out the
+	 * server's own.
+	 *
+	 * @return	A copy of the clients' resources.
+	 */
+	public Vector<Resource>
+	getAllClientResources () {
+		Vector<Resource>	v = new Vector<Resource>();
+
+		for (int i = 1; i < _slots.length; i++)
+			if (_slots[i] != null)
+				for (Resource r: _slots[i].toArray ())
+					v.add (r);
+
+		return v;
+	}
+
+	/**
+	 * Remove the resources allocated by all clients, keeping the server's
+	 * own.
+	 */
+	public void
+	removeAllClientResources () {
+		for (int i = 1; i < _slots.length; i++) {
+			if (_slots[i] != null) {
+				_size -= _slots[i].size ();
+				_slots[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * This class holds the resources of one client in a hash table
+	 * with linear probing. Removals shift later entries back, so no
+	 * deleted markers are needed.
+	 *
+	 * @author Matthew Kwan
+	 */
+	private static class Slot {
+		private int[]			_keys;
+		private Resource[]		_values;
+		private int				_size = 0;
+
+		/**
+		 * Constructor.
+		 */
+		public Slot () {
+			_keys = new int[16];
+			_values = new Resource[16];
+		}
+
+		/**
+		 * Return the number of resources.
+		 *
+		 * @return	The number of resources.
+		 */
+		public int
+		size () {
+			return _size;
+		}
+
+		/**
+		 * Return the table index where an ID's search starts.
+		 * The low bits of IDs are usually allocated sequentially, but
+		 * they're mixed anyway in case a client strides through them.
+		 *
+		 * @param id	The resource ID.
+		 * @param mask	The table size less one.
+		 * @return	The starting index.
+		 */
+		private static int
+		hash (
+			int			id,
+			int			mask
+		) {
+			int			h = id * 0x9e3779b9;
+
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		/**
+		 * Return the resource with the specified ID.
+		 *
+		 * @param id	The resource ID.
+		 * @return	The resource, or null if it isn't in the table.
+		 */
+		public Resource
+		get (
+			int			id
+		) {
+			int			mask = _keys.length - 1;
+
+			for (int i = hash (id, mask); _values[i] != null;
+													i = (i + 1) & mask)
+				if (_keys[i] == id)
+					return _values[i];
+
+			return null;
+		}
+
+		/**
+		 * Add a resource, replacing any with the same ID.
+		 *
+		 * @param id	The resource ID.
+		 * @param r	The resource.
+		 * @return	True if the ID wasn't already in the table.
+		 */
+		public boolean
+		put (
+			int			id,
+			Resource	r
+		) {
+			if (2 * (_size + 1) > _keys.length)
+				resize (2 * _keys.length);
+
+			int			mask = _keys.length - 1;
+			int			i;
+
+			for (i = hash (id, mask); _values[i] != null; i = (i + 1) & mask) {
+				if (_keys[i] == id) {
+					_values[i] = r;
+					return false;
+				}
+			}
+
+			_keys[i] = id;
+			_values[i] = r;
+			_size++;
+
+			return true;
+		}
+
+		/**
+		 * Remove the resource with the specified ID.
+		 *
+		 * @param id	The resource ID.
+		 * @return	True if the ID was in the table.
+		 */
+		public boolean
+		remove (
+			int			id
+		) {
+			int			mask = _keys.length - 1;
+			int			i;
+
+			for (i = hash (id, mask); _values[i] != null; i = (i + 1) & mask)
+				if (_keys[i] == id)
+					break;
+
+			if (_values[i] == null)
+				return false;
+
+				// Move back any entries whose search passes the hole.
+			for (int j = (i + 1) & mask; _values[j] != null;
+													j = (j + 1) & mask) {
+				int			h = hash (_keys[j], mask);
+
+				if (((j - h) & mask) >= ((j - i) & mask)) {
+					_keys[i] = _keys[j];
+					_values[i] = _values[j];
+					i = j;
+				}
+			}
+
+			_values[i] = null;
+			_size--;
+
+			return true;
+		}
+
+		/**
+		 * Return the resources in the table.
+		 *
+		 * @return	A copy of the resources.
+		 */
+		public Resource[]
+		toArray () {
+			Resource[]	a = new Resource[_size];
+			int			n = 0;
+
+			for (Resource r: _values)
+				if (r != null)
+					a[n++] = r;
+
+			return a;
+		}
+
+		/**
+		 * Rehash the table to a new size.
+		 *
+		 * @param size	The new size. A power of two.
+		 */
+		private void
+		resize (
+			int			size
+		) {
+			int[]		keys = _keys;
+			Resource[]	values = _values;
+			int			mask = size - 1;
+
+			_keys = new int[size];
+			_values = new Resource[size];
+			for (int j = 0; j < keys.length; j++) {
+				if (values[j] == null)
+					continue;
+
+				int			i = hash (keys[j], mask);
+
+				while (_values[i] != null)
+					i = (i + 1) & mask;
+
+				_keys[i] = keys[j];
+				_values[i] = values[j];
+			}
+		}
+	}
+}
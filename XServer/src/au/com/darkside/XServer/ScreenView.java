@@ -4,6 +4,7 @@
 package au.com.darkside.XServer;
 
 import java.io.IOException;
+import java.util.LinkedHashSet;
 import java.util.Vector;
 
 import android.content.Context;
@@ -39,6 +40,8 @@ public class ScreenView extends View {
 	private int			_motionX;
 	private int			_motionY;
 	private int			_buttons = 0;
+	private Window		_motionHintWindow = null;
+	private final LinkedHashSet<Window>	_pendingExposures;
 	private boolean		_isBlanked = false;
 	private Paint		_paint;
 
@@ -87,6 +90,7 @@ public class ScreenView extends View {
 		_installedColormaps = new Vector<Colormap>();
 		_pixelsPerMillimeter = pixelsPerMillimeter;
 		_paint = new Paint ();
+		_pendingExposures = new LinkedHashSet<Window>();
 	}
 
 	/**
@@ -102,6 +106,7 @@ public class ScreenView extends View {
 		_rootId = 0;
 		_installedColormaps = null;
 		_pixelsPerMillimeter = 0;
+		_pendingExposures = null;
 	}
 
 	/**
@@ -165,6 +170,73 @@ public class ScreenView extends View {
 		return _buttons;
 	}
 
+	/**
+	 * Return whether a MotionNotify event with the Hint detail may be
+	 * sent for a window. Once one has been sent, no more are sent for
+	 * the window until the key or button state changes, the pointer
+	 * leaves the window, or the pointer is queried.
+	 *
+	 * @param w	The event window.
+	 * @return	True if a hint may be sent.
+	 */
+	public boolean
+	isMotionHintAllowed (
+		Window		w
+	) {
+		return w != _motionHintWindow;
+	}
+
+	/**
+	 * Record that a MotionNotify event with the Hint detail was sent for
+	 * a window.
+	 *
+	 * @param w	The event window.
+	 */
+	public void
+	setMotionHintWindow (
+		Window		w
+	) {
+		_motionHintWindow = w;
+	}
+
+	/**
+	 * Allow another motion hint to be sent. Called when the pointer is
+	 * queried.
+	 */
+	public void
+	clearMotionHint () {
+		_motionHintWindow = null;
+	}
+
+	/**
+	 * Arrange for a window's unexposed parts to be checked for exposure
+	 * when the current request has been processed.
+	 *
+	 * @param w	The window.
+	 */
+	public void
+	scheduleExposures (
+		Window		w
+	) {
+		_pendingExposures.add (w);
+	}
+
+	/**
+	 * Send the Expose events of the windows whose exposure checks were
+	 * scheduled. Called with the server lock held.
+	 */
+	public void
+	sendPendingExposures () {
+		if (_pendingExposures.isEmpty ())
+			return;
+
+		Window[]	windows = _pendingExposures.toArray (new Window[0]);
+
+		_pendingExposures.clear ();
+		for (Window w: windows)
+			w.sendExposures ();
+	}
+
 	/**
 	 * Return the window that has input focus. Can be null.
 	 *
@@ -249,6 +321,11 @@ public class ScreenView extends View {
 	deleteWindow (
 		Window		w
 	) {
+		if (_motionHintWindow == w)
+			_motionHintWindow = null;
+
+		_pendingExposures.remove (w);
+
 		if (_grabPointerWindow == w || _grabConfineWindow == w) {
 			_grabPointerClient = null;
 			_grabPointerWindow = null;
@@ -449,6 +526,9 @@ public class ScreenView extends View {
 													|| y != _currentCursorY)
 			movePointer (x, y, c);
 
+		if (w != _motionWindow || mode != 0)
+			_motionHintWindow = null;	// Left the window, or grab changed.
+
 		if (w != _motionWindow) {
 			_motionWindow.leaveEnterNotify (x, y, w, mode);
 			_motionWindow = w;
@@ -510,6 +590,8 @@ public class ScreenView extends View {
 			_buttons &= ~mask;
 		}
 
+		_motionHintWindow = null;
+
 		if (_grabPointerWindow == null) {
 			Window		w = _rootWindow.windowAtPoint (_motionX, _motionY);
 			PassiveButtonGrab	pbg = null;
@@ -619,6 +701,8 @@ public class ScreenView extends View {
 		if (_grabKeyboardWindow == null && _focusWindow == null)
 			return;
 
+		_motionHintWindow = null;
+
 		Keyboard	kb = _xServer.getKeyboard ();
 
 		keycode = kb.translateToXKeycode (keycode);
@@ -1187,6 +1271,7 @@ public class ScreenView extends View {
 			InputOutput		dio = c.getInputOutput ();
 	
 			synchronized (dio) {
+				dio.beginEvent ();
 				dio.writeByte ((byte) (event[0] | 128));
 	
 				if (event[0] == EventCode.KeymapNotify) {
@@ -0,0 +1,322 @@
+/**
+ * This thread handles communications with a group of clients.
+ */
+package au.com.darkside.XServer;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Vector;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This thread handles communications with a group of clients.
+ * Each client's channel is registered with the thread's selector, and
+ * when data arrives the thread processes the client's complete requests.
+ * A small, fixed number of these threads serve all the connections.
+ * The thread also sends output whose flush was delayed to coalesce
+ * writes, once its deadline expires, and output that was queued because
+ * a client wasn't reading, once its channel becomes writable.
+ */
+public class SelectorThread extends Thread {
+	private final Selector			_selector;
+	private final Vector<Client>	_pendingClients;
+	private final Vector<Client>	_suspendedClients;
+	private final Vector<InputOutput>	_delayedFlushes;
+	private final Vector<InputOutput>	_pendingWrites;
+	private volatile boolean			_cancelled = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @throws IOException
+	 */
+	public SelectorThread () throws IOException {
+		_selector = Selector.open ();
+		_pendingClients = new Vector<Client>();
+		_suspendedClients = new Vector<Client>();
+		_delayedFlushes = new Vector<InputOutput>();
+		_pendingWrites = new Vector<InputOutput>();
+	}
+
+	/**
+	 * Hand a newly connected client over to this thread.
+	 *
+	 * @param client	The client to add.
+	 */
+	public void
+	addClient (
+		Client		client
+	) {
+		_pendingClients.add (client);
+		_selector.wakeup ();
+	}
+
+	/**
+	 * Arrange for delayed output to be sent when its flush deadline
+	 * expires.
+	 *
+	 * @param io	The connection with delayed output.
+	 */
+	public void
+	scheduleFlush (
+		InputOutput		io
+	) {
+		boolean		wakeup;
+
+		synchronized (_delayedFlushes) {
+			wakeup = _delayedFlushes.isEmpty ();
+			_delayedFlushes.add (io);
+		}
+
+			// Otherwise the selector is already waiting for an earlier
+			// deadline, or will check the list before it waits again.
+		if (wakeup)
+			_selector.wakeup ();
+	}
+
+	/**
+	 * Arrange for queued output to be sent when the connection's channel
+	 * becomes writable.
+	 *
+	 * @param io	The connection with queued output.
+	 */
+	public void
+	requestWrite (
+		InputOutput		io
+	) {
+		boolean		wakeup;
+
+		synchronized (_pendingWrites) {
+			if (_pendingWrites.contains (io))
+				return;
+
+			wakeup = _pendingWrites.isEmpty ();
+			_pendingWrites.add (io);
+		}
+
+		if (wakeup)
+			_selector.wakeup ();
+	}
+
+	/**
+	 * Run the thread.
+	 */
+	public void
+	run () {
+		while (!_cancelled) {
+			try {
+					// Clients held back by a server grab are retried when
+					// the server wakes the thread at the end of the grab.
+				_selector.select (selectTimeout ());
+			} catch (IOException e) {
+				break;
+			}
+
+			registerPendingClients ();
+			registerPendingWrites ();
+
+			Iterator<SelectionKey>	it = _selector.selectedKeys().iterator ();
+
+			while (it.hasNext ()) {
+				SelectionKey	key = it.next ();
+				Client			c = (Client) key.attachment ();
+
+				it.remove ();
+				if (key.isValid () && key.isWritable ())
+					c.processOutput ();
+				if (key.isValid () && key.isReadable ())
+					c.processInput ();
+
+				updateInterest (key, c);
+			}
+
+			resumeSuspendedClients ();
+			flushDelayedOutput ();
+		}
+
+		try {
+			_selector.close ();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Register the channels of clients added since the last iteration.
+	 */
+	private void
+	registerPendingClients () {
+		while (!_pendingClients.isEmpty ()) {
+			Client		c = _pendingClients.remove (0);
+
+			c.getInputOutput().setSelectorThread (this);
+			try {
+				c.getChannel().register (_selector, SelectionKey.OP_READ, c);
+			} catch (IOException e) {
+				c.resumeProcessing ();	// Will detect the closed channel.
+			}
+		}
+	}
+
+	/**
+	 * Wait for the channels of connections with queued output to become
+	 * writable. Connections whose output queue overflowed are closed.
+	 */
+	private void
+	registerPendingWrites () {
+		if (_pendingWrites.isEmpty ())
+			return;
+
+		InputOutput[]	ios;
+
+		synchronized (_pendingWrites) {
+			ios = _pendingWrites.toArray (new InputOutput[0]);
+			_pendingWrites.clear ();
+		}
+
+		for (InputOutput io: ios) {
+			SelectionKey	key = io.getChannel().keyFor (_selector);
+
+			if (key == null || !key.isValid ())
+				continue;
+
+			Client		c = (Client) key.attachment ();
+
+			if (io.isOverflowed ())
+				c.processOutput ();		// Will close the client.
+			else
+				updateInterest (key, c);
+		}
+	}
+
+	/**
+	 * Stop reading from a client while its processing is suspended,
+	 * so its requests stay queued in the socket, and wait for its
+	 * channel to become writable while it has queued output.
+	 *
+	 * @param key	The client's selection key.
+	 * @param c	The client.
+	 */
+	private void
+	updateInterest (
+		SelectionKey	key,
+		Client			c
+	) {
+		if (!c.isConnected () || !key.isValid ())
+			return;
+
+		InputOutput		io = c.getInputOutput ();
+		int				ops = 0;
+
+		if (c.isSuspended ()) {
+			if (!_suspendedClients.contains (c))
+				_suspendedClients.add (c);
+		} else {
+			ops = SelectionKey.OP_READ;
+		}
+
+		if (io.hasQueuedOutput ())
+			ops |= SelectionKey.OP_WRITE;
+
+		key.interestOps (ops);
+	}
+
+	/**
+	 * Retry the clients whose processing was suspended by a server grab
+	 * or a full output queue.
+	 */
+	private void
+	resumeSuspendedClients () {
+		if (_suspendedClients.isEmpty ())
+			return;
+
+		Client[]	clients = _suspendedClients.toArray (new Client[0]);
+
+		_suspendedClients.clear ();
+		for (Client c: clients) {
+			SelectionKey	key = c.getChannel().keyFor (_selector);
+
+			c.resumeProcessing ();
+			if (key != null)
+				updateInterest (key, c);
+		}
+	}
+
+	/**
+	 * Return how long the selector may wait before the next delayed
+	 * flush is due.
+	 *
+	 * @return	The time to wait, in milliseconds, or zero to wait until
+	 * 			woken.
+	 */
+	private long
+	selectTimeout () {
+		long		now = System.currentTimeMillis ();
+		long		timeout = 0;
+
+		synchronized (_delayedFlushes) {
+			for (InputOutput io: _delayedFlushes) {
+				long		t = io.getFlushDeadline () - now;
+
+				if (t < 1)
+					t = 1;
+				if (timeout == 0 || t < timeout)
+					timeout = t;
+			}
+		}
+
+		return timeout;
+	}
+
+	/**
+	 * Send the delayed output whose deadline has expired.
+	 */
+	private void
+	flushDelayedOutput () {
+		if (_delayedFlushes.isEmpty ())
+			return;
+
+		long				now = System.currentTimeMillis ();
+		Vector<InputOutput>	due = new Vector<InputOutput>();
+
+		synchronized (_delayedFlushes) {
+			Iterator<InputOutput>	it = _delayedFlushes.iterator ();
+
+			while (it.hasNext ()) {
+				InputOutput		io = it.next ();
+
+				if (io.getFlushDeadline () <= now) {
+					due.add (io);
+					it.remove ();
+				}
+			}
+		}
+
+		for (InputOutput io: due) {
+			try {
+				io.flushPending ();
+			} catch (IOException e) {	// Detected when reading.
+			}
+		}
+	}
+
+	/**
+	 * Wake the thread so it retries the clients whose processing was
+	 * suspended. Called when a server grab ends.
+	 */
+	public void
+	wakeup () {
+		_selector.wakeup ();
+	}
+
+	/**
+	 * Cancel the thread.
+	 */
+	public void
+	cancel () {
+		_cancelled = true;
+		_selector.wakeup ();
+	}
+}
@@ -25,7 +25,7 @@ public class Util {
 
 		while (n != 0) {
 			c += n & 1;
-			n >>= 1;
+			n >>>= 1;
 		}
 
 		return c;
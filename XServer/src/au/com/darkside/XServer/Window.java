@@ -16,6 +16,7 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.Region;
+import android.graphics.RegionIterator;
 import au.com.darkside.XServer.Xext.XShape;
 
 /**
@@ -45,7 +46,7 @@ public class Window extends Resource {
 	private final Set<PassiveButtonGrab>	_passiveButtonGrabs;
 	private final Set<PassiveKeyGrab>		_passiveKeyGrabs;
 	private boolean					_isMapped = false;
-	private boolean					_exposed = false;
+	private final Region			_unexposedRegion;
 	private int						_visibility = NotViewable;
 	private Bitmap					_backgroundBitmap = null;
 	private int						_eventMask = 0;
@@ -84,6 +85,9 @@ public class Window extends Resource {
 	private static final int		WinGravitySouthEast = 9;
 	private static final int		WinGravityStatic = 10;
 
+		// Bit gravity shares the window gravity values, apart from Forget.
+	private static final int		BitGravityForget = 0;
+
 	/**
 	 * Constructor.
 	 *
@@ -164,10 +168,12 @@ public class Window extends Resource {
 			_drawable = new Drawable (width, height, 32, null,
 										_attributes[AttrBackgroundPixel]);
 			_drawable.clear ();
+			_unexposedRegion = new Region ();
 		} else {
 			_attributes[AttrBackgroundPixel] = 0xff000000;
 			_drawable = new Drawable (width, height, 32, null,
 										_attributes[AttrBackgroundPixel]);
+			_unexposedRegion = new Region (0, 0, width, height);
 		}
 
 		_children = new Vector<Window> ();
@@ -223,6 +229,7 @@ public class Window extends Resource {
 				InputOutput io = client.getInputOutput ();
 
 				synchronized (io) {
+					io.beginEvent ();
 					io.writeByte (XShape.EventBase);
 					io.writeByte ((byte) shapeKind);
 					io.writeShort ((short) (client.getSequenceNumber()
@@ -794,7 +801,6 @@ public class Window extends Resource {
 		w._drawable.clear ();
 
 		_xServer.addResource (w);
-		client.addResource (w);
 		_children.add (w);
 
 		Vector<Client>		sc;
@@ -1022,15 +1028,21 @@ public class Window extends Resource {
 			} else {
 				Resource	r = _xServer.getResource (pmid);
 
-				if (r != null && r.getType () == Resource.PIXMAP) {
+				if (r == null || r.getType () != Resource.PIXMAP) {
+					ErrorCode.write (client, ErrorCode.Colormap, opcode, pmid);
+					ok = false;
+				} else {
 					Pixmap		p = (Pixmap) r;
 					Drawable	d = p.getDrawable ();
 
-					_backgroundBitmap = d.getBitmap ();
-					_drawable.setBackgroundBitmap (_backgroundBitmap);
-				} else {
-					ErrorCode.write (client, ErrorCode.Colormap, opcode, pmid);
-					ok = false;
+					if (d == null) {
+						ErrorCode.write (client, ErrorCode.Alloc, opcode, 0);
+						ok = false;
+					} else {
+						p.setUsedBy (WINDOW);
+						_backgroundBitmap = d.getBitmap ();
+						_drawable.setBackgroundBitmap (_backgroundBitmap);
+					}
 				}
 			}
 		}
@@ -1784,8 +1796,7 @@ public class Window extends Resource {
 	buttonEventMask (
 		int			buttonMask
 	) {
-		int			mask = EventCode.MaskPointerMotion
-										| EventCode.MaskPointerMotionHint;
+		int			mask = EventCode.MaskPointerMotion;
 
 		if ((buttonMask & 0x700) == 0)
 			return mask;
@@ -1842,6 +1853,8 @@ public class Window extends Resource {
 		}
 
 		boolean		sent = false;
+		boolean		hintAllowed = _screen.isMotionHintAllowed (evw);
+		boolean		hintSent = false;
 
 		for (Client c: sc) {
 			if (grabClient != null && grabClient != c)
@@ -1850,9 +1863,14 @@ public class Window extends Resource {
 			int			detail = 0;	// Normal.
 			int			em = evw.getClientEventMask (c);
 
-			if ((em & EventCode.MaskPointerMotionHint) != 0
-								&& (em & EventCode.MaskPointerMotion) == 0)
+			sent = true;
+			if ((em & EventCode.MaskPointerMotionHint) != 0) {
+				if (!hintAllowed)
+					continue;	// The client already has a hint.
+
 				detail = 1;		// Hint.
+				hintSent = true;
+			}
 
 			try {
 				EventCode.sendMotionNotify (c, _xServer.getTimestamp (),
@@ -1863,6 +1881,9 @@ public class Window extends Resource {
 			}
 		}
 
+		if (hintSent)
+			_screen.setMotionHintWindow (evw);
+
 		return sent;
 	}
 
@@ -1897,9 +1918,13 @@ public class Window extends Resource {
 		if (em != 0) {
 			int			detail = 0;	// Normal.
 
-			if ((em & EventCode.MaskPointerMotionHint) != 0
-								&& (em & EventCode.MaskPointerMotion) == 0)
+			if ((eventMask & EventCode.MaskPointerMotionHint) != 0) {
+				if (!_screen.isMotionHintAllowed (this))
+					return;		// The client already has a hint.
+
 				detail = 1;		// Hint.
+				_screen.setMotionHintWindow (this);
+			}
 
 			try {
 				EventCode.sendMotionNotify (grabClient,
@@ -1966,22 +1991,6 @@ public class Window extends Resource {
 		}
 
 		updateAffectedVisibility ();
-
-		if (!_exposed) {
-			sc = getSelectingClients (EventCode.MaskExposure);
-			if (sc != null) {
-				for (Client c: sc) {
-					try {
-						EventCode.sendExpose (c, this, 0, 0,
-												_drawable.getWidth (),
-												_drawable.getHeight (), 0);
-					} catch (IOException e) {
-						removeSelectingClient (c);
-					}
-				}
-			}
-			_exposed = true;
-		}
 	}
 
 	/**
@@ -2573,7 +2582,10 @@ public class Window extends Resource {
 
 		if (x != oldX || y != oldY || width != oldWidth || height != oldHeight
 											|| borderWidth != _borderWidth) {
+			Drawable	oldDrawable = null;
+
 			if (width != oldWidth || height != oldHeight) {
+				oldDrawable = _drawable;
 				try {
 					_drawable = new Drawable (width, height, 32,
 															_backgroundBitmap,
@@ -2585,7 +2597,6 @@ public class Window extends Resource {
 				}
 
 				_drawable.clear ();
-				_exposed = false;
 			}
 
 			dirty = new Rect (_orect);
@@ -2599,6 +2610,10 @@ public class Window extends Resource {
 			_irect.right = _orect.right - borderWidth;
 			_irect.bottom = _orect.bottom - borderWidth;
 			changed = true;
+
+			if (oldDrawable != null)
+				retainContents (oldDrawable, _irect.left - oldLeft,
+														_irect.top - oldTop);
 		}
 
 		if ((mask & 0x60) != 0) {
@@ -2719,17 +2734,6 @@ public class Window extends Resource {
 			updateAffectedVisibility ();
 		}
 
-		if (!_exposed) {
-			Vector<Client>		sc;
-
-			if ((sc = getSelectingClients (EventCode.MaskExposure)) != null) {
-				for (Client c: sc)
-					EventCode.sendExpose (c, this, 0, 0,
-							_drawable.getWidth (), _drawable.getHeight (), 0);
-			}
-			_exposed = true;
-		}
-
 		if (dirty != null && _isMapped && !_inputOnly)
 			_screen.postInvalidate (dirty.left, dirty.top, dirty.right,
 															dirty.bottom);
@@ -3013,6 +3017,8 @@ public class Window extends Resource {
 					io.readSkip (bytesRemaining);
 					ErrorCode.write (client, ErrorCode.Length, opcode, 0);
 				} else {
+					_screen.clearMotionHint ();
+
 					int			rid = _screen.getRootWindow().getId ();
 					int			rx = _screen.getPointerX ();
 					int			ry = _screen.getPointerY ();
@@ -3047,6 +3053,7 @@ public class Window extends Resource {
 				} else {
 					int			numEvents = 0;	// Do nothing.
 
+					_screen.clearMotionHint ();
 					io.readInt ();	// Start time.
 					io.readInt ();	// Stop time.
 
@@ -3111,13 +3118,12 @@ public class Window extends Resource {
 					invalidate (x, y, width, height);
 
 					if (arg == 1) {
-						Vector<Client>	sc;
-
-						sc = getSelectingClients (EventCode.MaskExposure);
-						if (sc != null)
-							for (Client c: sc)
-								EventCode.sendExpose (c, this, x, y, width,
-																height, 0);
+						_unexposedRegion.op (x, y, x + width, y + height,
+														Region.Op.UNION);
+						_unexposedRegion.op (0, 0, _drawable.getWidth (),
+														_drawable.getHeight (),
+														Region.Op.INTERSECT);
+						scheduleExposures ();
 					}
 				}
 				break;
@@ -3210,6 +3216,8 @@ public class Window extends Resource {
 	 */
 	private void
 	updateVisibility () {
+		scheduleExposures ();
+
 		Vector<Client>		sc = getSelectingClients (
 											EventCode.MaskVisibilityChange);
 
@@ -3251,5 +3259,185 @@ public class Window extends Resource {
 			if (w == this)
 				break;
 		}
+
+		_parent.scheduleExposures ();	// Parts may have been uncovered.
+	}
+
+	/**
+	 * Arrange for the window's unexposed parts to be checked for
+	 * exposure when the current request has been processed.
+	 * Checking once per request merges the exposures caused by a series
+	 * of changes, such as the windows of a subtree being mapped, and
+	 * skips areas that are uncovered then covered again.
+	 */
+	private void
+	scheduleExposures () {
+		if (!_unexposedRegion.isEmpty ())
+			_screen.scheduleExposures (this);
+	}
+
+	/**
+	 * Send Expose events for the parts of the window that are visible but
+	 * haven't been exposed since their contents were lost.
+	 * Window contents are retained when windows are restacked or obscured,
+	 * so each part is exposed only once, and the rectangles sent are the
+	 * minimal set covering the region.
+	 */
+	public void
+	sendExposures () {
+		if (_inputOnly || _unexposedRegion.isEmpty () || !isViewable ())
+			return;
+
+		Region		r = visibleRegion ();
+
+		r.op (_unexposedRegion, Region.Op.INTERSECT);
+		if (r.isEmpty ())
+			return;
+
+		_unexposedRegion.op (r, Region.Op.DIFFERENCE);
+
+		Vector<Client>		sc = getSelectingClients (EventCode.MaskExposure);
+
+		if (sc == null)
+			return;
+
+		Vector<Rect>		rects = new Vector<Rect>();
+		RegionIterator		ri = new RegionIterator (r);
+		Rect				rect = new Rect ();
+
+		while (ri.next (rect))
+			rects.add (new Rect (rect));
+
+		for (Client c: sc) {
+			int			count = rects.size ();
+
+			try {
+				for (Rect er: rects)
+					EventCode.sendExpose (c, this, er.left, er.top,
+										er.width (), er.height (), --count);
+			} catch (IOException e) {
+				removeSelectingClient (c);
+			}
+		}
+	}
+
+	/**
+	 * Return the visible region of the window, in window coordinates.
+	 * This is the inside of the window, clipped by its ancestors, less
+	 * the areas covered by mapped children and by mapped windows stacked
+	 * above it or above its ancestors. Shaped windows don't cover
+	 * anything, so at worst an area is exposed early.
+	 *
+	 * @return	The visible region.
+	 */
+	private Region
+	visibleRegion () {
+		Region		r = new Region (_irect);
+
+		for (Window w: _children)
+			if (w.coversSiblings ())
+				r.op (w._orect, Region.Op.DIFFERENCE);
+
+		for (Window aw = this; aw._parent != null; aw = aw._parent) {
+			boolean		above = false;
+
+			r.op (aw._parent._irect, Region.Op.INTERSECT);
+			for (Window w: aw._parent._children) {
+				if (above) {
+					if (w.coversSiblings ())
+						r.op (w._orect, Region.Op.DIFFERENCE);
+				} else if (w == aw) {
+					above = true;
+				}
+			}
+		}
+
+		r.translate (-_irect.left, -_irect.top);
+
+		return r;
+	}
+
+	/**
+	 * Does the window hide the windows stacked below it?
+	 *
+	 * @return	True if the window is mapped, opaque and unshaped.
+	 */
+	private boolean
+	coversSiblings () {
+		return _isMapped && !_inputOnly && _boundingShapeRegion == null;
+	}
+
+	/**
+	 * Copy the contents of the window's previous drawable into its new
+	 * one after a resize, positioned according to the window's bit
+	 * gravity. Only the area the old contents don't cover needs to be
+	 * exposed. With Forget gravity the whole window does.
+	 *
+	 * @param old	The previous drawable.
+	 * @param dx	The horizontal distance the window's inside moved.
+	 * @param dy	The vertical distance the window's inside moved.
+	 */
+	private void
+	retainContents (
+		Drawable	old,
+		int			dx,
+		int			dy
+	) {
+		int			width = _drawable.getWidth ();
+		int			height = _drawable.getHeight ();
+		int			dw = width - old.getWidth ();
+		int			dh = height - old.getHeight ();
+		int			x = 0;
+		int			y = 0;
+
+		switch (_attributes[AttrBitGravity]) {
+			case BitGravityForget:
+				_unexposedRegion.set (0, 0, width, height);
+				return;
+			case WinGravityNorthWest:
+				break;
+			case WinGravityNorth:
+				x = dw / 2;
+				break;
+			case WinGravityNorthEast:
+				x = dw;
+				break;
+			case WinGravityWest:
+				y = dh / 2;
+				break;
+			case WinGravityCenter:
+				x = dw / 2;
+				y = dh / 2;
+				break;
+			case WinGravityEast:
+				x = dw;
+				y = dh / 2;
+				break;
+			case WinGravitySouthWest:
+				y = dh;
+				break;
+			case WinGravitySouth:
+				x = dw / 2;
+				y = dh;
+				break;
+			case WinGravitySouthEast:
+				x = dw;
+				y = dh;
+				break;
+			case WinGravityStatic:
+				x = -dx;
+				y = -dy;
+				break;
+		}
+
+		_drawable.copyFrom (old, x, y);
+
+		Region		r = new Region (0, 0, width, height);
+
+		r.op (x, y, x + old.getWidth (), y + old.getHeight (),
+														Region.Op.DIFFERENCE);
+		_unexposedRegion.translate (x, y);
+		_unexposedRegion.op (r, Region.Op.UNION);
+		_unexposedRegion.op (0, 0, width, height, Region.Op.INTERSECT);
 	}
 }
\ No newline at end of file
@@ -3,27 +3,31 @@
  */
 package au.com.darkside.XServer;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.Collection;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.HashSet;
 import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.Set;
 import java.util.Vector;
 
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
 import android.os.CountDownTimer;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.WindowManager;
 import au.com.darkside.XServer.Xext.Extensions;
-import au.com.darkside.XServer.Xext.XShape;
 
 /**
  * @author Matthew Kwan
@@ -35,21 +39,21 @@ public class XServer {
 	public final short		ProtocolMinorVersion = 0;
 	public final String		vendor = "Open source";
 	public final int		ReleaseNumber = 0;
+	public static final int	NumSelectorThreads = 2;
+	public static final int	PixmapBudgetFraction = 4;
 
 	private final int				_port;
 	private final Context			_context;
 	private final String			_windowManagerClass;
 	private final Vector<Format>	_formats;
-	private final Hashtable<Integer, Resource>	_resources;
+	private final ResourceTable		_resources;
 
 	private final Vector<Client>	_clients;
 	private final int			_clientIdBits = 20;
 	private final int			_clientIdStep = (1 << _clientIdBits);
 	private int					_clientIdBase = _clientIdStep;
 
-	private final Hashtable<Integer, Atom>		_atoms;
-	private final Hashtable<String, Atom>		_atomNames;
-	private int									_maxAtomId = 0;
+	private final AtomTable						_atoms;
 	private final Hashtable<Integer, Selection>	_selections;
 
 	private final Keyboard		_keyboard;
@@ -58,9 +62,23 @@ public class XServer {
 	private final Visual		_rootVisual;
 	private ScreenView			_screen = null;
 	private String[]			_fontPath = null;
+	private FontCatalogue		_fontCatalogue = new FontCatalogue (null);
+	private final PixmapBudget	_pixmapBudget;
 	private AcceptThread		_acceptThread = null;
+	private String				_unixSocketPath = null;
+	private LocalAcceptThread	_localAcceptThread = null;
+	private SelectorThread[]	_selectorThreads = null;
+	private int					_nextSelectorThread = 0;
+	private int					_flushDelay = 2;
+	private int					_outputQueueLimit =
+									InputOutput.DefaultOutputQueueLimit;
+	private int					_overflowPolicy =
+									InputOutput.OverflowDisconnect;
+	private final long[]		_batchSizeHistogram = new long[8];
+	private final RequestMetrics	_requestMetrics = new RequestMetrics ();
+	private MetricsDumpThread	_metricsDumpThread = null;
 	private long				_timestamp;
-	private Client				_grabClient;
+	private volatile Client		_grabClient;
 
 	private int				_screenSaverTimeout = 0;
 	private int				_screenSaverInterval = 0;
@@ -73,6 +91,8 @@ public class XServer {
 	private final HashSet<Integer>	_accessControlHosts;
 
 	private final Hashtable<String, Extension>	_extensions;
+	private final RequestHandler[]				_requestHandlers;
+	private final boolean[]						_lockFreeRequests;
 
 	/**
 	 * Constructor.
@@ -90,22 +110,20 @@ public class XServer {
 		_port = port;
 		_windowManagerClass = windowManagerClass;
 		_formats = new Vector<Format>();
-		_resources = new Hashtable<Integer, Resource>();
+		_resources = new ResourceTable (_clientIdBits);
 		_clients = new Vector<Client>();
-		_atoms = new Hashtable<Integer, Atom>();
-		_atomNames = new Hashtable<String, Atom>();
+		_atoms = new AtomTable ();
 		_selections = new Hashtable<Integer, Selection>();
 		_accessControlHosts = new HashSet<Integer>();
+		_pixmapBudget = new PixmapBudget (new File (c.getCacheDir (), "pixmaps"),
+					Runtime.getRuntime().maxMemory () / PixmapBudgetFraction);
+
+		_requestHandlers = new RequestHandler[256];
+		_lockFreeRequests = new boolean[256];
+		CoreRequestHandlers.register (this);
 
 		_extensions = new Hashtable<String, Extension>();
-		_extensions.put ("Generic Event Extension",
-						new Extension (Extensions.XGE, (byte) 0, (byte) 0));
-		_extensions.put ("XTEST",
-				new Extension (Extensions.XTEST, (byte) 0, (byte) 0));
-		_extensions.put ("BIG-REQUESTS",
-				new Extension (Extensions.BigRequests, (byte) 0, (byte) 0));
-		_extensions.put ("SHAPE", new Extension (Extensions.Shape,
-										XShape.EventBase, (byte) 0));
+		Extensions.register (this);
 
 		_formats.add (new Format ((byte) 32, (byte) 24, (byte) 8));
 
@@ -125,7 +143,6 @@ public class XServer {
 		addResource (cmap);
 
 		_rootVisual = new Visual (1);
-		Atom.registerPredefinedAtoms (this);
 
 		_timestamp = System.currentTimeMillis ();
 	}
@@ -142,12 +159,29 @@ public class XServer {
 			return true;	// Already running.
 
 		try {
+			_selectorThreads = new SelectorThread[NumSelectorThreads];
+			for (int i = 0; i < _selectorThreads.length; i++) {
+				_selectorThreads[i] = new SelectorThread ();
+				_selectorThreads[i].start ();
+			}
+
 			_acceptThread = new AcceptThread (_port);
 			_acceptThread.start ();
 		} catch (IOException e) {
+			stopSelectorThreads ();
 			return false;
 		}
 
+		if (_unixSocketPath != null) {
+			try {
+				_localAcceptThread = new LocalAcceptThread (_unixSocketPath);
+				_localAcceptThread.start ();
+			} catch (IOException e) {
+				Log.e ("XServer", "Could not listen on " + _unixSocketPath
+												+ ": " + e.getMessage ());
+			}
+		}
+
 		if (_windowManagerClass != null) {
 			int			idx = _windowManagerClass.lastIndexOf ('.');
 
@@ -184,9 +218,33 @@ public class XServer {
 			_acceptThread = null;
 		}
 
-		_grabClient = null;
+		if (_localAcceptThread != null) {
+			_localAcceptThread.cancel ();
+			_localAcceptThread = null;
+		}
+
+		stopMetricsDump ();
+
+		endGrab ();
 		while (!_clients.isEmpty ())
 			_clients.get(0).cancel ();
+
+		stopSelectorThreads ();
+	}
+
+	/**
+	 * Stop the threads that handle client communications.
+	 */
+	private void
+	stopSelectorThreads () {
+		if (_selectorThreads == null)
+			return;
+
+		for (SelectorThread st: _selectorThreads)
+			if (st != null)
+				st.cancel ();
+
+		_selectorThreads = null;
 	}
 
 	/**
@@ -196,24 +254,18 @@ public class XServer {
 	 */
 	private void
 	reset () {
-		Iterator<Hashtable.Entry<Integer, Resource>>
-									it = _resources.entrySet().iterator ();
+			// Remove all client-allocated resources. Fonts are deleted
+			// first, so the faces they share are released.
+		for (Resource r: _resources.getAllClientResources ())
+			if (r.getType () == Resource.FONT)
+				r.delete ();
 
-			// Remove all client-allocated resources.
-		while (it.hasNext ()) {
-			Hashtable.Entry<Integer, Resource>	entry = it.next ();
-
-			if (entry.getKey () > _clientIdStep)
-				it.remove ();
-		}
+		_resources.removeAllClientResources ();
 
 		_screen.removeNonDefaultColormaps ();
 
-		if (_atoms.size () != Atom.numPredefinedAtoms ()) {
-			_atoms.clear ();
-			_atomNames.clear ();
-			Atom.registerPredefinedAtoms (this);
-		}
+		if (_atoms.size () != Atom.numPredefinedAtoms ())
+			_atoms.reset ();
 
 		_selections.clear ();
 		_timestamp = System.currentTimeMillis ();
@@ -242,6 +294,43 @@ public class XServer {
 		return _acceptThread.getInetAddress ();
 	}
 
+	/**
+	 * Return the path of the Unix domain socket the server listens on,
+	 * in addition to its TCP port.
+	 *
+	 * @return	The socket path, or null if disabled.
+	 */
+	public String
+	getUnixSocketPath () {
+		return _unixSocketPath;
+	}
+
+	/**
+	 * Set the path of a Unix domain socket to listen on, in addition to
+	 * the TCP port. Local clients, such as those in a chroot on the same
+	 * device, avoid the loopback overhead by connecting to it.
+	 * Takes effect the next time the server is started.
+	 *
+	 * @param path	The socket path, or null to disable.
+	 */
+	public void
+	setUnixSocketPath (
+		String		path
+	) {
+		_unixSocketPath = path;
+	}
+
+	/**
+	 * Return the conventional Unix domain socket path of the display
+	 * served on this server's port, /tmp/.X11-unix/X<n>.
+	 *
+	 * @return	The conventional socket path.
+	 */
+	public String
+	getDefaultUnixSocketPath () {
+		return "/tmp/.X11-unix/X" + (_port - 6000);
+	}
+
 	/**
 	 * Return the number of milliseconds since the last reset.
 	 *
@@ -271,7 +360,7 @@ public class XServer {
 
 		_clients.remove (client);
 		if (_grabClient == client)
-			_grabClient = null;
+			endGrab ();
 
 		if (client.getCloseDownMode () == Client.Destroy
 												&& _clients.size () == 0)
@@ -300,7 +389,21 @@ public class XServer {
 		Client		client
 	) {
 		if (_grabClient == client)
-			_grabClient = null;
+			endGrab ();
+	}
+
+	/**
+	 * End any server grab and wake the clients whose processing was
+	 * suspended by it, rather than leaving them to poll for the end.
+	 */
+	private synchronized void
+	endGrab () {
+		_grabClient = null;
+		notifyAll ();	// Local socket clients waiting for the grab to end.
+
+		if (_selectorThreads != null)
+			for (SelectorThread st: _selectorThreads)
+				st.wakeup ();
 	}
 
 	/**
@@ -322,6 +425,293 @@ public class XServer {
 		return _grabClient == client;
 	}
 
+	/**
+	 * Return the maximum time output generated outside a client's
+	 * request processing, such as input events, waits before being sent.
+	 *
+	 * @return	The flush delay, in milliseconds.
+	 */
+	public int
+	getFlushDelay () {
+		return _flushDelay;
+	}
+
+	/**
+	 * Set the maximum time output generated outside a client's request
+	 * processing waits before being sent. Output from several events
+	 * within the delay is sent in a single write.
+	 *
+	 * @param delay	The flush delay in milliseconds. 0 flushes immediately.
+	 */
+	public synchronized void
+	setFlushDelay (
+		int			delay
+	) {
+		_flushDelay = delay;
+		for (Client c: _clients)
+			c.getInputOutput().setFlushDelay (delay);
+	}
+
+	/**
+	 * Return the maximum number of bytes that may be queued for a client
+	 * that isn't reading its output.
+	 *
+	 * @return	The output queue limit, in bytes.
+	 */
+	public int
+	getOutputQueueLimit () {
+		return _outputQueueLimit;
+	}
+
+	/**
+	 * Set the maximum number of bytes that may be queued for a client
+	 * that isn't reading its output.
+	 *
+	 * @param limit	The output queue limit, in bytes.
+	 */
+	public synchronized void
+	setOutputQueueLimit (
+		int			limit
+	) {
+		_outputQueueLimit = limit;
+		for (Client c: _clients)
+			c.getInputOutput().setOutputQueueLimit (limit);
+	}
+
+	/**
+	 * Return what happens when a client's output queue exceeds its limit.
+	 *
+	 * @return	InputOutput.OverflowDisconnect or
+	 * 			InputOutput.OverflowDropEvents.
+	 */
+	public int
+	getOverflowPolicy () {
+		return _overflowPolicy;
+	}
+
+	/**
+	 * Set what happens when a client's output queue exceeds its limit.
+	 * The client is either disconnected, or events sent to it are dropped
+	 * until it catches up. Replies and errors are never dropped.
+	 *
+	 * @param policy	InputOutput.OverflowDisconnect or
+	 * 					InputOutput.OverflowDropEvents.
+	 */
+	public synchronized void
+	setOverflowPolicy (
+		int			policy
+	) {
+		_overflowPolicy = policy;
+		for (Client c: _clients)
+			c.getInputOutput().setOverflowPolicy (policy);
+	}
+
+	/**
+	 * Record the number of requests a client processed in one
+	 * acquisition of the server lock. The caller must hold the lock.
+	 *
+	 * @param n	The number of requests in the batch.
+	 */
+	public void
+	recordBatchSize (
+		int			n
+	) {
+		int		bucket = 31 - Integer.numberOfLeadingZeros (n);
+
+		if (bucket >= _batchSizeHistogram.length)
+			bucket = _batchSizeHistogram.length - 1;
+
+		_batchSizeHistogram[bucket]++;
+	}
+
+	/**
+	 * Return a histogram of the number of requests processed per
+	 * acquisition of the server lock. Element i counts the batches of
+	 * between 2^i and 2^(i+1) - 1 requests. The last element also counts
+	 * all larger batches.
+	 *
+	 * @return	A copy of the batch size histogram.
+	 */
+	public synchronized long[]
+	getBatchSizeHistogram () {
+		return _batchSizeHistogram.clone ();
+	}
+
+	/**
+	 * Record the processing of a request in the server-wide statistics.
+	 * Requests processed without the server lock are recorded too, so
+	 * the statistics have their own lock.
+	 *
+	 * @param opcode	The request's major opcode.
+	 * @param minor	The request's minor opcode, for extensions.
+	 * @param bytesIn	The length of the request, in bytes.
+	 * @param bytesOut	The number of bytes sent in response.
+	 * @param nanos	The processing time, in nanoseconds.
+	 */
+	public void
+	recordRequest (
+		byte		opcode,
+		byte		minor,
+		int			bytesIn,
+		long		bytesOut,
+		long		nanos
+	) {
+		synchronized (_requestMetrics) {
+			_requestMetrics.record (opcode, minor, bytesIn, bytesOut, nanos);
+		}
+	}
+
+	/**
+	 * Return a copy of the statistics of the requests processed for all
+	 * clients since the server was created.
+	 *
+	 * @return	The request statistics.
+	 */
+	public RequestMetrics
+	getRequestMetrics () {
+		synchronized (_requestMetrics) {
+			return _requestMetrics.copy ();
+		}
+	}
+
+	/**
+	 * Return a copy of the statistics of the requests processed for a
+	 * client.
+	 *
+	 * @param client	The client.
+	 * @return	The client's request statistics.
+	 */
+	public synchronized RequestMetrics
+	getRequestMetrics (
+		Client		client
+	) {
+		RequestMetrics	metrics = client.getRequestMetrics ();
+
+		synchronized (metrics) {
+			return metrics.copy ();
+		}
+	}
+
+	/**
+	 * Write the server-wide request statistics, followed by those of
+	 * each connected client along with its output queue statistics, to
+	 * a file. The file is replaced atomically.
+	 *
+	 * @param file	The file to write to.
+	 * @throws IOException
+	 */
+	public void
+	dumpRequestMetrics (
+		File		file
+	) throws IOException {
+		RequestMetrics			global;
+		Vector<RequestMetrics>	metrics = new Vector<RequestMetrics>();
+		Vector<String>			headers = new Vector<String>();
+		int						packedPixmaps = 0;
+		long[]					bytesSaved = new long[Resource.COLORMAP + 1];
+		String					pixmapBudget;
+
+		global = getRequestMetrics ();
+		synchronized (this) {
+			long		faults = _pixmapBudget.getFaults ();
+
+			pixmapBudget = "# Pixmap budget limit="
+					+ _pixmapBudget.getLimit ()
+					+ " resident=" + _pixmapBudget.getResidentBytes ()
+					+ " spilled=" + _pixmapBudget.getSpilledBytes ()
+					+ " spills=" + _pixmapBudget.getSpills ()
+					+ " faults=" + faults
+					+ " fault-avg-us=" + ((faults == 0) ? 0
+							: _pixmapBudget.getFaultNanos () / faults / 1000)
+					+ " fault-max-us="
+					+ _pixmapBudget.getMaxFaultNanos () / 1000;
+
+			for (Client c: _clients) {
+				InputOutput		io = c.getInputOutput ();
+
+					// Depth 1 pixmaps, by the type of resource using them.
+				for (Resource r: getClientResources (c)) {
+					if (r.getType () != Resource.PIXMAP)
+						continue;
+
+					Pixmap		p = (Pixmap) r;
+					long		saved = p.getBytesSaved ();
+
+					if (saved > 0) {
+						packedPixmaps++;
+						bytesSaved[p.getUsedBy ()] += saved;
+					}
+				}
+
+				metrics.add (getRequestMetrics (c));
+				headers.add ("# Client 0x"
+							+ Integer.toHexString (c.getResourceIdBase ())
+							+ " queued=" + io.getOutputQueueDepth ()
+							+ " peak-queued=" + io.getPeakOutputQueueDepth ()
+							+ " peak-input=" + io.getPeakInputBufferSize ()
+							+ " stalled-ms=" + io.getStalledMillis ()
+							+ " dropped-events=" + io.getDroppedEventCount ()
+							+ " merged-motion=" + io.getMergedMotionCount ());
+			}
+		}
+
+		File			tmp = new File (file.getPath () + ".tmp");
+		PrintWriter		pw = new PrintWriter (new FileWriter (tmp));
+
+		try {
+			pw.println ("# Glyph atlas hits=" + GlyphAtlas.getHits ()
+							+ " misses=" + GlyphAtlas.getMisses ()
+							+ " evictions=" + GlyphAtlas.getEvictions ());
+			pw.println ("# Packed pixmaps count=" + packedPixmaps
+					+ " bytes-saved gcontext=" + bytesSaved[Resource.GCONTEXT]
+					+ " cursor=" + bytesSaved[Resource.CURSOR]
+					+ " window=" + bytesSaved[Resource.WINDOW]
+					+ " other=" + bytesSaved[0]);
+			pw.println (pixmapBudget);
+			pw.println ();
+			pw.println ("# All clients");
+			global.write (pw);
+			for (int i = 0; i < metrics.size (); i++) {
+				pw.println ();
+				pw.println (headers.get (i));
+				metrics.get(i).write (pw);
+			}
+		} finally {
+			pw.close ();
+		}
+
+		if (pw.checkError () || !tmp.renameTo (file))
+			throw new IOException ("Cannot write " + file);
+	}
+
+	/**
+	 * Start writing the request statistics to a file periodically.
+	 * Any earlier periodic dump is stopped.
+	 *
+	 * @param file	The file to write to.
+	 * @param period	The time between writes, in seconds.
+	 */
+	public synchronized void
+	startMetricsDump (
+		File		file,
+		int			period
+	) {
+		stopMetricsDump ();
+		_metricsDumpThread = new MetricsDumpThread (file, period);
+		_metricsDumpThread.start ();
+	}
+
+	/**
+	 * Stop writing the request statistics periodically.
+	 */
+	public synchronized void
+	stopMetricsDump () {
+		if (_metricsDumpThread != null) {
+			_metricsDumpThread.cancel ();
+			_metricsDumpThread = null;
+		}
+	}
+
 	/**
 	 * Get the X server's keyboard.
 	 *
@@ -362,6 +752,27 @@ public class XServer {
 		String[]	path
 	) {
 		_fontPath = path;
+		_fontCatalogue = new FontCatalogue (path);
+	}
+
+	/**
+	 * Return the catalogue of the fonts on the server's font path.
+	 *
+	 * @return	The font catalogue.
+	 */
+	public FontCatalogue
+	getFontCatalogue () {
+		return _fontCatalogue;
+	}
+
+	/**
+	 * Return the memory budget for the pixels of pixmaps.
+	 *
+	 * @return	The pixmap budget.
+	 */
+	public PixmapBudget
+	getPixmapBudget () {
+		return _pixmapBudget;
 	}
 
 	/**
@@ -436,23 +847,22 @@ public class XServer {
 	}
 
 	/**
-	 * Add an atom.
+	 * Return the atom with the specified name, creating it if it doesn't
+	 * exist. Can be called without the server lock.
 	 *
-	 * @param a		The atom to add.
+	 * @param name	The atom's name.
+	 * @return	The atom.
 	 */
-	public void
-	addAtom (
-		Atom		a
+	public Atom
+	internAtom (
+		String		name
 	) {
-		_atoms.put (a.getId (), a);
-		_atomNames.put (a.getName (), a);
-
-		if (a.getId () > _maxAtomId)
-			_maxAtomId = a.getId ();
+		return _atoms.intern (name);
 	}
 
 	/**
 	 * Return the atom with the specified ID.
+	 * Can be called without the server lock.
 	 *
 	 * @param id	The atom ID.
 	 * @return	The specified atom, or null if it doesn't exist.
@@ -461,14 +871,12 @@ public class XServer {
 	getAtom (
 		int			id
 	) {
-		if (!_atoms.containsKey (id))	// No such atom.
-			return null;
-
 		return _atoms.get (id);
 	}
 
 	/**
 	 * Return the atom with the specified name.
+	 * Can be called without the server lock.
 	 *
 	 * @param name	The atom's name.
 	 * @return	The specified atom, or null if it doesn't exist.
@@ -477,10 +885,7 @@ public class XServer {
 	findAtom (
 		final String	name
 	) {
-		if (!_atomNames.containsKey (name))
-			return null;
-
-		return _atomNames.get (name);
+		return _atoms.find (name);
 	}
 
 	/**
@@ -493,17 +898,7 @@ public class XServer {
 	atomExists (
 		int			id
 	) {
-		return _atoms.containsKey (id);
-	}
-
-	/**
-	 * Get the ID of the next free atom.
-	 *
-	 * @return	The ID of the next free atom.
-	 */
-	public int
-	nextFreeAtomId () {
-		return ++_maxAtomId;
+		return _atoms.get (id) != null;
 	}
 
 	/**
@@ -543,7 +938,7 @@ public class XServer {
 	addResource (
 		Resource	r
 	) {
-		_resources.put (r.getId (), r);
+		_resources.put (r);
 	}
 
 	/**
@@ -556,9 +951,6 @@ public class XServer {
 	getResource (
 		int			id
 	) {
-		if (!resourceExists (id))
-			return null;
-
 		return _resources.get (id);
 	}
 
@@ -572,7 +964,7 @@ public class XServer {
 	resourceExists (
 		int			id
 	) {
-		return _resources.containsKey (id);
+		return _resources.contains (id);
 	}
 
 	/**
@@ -587,6 +979,19 @@ public class XServer {
 		_resources.remove (id);
 	}
 
+	/**
+	 * Return the resources allocated by a client.
+	 *
+	 * @param client	The client.
+	 * @return	A copy of the client's resources.
+	 */
+	public Resource[]
+	getClientResources (
+		Client		client
+	) {
+		return _resources.getClientResources (client.getResourceIdBase ());
+	}
+
 	/**
 	 * If client is null, destroy the resources of all clients that have
 	 * terminated in RetainTemporary mode. Otherwise destroy all resources
@@ -599,26 +1004,27 @@ public class XServer {
 	destroyClientResources (
 		Client		client
 	) {
-		Collection<Resource>	rc = _resources.values ();
-		Vector<Resource>		dl = new Vector<Resource> ();
+		if (client != null) {
+			for (Resource r: getClientResources (client))
+				if (_resources.get (r.getId ()) == r)
+					r.delete ();
 
-		if (client == null) {
-			for (Resource r: rc) {
-				Client		c = r.getClient ();
-				boolean		disconnected = (c == null || !c.isConnected ());
+			return;
+		}
 
-				if (disconnected && r.getCloseDownMode ()
-											== Client.RetainTemporary)
-					dl.add (r);
-			}
-		} else {
-			for (Resource r: rc)
-				if (r.getClient () == client)
-					dl.add (r);
+		Vector<Resource>	dl = new Vector<Resource> ();
+
+		for (Resource r: _resources.getAllClientResources ()) {
+			Client		c = r.getClient ();
+			boolean		disconnected = (c == null || !c.isConnected ());
+
+			if (disconnected && r.getCloseDownMode () == Client.RetainTemporary)
+				dl.add (r);
 		}
 
 		for (Resource r: dl)
-			r.delete ();
+			if (_resources.get (r.getId ()) == r)
+				r.delete ();
 	}
 
 	/**
@@ -711,6 +1117,88 @@ public class XServer {
 		io.flush ();
 	}
 
+	/**
+	 * Return the handler of requests with the specified major opcode.
+	 *
+	 * @param opcode	The major opcode.
+	 * @return	The handler, or null if the opcode is not implemented.
+	 */
+	public RequestHandler
+	getRequestHandler (
+		byte			opcode
+	) {
+		return _requestHandlers[opcode & 0xff];
+	}
+
+	/**
+	 * Set the handler of requests with the specified major opcode.
+	 *
+	 * @param opcode	The major opcode.
+	 * @param handler	The handler, or null if not implemented.
+	 */
+	public void
+	setRequestHandler (
+		byte			opcode,
+		RequestHandler	handler
+	) {
+		_requestHandlers[opcode & 0xff] = handler;
+		_lockFreeRequests[opcode & 0xff] = false;
+	}
+
+	/**
+	 * Set the handler of requests with the specified major opcode, which
+	 * are processed without the server lock. The handler may only use
+	 * server state that is safe to access without the lock.
+	 *
+	 * @param opcode	The major opcode.
+	 * @param handler	The handler.
+	 */
+	public void
+	setLockFreeRequestHandler (
+		byte			opcode,
+		RequestHandler	handler
+	) {
+		_requestHandlers[opcode & 0xff] = handler;
+		_lockFreeRequests[opcode & 0xff] = true;
+	}
+
+	/**
+	 * Are requests with the specified major opcode processed without the
+	 * server lock?
+	 *
+	 * @param opcode	The major opcode.
+	 * @return	True if the requests don't need the server lock.
+	 */
+	public boolean
+	isLockFreeRequest (
+		byte			opcode
+	) {
+		return _lockFreeRequests[opcode & 0xff];
+	}
+
+	/**
+	 * Add an extension, and register the handler of its major opcode.
+	 *
+	 * @param name	The name of the extension.
+	 * @param majorOpcode	Major opcode of the extension, or zero.
+	 * @param firstEvent	Base event type code, or zero.
+	 * @param firstError	Base error code, or zero.
+	 * @param handler	Handler of the extension's requests, or null.
+	 */
+	public void
+	addExtension (
+		String			name,
+		byte			majorOpcode,
+		byte			firstEvent,
+		byte			firstError,
+		RequestHandler	handler
+	) {
+		_extensions.put (name, new Extension (majorOpcode, firstEvent,
+																firstError));
+		if (majorOpcode != 0)
+			setRequestHandler (majorOpcode, handler);
+	}
+
 	/**
 	 * Write the list of extensions supported by the server.
 	 *
@@ -1008,7 +1496,8 @@ public class XServer {
 	 * @author Matthew Kwan
 	 */
 	private class AcceptThread extends Thread {
-		private final ServerSocket	_serverSocket;
+		private final ServerSocketChannel	_serverChannel;
+		private final ServerSocket			_serverSocket;
 
 		/**
 		 * Constructor.
@@ -1020,7 +1509,9 @@ public class XServer {
 		AcceptThread (
 			int			port
 		) throws IOException {
-			_serverSocket = new ServerSocket (port);
+			_serverChannel = ServerSocketChannel.open ();
+			_serverSocket = _serverChannel.socket ();
+			_serverSocket.bind (new InetSocketAddress (port));
 		}
 
 		/**
@@ -1040,12 +1531,12 @@ public class XServer {
 		public void
 		run () {
 			while (true) {
-				Socket		socket;
+				SocketChannel	channel;
 
 				try {
 						// This is a blocking call and will only return on a
 						// successful connection or an exception.
-					socket = _serverSocket.accept ();
+					channel = _serverChannel.accept ();
 				} catch (IOException e) {
 					break;
 				}
@@ -1053,7 +1544,8 @@ public class XServer {
 				int					addr = 0;
 				InetSocketAddress	isa;
 
-				isa = (InetSocketAddress) socket.getRemoteSocketAddress ();
+				isa = (InetSocketAddress)
+							channel.socket().getRemoteSocketAddress ();
 				if (isa != null) {
 					InetAddress		ia = isa.getAddress ();
 					byte[]			ba = ia.getAddress ();
@@ -1064,24 +1556,34 @@ public class XServer {
 
 				if (addr != 0 && !isAccessAllowed (addr)) {
 					try {
-						socket.close ();
+						channel.close ();
 					} catch (IOException e) {
 					}
 					continue;
 				}
 
-				synchronized (this) {
+				synchronized (XServer.this) {
 					Client		c;
 
 					try {
-						c = new Client (XServer.this, socket, _clientIdBase,
-														_clientIdStep - 1);
+						if (_selectorThreads == null)	// Server stopping.
+							throw new IOException ();
+
+						channel.configureBlocking (false);
+							// Output is already coalesced, so Nagle's algorithm
+							// only delays a small write behind unacknowledged
+							// data, such as an event after a large reply.
+						channel.socket().setTcpNoDelay (true);
+						c = new Client (XServer.this, new InputOutput (channel),
+										_clientIdBase, _clientIdStep - 1);
 						_clients.add (c);
-						c.start ();
+						_selectorThreads[_nextSelectorThread].addClient (c);
+						_nextSelectorThread = (_nextSelectorThread + 1)
+												% _selectorThreads.length;
 						_clientIdBase += _clientIdStep;
 					} catch (IOException e) {
 						try {
-							socket.close ();
+							channel.close ();
 						} catch (IOException e2) {
 						}
 					}
@@ -1095,9 +1597,273 @@ public class XServer {
 		public void
 		cancel () {
 			try {
-				_serverSocket.close ();
+				_serverChannel.close ();
 			} catch (IOException e) {
 			}
 		}
     }
-}
\ No newline at end of file
+
+	/**
+	 * This thread listens for connections on a Unix domain socket.
+	 * It runs until it is cancelled.
+	 *
+	 * Android provides no selectable Unix domain socket channel, so each
+	 * connection is served by a thread of its own, while still sharing
+	 * a selector thread for delayed flushes.
+	 *
+	 * @author Matthew Kwan
+	 */
+	private class LocalAcceptThread extends Thread {
+		private final String				_path;
+		private final LocalSocket			_socket;
+		private final LocalServerSocket		_serverSocket;
+		private volatile boolean			_cancelled = false;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param path	The filesystem path of the socket.
+		 *
+		 * @throws IOException
+		 */
+		LocalAcceptThread (
+			String		path
+		) throws IOException {
+			File		file = new File (path);
+			File		dir = file.getParentFile ();
+
+			if (dir != null && !dir.isDirectory () && !dir.mkdirs ())
+				throw new IOException ("Cannot create " + dir);
+
+			file.delete ();		// Left behind by an earlier server.
+
+			_path = path;
+			_socket = new LocalSocket ();
+			_socket.bind (new LocalSocketAddress (path,
+									LocalSocketAddress.Namespace.FILESYSTEM));
+			_serverSocket = new LocalServerSocket (_socket.getFileDescriptor ());
+		}
+
+		/**
+		 * Run the thread.
+		 */
+		public void
+		run () {
+			while (!_cancelled) {
+				LocalSocket		socket;
+
+				try {
+					socket = _serverSocket.accept ();
+				} catch (IOException e) {
+					break;
+				}
+
+				if (_cancelled) {
+					closeSocket (socket);
+					break;
+				}
+
+					// Local connections are checked as the loopback address.
+				if (!isAccessAllowed (0x7f000001)) {
+					closeSocket (socket);
+					continue;
+				}
+
+				synchronized (XServer.this) {
+					Client		c;
+
+					try {
+						if (_selectorThreads == null)	// Server stopping.
+							throw new IOException ();
+
+						c = new Client (XServer.this, new InputOutput (socket),
+										_clientIdBase, _clientIdStep - 1);
+						c.getInputOutput().setSelectorThread (
+								_selectorThreads[_nextSelectorThread]);
+						_nextSelectorThread = (_nextSelectorThread + 1)
+												% _selectorThreads.length;
+						_clients.add (c);
+						_clientIdBase += _clientIdStep;
+						new LocalClientThread (c).start ();
+						new LocalWriterThread (c).start ();
+					} catch (IOException e) {
+						closeSocket (socket);
+					}
+				}
+			}
+
+			try {
+				_serverSocket.close ();
+				_socket.close ();
+			} catch (IOException e) {
+			}
+
+			new File (_path).delete ();
+		}
+
+		/**
+		 * Close a socket, ignoring errors.
+		 *
+		 * @param socket	The socket to close.
+		 */
+		private void
+		closeSocket (
+			LocalSocket		socket
+		) {
+			try {
+				socket.close ();
+			} catch (IOException e) {
+			}
+		}
+
+		/**
+		 * Cancel the thread.
+		 * A connection is made to the socket to release the blocked accept.
+		 */
+		public void
+		cancel () {
+			LocalSocket		s = new LocalSocket ();
+
+			_cancelled = true;
+			try {
+				s.connect (new LocalSocketAddress (_path,
+									LocalSocketAddress.Namespace.FILESYSTEM));
+			} catch (IOException e) {
+			}
+
+			closeSocket (s);
+		}
+	}
+
+	/**
+	 * This thread reads the requests of a client connected on a Unix
+	 * domain socket. It runs until the client disconnects.
+	 *
+	 * @author Matthew Kwan
+	 */
+	private class LocalClientThread extends Thread {
+		private final Client		_client;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param client	The client to read requests for.
+		 */
+		LocalClientThread (
+			Client		client
+		) {
+			_client = client;
+		}
+
+		/**
+		 * Run the thread.
+		 */
+		public void
+		run () {
+			while (_client.isConnected ()) {
+				if (_client.isSuspended ()) {
+					try {
+						synchronized (XServer.this) {
+							while (_client.isConnected ()
+										&& !processingAllowed (_client))
+								XServer.this.wait ();
+						}
+
+						_client.getInputOutput().waitForOutputQueue ();
+					} catch (InterruptedException e) {
+					}
+
+					_client.resumeProcessing ();
+				} else {
+					_client.processInput ();
+				}
+			}
+		}
+	}
+
+	/**
+	 * This thread sends a local socket client's queued output, so a
+	 * client that stops reading blocks only this thread.
+	 * It runs until the client disconnects.
+	 *
+	 * @author Matthew Kwan
+	 */
+	private class LocalWriterThread extends Thread {
+		private final Client		_client;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param client	The client to send output to.
+		 */
+		LocalWriterThread (
+			Client		client
+		) {
+			_client = client;
+		}
+
+		/**
+		 * Run the thread.
+		 */
+		public void
+		run () {
+			while (_client.isConnected ())
+				_client.processOutput ();
+		}
+	}
+
+	/**
+	 * This thread writes the request statistics to a file periodically.
+	 * It runs until it is cancelled.
+	 *
+	 * @author Matthew Kwan
+	 */
+	private class MetricsDumpThread extends Thread {
+		private final File		_file;
+		private final long		_period;
+		private volatile boolean	_cancelled = false;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param file	The file to write to.
+		 * @param period	The time between writes, in seconds.
+		 */
+		MetricsDumpThread (
+			File		file,
+			int			period
+		) {
+			_file = file;
+			_period = period * 1000L;
+		}
+
+		/**
+		 * Run the thread.
+		 */
+		public void
+		run () {
+			while (!_cancelled) {
+				try {
+					sleep (_period);
+				} catch (InterruptedException e) {
+					break;
+				}
+
+				try {
+					dumpRequestMetrics (_file);
+				} catch (IOException e) {
+					Log.e ("XServer", e.getMessage ());
+				}
+			}
+		}
+
+		/**
+		 * Cancel the thread.
+		 */
+		public void
+		cancel () {
+			_cancelled = true;
+			interrupt ();
+		}
+	}
+}
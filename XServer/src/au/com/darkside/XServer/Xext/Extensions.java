@@ -8,6 +8,7 @@ import java.io.IOException;
 import au.com.darkside.XServer.Client;
 import au.com.darkside.XServer.ErrorCode;
 import au.com.darkside.XServer.InputOutput;
+import au.com.darkside.XServer.RequestHandler;
 import au.com.darkside.XServer.Util;
 import au.com.darkside.XServer.XServer;
 
@@ -24,18 +25,82 @@ public class Extensions {
 	public static final byte	Shape = -125;
 
 	/**
-	 * Process a request relating to an X extension.
+	 * Register the extensions supported by the server, and the handlers
+	 * of their requests.
 	 *
 	 * @param xServer	The X server.
+	 */
+	public static void
+	register (
+		final XServer	xServer
+	) {
+		xServer.addExtension ("Generic Event Extension", XGE, (byte) 0,
+										(byte) 0, new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				processXGERequest (client, opcode, arg, bytesRemaining);
+			}
+		});
+
+		xServer.addExtension ("XTEST", XTEST, (byte) 0, (byte) 0,
+												new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				XTest.processRequest (xServer, client, opcode, arg,
+															bytesRemaining);
+			}
+		});
+
+		xServer.addExtension ("BIG-REQUESTS", BigRequests, (byte) 0, (byte) 0,
+												new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				processBigRequestsRequest (client, opcode, arg,
+															bytesRemaining);
+			}
+		});
+
+		xServer.addExtension ("SHAPE", Shape, XShape.EventBase, (byte) 0,
+												new RequestHandler () {
+			public void
+			processRequest (
+				Client		client,
+				byte		opcode,
+				byte		arg,
+				int			bytesRemaining
+			) throws IOException {
+				XShape.processRequest (xServer, client, opcode, arg,
+															bytesRemaining);
+			}
+		});
+	}
+
+	/**
+	 * Process a request relating to the Generic Event extension.
+	 *
 	 * @param client	The remote client.
 	 * @param opcode	The request's opcode.
 	 * @param arg	Optional first argument.
 	 * @param bytesRemaining	Bytes yet to be read in the request.
 	 * @throws IOException
 	 */
-	public static void
-	processRequest (
-		XServer 	xServer,
+	private static void
+	processXGERequest (
 		Client		client,
 		byte		opcode,
 		byte		arg,
@@ -43,51 +108,53 @@ public class Extensions {
 	) throws IOException {
 		InputOutput		io = client.getInputOutput ();
 
-		switch (opcode) {
-			case XGE:
-				if (bytesRemaining != 4) {
-					io.readSkip (bytesRemaining);
-					ErrorCode.write (client, ErrorCode.Length, opcode, 0);
-				} else {	// Assume arg == 0 (GEQueryVersion).
-					short	xgeMajor = (short) io.readShort ();
-					short	xgeMinor = (short) io.readShort ();
+		if (bytesRemaining != 4) {
+			io.readSkip (bytesRemaining);
+			ErrorCode.write (client, ErrorCode.Length, opcode, 0);
+		} else {	// Assume arg == 0 (GEQueryVersion).
+			short	xgeMajor = (short) io.readShort ();
+			short	xgeMinor = (short) io.readShort ();
 
-					synchronized (io) {
-						Util.writeReplyHeader (client, arg);
-						io.writeInt (0);	// Reply length.
-						io.writeShort (xgeMajor);
-						io.writeShort (xgeMinor);
-						io.writePadBytes (20);
-					}
-					io.flush ();
-				}
-				break;
-			case XTEST:
-				XTest.processRequest (xServer, client, opcode, arg,
-															bytesRemaining);
-				break;
-			case BigRequests:
-				if (bytesRemaining != 0) {
-					io.readSkip (bytesRemaining);
-					ErrorCode.write (client, ErrorCode.Length, opcode, 0);
-				} else {	// Assume arg == 0 (BigReqEnable).
-					synchronized (io) {
-						Util.writeReplyHeader (client, arg);
-						io.writeInt (0);
-						io.writeInt (Integer.MAX_VALUE);
-						io.writePadBytes (20);
-					}
-					io.flush ();
-				}
-				break;
-			case Shape:
-				XShape.processRequest (xServer, client, opcode, arg,
-															bytesRemaining);
-				break;
-			default:
-				io.readSkip (bytesRemaining);	// Not implemented.
-				ErrorCode.write (client, ErrorCode.Implementation, opcode, 0);
-				break;
+			synchronized (io) {
+				Util.writeReplyHeader (client, arg);
+				io.writeInt (0);	// Reply length.
+				io.writeShort (xgeMajor);
+				io.writeShort (xgeMinor);
+				io.writePadBytes (20);
+			}
+			io.flush ();
+		}
+	}
+
+	/**
+	 * Process a request relating to the BIG-REQUESTS extension.
+	 *
+	 * @param client	The remote client.
+	 * @param opcode	The request's opcode.
+	 * @param arg	Optional first argument.
+	 * @param bytesRemaining	Bytes yet to be read in the request.
+	 * @throws IOException
+	 */
+	private static void
+	processBigRequestsRequest (
+		Client		client,
+		byte		opcode,
+		byte		arg,
+		int			bytesRemaining
+	) throws IOException {
+		InputOutput		io = client.getInputOutput ();
+
+		if (bytesRemaining != 0) {
+			io.readSkip (bytesRemaining);
+			ErrorCode.write (client, ErrorCode.Length, opcode, 0);
+		} else {	// Assume arg == 0 (BigReqEnable).
+			synchronized (io) {
+				Util.writeReplyHeader (client, arg);
+				io.writeInt (0);
+				io.writeInt (InputOutput.MaxRequestLength);
+				io.writePadBytes (20);
+			}
+			io.flush ();
 		}
 	}
-}
\ No newline at end of file
+}
@@ -7,7 +7,6 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
-import android.graphics.Bitmap;
 import android.graphics.Rect;
 import android.graphics.Region;
 import au.com.darkside.XServer.Client;
@@ -15,6 +14,7 @@ import au.com.darkside.XServer.Drawable;
 import au.com.darkside.XServer.ErrorCode;
 import au.com.darkside.XServer.InputOutput;
 import au.com.darkside.XServer.Pixmap;
+import au.com.darkside.XServer.Resource;
 import au.com.darkside.XServer.Util;
 import au.com.darkside.XServer.Window;
 import au.com.darkside.XServer.XServer;
@@ -511,8 +511,8 @@ public class XShape {
 		Drawable	d = p.getDrawable ();
 		Region		r = new Region ();
 
-		extractRegion (r, d.getBitmap (),
-					new Rect (0, 0, d.getWidth (), d.getHeight ()));
+		p.setUsedBy (Resource.WINDOW);
+		extractRegion (r, d, new Rect (0, 0, d.getWidth (), d.getHeight ()));
 
 		return r;
 	}
@@ -522,16 +522,16 @@ public class XShape {
 	 * rectangles containing non-zero pixels.
 	 *
 	 * @param region	Returned region.
-	 * @param bitmap	Bitmap where the pixels appear.
+	 * @param drawable	Drawable where the pixels appear.
 	 * @param rect	Rectangle containing the pixels.
 	 */
 	private static void
 	extractRegion (
-		Region	region,
-		Bitmap	bitmap,
-		Rect	rect
+		Region		region,
+		Drawable	drawable,
+		Rect		rect
 	) {
-		int		nzp = checkNonZeroPixels (bitmap, rect);
+		int		nzp = checkNonZeroPixels (drawable, rect);
 
 		if (nzp == 1)	// Empty.
 			return;
@@ -547,16 +547,16 @@ public class XShape {
 		if (rw > rh) {	// Split the rectangle horizontally.
 			int		cx = rect.left + rw / 2;
 
-			extractRegion (region, bitmap,
+			extractRegion (region, drawable,
 						new Rect (rect.left, rect.top, cx, rect.bottom));
-			extractRegion (region, bitmap,
+			extractRegion (region, drawable,
 						new Rect (cx, rect.top, rect.right, rect.bottom));
 		} else {	// Split it vertically.
 			int		cy = rect.top + rh / 2;
 
-			extractRegion (region, bitmap,
+			extractRegion (region, drawable,
 						new Rect (rect.left, rect.top, rect.right, cy));
-			extractRegion (region, bitmap,
+			extractRegion (region, drawable,
 						new Rect (rect.left, cy, rect.right, rect.bottom));
 		}
 	}
@@ -566,14 +566,14 @@ public class XShape {
 	 * Return a bit mask indicating whether all the pixels are non-zero,
 	 * none of them, or a mix.
 	 *
-	 * @param bitmap	The bitmap containing the pixels.
+	 * @param drawable	The drawable containing the pixels.
 	 * @param rect	The rectangle.
 	 * @return	1 = no pixels set; 2 = all pixels set; 0 = some pixels set
 	 */
 	private static int
 	checkNonZeroPixels (
-		Bitmap	bitmap,
-		Rect	rect
+		Drawable	drawable,
+		Rect		rect
 	) {
 		final int	width = rect.width ();
 		final int	height = rect.height ();
@@ -581,7 +581,7 @@ public class XShape {
 		int			mask = 3;
 
 		for (int i = 0; i < height; i++) {
-			bitmap.getPixels (pixels, 0, width, rect.left, rect.top + i,
+			drawable.getPixels (pixels, 0, width, rect.left, rect.top + i,
 																width, 1);
 
 			for (int p: pixels) {
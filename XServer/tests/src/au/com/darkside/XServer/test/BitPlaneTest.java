@@ -0,0 +1,304 @@
+/**
+ * This class tests the packed pixels of depth 1 drawables.
+ */
+package au.com.darkside.XServer.test;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import au.com.darkside.XServer.BitPlane;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class tests the bit plane against a reference that stores one
+ * boolean per pixel and applies the drawing functions a pixel at a time.
+ */
+public class BitPlaneTest extends TestCase {
+	private static final int[]	_widths = {1, 7, 31, 32, 33, 63, 64, 65, 100};
+
+	/**
+	 * Test that a new plane is all zero.
+	 */
+	public void
+	testNew () {
+		BitPlane	plane = new BitPlane (65, 3);
+
+		assertEquals (65, plane.getWidth ());
+		assertEquals (3, plane.getHeight ());
+		assertEquals (3 * 3 * 4, plane.getByteCount ());
+		compare (plane, new boolean[3][65]);
+	}
+
+	/**
+	 * Test every function on every combination of source and destination
+	 * bit.
+	 */
+	public void
+	testFunctions () {
+		for (int function = 0; function < 16; function++) {
+			BitPlane	plane = new BitPlane (4, 1);
+			int[]		src = {0xa0000000};	// 1, 0, 1, 0.
+
+			plane.fillRect (0, 0, 2, 1, true, BitPlane.FunctionCopy);
+			plane.applyRow (0, 0, 4, src, 0, 0, null, 0, function);
+
+			for (int x = 0; x < 4; x++) {
+				boolean		s = (x & 1) == 0;
+				boolean		d = x < 2;
+
+				assertEquals ("function " + function + " pixel " + x,
+							combine (function, s, d), plane.get (x, 0));
+			}
+		}
+	}
+
+	/**
+	 * Test random rows and fills, including ones that extend outside the
+	 * plane, on planes of various sizes.
+	 */
+	public void
+	testRandomDrawing () {
+		Random		random = new Random (1);
+
+		for (int width: _widths) {
+			int			height = 1 + random.nextInt (5);
+			BitPlane	plane = new BitPlane (width, height);
+			boolean[][]	expected = new boolean[height][width];
+
+			for (int n = 0; n < 3000; n++) {
+				if (random.nextInt (4) == 0)
+					randomFill (plane, expected, random);
+				else
+					randomRow (plane, expected, random);
+
+				if (n % 100 == 0)
+					compare (plane, expected);
+			}
+
+			compare (plane, expected);
+			for (int n = 0; n < 200; n++) {
+				checkRow (plane, expected, random);
+				checkColors (plane, expected, random);
+			}
+		}
+	}
+
+	/**
+	 * Apply a random row of source bits to the plane and the reference.
+	 *
+	 * @param plane	The plane.
+	 * @param expected	The reference pixels.
+	 * @param random	The random number generator.
+	 */
+	private static void
+	randomRow (
+		BitPlane	plane,
+		boolean[][]	expected,
+		Random		random
+	) {
+		int			w = plane.getWidth ();
+		int			h = plane.getHeight ();
+		int			x = random.nextInt (w + 80) - 40;
+		int			y = random.nextInt (h + 2) - 1;
+		int			width = random.nextInt (w + 40);
+		int			function = random.nextInt (16);
+		int[]		src = null;
+		int			srcOffset = 0;
+		int			srcValue = random.nextBoolean () ? -1 : 0;
+		int[]		mask = null;
+		int			maskOffset = 0;
+
+		if (random.nextInt (4) != 0) {
+			src = randomBits (random, 1 + random.nextInt (6));
+			srcOffset = random.nextInt (80) - 40;
+		}
+
+		if (random.nextBoolean ()) {
+			mask = randomBits (random, 1 + random.nextInt (6));
+			maskOffset = random.nextInt (80) - 40;
+		}
+
+		plane.applyRow (x, y, width, src, srcOffset, srcValue, mask,
+														maskOffset, function);
+
+		if (y < 0 || y >= h)
+			return;
+
+		for (int i = 0; i < width; i++) {
+			int			px = x + i;
+
+			if (px < 0 || px >= w)
+				continue;
+			if (mask != null && !bit (mask, maskOffset + i))
+				continue;
+
+			boolean		s = (src == null) ? (srcValue != 0)
+											: bit (src, srcOffset + i);
+
+			expected[y][px] = combine (function, s, expected[y][px]);
+		}
+	}
+
+	/**
+	 * Fill a random rectangle of the plane and the reference.
+	 *
+	 * @param plane	The plane.
+	 * @param expected	The reference pixels.
+	 * @param random	The random number generator.
+	 */
+	private static void
+	randomFill (
+		BitPlane	plane,
+		boolean[][]	expected,
+		Random		random
+	) {
+		int			w = plane.getWidth ();
+		int			h = plane.getHeight ();
+		int			x = random.nextInt (w + 80) - 40;
+		int			y = random.nextInt (h + 4) - 2;
+		int			width = random.nextInt (w + 40);
+		int			height = random.nextInt (h + 2);
+		boolean		value = random.nextBoolean ();
+		int			function = random.nextInt (16);
+
+		plane.fillRect (x, y, width, height, value, function);
+
+		for (int py = Math.max (y, 0); py < Math.min (y + height, h); py++)
+			for (int px = Math.max (x, 0); px < Math.min (x + width, w); px++)
+				expected[py][px] = combine (function, value,
+														expected[py][px]);
+	}
+
+	/**
+	 * Check a random span of a row against the reference.
+	 *
+	 * @param plane	The plane.
+	 * @param expected	The reference pixels.
+	 * @param random	The random number generator.
+	 */
+	private static void
+	checkRow (
+		BitPlane	plane,
+		boolean[][]	expected,
+		Random		random
+	) {
+		int			x = random.nextInt (plane.getWidth ());
+		int			y = random.nextInt (plane.getHeight ());
+		int			width = 1 + random.nextInt (plane.getWidth () - x);
+		int[]		dst = new int[(width + 31) >> 5];
+
+		plane.getRow (x, y, width, dst);
+		for (int i = 0; i < width; i++)
+			assertEquals ("row " + y + " x " + x + " pixel " + i,
+									expected[y][x + i], bit (dst, i));
+	}
+
+	/**
+	 * Check the colors of a random rectangle against the reference.
+	 *
+	 * @param plane	The plane.
+	 * @param expected	The reference pixels.
+	 * @param random	The random number generator.
+	 */
+	private static void
+	checkColors (
+		BitPlane	plane,
+		boolean[][]	expected,
+		Random		random
+	) {
+		int			x = random.nextInt (plane.getWidth ());
+		int			y = random.nextInt (plane.getHeight ());
+		int			width = 1 + random.nextInt (plane.getWidth () - x);
+		int			height = 1 + random.nextInt (plane.getHeight () - y);
+		int			offset = random.nextInt (5);
+		int			stride = width + random.nextInt (5);
+		int[]		pixels = new int[offset + height * stride];
+		int			one = 0xffffffff;
+		int			zero = 0xff000000;
+
+		plane.getColors (pixels, offset, stride, x, y, width, height, one,
+																		zero);
+		for (int r = 0; r < height; r++)
+			for (int i = 0; i < width; i++)
+				assertEquals ("color " + (x + i) + "," + (y + r),
+								expected[y + r][x + i] ? one : zero,
+								pixels[offset + r * stride + i]);
+	}
+
+	/**
+	 * Check every pixel of the plane against the reference.
+	 *
+	 * @param plane	The plane.
+	 * @param expected	The reference pixels.
+	 */
+	private static void
+	compare (
+		BitPlane	plane,
+		boolean[][]	expected
+	) {
+		for (int y = 0; y < plane.getHeight (); y++)
+			for (int x = 0; x < plane.getWidth (); x++)
+				assertEquals ("pixel " + x + "," + y, expected[y][x],
+														plane.get (x, y));
+	}
+
+	/**
+	 * Apply an X function to one source and destination pixel.
+	 *
+	 * @param function	The X function, GXclear to GXset.
+	 * @param src	The source pixel.
+	 * @param dst	The destination pixel.
+	 * @return	The resulting pixel.
+	 */
+	private static boolean
+	combine (
+		int			function,
+		boolean		src,
+		boolean		dst
+	) {
+		int			bit = (src ? 0 : 2) + (dst ? 0 : 1);
+
+		return ((function >> bit) & 1) != 0;
+	}
+
+	/**
+	 * Return a bit of an array of packed bits. Bits outside the array are
+	 * zero.
+	 *
+	 * @param a	The packed bits, the first in the most significant bit.
+	 * @param p	The position of the bit. May be negative.
+	 * @return	True if the bit is one.
+	 */
+	private static boolean
+	bit (
+		int[]		a,
+		int			p
+	) {
+		if (p < 0 || (p >> 5) >= a.length)
+			return false;
+
+		return ((a[p >> 5] >>> (31 - (p & 31))) & 1) != 0;
+	}
+
+	/**
+	 * Return an array of random bits.
+	 *
+	 * @param random	The random number generator.
+	 * @param n	The number of ints.
+	 * @return	The bits.
+	 */
+	private static int[]
+	randomBits (
+		Random		random,
+		int			n
+	) {
+		int[]		a = new int[n];
+
+		for (int i = 0; i < n; i++)
+			a[i] = random.nextInt ();
+
+		return a;
+	}
+}
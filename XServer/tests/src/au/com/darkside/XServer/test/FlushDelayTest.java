@@ -0,0 +1,224 @@
+/**
+ * This class tests the delay before output is sent to a client.
+ */
+package au.com.darkside.XServer.test;
+
+import java.nio.ByteBuffer;
+import java.util.Vector;
+
+import android.view.KeyEvent;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class tests that replies are sent when a batch of requests has
+ * been processed, and that output generated outside request processing,
+ * such as input events, is held back for at most the flush delay, so a
+ * burst of events is sent together.
+ */
+public class FlushDelayTest extends XServerTestCase {
+	private static final int	KeyPress = 2;
+	private static final int	KeyRelease = 3;
+	private static final int	CWEventMask = 0x800;
+	private static final int	KeyPressMask = 0x01;
+	private static final int	KeyReleaseMask = 0x02;
+	private static final int	KeyInterval = 4;	// Milliseconds.
+	private static final long	Margin = 25;	// Milliseconds of scheduling.
+
+	/**
+	 * This class reads key events on a thread of its own, noting when
+	 * each one arrives.
+	 */
+	private static class EventReader extends Thread {
+		private final XClient		_client;
+		private final Vector<Long>	_arrivals = new Vector<Long>();
+		private Exception			_exception = null;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param client	The client to read from.
+		 */
+		public EventReader (
+			XClient		client
+		) {
+			_client = client;
+		}
+
+		/**
+		 * Read key events until none arrive for half a second.
+		 */
+		@Override
+		public void
+		run () {
+			try {
+				ByteBuffer		e;
+
+				while ((e = _client.nextEvent (500)) != null)
+					if ((e.get (0) & 0x7f) == KeyPress
+											|| (e.get (0) & 0x7f) == KeyRelease)
+						_arrivals.add (System.nanoTime ());
+			} catch (Exception e) {
+				_exception = e;
+			}
+		}
+
+		/**
+		 * Wait for the thread to finish, and return the times at which the
+		 * events arrived.
+		 *
+		 * @return	The arrival times, from System.nanoTime().
+		 * @throws Exception	If reading failed.
+		 */
+		public Vector<Long>
+		getArrivals () throws Exception {
+			join ();
+			if (_exception != null)
+				throw _exception;
+
+			return _arrivals;
+		}
+	}
+
+	/**
+	 * Create and map a window covering the screen that selects key
+	 * events. Key events are never merged, unlike motion events, so
+	 * each one is written to the output buffer.
+	 *
+	 * @param c	The client.
+	 * @throws Exception
+	 */
+	private static void
+	createKeyWindow (
+		XClient		c
+	) throws Exception {
+		int			w = c.createWindow (c.getRootWindow (), 0, 0, ScreenWidth,
+									ScreenHeight, CWEventMask,
+									KeyPressMask | KeyReleaseMask);
+
+		c.mapWindow (w);
+		c.sync ();
+	}
+
+	/**
+	 * Press or release a key on the device.
+	 *
+	 * @param down	True if the key is pressed.
+	 */
+	private void
+	key (
+		boolean		down
+	) {
+		int			keycode = KeyEvent.KEYCODE_A;
+
+		if (down)
+			_xServer.getScreen().onKeyDown (keycode,
+							new KeyEvent (KeyEvent.ACTION_DOWN, keycode));
+		else
+			_xServer.getScreen().onKeyUp (keycode,
+							new KeyEvent (KeyEvent.ACTION_UP, keycode));
+	}
+
+	/**
+	 * Test that a reply is sent as soon as the request is processed, not
+	 * after the flush delay.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testReplyLatency () throws Exception {
+		XClient			c = connect ();
+		int				rounds = 20;
+		long			total = 0;
+
+		_xServer.setFlushDelay (200);
+		c.sync ();
+		for (int n = 0; n < rounds; n++) {
+			long		start = System.nanoTime ();
+
+			c.sync ();
+			total += System.nanoTime () - start;
+		}
+
+		assertTrue ("Average round trip " + total / rounds / 1000 + " us",
+										total / rounds < Margin * 1000000);
+	}
+
+	/**
+	 * Test that a stream of input events is sent in bursts, and that no
+	 * event waits much longer than the flush delay, however many events
+	 * follow it. Events that arrive within a millisecond of each other
+	 * are counted as one burst.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testEventLatency () throws Exception {
+		XClient			c = connect ();
+		int				delay = 30;
+		int				keys = 100;
+		EventReader		reader = new EventReader (c);
+		long			start;
+
+		createKeyWindow (c);
+		_xServer.setFlushDelay (delay);
+		reader.start ();
+
+		start = System.nanoTime ();
+		for (int i = 0; i < keys; i++) {
+			key (i % 2 == 0);
+			Thread.sleep (KeyInterval);
+		}
+
+		long			end = System.nanoTime ();
+		Vector<Long>	arrivals = reader.getArrivals ();
+		long			last = start;
+		long			prev = start;
+		int				bursts = 0;
+
+		assertEquals ("key events", keys, arrivals.size ());
+		for (long t: arrivals) {
+			if (t - prev > 1000000)
+				bursts++;
+
+			prev = t;
+			if (t > end)
+				continue;
+
+			assertTrue ("Event held for " + (t - last) / 1000000 + " ms",
+								(t - last) / 1000000 < delay + Margin);
+			last = t;
+		}
+
+		assertTrue (bursts + " bursts for " + keys + " key events",
+														bursts < keys / 4);
+		assertTrue ("No event for the last " + (end - last) / 1000000
+								+ " ms of key events",
+								(end - last) / 1000000 < delay + Margin);
+	}
+
+	/**
+	 * Test that events are sent immediately when the flush delay is zero.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testNoDelay () throws Exception {
+		XClient			c = connect ();
+		int				rounds = 20;
+		long			total = 0;
+
+		createKeyWindow (c);
+		_xServer.setFlushDelay (0);
+		for (int n = 0; n < rounds; n++) {
+			long		start = System.nanoTime ();
+
+			key (n % 2 == 0);
+			assertNotNull ("Key event " + n, c.nextEvent (1000));
+			total += System.nanoTime () - start;
+		}
+
+		assertTrue ("Average latency " + total / rounds / 1000 + " us",
+										total / rounds < 5 * 1000000);
+	}
+}
@@ -0,0 +1,620 @@
+/**
+ * This class tests the font catalogue.
+ */
+package au.com.darkside.XServer.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Vector;
+import java.util.regex.Pattern;
+
+import android.test.AndroidTestCase;
+
+import au.com.darkside.XServer.Font;
+import au.com.darkside.XServer.FontCatalogue;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class tests the font catalogue's indexed search against a simple
+ * reference matcher, which tests every name in the catalogue against a
+ * regular expression made from the pattern.
+ */
+public class FontCatalogueTest extends AndroidTestCase {
+	private static final int	XlfdFields = 15;
+	private static final int	PixelSizeField = 7;
+	private static final int	PointSizeField = 8;
+	private static final int	AverageWidthField = 12;
+	private static final int[]	SizeFields = {7, 8, 9, 10, 12};
+
+	private static final String[]	_foundries = {
+		"misc", "adobe", "b&h", "Bitstream"
+	};
+	private static final String[]	_families = {
+		"fixed", "helvetica", "new century schoolbook", "courier", "Lucida"
+	};
+	private static final String[]	_weights = {"medium", "bold"};
+	private static final String[]	_slants = {"r", "i", "o"};
+	private static final String[]	_spacings = {"p", "m", "c"};
+	private static final String[]	_registries = {
+		"iso8859-1", "iso10646-1", "iso8859-15", "jisx0208.1983-0"
+	};
+	private static final int[]		_pixelSizes = {0, 8, 10, 12, 14, 18, 24};
+
+	private static final String[]	_patterns = {
+		"*", "**", "?", "", "-", "fixed", "FIXED", "cursor", "6x13", "*x*",
+		"-*-*-*-*-*-*-*-*-*-*-*-*-*-*",
+		"-*-*-*-*-*-*-*-*-*-*-*-*-*",
+		"-*-*-*-*-*-*-*-*-*-*-*-*-*-*-*",
+		"*-iso10646-1", "-misc-*", "*12*", "*-0-*", "*--0-*",
+		"-*-helvetica-bold-r-normal--14-*",
+		"-*-*-*-*-*-*-17-*-*-*-*-*-*-*",
+		"-*-*-*-*-*--17-*-*-*-*-*-*-*",
+		"-*-*-*-*-*--*-120-*-*-*-*-iso8859-1",
+		"-android-*-*-*-*--20-*-*-*-*-*-iso8859-1",
+		"-android-sans serif-bold-i-normal--0-0-0-0-p-0-iso8859-1",
+		"-android-sans serif-bold-i-normal--33-0-0-0-p-0-iso8859-1",
+		"-android-sans serif-bold-i-normal---99--75-p-*-iso8859-1",
+		"-*-lucida-*-*-*-*-*-*-*-*-*-*-*-*",
+		"-*-*-*-*-*-*-*-*-*-*-*-*-jisx0208.1983-0",
+		"*-jisx0208.1983-0", "-b&h-*", "*schoolbook*", "-*-new century*",
+		"-misc-fixed-medium-r-normal--0-0-0-0-c-0-iso8859-1",
+		"-misc-fixed-medium-r-normal--12-*-*-*-c-*-iso8859-1",
+		"-misc-fixed-medium-r-normal--12-*-*-*-c-*-iso8859-1-*",
+		"-*-*-*-*-*-*-*-*-*-*-*-*-*-*-*-*",
+		"variable", "alias*", "*alias*", "-alias-*",
+		"-*-*-*-*-*-*-99999999999-*-*-*-*-*-*-*"
+	};
+
+	private File				_dir;
+	private FontCatalogue		_catalogue;
+	private final Vector<String>	_fonts = new Vector<String>();
+	private Vector<String>		_allNames;
+	private final HashSet<String>	_names = new HashSet<String>();
+	private final HashSet<String>	_aliases = new HashSet<String>();
+
+	/**
+	 * Write a font path directory and load a catalogue from it.
+	 */
+	@Override
+	protected void
+	setUp () throws Exception {
+		super.setUp ();
+
+		Random			random = new Random (1);
+		Vector<String>	fonts = _fonts;
+		Vector<String>	aliases = new Vector<String>();
+
+		for (String foundry: _foundries)
+			for (String family: _families)
+				for (String weight: _weights)
+					for (String slant: _slants)
+						for (int pixels: _pixelSizes) {
+							if (random.nextInt (4) != 0)
+								continue;
+
+							fonts.add (xlfd (foundry, family, weight, slant,
+										pixels, random));
+						}
+
+		fonts.add ("6x13");
+		fonts.add ("Fixed");	// Hidden by the built-in "fixed".
+		fonts.add ("-misc-fixed-medium-r-normal--0-0-0-0-c-0-iso8859-1");
+		fonts.add ("-MISC-FIXED-medium-r-normal--0-0-0-0-c-0-iso8859-1");
+		fonts.add ("-misc-fixed-medium-r-normal--12-*-*-*-c-*-iso8859-1-x");
+		fonts.add ("-misc-fixed-medium-r-normal--0-0-0-0-c-0-");
+
+		aliases.add ("variable\t-*-helvetica-bold-r-normal-*-*-120-*-*-*-*-"
+															+ "iso8859-1");
+		aliases.add ("alias-12 -misc-fixed-medium-r-normal--12-*-*-*-c-*-"
+															+ "iso8859-1");
+		aliases.add ("\"-alias-spaced name-medium-r-normal--0-0-0-0-p-0-"
+							+ "iso8859-1\" \"-misc-fixed-*-*-*--13-*\"");
+		aliases.add ("-alias-zero-medium-r-normal--0-0-0-0-p-0-iso8859-1 "
+							+ "-misc-fixed-medium-r-normal--0-0-0-0-c-0-"
+							+ "iso8859-1");
+		aliases.add ("6X13 6x13");	// Hidden by the font.
+
+		_dir = new File (getContext().getCacheDir (), "fontcataloguetest");
+		_dir.mkdirs ();
+		writeLines (new File (_dir, "fonts.dir"), fonts, true);
+		writeLines (new File (_dir, "fonts.alias"), aliases, false);
+
+		_catalogue = new FontCatalogue (new String[] {_dir.getPath ()});
+		_allNames = _catalogue.listFonts ("*", Integer.MAX_VALUE);
+
+		for (String name: _allNames)
+			_names.add (name.toLowerCase (Locale.US));
+		for (String line: aliases) {
+			String		name = line.startsWith ("\"")
+							? line.substring (1, line.indexOf ('"', 1))
+							: line.split ("\\s+")[0];
+
+			if (!hidden (name, fonts))
+				_aliases.add (name.toLowerCase (Locale.US));
+		}
+	}
+
+	/**
+	 * Delete the font path directory.
+	 */
+	@Override
+	protected void
+	tearDown () throws Exception {
+		new File (_dir, "fonts.dir").delete ();
+		new File (_dir, "fonts.alias").delete ();
+		_dir.delete ();
+
+		super.tearDown ();
+	}
+
+	/**
+	 * Does a font listed earlier have the same name, ignoring case?
+	 *
+	 * @param name	The name.
+	 * @param fonts	The fonts listed earlier.
+	 * @return	True if the name is hidden by one of the fonts.
+	 */
+	private static boolean
+	hidden (
+		String			name,
+		Vector<String>	fonts
+	) {
+		for (String font: fonts)
+			if (font.equalsIgnoreCase (name))
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * Return an XLFD name with random spacing, resolution and registry.
+	 *
+	 * @param foundry	The foundry.
+	 * @param family	The family.
+	 * @param weight	The weight.
+	 * @param slant	The slant.
+	 * @param pixels	The pixel size, or zero if the font is scalable.
+	 * @param random	The random number generator.
+	 * @return	The XLFD name.
+	 */
+	private static String
+	xlfd (
+		String		foundry,
+		String		family,
+		String		weight,
+		String		slant,
+		int			pixels,
+		Random		random
+	) {
+		int			dpi = (pixels == 0) ? 0 : (random.nextBoolean () ? 75
+																	: 100);
+		int			points = pixels * 720 / Math.max (dpi, 1);
+		int			width = pixels * (4 + random.nextInt (4));
+
+		return "-" + foundry + "-" + family + "-" + weight + "-" + slant
+			+ "-normal--" + pixels + "-" + points + "-" + dpi + "-" + dpi
+			+ "-" + _spacings[random.nextInt (_spacings.length)]
+			+ "-" + width
+			+ "-" + _registries[random.nextInt (_registries.length)];
+	}
+
+	/**
+	 * Write a fonts.dir or fonts.alias file.
+	 *
+	 * @param file	The file.
+	 * @param lines	The font names, or the alias lines.
+	 * @param fontsDir	Whether it is a fonts.dir file.
+	 * @throws IOException
+	 */
+	private static void
+	writeLines (
+		File			file,
+		Vector<String>	lines,
+		boolean			fontsDir
+	) throws IOException {
+		FileWriter		fw = new FileWriter (file);
+
+		try {
+			if (fontsDir)
+				fw.write (lines.size () + "\n");
+			else
+				fw.write ("! Aliases.\n\nFILE_NAMES_ALIASES\n");
+
+			for (int i = 0; i < lines.size (); i++) {
+				if (fontsDir)
+					fw.write ("font" + i + ".pcf.gz ");
+				fw.write (lines.get (i) + "\n");
+			}
+		} finally {
+			fw.close ();
+		}
+	}
+
+	/**
+	 * Test that the catalogue holds the fonts listed in its directory.
+	 */
+	public void
+	testCatalogue () {
+		assertEquals (_catalogue.getNumFonts (), _allNames.size ());
+		assertTrue (_names.contains ("6x13"));
+		assertTrue (_names.contains ("variable"));
+		assertTrue (_names.contains ("-alias-spaced name-medium-r-normal--"
+												+ "0-0-0-0-p-0-iso8859-1"));
+		assertFalse (_allNames.contains ("Fixed"));
+		assertFalse (_allNames.contains ("6X13"));
+		assertFalse (_allNames.contains (
+					"-MISC-FIXED-medium-r-normal--0-0-0-0-c-0-iso8859-1"));
+		assertEquals ("-*-helvetica-bold-r-normal-*-*-120-*-*-*-*-iso8859-1",
+											_catalogue.resolve ("VARIABLE"));
+		assertEquals ("6x13", _catalogue.resolve ("6x13"));
+		assertEquals (new File (_dir, "font" + _fonts.indexOf ("6x13")
+								+ ".pcf.gz"), _catalogue.getFile ("6X13"));
+		assertNull (_catalogue.getFile ("variable"));
+	}
+
+	/**
+	 * Test the fixed patterns against the reference matcher.
+	 */
+	public void
+	testPatterns () {
+		for (String pattern: _patterns)
+			check (pattern);
+	}
+
+	/**
+	 * Test random patterns, made by replacing parts of the names in the
+	 * catalogue with wildcards, against the reference matcher.
+	 */
+	public void
+	testRandomPatterns () {
+		Random		random = new Random (2);
+
+		for (int i = 0; i < 5000; i++) {
+			String		name = _allNames.get (random.nextInt (
+														_allNames.size ()));
+
+			check (randomPattern (name, random));
+		}
+	}
+
+	/**
+	 * Test that the number of names returned is limited.
+	 */
+	public void
+	testMaxNames () {
+		Random		random = new Random (3);
+
+		for (String pattern: _patterns) {
+			Vector<String>	expected = reference (pattern);
+
+			for (int maxNames = 0; maxNames < 4; maxNames++)
+				assertEquals (pattern, head (expected, maxNames),
+								_catalogue.listFonts (pattern, maxNames));
+
+			int			maxNames = random.nextInt (expected.size () + 1);
+
+			assertEquals (pattern, head (expected, maxNames),
+								_catalogue.listFonts (pattern, maxNames));
+		}
+	}
+
+	/**
+	 * Test that scalable fonts are listed at the resolution in use.
+	 */
+	public void
+	testDpi () {
+		int			dpi = Font.getDpi ();
+
+		try {
+			for (int i = 72; i <= 320; i += 31) {
+				Font.setDpi (i);
+				check ("-*-*-*-*-*-*-17-*-*-*-*-*-*-*");
+				check ("-*-*-*-*-*-*-*-135-*-*-*-*-*-*");
+			}
+		} finally {
+			Font.setDpi (dpi);
+		}
+	}
+
+	/**
+	 * Check that the catalogue lists the same fonts as the reference
+	 * matcher.
+	 *
+	 * @param pattern	The pattern.
+	 */
+	private void
+	check (
+		String		pattern
+	) {
+		assertEquals (pattern, reference (pattern),
+								_catalogue.listFonts (pattern, 65535));
+	}
+
+	/**
+	 * Return the first names of a list.
+	 *
+	 * @param names	The names.
+	 * @param n	The maximum number of names to return.
+	 * @return	The first n names.
+	 */
+	private static Vector<String>
+	head (
+		Vector<String>	names,
+		int				n
+	) {
+		return new Vector<String>(names.subList (0, Math.min (n,
+															names.size ())));
+	}
+
+	/**
+	 * Return a pattern made from a name by replacing some of its fields,
+	 * or some of its characters, with wildcards.
+	 *
+	 * @param name	The name.
+	 * @param random	The random number generator.
+	 * @return	The pattern.
+	 */
+	private static String
+	randomPattern (
+		String		name,
+		Random		random
+	) {
+		String[]		fields = name.split ("-", -1);
+		StringBuilder	sb = new StringBuilder ();
+
+		for (int i = 0; i < fields.length; i++) {
+			String		field = fields[i];
+			int			r = random.nextInt (20);
+
+			if (r < 4)
+				field = "*";
+			else if (r < 6 && field.length () > 0)
+				field = field.substring (0, random.nextInt (field.length ()))
+																	+ "*";
+			else if (r < 8)
+				field = replaceChars (field, random);
+			else if (r < 10 && isSizeField (i, fields.length))
+				field = randomSize (random);
+			else if (r < 11)
+				field = field.toUpperCase (Locale.US);
+
+			if (i > 0)
+				sb.append ('-');
+			sb.append (field);
+		}
+
+		String		pattern = sb.toString ();
+
+		if (random.nextInt (5) == 0 && pattern.length () > 0) {
+			int			start = random.nextInt (pattern.length ());
+			int			end = start + random.nextInt (pattern.length ()
+															- start + 1);
+
+			pattern = pattern.substring (0, start) + "*"
+												+ pattern.substring (end);
+		}
+
+		return pattern;
+	}
+
+	/**
+	 * Is a field of a name one of the XLFD size fields?
+	 *
+	 * @param i	The index of the field.
+	 * @param n	The number of fields in the name.
+	 * @return	True if it is a size field.
+	 */
+	private static boolean
+	isSizeField (
+		int			i,
+		int			n
+	) {
+		if (n != XlfdFields)
+			return false;
+
+		for (int f: SizeFields)
+			if (f == i)
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * Return a random size to put in a pattern.
+	 *
+	 * @param random	The random number generator.
+	 * @return	The size, which may be empty, zero or a wildcard.
+	 */
+	private static String
+	randomSize (
+		Random		random
+	) {
+		switch (random.nextInt (6)) {
+			case 0:
+				return "";
+			case 1:
+				return "0";
+			case 2:
+				return "1?";
+			case 3:
+				return "0" + random.nextInt (30);
+			default:
+				return String.valueOf (random.nextInt (400));
+		}
+	}
+
+	/**
+	 * Replace some of the characters of a field with '?'.
+	 *
+	 * @param field	The field.
+	 * @param random	The random number generator.
+	 * @return	The field with some characters replaced.
+	 */
+	private static String
+	replaceChars (
+		String		field,
+		Random		random
+	) {
+		char[]		chars = field.toCharArray ();
+
+		for (int i = 0; i < chars.length; i++)
+			if (random.nextInt (3) == 0)
+				chars[i] = '?';
+
+		return new String (chars);
+	}
+
+	/**
+	 * Return the names of the fonts matching a pattern, found by testing
+	 * every name in the catalogue.
+	 *
+	 * @param pattern	The pattern.
+	 * @return	The names of the matching fonts.
+	 */
+	private Vector<String>
+	reference (
+		String		pattern
+	) {
+		String		lower = pattern.toLowerCase (Locale.US);
+		String[]	pfields = lower.split ("-", -1);
+		Pattern		exact = toRegex (lower);
+		Pattern		scalable = null;
+		Vector<String>	fonts = new Vector<String>();
+
+		if (pfields.length == XlfdFields) {
+			String[]		zeroed = pfields.clone ();
+			StringBuilder	sb = new StringBuilder ();
+
+			for (int i: SizeFields)
+				if (zeroed[i].matches ("[0-9]*"))
+					zeroed[i] = "0";
+
+			for (int i = 0; i < XlfdFields; i++)
+				sb.append ((i == 0) ? "" : "-").append (zeroed[i]);
+
+			scalable = toRegex (sb.toString ());
+		}
+
+		for (String name: _allNames) {
+			String		lowerName = name.toLowerCase (Locale.US);
+			boolean		isScalable = isScalable (lowerName);
+
+			if (exact.matcher (lowerName).matches ()) {
+				if (isScalable && scalable != null)
+					fonts.add (scale (name, pfields));
+				else
+					fonts.add (name);
+			} else if (isScalable && scalable != null
+									&& scalable.matcher (lowerName).matches ()) {
+				fonts.add (scale (name, pfields));
+			}
+		}
+
+		return fonts;
+	}
+
+	/**
+	 * Convert a pattern to a regular expression.
+	 *
+	 * @param pattern	The pattern.
+	 * @return	The regular expression.
+	 */
+	private static Pattern
+	toRegex (
+		String		pattern
+	) {
+		StringBuilder	sb = new StringBuilder ();
+
+		for (int i = 0; i < pattern.length (); i++) {
+			char		c = pattern.charAt (i);
+
+			if (c == '*')
+				sb.append (".*");
+			else if (c == '?')
+				sb.append ('.');
+			else
+				sb.append (Pattern.quote (String.valueOf (c)));
+		}
+
+		return Pattern.compile (sb.toString (), Pattern.DOTALL);
+	}
+
+	/**
+	 * Is a font scalable? It is if it isn't an alias, and its pixel size,
+	 * point size and average width are all zero.
+	 *
+	 * @param name	The font name, in lower case.
+	 * @return	True if the font is scalable.
+	 */
+	private boolean
+	isScalable (
+		String		name
+	) {
+		String[]	fields = name.split ("-", -1);
+
+		return fields.length == XlfdFields && !_aliases.contains (name)
+						&& fields[PixelSizeField].equals ("0")
+						&& fields[PointSizeField].equals ("0")
+						&& fields[AverageWidthField].equals ("0");
+	}
+
+	/**
+	 * Return the name of a scalable font at the size a pattern asks for.
+	 *
+	 * @param name	The font name.
+	 * @param pfields	The fields of the pattern.
+	 * @return	The name of the font at that size.
+	 */
+	private static String
+	scale (
+		String		name,
+		String[]	pfields
+	) {
+		int			dpi = Font.getDpi ();
+		int			pixels = parseSize (pfields[PixelSizeField]);
+		int			points = parseSize (pfields[PointSizeField]);
+
+		if (pixels == 0 && points == 0)
+			return name;
+		if (pixels == 0)
+			pixels = (int) Math.round (points * dpi / 722.7);
+		if (points == 0)
+			points = (int) Math.round (pixels * 722.7 / dpi);
+
+		String[]	fields = name.split ("-", -1);
+
+		fields[PixelSizeField] = String.valueOf (pixels);
+		fields[PointSizeField] = String.valueOf (points);
+		fields[9] = String.valueOf (dpi);
+		fields[10] = String.valueOf (dpi);
+
+		StringBuilder	sb = new StringBuilder ();
+
+		for (int i = 0; i < XlfdFields; i++)
+			sb.append ((i == 0) ? "" : "-").append (fields[i]);
+
+		return sb.toString ();
+	}
+
+	/**
+	 * Parse a size field of a pattern.
+	 *
+	 * @param field	The field.
+	 * @return	The size, or zero if it isn't a number.
+	 */
+	private static int
+	parseSize (
+		String		field
+	) {
+		try {
+			return Integer.parseInt (field);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+}
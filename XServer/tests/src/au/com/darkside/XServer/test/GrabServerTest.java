@@ -0,0 +1,105 @@
+/**
+ * This class tests the GrabServer and UngrabServer requests.
+ */
+package au.com.darkside.XServer.test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class tests that requests from other clients wait while the
+ * server is grabbed, and are processed as soon as it is ungrabbed.
+ *
+ * The selector threads used to poll every 100 milliseconds for clients
+ * that had been suspended by a grab, so a request queued during a grab
+ * waited 50 milliseconds on average after the ungrab. The tests fail if
+ * the wait comes anywhere near that.
+ */
+public class GrabServerTest extends XServerTestCase {
+	private static final int	Rounds = 20;
+	private static final int	GrabbedTimeout = 150;
+	private static final long	MaxAverageNanos = 20000000;
+
+	/**
+	 * Test that a request from another client isn't processed during a
+	 * grab, and is processed promptly after it. The waiting clients are
+	 * spread over every selector thread.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testUngrabLatency () throws Exception {
+		XClient			grabber = connect ();
+		XClient[]		waiters = new XClient[4];
+		long			total = 0;
+		long			max = 0;
+
+		for (int i = 0; i < waiters.length; i++)
+			waiters[i] = connect ();
+
+		for (int n = 0; n < Rounds; n++) {
+			XClient		waiter = waiters[n % waiters.length];
+
+			grabber.grabServer ();
+			grabber.sync ();
+
+			waiter.getInputFocus ();
+			waiter.flush ();
+			assertNull ("Reply during grab, round " + n,
+								waiter.readPacket (n == 0 ? GrabbedTimeout : 20));
+
+			grabber.ungrabServer ();
+			grabber.flush ();
+
+			long		start = System.nanoTime ();
+			ByteBuffer	r = waiter.readReply ();
+			long		t = System.nanoTime () - start;
+
+			assertEquals ("reply type", XClient.Reply, r.get (0));
+			assertEquals ("sequence number", waiter.getSequenceNumber (),
+													r.getShort (2) & 0xffff);
+			total += t;
+			max = Math.max (max, t);
+		}
+
+		assertTrue ("Average wait " + total / Rounds / 1000
+						+ " us, longest " + max / 1000 + " us",
+						total / Rounds < MaxAverageNanos);
+	}
+
+	/**
+	 * Test that a request queued during a grab is processed promptly when
+	 * the grabbing client disconnects instead of ungrabbing.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testCloseLatency () throws Exception {
+		XClient			waiter = connect ();
+		long			total = 0;
+
+		for (int n = 0; n < Rounds; n++) {
+			XClient		grabber = connect ();
+
+			grabber.grabServer ();
+			grabber.sync ();
+
+			waiter.getInputFocus ();
+			waiter.flush ();
+			assertNull ("Reply during grab, round " + n,
+												waiter.readPacket (20));
+
+			grabber.close ();
+
+			long		start = System.nanoTime ();
+			ByteBuffer	r = waiter.readReply ();
+
+			total += System.nanoTime () - start;
+			assertEquals ("reply type", XClient.Reply, r.get (0));
+		}
+
+		assertTrue ("Average wait " + total / Rounds / 1000 + " us",
+									total / Rounds < MaxAverageNanos);
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * This class tests clients connected over a Unix domain socket.
+ */
+package au.com.darkside.XServer.test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class tests that clients connected over the server's Unix domain
+ * socket are served like TCP clients, share resources with them, wait
+ * for another client's grab, and that the socket is removed when the
+ * server stops.
+ */
+public class LocalSocketTest extends XServerTestCase {
+	private static final int	GCForeground = 0x04;
+	private static final int	GCBackground = 0x08;
+
+	/**
+	 * Return a socket path in the cache directory, unique to the test.
+	 *
+	 * @return	The socket path.
+	 */
+	@Override
+	protected String
+	getUnixSocketPath () {
+		return new File (getContext().getCacheDir (), "X" + getPort ())
+																.getPath ();
+	}
+
+	/**
+	 * Return the average time of a number of round trips.
+	 *
+	 * @param c	The client.
+	 * @param rounds	The number of round trips.
+	 * @return	The average round trip time, in nanoseconds.
+	 * @throws Exception
+	 */
+	private static long
+	roundTrip (
+		XClient		c,
+		int			rounds
+	) throws Exception {
+		long		start = System.nanoTime ();
+
+		for (int i = 0; i < rounds; i++)
+			c.sync ();
+
+		return (System.nanoTime () - start) / rounds;
+	}
+
+	/**
+	 * Test that local and TCP clients connected at the same time are both
+	 * served promptly.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testRoundTrips () throws Exception {
+		XClient			local = connectLocal ();
+		XClient			tcp = connect ();
+		int				rounds = 200;
+
+		roundTrip (local, 10);	// Warm up.
+		roundTrip (tcp, 10);
+
+		long			localNanos = roundTrip (local, rounds);
+		long			tcpNanos = roundTrip (tcp, rounds);
+
+		assertTrue ("Local round trip " + localNanos / 1000 + " us, TCP "
+								+ tcpNanos / 1000 + " us",
+								localNanos < 5 * 1000000);
+	}
+
+	/**
+	 * Test that an image put on a pixmap by a local client can be read
+	 * by a TCP client, and the other way round.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testSharedResources () throws Exception {
+		XClient			local = connectLocal ();
+		XClient			tcp = connect ();
+		Random			random = new Random (1);
+		int				width = 64;
+		int				height = 32;
+		byte[]			image = new byte[width / 8 * height];
+
+		assertTrue ("different resource IDs",
+								local.allocateId () != tcp.allocateId ());
+
+		for (XClient[] pair: new XClient[][] {{local, tcp}, {tcp, local}}) {
+			XClient		writer = pair[0];
+			XClient		reader = pair[1];
+			int			pixmap = writer.createPixmap (1, width, height);
+			int			gc = writer.createGC (pixmap,
+										GCForeground | GCBackground, 1, 0);
+
+			random.nextBytes (image);
+			writer.putImage (XClient.XYPixmap, pixmap, gc, width, height, 0, 0,
+														0, 1, image);
+			writer.sync ();
+
+			ByteBuffer	r = reader.getImage (XClient.XYPixmap, pixmap, 0, 0,
+														width, height, 1);
+
+			assertEquals ("reply type", XClient.Reply, r.get (0));
+			for (int i = 0; i < image.length; i++)
+				assertEquals ("byte " + i, image[i], r.get (32 + i));
+		}
+	}
+
+	/**
+	 * Test that a local client's request waits while a TCP client grabs
+	 * the server, and is processed promptly when it ungrabs.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testGrab () throws Exception {
+		final XClient	local = connectLocal ();
+		XClient			grabber = connect ();
+		final long[]	replyTime = {0};
+		Thread			reader = new Thread () {
+			/**
+			 * Read the reply, and note when it arrives.
+			 */
+			@Override
+			public void
+			run () {
+				try {
+					if (local.readReply().get (0) == XClient.Reply)
+						replyTime[0] = System.nanoTime ();
+				} catch (Exception e) {
+				}
+			}
+		};
+
+		local.sync ();
+		grabber.grabServer ();
+		grabber.sync ();
+
+		local.getInputFocus ();
+		local.flush ();
+		reader.start ();
+		reader.join (150);
+		assertTrue ("Reply during grab", reader.isAlive ());
+
+		long			ungrabTime = System.nanoTime ();
+
+		grabber.ungrabServer ();
+		grabber.flush ();
+		reader.join (1000);
+		assertFalse ("No reply after ungrab", reader.isAlive ());
+		assertTrue ("No reply", replyTime[0] != 0);
+		assertTrue ("Reply " + (replyTime[0] - ungrabTime) / 1000
+									+ " us after ungrab",
+									replyTime[0] - ungrabTime < 20 * 1000000);
+	}
+
+	/**
+	 * Test that the socket file is removed when the server stops.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testStop () throws Exception {
+		File			file = new File (getUnixSocketPath ());
+
+		connectLocal().sync ();
+		assertTrue ("socket created", file.exists ());
+
+		_xServer.stop ();
+		for (int i = 0; i < 100 && file.exists (); i++)
+			Thread.sleep (10);
+
+		assertFalse ("socket removed", file.exists ());
+	}
+}
@@ -0,0 +1,264 @@
+/**
+ * This class tests the MotionNotify events sent when the pointer moves.
+ */
+package au.com.darkside.XServer.test;
+
+import java.nio.ByteBuffer;
+import java.util.Vector;
+
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class replays touch moves at 240 Hz, the rate of a fast touch
+ * screen, and checks the MotionNotify events a client receives.
+ *
+ * A client that keeps up gets one event per move. A client whose output
+ * is backed up gets the unsent events merged into one with the latest
+ * position. A client that selects PointerMotionHint gets one hint until
+ * it queries the pointer or the button or key state changes.
+ */
+public class MotionNotifyTest extends XServerTestCase {
+	private static final int	MotionNotify = 6;
+	private static final int	CWEventMask = 0x800;
+	private static final int	PointerMotionMask = 0x40;
+	private static final int	PointerMotionHintMask = 0x80;
+	private static final int	Button1Mask = 0x100;
+	private static final int	MoveInterval = 4;	// Milliseconds, 240 Hz.
+	private static final int	EventTimeout = 200;
+
+	private long				_moveTime = 0;
+
+	/**
+	 * Move the pointer by touching the screen, then wait until the next
+	 * move is due.
+	 *
+	 * @param x	The X coordinate on the screen.
+	 * @param y	The Y coordinate on the screen.
+	 * @throws InterruptedException
+	 */
+	private void
+	move (
+		int			x,
+		int			y
+	) throws InterruptedException {
+		MotionEvent		event = MotionEvent.obtain (0, _moveTime,
+										MotionEvent.ACTION_MOVE, x, y, 0);
+
+		_xServer.getScreen().onTouchEvent (event);
+		event.recycle ();
+		_moveTime += MoveInterval;
+		Thread.sleep (MoveInterval);
+	}
+
+	/**
+	 * Press or release a key on the device.
+	 *
+	 * @param keycode	The key code.
+	 * @param down	True if the key is pressed.
+	 */
+	private void
+	key (
+		int			keycode,
+		boolean		down
+	) {
+		if (down)
+			_xServer.getScreen().onKeyDown (keycode,
+							new KeyEvent (KeyEvent.ACTION_DOWN, keycode));
+		else
+			_xServer.getScreen().onKeyUp (keycode,
+							new KeyEvent (KeyEvent.ACTION_UP, keycode));
+	}
+
+	/**
+	 * Return the MotionNotify events a client has received, once no
+	 * more arrive.
+	 *
+	 * @param c	The client.
+	 * @return	The events.
+	 * @throws Exception
+	 */
+	private static Vector<ByteBuffer>
+	motionEvents (
+		XClient		c
+	) throws Exception {
+		Vector<ByteBuffer>	events = new Vector<ByteBuffer>();
+		ByteBuffer			e;
+
+		while ((e = c.nextEvent (EventTimeout)) != null)
+			if ((e.get (0) & 0x7f) == MotionNotify)
+				events.add (e);
+
+		return events;
+	}
+
+	/**
+	 * Check the position, detail and state of a MotionNotify event.
+	 *
+	 * @param e	The event.
+	 * @param window	The event window, at the origin of the screen.
+	 * @param x	The expected X coordinate.
+	 * @param y	The expected Y coordinate.
+	 * @param detail	The expected detail, 0=Normal, 1=Hint.
+	 * @param state	The expected button and modifier state.
+	 */
+	private static void
+	checkEvent (
+		ByteBuffer	e,
+		int			window,
+		int			x,
+		int			y,
+		int			detail,
+		int			state
+	) {
+		assertEquals ("detail", detail, e.get (1));
+		assertEquals ("event window", window, e.getInt (12));
+		assertEquals ("root x", x, e.getShort (20));
+		assertEquals ("root y", y, e.getShort (22));
+		assertEquals ("event x", x, e.getShort (24));
+		assertEquals ("event y", y, e.getShort (26));
+		assertEquals ("state", state, e.getShort (28) & 0xffff);
+	}
+
+	/**
+	 * Create and map a window at the origin of the screen that selects
+	 * motion events, and move the pointer into it. Entering the window
+	 * doesn't generate a motion event.
+	 *
+	 * @param c	The client.
+	 * @param eventMask	The events to select.
+	 * @return	The window's ID.
+	 * @throws Exception
+	 */
+	private int
+	createMotionWindow (
+		XClient		c,
+		int			eventMask
+	) throws Exception {
+		int			w = c.createWindow (c.getRootWindow (), 0, 0, 400, 400,
+														CWEventMask, eventMask);
+
+		c.mapWindow (w);
+		c.sync ();
+		move (5, 5);
+		assertEquals ("motion events on entry", 0, motionEvents(c).size ());
+
+		return w;
+	}
+
+	/**
+	 * Test that a client that reads its events promptly gets one event
+	 * per move, in order.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testResponsiveClient () throws Exception {
+		XClient			c = connect ();
+		int				w = createMotionWindow (c, PointerMotionMask);
+		int				moves = 60;
+
+		_xServer.setFlushDelay (0);
+		for (int i = 0; i < moves; i++)
+			move (10 + i, 20 + 2 * i);
+
+		Vector<ByteBuffer>	events = motionEvents (c);
+
+		assertEquals ("motion events", moves, events.size ());
+		for (int i = 0; i < moves; i++)
+			checkEvent (events.get (i), w, 10 + i, 20 + 2 * i, 0, 0);
+	}
+
+	/**
+	 * Test that the events for a client whose output is backed up are
+	 * merged, and that the merged event has the latest position.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testMergedMotion () throws Exception {
+		XClient			c = connect ();
+		int				w = createMotionWindow (c, PointerMotionMask);
+		int				pixmap = c.createPixmap (32, 1024, 1024);
+		int				replies = 4;	// 16 MB, more than the socket buffers.
+		int				moves = 240;
+
+		for (int i = 0; i < replies; i++)
+			c.writeGetImage (XClient.ZPixmap, pixmap, 0, 0, 1024, 1024, -1);
+		c.flush ();
+		Thread.sleep (300);		// Until the replies are queued.
+
+		for (int i = 0; i < moves; i++)
+			move (10 + i, 300 - i);
+
+		for (int i = 0; i < replies; i++)
+			assertEquals ("GetImage reply", XClient.Reply,
+												c.readReply().get (0));
+
+		Vector<ByteBuffer>	events = motionEvents (c);
+
+		assertTrue ("No motion events", events.size () > 0);
+		assertTrue (events.size () + " motion events for " + moves
+										+ " moves", events.size () <= 3);
+		checkEvent (events.lastElement (), w, 10 + moves - 1, 300 - moves + 1,
+																		0, 0);
+	}
+
+	/**
+	 * Test that only one hint is sent until the client queries the
+	 * pointer or the button or key state changes.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testMotionHint () throws Exception {
+		XClient			c = connect ();
+		int				w = createMotionWindow (c,
+								PointerMotionMask | PointerMotionHintMask);
+		Vector<ByteBuffer>	events;
+
+		for (int i = 0; i < 20; i++)
+			move (50 + i, 50);
+		events = motionEvents (c);
+		assertEquals ("hints before QueryPointer", 1, events.size ());
+		checkEvent (events.get (0), w, 50, 50, 1, 0);
+
+		ByteBuffer	r = c.queryPointer (w);
+
+		assertEquals ("QueryPointer reply", XClient.Reply, r.get (0));
+		assertEquals ("pointer x", 69, r.getShort (16));
+		for (int i = 0; i < 20; i++)
+			move (100, 50 + i);
+		events = motionEvents (c);
+		assertEquals ("hints after QueryPointer", 1, events.size ());
+		checkEvent (events.get (0), w, 100, 50, 1, 0);
+
+		for (int i = 0; i < 20; i++)
+			move (100 + i, 100);
+		assertEquals ("hints without QueryPointer", 0,
+												motionEvents(c).size ());
+
+		key (KeyEvent.KEYCODE_DPAD_CENTER, true);	// Button 1.
+		for (int i = 0; i < 20; i++)
+			move (150, 100 + i);
+		events = motionEvents (c);
+		assertEquals ("hints after button press", 1, events.size ());
+		checkEvent (events.get (0), w, 150, 100, 1, Button1Mask);
+
+		key (KeyEvent.KEYCODE_DPAD_CENTER, false);
+		for (int i = 0; i < 20; i++)
+			move (200, 150 + i);
+		events = motionEvents (c);
+		assertEquals ("hints after button release", 1, events.size ());
+		checkEvent (events.get (0), w, 200, 150, 1, 0);
+
+		key (KeyEvent.KEYCODE_A, true);
+		for (int i = 0; i < 20; i++)
+			move (250, 200 + i);
+		events = motionEvents (c);
+		assertEquals ("hints after key press", 1, events.size ());
+		checkEvent (events.get (0), w, 250, 200, 1, 0);
+	}
+}
@@ -0,0 +1,374 @@
+/**
+ * This class tests the memory budget for pixmaps.
+ */
+package au.com.darkside.XServer.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+import android.test.AndroidTestCase;
+
+import au.com.darkside.XServer.Drawable;
+import au.com.darkside.XServer.Pixmap;
+import au.com.darkside.XServer.PixmapBudget;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class tests that the pixmap budget spills the least recently used
+ * pixmaps, faults them back in with their pixels intact, and keeps its
+ * accounting right, including when a swap file can't be read.
+ */
+public class PixmapBudgetTest extends AndroidTestCase {
+	private static final int	Size = 100;
+	private static final int	Bytes = 4 * Size * Size;
+
+	private File				_swapDir;
+	private PixmapBudget		_budget;
+	private int					_nextId = 1;
+	private final HashMap<Pixmap, Drawable>	_drawables =
+											new HashMap<Pixmap, Drawable>();
+
+	/**
+	 * Create a budget with room for three pixmaps, and an empty swap
+	 * directory.
+	 */
+	@Override
+	protected void
+	setUp () throws Exception {
+		super.setUp ();
+
+		_swapDir = new File (getContext().getCacheDir (), "pixmap-budget-test");
+		_budget = new PixmapBudget (_swapDir, 3 * Bytes);
+	}
+
+	/**
+	 * Delete the swap directory.
+	 */
+	@Override
+	protected void
+	tearDown () throws Exception {
+		File[]		files = _swapDir.listFiles ();
+
+		if (files != null)
+			for (File f: files)
+				f.delete ();
+
+		_swapDir.delete ();
+
+		super.tearDown ();
+	}
+
+	/**
+	 * Create a pixmap filled with a color, and add it to the budget in
+	 * the current request.
+	 *
+	 * The pixmap has no X server, so its own drawable can't be used. It
+	 * only serves as the budget's key, and the drawable given to the
+	 * budget is kept by the test.
+	 *
+	 * @param depth	The pixmap's depth.
+	 * @param color	The color to fill it with.
+	 * @return	The pixmap.
+	 */
+	private Pixmap
+	addPixmap (
+		int			depth,
+		int			color
+	) {
+		Pixmap		p = new Pixmap (_nextId++, null, null, null, 1, 1, depth);
+		Drawable	d = new Drawable (Size, Size, depth, null, color);
+
+		if (depth != 1)
+			d.clear ();
+
+		_drawables.put (p, d);
+		_budget.add (p, d);
+
+		return p;
+	}
+
+	/**
+	 * Check whether a pixmap is spilled.
+	 *
+	 * @param p	The pixmap.
+	 * @return	True if the pixmap's pixels are in a swap file.
+	 */
+	private boolean
+	isSpilled (
+		Pixmap		p
+	) {
+		Drawable	d = _drawables.get (p);
+
+		return d.getDepth () != 1 && !d.isSpillable ();
+	}
+
+	/**
+	 * Check that every pixel of a pixmap is a color.
+	 *
+	 * @param p	The pixmap.
+	 * @param color	The expected color.
+	 */
+	private void
+	checkPixels (
+		Pixmap		p,
+		int			color
+	) {
+		int[]		pixels = new int[Size * Size];
+
+		_drawables.get(p).getPixels (pixels, 0, Size, 0, 0, Size, Size);
+		for (int i = 0; i < pixels.length; i++)
+			if (pixels[i] != color)
+				fail ("pixel " + i + " expected " + Integer.toHexString (color)
+								+ " got " + Integer.toHexString (pixels[i]));
+	}
+
+	/**
+	 * Check the budget's accounting.
+	 *
+	 * @param resident	The expected number of pixmaps in memory.
+	 * @param spilled	The expected number of pixmaps spilled.
+	 * @param spills	The expected number of spills.
+	 * @param faults	The expected number of faults.
+	 */
+	private void
+	checkCounts (
+		int			resident,
+		int			spilled,
+		int			spills,
+		int			faults
+	) {
+		assertEquals ("resident bytes", resident * Bytes,
+												_budget.getResidentBytes ());
+		assertEquals ("spilled bytes", spilled * Bytes,
+												_budget.getSpilledBytes ());
+		assertEquals ("spills", spills, _budget.getSpills ());
+		assertEquals ("faults", faults, _budget.getFaults ());
+		assertEquals ("swap files", spilled, swapFiles().length);
+	}
+
+	/**
+	 * Return the swap files.
+	 *
+	 * @return	The swap files.
+	 */
+	private File[]
+	swapFiles () {
+		File[]		files = _swapDir.listFiles ();
+
+		return (files == null) ? new File[0] : files;
+	}
+
+	/**
+	 * Test that the least recently used pixmaps are spilled when the
+	 * budget is exceeded, and that using a pixmap makes it the most
+	 * recently used.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testLeastRecentlyUsed () throws Exception {
+		Pixmap[]		p = new Pixmap[5];
+
+		for (int i = 0; i < 3; i++) {
+			p[i] = addPixmap (32, 0xff000010 + i);
+			_budget.trim ();
+		}
+
+		checkCounts (3, 0, 0, 0);
+
+		p[3] = addPixmap (32, 0xff000013);
+		_budget.trim ();
+		checkCounts (3, 1, 1, 0);
+		assertTrue ("oldest spilled", isSpilled (p[0]));
+
+		assertTrue (_budget.touch (p[1]));
+		_budget.trim ();
+		p[4] = addPixmap (32, 0xff000014);
+		_budget.trim ();
+		checkCounts (3, 2, 2, 0);
+		assertFalse ("touched pixmap kept", isSpilled (p[1]));
+		assertTrue ("least recently used spilled", isSpilled (p[2]));
+		assertFalse (isSpilled (p[3]));
+		assertFalse (isSpilled (p[4]));
+	}
+
+	/**
+	 * Test that a spilled pixmap is faulted back in with its pixels, and
+	 * that the budget is met again after the request that used it.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testFault () throws Exception {
+		Pixmap[]		p = new Pixmap[4];
+
+		for (int i = 0; i < 4; i++) {
+			p[i] = addPixmap (32, 0xff102030 + i);
+			_budget.trim ();
+		}
+
+		assertTrue (isSpilled (p[0]));
+		assertTrue ("fault", _budget.touch (p[0]));
+		checkCounts (4, 0, 1, 1);
+		assertFalse (isSpilled (p[0]));
+		checkPixels (p[0], 0xff102030);
+		assertTrue ("fault time", _budget.getFaultNanos () > 0);
+		assertEquals ("longest fault", _budget.getFaultNanos (),
+												_budget.getMaxFaultNanos ());
+
+		_budget.trim ();
+		checkCounts (3, 1, 2, 1);
+		assertTrue ("next oldest spilled", isSpilled (p[1]));
+
+		for (int i = 0; i < 4; i++) {
+			assertTrue (_budget.touch (p[i]));
+			checkPixels (p[i], 0xff102030 + i);
+		}
+
+		checkCounts (4, 0, 2, 2);
+	}
+
+	/**
+	 * Test that pixmaps used by the current request and depth 1 pixmaps
+	 * are never spilled, even as a last resort.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testUnspillable () throws Exception {
+		Pixmap		old = addPixmap (32, 0xff000001);
+		Pixmap		plane;
+		Pixmap		current;
+
+		_budget.trim ();
+		plane = addPixmap (1, 0);
+		_budget.trim ();
+		current = addPixmap (32, 0xff000002);
+
+		assertTrue ("spill", _budget.spillAll ());
+		assertTrue (isSpilled (old));
+		assertFalse ("current request", isSpilled (current));
+		assertFalse ("nothing left", _budget.spillAll ());
+		assertEquals ("resident bytes", Bytes
+									+ _drawables.get(plane).getByteCount (),
+									_budget.getResidentBytes ());
+		assertEquals ("spilled bytes", Bytes, _budget.getSpilledBytes ());
+	}
+
+	/**
+	 * Test that removing pixmaps deletes their swap files and updates
+	 * the accounting.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testRemove () throws Exception {
+		Pixmap[]		p = new Pixmap[4];
+
+		for (int i = 0; i < 4; i++) {
+			p[i] = addPixmap (32, 0xff000000 + i);
+			_budget.trim ();
+		}
+
+		checkCounts (3, 1, 1, 0);
+		_budget.remove (p[0]);
+		checkCounts (3, 0, 1, 0);
+		_budget.remove (p[1]);
+		checkCounts (2, 0, 1, 0);
+		assertTrue ("removed pixmap", _budget.touch (p[0]));
+		checkCounts (2, 0, 1, 0);
+	}
+
+	/**
+	 * Test that a pixmap whose swap file can't be read stays spilled,
+	 * keeps its swap file, and can be faulted in once the file can be
+	 * read again.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testUnreadableSwapFile () throws Exception {
+		Pixmap[]		p = new Pixmap[4];
+
+		for (int i = 0; i < 4; i++) {
+			p[i] = addPixmap (32, 0xff405060 + i);
+			_budget.trim ();
+		}
+
+		File[]		files = swapFiles ();
+
+		assertEquals ("swap files", 1, files.length);
+
+		byte[]		contents = readFile (files[0]);
+
+		assertEquals ("swap file length", Bytes, contents.length);
+		writeFile (files[0], new byte[0]);	// Too short to map.
+
+		assertFalse ("fault from short file", _budget.touch (p[0]));
+		assertTrue ("still spilled", isSpilled (p[0]));
+		checkCounts (3, 1, 1, 0);
+		assertTrue ("swap file kept", files[0].exists ());
+
+		writeFile (files[0], contents);
+		assertTrue ("fault from restored file", _budget.touch (p[0]));
+		checkCounts (4, 0, 1, 1);
+		checkPixels (p[0], 0xff405060);
+	}
+
+	/**
+	 * Read the contents of a file.
+	 *
+	 * @param f	The file.
+	 * @return	The contents.
+	 * @throws IOException
+	 */
+	private static byte[]
+	readFile (
+		File		f
+	) throws IOException {
+		FileInputStream	in = new FileInputStream (f);
+
+		try {
+			byte[]		ba = new byte[(int) f.length ()];
+			int			pos = 0;
+
+			while (pos < ba.length) {
+				int			n = in.read (ba, pos, ba.length - pos);
+
+				if (n < 0)
+					throw new IOException ("Unexpected end of file");
+
+				pos += n;
+			}
+
+			return ba;
+		} finally {
+			in.close ();
+		}
+	}
+
+	/**
+	 * Replace the contents of a file.
+	 *
+	 * @param f	The file.
+	 * @param ba	The new contents.
+	 * @throws IOException
+	 */
+	private static void
+	writeFile (
+		File		f,
+		byte[]		ba
+	) throws IOException {
+		FileOutputStream	out = new FileOutputStream (f);
+
+		try {
+			out.write (ba);
+		} finally {
+			out.close ();
+		}
+	}
+}
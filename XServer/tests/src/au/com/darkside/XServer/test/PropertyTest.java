@@ -0,0 +1,257 @@
+/**
+ * This class tests the ChangeProperty and GetProperty requests.
+ */
+package au.com.darkside.XServer.test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class tests property values, which the server stores in chunks,
+ * against a reference that stores them in a single array of bytes.
+ * Values are replaced, prepended to and appended to in random sizes,
+ * on both sides of the chunk size, and read back in random slices.
+ */
+public class PropertyTest extends XServerTestCase {
+	private static final int	Replace = 0;
+	private static final int	Prepend = 1;
+	private static final int	Append = 2;
+	private static final int	AtomString = 31;
+	private static final int	AtomWmName = 39;
+	private static final int	AtomWmIconName = 37;
+
+	/**
+	 * Return an array of random bytes.
+	 *
+	 * @param random	The random number generator.
+	 * @param n	The number of bytes.
+	 * @return	The bytes.
+	 */
+	private static byte[]
+	randomBytes (
+		Random		random,
+		int			n
+	) {
+		byte[]		ba = new byte[n];
+
+		random.nextBytes (ba);
+
+		return ba;
+	}
+
+	/**
+	 * Apply a change to the reference value.
+	 *
+	 * @param value	The reference value.
+	 * @param mode	Replace, Prepend or Append.
+	 * @param data	The data.
+	 * @return	The new reference value.
+	 */
+	private static byte[]
+	change (
+		byte[]		value,
+		int			mode,
+		byte[]		data
+	) {
+		if (mode == Replace)
+			return data;
+
+		byte[]		ba = new byte[value.length + data.length];
+
+		if (mode == Prepend) {
+			System.arraycopy (data, 0, ba, 0, data.length);
+			System.arraycopy (value, 0, ba, data.length, value.length);
+		} else {
+			System.arraycopy (value, 0, ba, 0, value.length);
+			System.arraycopy (data, 0, ba, value.length, data.length);
+		}
+
+		return ba;
+	}
+
+	/**
+	 * Read a slice of a property and check it against the reference.
+	 *
+	 * @param c	The client.
+	 * @param window	The window.
+	 * @param property	The property's atom.
+	 * @param format	The property's format.
+	 * @param value	The reference value.
+	 * @param offset	The offset to read from, in four-byte units.
+	 * @param length	The most to read, in four-byte units.
+	 * @param message	The message to fail with.
+	 * @throws Exception
+	 */
+	private static void
+	checkSlice (
+		XClient		c,
+		int			window,
+		int			property,
+		int			format,
+		byte[]		value,
+		int			offset,
+		int			length,
+		String		message
+	) throws Exception {
+		ByteBuffer	r = c.getProperty (window, property, offset, length);
+		int			start = 4 * offset;
+		int			n = Math.min (value.length - start, 4 * length);
+
+		assertEquals (message + " reply type", XClient.Reply, r.get (0));
+		assertEquals (message + " format", format, r.get (1));
+		assertEquals (message + " type", AtomString, r.getInt (8));
+		assertEquals (message + " bytes after", value.length - start - n,
+																r.getInt (12));
+		assertEquals (message + " length", n / (format / 8), r.getInt (16));
+
+		for (int i = 0; i < n; i++)
+			if (r.get (32 + i) != value[start + i])
+				fail (message + " byte " + (start + i) + " expected "
+							+ value[start + i] + " got " + r.get (32 + i));
+	}
+
+	/**
+	 * Check a whole property against the reference.
+	 *
+	 * @param c	The client.
+	 * @param window	The window.
+	 * @param property	The property's atom.
+	 * @param format	The property's format.
+	 * @param value	The reference value.
+	 * @param message	The message to fail with.
+	 * @throws Exception
+	 */
+	private static void
+	checkValue (
+		XClient		c,
+		int			window,
+		int			property,
+		int			format,
+		byte[]		value,
+		String		message
+	) throws Exception {
+		checkSlice (c, window, property, format, value, 0,
+										(value.length + 3) / 4, message);
+	}
+
+	/**
+	 * Test random changes to properties of each format, reading back
+	 * random slices after each one.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testRandomChanges () throws Exception {
+		XClient			c = connect ();
+		Random			random = new Random (1);
+		int				window = c.getRootWindow ();
+
+		for (int format: new int[] {8, 16, 32}) {
+			int			unit = format / 8;
+			byte[]		value = new byte[0];
+
+			for (int n = 0; n < 300; n++) {
+				int			mode = (n == 0) ? Replace : random.nextInt (3);
+				int			items = random.nextBoolean () ? random.nextInt (64)
+													: random.nextInt (12000 / unit);
+				byte[]		data = randomBytes (random, items * unit);
+				String		message = "format " + format + " change " + n;
+
+				if (value.length > 100000)
+					mode = Replace;		// Keep the value a manageable size.
+				else if (mode == Replace && n > 0 && random.nextInt (4) != 0)
+					mode = Append;	// Let the value grow.
+
+				c.changeProperty (mode, window, AtomWmName, AtomString, format,
+																		data);
+				value = change (value, mode, data);
+
+				for (int i = 0; i < 3; i++) {
+					int			offset = random.nextInt (value.length / 4 + 1);
+					int			length = random.nextInt ((value.length + 3) / 4
+																	- offset + 2);
+
+					checkSlice (c, window, AtomWmName, format, value, offset,
+															length, message);
+				}
+
+				if (n % 50 == 0)
+					checkValue (c, window, AtomWmName, format, value, message);
+			}
+
+			checkValue (c, window, AtomWmName, format, value, "format " + format);
+			c.changeProperty (Replace, window, AtomWmName, AtomString, format,
+																new byte[0]);
+		}
+	}
+
+	/**
+	 * Test that reading from past the end of a property is an error.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testOffsetPastEnd () throws Exception {
+		XClient			c = connect ();
+		int				window = c.getRootWindow ();
+		byte[]			value = randomBytes (new Random (2), 10);
+
+		c.changeProperty (Replace, window, AtomWmName, AtomString, 8, value);
+		checkSlice (c, window, AtomWmName, 8, value, 2, 1, "last word");
+		checkSlice (c, window, AtomWmName, 8, value, 2, 0, "no words");
+
+		ByteBuffer	r = c.getProperty (window, AtomWmName, 3, 1);
+
+		assertEquals ("reply type", XClient.Error, r.get (0));
+		assertEquals ("error code", 2, r.get (1));	// Value.
+	}
+
+	/**
+	 * Test that properties swapped by RotateProperties can be changed
+	 * independently afterwards.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testRotateThenChange () throws Exception {
+		XClient			c = connect ();
+		Random			random = new Random (3);
+		int				window = c.getRootWindow ();
+		byte[]			a = new byte[0];
+		byte[]			b = new byte[0];
+
+		for (int n = 0; n < 6; n++) {
+			byte[]		da = randomBytes (random, 100 + random.nextInt (6000));
+			byte[]		db = randomBytes (random, 100 + random.nextInt (6000));
+
+			c.changeProperty (Append, window, AtomWmName, AtomString, 8, da);
+			c.changeProperty (Append, window, AtomWmIconName, AtomString, 8,
+																		db);
+			a = change (a, Append, da);
+			b = change (b, Append, db);
+		}
+
+		c.rotateProperties (window, 1, AtomWmName, AtomWmIconName);
+		checkValue (c, window, AtomWmName, 8, b, "after rotate");
+		checkValue (c, window, AtomWmIconName, 8, a, "after rotate");
+
+		for (int n = 0; n < 20; n++) {
+			int			mode = 1 + random.nextInt (2);
+			byte[]		data = randomBytes (random, random.nextInt (5000));
+
+			if (n % 2 == 0) {
+				c.changeProperty (mode, window, AtomWmName, AtomString, 8, data);
+				b = change (b, mode, data);
+			} else {
+				c.changeProperty (mode, window, AtomWmIconName, AtomString, 8,
+																		data);
+				a = change (a, mode, data);
+			}
+
+			checkValue (c, window, AtomWmName, 8, b, "change " + n);
+			checkValue (c, window, AtomWmIconName, 8, a, "change " + n);
+		}
+	}
+}
@@ -0,0 +1,508 @@
+/**
+ * This class tests the PutImage and GetImage requests.
+ */
+package au.com.darkside.XServer.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import android.util.Log;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class tests that images put on a drawable are read back the same,
+ * in every format, and that an image read back can be put again. It also
+ * measures how much memory the server needs to buffer long images sent
+ * with BIG-REQUESTS, which are drawn as they arrive.
+ */
+public class PutImageTest extends XServerTestCase {
+	private static final int	GCForeground = 0x04;
+	private static final int	GCBackground = 0x08;
+	private static final int	MaxInputBufferSize = 256 * 1024;
+
+	/**
+	 * Encode the pixels of a depth 1 image in bitmap format, with the
+	 * most significant bit first and rows padded to a byte.
+	 *
+	 * @param pixels	The pixels, indexed by row then column.
+	 * @param leftPad	The number of bits to skip at the start of a row.
+	 * @return	The encoded image.
+	 */
+	private static byte[]
+	encodeBitmap (
+		boolean[][]		pixels,
+		int				leftPad
+	) {
+		int			height = pixels.length;
+		int			width = pixels[0].length;
+		int			rowBytes = (width + leftPad + 7) / 8;
+		byte[]		data = new byte[rowBytes * height];
+
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				if (pixels[y][x])
+					data[y * rowBytes + ((leftPad + x) >> 3)] |=
+											0x80 >> ((leftPad + x) & 7);
+
+		return data;
+	}
+
+	/**
+	 * Decode the image in a GetImage reply of a depth 1 drawable.
+	 *
+	 * @param r	The reply.
+	 * @param width	The width of the image.
+	 * @param height	The height of the image.
+	 * @return	The pixels, indexed by row then column.
+	 */
+	private static boolean[][]
+	decodeBitmap (
+		ByteBuffer	r,
+		int			width,
+		int			height
+	) {
+		int			rowBytes = (width + 7) / 8;
+		boolean[][]	pixels = new boolean[height][width];
+
+		assertEquals ("reply type", XClient.Reply, r.get (0));
+		assertEquals ("depth", 1, r.get (1));
+		assertEquals ("reply length", (rowBytes * height + 3) / 4,
+																r.getInt (4));
+
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				pixels[y][x] = (r.get (32 + y * rowBytes + (x >> 3))
+												& (0x80 >> (x & 7))) != 0;
+
+		return pixels;
+	}
+
+	/**
+	 * Return an image of random pixels.
+	 *
+	 * @param random	The random number generator.
+	 * @param width	The width of the image.
+	 * @param height	The height of the image.
+	 * @return	The pixels, indexed by row then column.
+	 */
+	private static boolean[][]
+	randomPixels (
+		Random		random,
+		int			width,
+		int			height
+	) {
+		boolean[][]	pixels = new boolean[height][width];
+
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				pixels[y][x] = random.nextBoolean ();
+
+		return pixels;
+	}
+
+	/**
+	 * Check that the pixels of a depth 1 pixmap, read in both ZPixmap
+	 * and XYPixmap format, are as expected.
+	 *
+	 * @param c	The client.
+	 * @param pixmap	The pixmap.
+	 * @param expected	The expected pixels.
+	 * @param message	The message to fail with.
+	 * @throws Exception
+	 */
+	private static void
+	checkPixels (
+		XClient			c,
+		int				pixmap,
+		boolean[][]		expected,
+		String			message
+	) throws Exception {
+		int			width = expected[0].length;
+		int			height = expected.length;
+
+		for (int format: new int[] {XClient.ZPixmap, XClient.XYPixmap}) {
+			boolean[][]	pixels = decodeBitmap (c.getImage (format, pixmap,
+									0, 0, width, height, 1), width, height);
+
+			for (int y = 0; y < height; y++)
+				for (int x = 0; x < width; x++)
+					assertEquals (message + " format " + format + " pixel "
+									+ x + "," + y, expected[y][x],
+									pixels[y][x]);
+		}
+	}
+
+	/**
+	 * Test that depth 1 images put in each format, with various widths
+	 * and left pads, are read back as they were put.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testDepth1Formats () throws Exception {
+		XClient			c = connect ();
+		Random			random = new Random (1);
+		int				width = 120;
+		int				height = 40;
+		int				pixmap = c.createPixmap (1, width, height);
+		int				gc = c.createGC (pixmap, GCForeground | GCBackground,
+																	1, 0);
+		boolean[][]		expected = new boolean[height][width];
+
+		for (int n = 0; n < 60; n++) {
+			int			format = n % 3;
+			int			w = 1 + random.nextInt (70);
+			int			h = 1 + random.nextInt (12);
+			int			x = random.nextInt (width + 20) - 10;
+			int			y = random.nextInt (height + 6) - 3;
+			int			leftPad = (format == XClient.ZPixmap) ? 0
+													: random.nextInt (8);
+			boolean[][]	pixels = randomPixels (random, w, h);
+
+			c.putImage (format, pixmap, gc, w, h, x, y, leftPad, 1,
+											encodeBitmap (pixels, leftPad));
+
+			for (int i = 0; i < h; i++)
+				for (int j = 0; j < w; j++)
+					if (y + i >= 0 && y + i < height && x + j >= 0
+															&& x + j < width)
+						expected[y + i][x + j] = pixels[i][j];
+
+			checkPixels (c, pixmap, expected, "image " + n);
+		}
+	}
+
+	/**
+	 * Test that a depth 1 ZPixmap image read back with GetImage can be
+	 * put on another pixmap unchanged.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testDepth1RoundTrip () throws Exception {
+		XClient			c = connect ();
+		Random			random = new Random (2);
+
+		for (int width: new int[] {1, 7, 8, 9, 31, 32, 33, 100}) {
+			int				height = 1 + random.nextInt (20);
+			int				src = c.createPixmap (1, width, height);
+			int				dst = c.createPixmap (1, width, height);
+			int				gc = c.createGC (src, 0);
+			boolean[][]		pixels = randomPixels (random, width, height);
+			ByteBuffer		r;
+			byte[]			image = new byte[(width + 7) / 8 * height];
+
+			c.putImage (XClient.XYPixmap, src, gc, width, height, 0, 0, 0, 1,
+												encodeBitmap (pixels, 0));
+			r = c.getImage (XClient.ZPixmap, src, 0, 0, width, height, 1);
+			assertEquals ("reply type", XClient.Reply, r.get (0));
+			r.position (32);
+			r.get (image);
+
+			c.putImage (XClient.ZPixmap, dst, gc, width, height, 0, 0, 0, 1,
+																	image);
+			checkPixels (c, dst, pixels, "width " + width);
+		}
+	}
+
+	/**
+	 * Test that a depth 1 ZPixmap image with the length of a shape mask,
+	 * rather than a bitmap, is accepted without drawing anything.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testDepth1ShapeMask () throws Exception {
+		XClient			c = connect ();
+		int				width = 20;
+		int				height = 10;
+		int				pixmap = c.createPixmap (1, width, height);
+		int				gc = c.createGC (pixmap, 0);
+		byte[]			mask = new byte[(width + 1) / 2 * height];
+
+		Arrays.fill (mask, (byte) 0xff);
+		c.putImage (XClient.ZPixmap, pixmap, gc, width, height, 0, 0, 0, 1,
+																	mask);
+		c.sync ();
+		checkPixels (c, pixmap, new boolean[height][width], "shape mask");
+	}
+
+	/**
+	 * Return the largest size a client's input buffer has grown to, from
+	 * the server's request statistics.
+	 *
+	 * @param c	The client.
+	 * @return	The peak size of the client's input buffer, in bytes.
+	 * @throws Exception
+	 */
+	private int
+	getPeakInputBufferSize (
+		XClient			c
+	) throws Exception {
+		File			file = new File (getContext().getCacheDir (),
+														"put-image-metrics");
+		String			header = "# Client 0x"
+							+ Integer.toHexString (c.getResourceIdBase ()) + " ";
+
+		_xServer.dumpRequestMetrics (file);
+
+		BufferedReader	in = new BufferedReader (new FileReader (file));
+
+		try {
+			String		line;
+
+			while ((line = in.readLine ()) != null) {
+				int			i = line.indexOf (" peak-input=");
+
+				if (line.startsWith (header) && i >= 0)
+					return Integer.parseInt (line.substring (i + 12)
+														.split (" ")[0]);
+			}
+		} finally {
+			in.close ();
+			file.delete ();
+		}
+
+		fail ("No statistics for client " + header);
+		return 0;
+	}
+
+	/**
+	 * Put a depth 32 ZPixmap image on a drawable, in as few bands of rows
+	 * as the maximum request length allows, as Xlib does.
+	 *
+	 * @param c	The client.
+	 * @param drawable	The drawable.
+	 * @param gc	The graphics context.
+	 * @param width	The width of the image.
+	 * @param height	The height of the image.
+	 * @param image	The image, three bytes per pixel.
+	 * @param maxLength	The maximum request length, in four-byte units.
+	 * @throws Exception
+	 */
+	private static void
+	putBands (
+		XClient			c,
+		int				drawable,
+		int				gc,
+		int				width,
+		int				height,
+		byte[]			image,
+		int				maxLength
+	) throws Exception {
+		int				rowBytes = 3 * width;
+		int				bandRows = (4 * maxLength - 28) / rowBytes;
+
+		for (int y = 0; y < height; y += bandRows) {
+			int			rows = Math.min (bandRows, height - y);
+			byte[]		band = new byte[rows * rowBytes];
+
+			System.arraycopy (image, y * rowBytes, band, 0, band.length);
+			c.putImage (XClient.ZPixmap, drawable, gc, width, rows, 0, y, 0,
+																32, band);
+			c.flush ();
+		}
+	}
+
+	/**
+	 * Check that a depth 32 drawable holds an image, reading it back a
+	 * band of rows at a time.
+	 *
+	 * @param c	The client.
+	 * @param drawable	The drawable.
+	 * @param width	The width of the image.
+	 * @param height	The height of the image.
+	 * @param image	The expected image, three bytes per pixel.
+	 * @param message	The message to fail with.
+	 * @throws Exception
+	 */
+	private static void
+	checkBands (
+		XClient			c,
+		int				drawable,
+		int				width,
+		int				height,
+		byte[]			image,
+		String			message
+	) throws Exception {
+		int				rowBytes = 3 * width;
+		int				bandRows = Math.max (1, 65536 / width);
+
+		for (int y = 0; y < height; y += bandRows) {
+			int			rows = Math.min (bandRows, height - y);
+			ByteBuffer	r = c.getImage (XClient.ZPixmap, drawable, 0, y,
+														width, rows, -1);
+
+			assertEquals (message + " reply type", XClient.Reply, r.get (0));
+			for (int i = 0; i < rows * rowBytes; i++)
+				if (r.get (32 + i) != image[y * rowBytes + i])
+					fail (message + " byte " + (y * rowBytes + i)
+									+ " expected " + image[y * rowBytes + i]
+									+ " got " + r.get (32 + i));
+		}
+	}
+
+	/**
+	 * Test that long depth 32 images are drawn as they arrive, without
+	 * the server's input buffer growing to hold them, and are read back
+	 * as they were put. The 8192x1024 image needs two requests. The time
+	 * taken and the peak input buffer size are logged for each size.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testLongImages () throws Exception {
+		Random			random = new Random (3);
+		int[][]			sizes = {{512, 512}, {2048, 2048}, {8192, 1024}};
+
+		for (int[] size: sizes) {
+			int			width = size[0];
+			int			height = size[1];
+			String		message = width + "x" + height;
+			XClient		c = connect ();
+			int			max = c.enableBigRequests ();
+			int			pixmap = c.createPixmap (32, width, height);
+			int			gc = c.createGC (pixmap, 0);
+			byte[]		image = new byte[3 * width * height];
+
+			random.nextBytes (image);
+			c.sync ();
+
+			long		start = System.nanoTime ();
+
+			putBands (c, pixmap, gc, width, height, image, max);
+			c.sync ();
+
+			long		millis = (System.nanoTime () - start) / 1000000;
+			int			peak = getPeakInputBufferSize (c);
+
+			Log.i ("PutImageTest", message + ": " + millis
+								+ " ms, peak input buffer " + peak + " bytes");
+			assertTrue (message + " input buffer " + peak + " bytes",
+												peak <= MaxInputBufferSize);
+			checkBands (c, pixmap, width, height, image, message);
+			c.close ();
+		}
+	}
+
+	/**
+	 * Test that long depth 1 images, and bitmaps put on a depth 32
+	 * drawable, are drawn as they arrive and read back as they were put.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testLongBitmaps () throws Exception {
+		XClient			c = connect ();
+		Random			random = new Random (4);
+		int				width = 8192;
+		int				height = 1024;
+		int				rowBytes = width / 8;
+		int				plane = c.createPixmap (1, width, height);
+		int				pixmap = c.createPixmap (32, width, height);
+		int				planeGC = c.createGC (plane, 0);
+		int				gc = c.createGC (pixmap, GCForeground | GCBackground,
+													0xff8040, 0x102030);
+		byte[]			bits = new byte[rowBytes * height];
+
+		random.nextBytes (bits);
+		c.enableBigRequests ();
+		c.putImage (XClient.XYPixmap, plane, planeGC, width, height, 0, 0, 0,
+																1, bits);
+		c.putImage (XClient.Bitmap, pixmap, gc, width, height, 0, 0, 0, 1,
+																	bits);
+		c.sync ();
+		assertTrue ("input buffer", getPeakInputBufferSize (c)
+												<= MaxInputBufferSize);
+
+		for (int y = 0; y < height; y += 64) {
+			ByteBuffer	r = c.getImage (XClient.XYPixmap, plane, 0, y, width,
+																	64, 1);
+
+			assertEquals ("reply type", XClient.Reply, r.get (0));
+			for (int i = 0; i < 64 * rowBytes; i++)
+				if (r.get (32 + i) != bits[y * rowBytes + i])
+					fail ("depth 1 byte " + (y * rowBytes + i) + " expected "
+								+ bits[y * rowBytes + i] + " got "
+								+ r.get (32 + i));
+		}
+
+		for (int y = 0; y < height; y += 8) {
+			ByteBuffer	r = c.getImage (XClient.ZPixmap, pixmap, 0, y, width,
+																	8, -1);
+
+			assertEquals ("reply type", XClient.Reply, r.get (0));
+			for (int i = 0; i < 8 * width; i++) {
+				int			p = (y + i / width) * width + i % width;
+				boolean		set = (bits[p >> 3] & (0x80 >> (p & 7))) != 0;
+				int			pixel = (r.get (32 + 3 * i) & 0xff)
+									| (r.get (33 + 3 * i) & 0xff) << 8
+									| (r.get (34 + 3 * i) & 0xff) << 16;
+
+				if (pixel != (set ? 0xff8040 : 0x102030))
+					fail ("bitmap pixel " + p + " is "
+										+ Integer.toHexString (pixel));
+			}
+		}
+	}
+
+	/**
+	 * Test that a long image with an error is discarded as it arrives,
+	 * and that the rest of a long image is discarded if its GContext is
+	 * freed while it's arriving. Requests that follow are processed as
+	 * usual.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testLongImageDiscarded () throws Exception {
+		XClient			c = connect ();
+		XClient			other = connect ();
+		int				width = 1024;
+		int				height = 256;
+		int				pixmap = c.createPixmap (32, width, height);
+		int				gc = c.createGC (pixmap, 0);
+		byte[]			image = new byte[3 * width * height];
+		byte[]			blank = new byte[image.length];
+
+		new Random (5).nextBytes (image);
+		c.enableBigRequests ();
+		c.putImage (XClient.ZPixmap, pixmap, gc, width, height, 0, 0, 0, 32,
+																	blank);
+		c.sync ();
+
+		c.putImage (XClient.ZPixmap, pixmap, gc, width, height, 0, 0, 0, 24,
+																	image);
+		c.flush (64 * 1024);
+
+		ByteBuffer		r = c.readReply ();
+
+		assertEquals ("reply type", XClient.Error, r.get (0));
+		assertEquals ("error code", 8, r.get (1));	// Match.
+		c.sync ();
+		checkBands (c, pixmap, width, height, blank, "after error");
+
+			// Send half the image, free the GContext, then send the rest.
+		int				half = image.length / 2;
+
+		c.putImage (XClient.ZPixmap, pixmap, gc, width, height, 0, 0, 0, 32,
+																	image);
+		c.flushPart (28 + half);	// BIG-REQUESTS header, then the image.
+		Thread.sleep (100);
+
+		other.freeGC (gc);
+		other.sync ();
+		c.flush ();
+		c.sync ();
+
+		byte[]			expected = blank.clone ();
+
+		System.arraycopy (image, 0, expected, 0, half);
+		checkBands (c, pixmap, width, height, expected, "after free");
+	}
+}
@@ -0,0 +1,297 @@
+/**
+ * This class tests the resource table.
+ */
+package au.com.darkside.XServer.test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+import au.com.darkside.XServer.Resource;
+import au.com.darkside.XServer.ResourceTable;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class tests the resource table against a HashMap, applying the
+ * same random sequence of additions and removals to both.
+ */
+public class ResourceTableTest extends TestCase {
+	private static final int	ClientIdBits = 20;
+	private static final int[]	_clients = {0, 1, 2, 3, 7, 100, 4095};
+
+	private ResourceTable		_table;
+	private HashMap<Integer, Resource>	_map;
+	private HashSet<Integer>	_ids;
+
+	/**
+	 * Create an empty table and map.
+	 */
+	@Override
+	protected void
+	setUp () throws Exception {
+		super.setUp ();
+
+		_table = new ResourceTable (ClientIdBits);
+		_map = new HashMap<Integer, Resource>();
+		_ids = new HashSet<Integer>();
+	}
+
+	/**
+	 * This class is a resource that holds nothing but its ID.
+	 */
+	private static class TestResource extends Resource {
+		/**
+		 * Constructor.
+		 *
+		 * @param id	The resource ID.
+		 */
+		public TestResource (
+			int			id
+		) {
+			super (PIXMAP, id, null, null);
+		}
+	}
+
+	/**
+	 * Test an empty table.
+	 */
+	public void
+	testEmpty () {
+		assertEquals (0, _table.size ());
+		assertNull (_table.get (0));
+		assertNull (_table.get (-1));
+		assertFalse (_table.contains (1 << ClientIdBits));
+		assertEquals (0, _table.getClientResources (0).length);
+		assertEquals (0, _table.getAllClientResources ().size ());
+		_table.remove (12345);
+		_table.removeAllClientResources ();
+		assertEquals (0, _table.size ());
+	}
+
+	/**
+	 * Test that adding a resource with an existing ID replaces it.
+	 */
+	public void
+	testReplace () {
+		Resource	a = new TestResource (5);
+		Resource	b = new TestResource (5);
+
+		_table.put (a);
+		_table.put (b);
+		assertEquals (1, _table.size ());
+		assertSame (b, _table.get (5));
+		_table.remove (5);
+		assertEquals (0, _table.size ());
+		assertNull (_table.get (5));
+	}
+
+	/**
+	 * Test random additions and removals of sequential IDs, which mostly
+	 * fill each client's table in order.
+	 */
+	public void
+	testSequentialIds () {
+		run (new Random (1), 1, 200000, 500);
+	}
+
+	/**
+	 * Test random additions and removals of IDs that stride through the
+	 * ID space, so many share their low bits.
+	 */
+	public void
+	testStridedIds () {
+		run (new Random (2), 1024, 200000, 500);
+	}
+
+	/**
+	 * Test tables that grow large and are then emptied.
+	 */
+	public void
+	testGrowAndEmpty () {
+		Random		random = new Random (3);
+
+		for (int round = 0; round < 4; round++) {
+			for (int i = 0; i < 5000; i++)
+				put (randomId (random, 1 + round, 20000));
+
+			check ();
+			for (int id: _ids.toArray (new Integer[0]))
+				if (random.nextInt (4) != 0)
+					remove (id);
+
+			check ();
+			removeAllClientResources ();
+			check ();
+		}
+	}
+
+	/**
+	 * Apply a random sequence of operations to the table and the map,
+	 * checking that they agree.
+	 *
+	 * @param random	The random number generator.
+	 * @param stride	The distance between the IDs of a client.
+	 * @param operations	The number of operations.
+	 * @param ids	The number of IDs each client may use.
+	 */
+	private void
+	run (
+		Random		random,
+		int			stride,
+		int			operations,
+		int			ids
+	) {
+		for (int n = 0; n < operations; n++) {
+			int			id = randomId (random, stride, ids);
+			int			r = random.nextInt (100);
+
+			if (r < 50)
+				put (id);
+			else if (r < 99 || random.nextInt (50) != 0)
+				remove (id);
+			else
+				removeAllClientResources ();
+
+			assertSame ("get " + id, _map.get (id), _table.get (id));
+			assertEquals ("contains " + id, _map.containsKey (id),
+														_table.contains (id));
+			assertEquals ("size", _map.size (), _table.size ());
+
+			if (n % 10000 == 0)
+				check ();
+		}
+
+		check ();
+	}
+
+	/**
+	 * Return a random resource ID of a random client.
+	 *
+	 * @param random	The random number generator.
+	 * @param stride	The distance between the IDs of a client.
+	 * @param ids	The number of IDs each client may use.
+	 * @return	The resource ID.
+	 */
+	private static int
+	randomId (
+		Random		random,
+		int			stride,
+		int			ids
+	) {
+		int			client = _clients[random.nextInt (_clients.length)];
+		int			low = (random.nextInt (ids) * stride)
+											& ((1 << ClientIdBits) - 1);
+
+		return (client << ClientIdBits) | low;
+	}
+
+	/**
+	 * Add a new resource to the table and the map.
+	 *
+	 * @param id	The resource ID.
+	 */
+	private void
+	put (
+		int			id
+	) {
+		Resource	r = new TestResource (id);
+
+		_table.put (r);
+		_map.put (id, r);
+		_ids.add (id);
+	}
+
+	/**
+	 * Remove a resource from the table and the map.
+	 *
+	 * @param id	The resource ID.
+	 */
+	private void
+	remove (
+		int			id
+	) {
+		_table.remove (id);
+		_map.remove (id);
+	}
+
+	/**
+	 * Remove the clients' resources from the table and the map.
+	 */
+	private void
+	removeAllClientResources () {
+		_table.removeAllClientResources ();
+		for (int id: _map.keySet ().toArray (new Integer[0]))
+			if ((id >>> ClientIdBits) != 0)
+				_map.remove (id);
+	}
+
+	/**
+	 * Check that every ID ever used, and the resources of every client,
+	 * are the same in the table and the map.
+	 */
+	private void
+	check () {
+		assertEquals ("size", _map.size (), _table.size ());
+		for (int id: _ids)
+			assertSame ("get " + id, _map.get (id), _table.get (id));
+
+		Vector<Resource>	all = new Vector<Resource>();
+
+		for (int client: _clients) {
+			Resource[]	resources = _table.getClientResources (
+													client << ClientIdBits);
+
+			assertEquals ("client " + client, clientResources (client),
+													toMap (resources));
+			if (client != 0)
+				for (Resource r: resources)
+					all.add (r);
+		}
+
+		assertEquals ("all clients", toMap (all.toArray (new Resource[0])),
+						toMap (_table.getAllClientResources ().toArray (
+													new Resource[0])));
+	}
+
+	/**
+	 * Return the resources of a client in the map.
+	 *
+	 * @param client	The client.
+	 * @return	The client's resources, indexed by ID.
+	 */
+	private HashMap<Integer, Resource>
+	clientResources (
+		int			client
+	) {
+		HashMap<Integer, Resource>	m = new HashMap<Integer, Resource>();
+
+		for (Map.Entry<Integer, Resource> e: _map.entrySet ())
+			if ((e.getKey () >>> ClientIdBits) == client)
+				m.put (e.getKey (), e.getValue ());
+
+		return m;
+	}
+
+	/**
+	 * Index resources by ID, failing if an ID appears twice.
+	 *
+	 * @param resources	The resources.
+	 * @return	The resources, indexed by ID.
+	 */
+	private static HashMap<Integer, Resource>
+	toMap (
+		Resource[]	resources
+	) {
+		HashMap<Integer, Resource>	m = new HashMap<Integer, Resource>();
+
+		for (Resource r: resources)
+			assertNull ("duplicate " + r.getId (), m.put (r.getId (), r));
+
+		return m;
+	}
+}
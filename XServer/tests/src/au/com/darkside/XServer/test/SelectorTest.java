@@ -0,0 +1,114 @@
+/**
+ * This class tests how the selector threads serve TCP clients.
+ */
+package au.com.darkside.XServer.test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import au.com.darkside.XServer.InputOutput;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class tests that the selector threads frame requests however they
+ * are split across reads, serve many clients at once, and close a client
+ * that sends a request longer than the maximum without affecting the
+ * others.
+ */
+public class SelectorTest extends XServerTestCase {
+	/**
+	 * Test that many clients can make requests in turn, each getting its
+	 * own replies.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testManyClients () throws Exception {
+		XClient[]		clients = new XClient[40];
+
+		for (int i = 0; i < clients.length; i++)
+			clients[i] = connect ();
+
+		for (int n = 0; n < 5; n++) {
+			for (XClient c: clients) {
+				c.getInputFocus ();
+				c.flush ();
+			}
+
+			for (XClient c: clients) {
+				ByteBuffer	r = c.readReply ();
+
+				assertEquals ("reply type", XClient.Reply, r.get (0));
+				assertEquals ("sequence number", c.getSequenceNumber (),
+													r.getShort (2) & 0xffff);
+			}
+		}
+	}
+
+	/**
+	 * Test that requests split across reads, including their headers and
+	 * BIG-REQUESTS lengths, are framed correctly.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testSplitRequests () throws Exception {
+		XClient			c = connect ();
+		int				pixmap = c.createPixmap (1, 64, 64);
+		int				gc = c.createGC (pixmap, 0);
+		byte[]			image = new byte[8 * 64];
+
+		c.sync ();
+		c.enableBigRequests ();
+
+		for (int i = 0; i < image.length; i++)
+			image[i] = (byte) (i * 7);
+
+		for (int length: new int[] {1, 3, 5, 31}) {
+			c.putImage (XClient.XYPixmap, pixmap, gc, 64, 64, 0, 0, 0, 1,
+																		image);
+			c.writeBigRequestHeader (43, 0, 0);	// GetInputFocus.
+			c.flush (length);
+
+			ByteBuffer	r = c.readReply ();
+
+			assertEquals ("piece length " + length, XClient.Reply, r.get (0));
+
+			r = c.getImage (XClient.XYPixmap, pixmap, 0, 0, 64, 64, 1);
+			for (int i = 0; i < image.length; i++)
+				assertEquals ("piece length " + length + " byte " + i,
+												image[i], r.get (32 + i));
+			image[length] ^= 0xff;
+		}
+	}
+
+	/**
+	 * Test that the maximum request length advertised by BIG-REQUESTS is
+	 * bounded, and that a longer request closes only its own connection,
+	 * without the server waiting for its data.
+	 *
+	 * @throws Exception
+	 */
+	public void
+	testOversizedRequest () throws Exception {
+		XClient			c = connect ();
+		XClient			other = connect ();
+		int				max = c.enableBigRequests ();
+
+		assertEquals ("maximum request length", InputOutput.MaxRequestLength,
+																		max);
+
+		c.writeBigRequestHeader (72, 2, 4 * max);	// PutImage, a word over.
+		c.writePadBytes (20);
+		c.flush ();
+
+		try {
+			c.readPacket (1000);
+			fail ("Connection not closed");
+		} catch (IOException e) {
+		}
+
+		other.sync ();
+	}
+}
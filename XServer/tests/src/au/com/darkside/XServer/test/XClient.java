@@ -0,0 +1,868 @@
+/**
+ * This class implements a minimal X client for tests.
+ */
+package au.com.darkside.XServer.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Vector;
+
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class implements a minimal X client for tests. It connects over
+ * TCP or a Unix domain socket with the least significant byte first, and
+ * writes requests field by field, the way the server's InputOutput class
+ * writes replies.
+ *
+ * Events that arrive while it waits for a reply are queued, so they can
+ * be read afterwards in the order they were sent.
+ */
+public class XClient {
+	public static final int		Error = 0;
+	public static final int		Reply = 1;
+
+	public static final int		ZPixmap = 2;
+	public static final int		XYPixmap = 1;
+	public static final int		Bitmap = 0;
+
+	private final Socket		_socket;
+	private final LocalSocket	_localSocket;
+	private final InputStream	_in;
+	private final OutputStream	_out;
+	private final Vector<ByteBuffer>	_events = new Vector<ByteBuffer>();
+	private byte[]				_outBuffer = new byte[4096];
+	private int					_outLength = 0;
+	private int					_sequenceNumber = 0;
+	private int					_resourceIdBase;
+	private int					_resourceIdMask;
+	private int					_nextResourceId = 1;
+	private int					_rootWindow;
+	private int					_maxRequestLength;
+	private int					_pushBack = -1;
+
+	/**
+	 * Constructor. Connects to the server over TCP and reads its setup
+	 * reply.
+	 *
+	 * @param host	The server's host.
+	 * @param port	The server's TCP port.
+	 * @throws IOException
+	 */
+	public XClient (
+		String		host,
+		int			port
+	) throws IOException {
+		_socket = new Socket (host, port);
+		_socket.setTcpNoDelay (true);
+		_localSocket = null;
+		_in = _socket.getInputStream ();
+		_out = _socket.getOutputStream ();
+		setup ();
+	}
+
+	/**
+	 * Constructor. Connects to the server over a Unix domain socket and
+	 * reads its setup reply.
+	 *
+	 * @param path	The filesystem path of the server's socket.
+	 * @throws IOException
+	 */
+	public XClient (
+		String		path
+	) throws IOException {
+		_socket = null;
+		_localSocket = new LocalSocket ();
+		_localSocket.connect (new LocalSocketAddress (path,
+									LocalSocketAddress.Namespace.FILESYSTEM));
+		_in = _localSocket.getInputStream ();
+		_out = _localSocket.getOutputStream ();
+		setup ();
+	}
+
+	/**
+	 * Send the connection setup and read the server's reply.
+	 *
+	 * @throws IOException
+	 */
+	private void
+	setup () throws IOException {
+		writeByte ('l');	// Least significant byte first.
+		writePadBytes (1);
+		writeShort (11);	// Protocol major version.
+		writeShort (0);		// Protocol minor version.
+		writeShort (0);		// Authorization name length.
+		writeShort (0);		// Authorization data length.
+		writePadBytes (2);
+		flush ();
+
+		ByteBuffer	header = read (8);
+
+		if (header.get (0) != 1)
+			throw new IOException ("Connection refused");
+
+		ByteBuffer	setup = read ((header.getShort (6) & 0xffff) * 4);
+		int			vendorLength = setup.getShort (16) & 0xffff;
+		int			numFormats = setup.get (21) & 0xff;
+
+		_resourceIdBase = setup.getInt (4);
+		_resourceIdMask = setup.getInt (8);
+		_maxRequestLength = setup.getShort (18) & 0xffff;
+		_rootWindow = setup.getInt (32 + ((vendorLength + 3) & ~3)
+															+ 8 * numFormats);
+	}
+
+	/**
+	 * Close the connection.
+	 */
+	public void
+	close () {
+		try {
+			if (_socket != null)
+				_socket.close ();
+			else
+				_localSocket.close ();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Return the ID of the root window.
+	 *
+	 * @return	The ID of the root window.
+	 */
+	public int
+	getRootWindow () {
+		return _rootWindow;
+	}
+
+	/**
+	 * Return the lowest resource ID the client can use, which identifies
+	 * the client.
+	 *
+	 * @return	The client's resource ID base.
+	 */
+	public int
+	getResourceIdBase () {
+		return _resourceIdBase;
+	}
+
+	/**
+	 * Allocate a resource ID.
+	 *
+	 * @return	A new resource ID.
+	 */
+	public int
+	allocateId () {
+		return _resourceIdBase | (_nextResourceId++ & _resourceIdMask);
+	}
+
+	/**
+	 * Return the sequence number of the last request written.
+	 *
+	 * @return	The sequence number.
+	 */
+	public int
+	getSequenceNumber () {
+		return _sequenceNumber;
+	}
+
+	/**
+	 * Write a byte.
+	 *
+	 * @param b	The byte.
+	 */
+	public void
+	writeByte (
+		int			b
+	) {
+		if (_outLength == _outBuffer.length) {
+			byte[]		buf = new byte[2 * _outBuffer.length];
+
+			System.arraycopy (_outBuffer, 0, buf, 0, _outLength);
+			_outBuffer = buf;
+		}
+
+		_outBuffer[_outLength++] = (byte) b;
+	}
+
+	/**
+	 * Write a 16-bit integer.
+	 *
+	 * @param n	The integer.
+	 */
+	public void
+	writeShort (
+		int			n
+	) {
+		writeByte (n);
+		writeByte (n >> 8);
+	}
+
+	/**
+	 * Write a 32-bit integer.
+	 *
+	 * @param n	The integer.
+	 */
+	public void
+	writeInt (
+		int			n
+	) {
+		writeShort (n);
+		writeShort (n >> 16);
+	}
+
+	/**
+	 * Write bytes.
+	 *
+	 * @param ba	The bytes.
+	 * @param offset	The offset of the first byte to write.
+	 * @param length	The number of bytes to write.
+	 */
+	public void
+	writeBytes (
+		byte[]		ba,
+		int			offset,
+		int			length
+	) {
+		for (int i = 0; i < length; i++)
+			writeByte (ba[offset + i]);
+	}
+
+	/**
+	 * Write bytes of padding.
+	 *
+	 * @param n	The number of bytes.
+	 */
+	public void
+	writePadBytes (
+		int			n
+	) {
+		for (int i = 0; i < n; i++)
+			writeByte (0);
+	}
+
+	/**
+	 * Send what has been written.
+	 *
+	 * @throws IOException
+	 */
+	public void
+	flush () throws IOException {
+		_out.write (_outBuffer, 0, _outLength);
+		_out.flush ();
+		_outLength = 0;
+	}
+
+	/**
+	 * Send only the first bytes of what has been written. The rest is
+	 * sent by the next flush.
+	 *
+	 * @param n	The number of bytes to send.
+	 * @throws IOException
+	 */
+	public void
+	flushPart (
+		int			n
+	) throws IOException {
+		_out.write (_outBuffer, 0, n);
+		_out.flush ();
+		System.arraycopy (_outBuffer, n, _outBuffer, 0, _outLength - n);
+		_outLength -= n;
+	}
+
+	/**
+	 * Send what has been written in pieces, each in a write of its own
+	 * after a short pause, so the server reads them separately.
+	 *
+	 * @param length	The most bytes to send in a piece.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void
+	flush (
+		int			length
+	) throws IOException, InterruptedException {
+		for (int pos = 0; pos < _outLength; pos += length) {
+			_out.write (_outBuffer, pos, Math.min (length, _outLength - pos));
+			_out.flush ();
+			Thread.sleep (1);
+		}
+
+		_outLength = 0;
+	}
+
+	/**
+	 * Write the header of a request. A request too long for the 16-bit
+	 * length field is written with the BIG-REQUESTS extended length.
+	 *
+	 * @param opcode	The request's opcode.
+	 * @param data	The request's one-byte argument.
+	 * @param length	The number of bytes after the header. A multiple
+	 * 					of four.
+	 */
+	public void
+	writeRequestHeader (
+		int			opcode,
+		int			data,
+		int			length
+	) {
+		int			words = 1 + length / 4;
+
+		if (words > 0xffff) {
+			writeBigRequestHeader (opcode, data, length);
+			return;
+		}
+
+		writeByte (opcode);
+		writeByte (data);
+		writeShort (words);
+		_sequenceNumber++;
+	}
+
+	/**
+	 * Write the header of a request with the BIG-REQUESTS extended
+	 * length, whatever its length.
+	 *
+	 * @param opcode	The request's opcode.
+	 * @param data	The request's one-byte argument.
+	 * @param length	The number of bytes after the header. A multiple
+	 * 					of four.
+	 */
+	public void
+	writeBigRequestHeader (
+		int			opcode,
+		int			data,
+		int			length
+	) {
+		writeByte (opcode);
+		writeByte (data);
+		writeShort (0);
+		writeInt (2 + length / 4);
+		_sequenceNumber++;
+	}
+
+	/**
+	 * Enable the BIG-REQUESTS extension, if the server supports it.
+	 *
+	 * @return	The maximum request length, in four-byte units.
+	 * @throws IOException
+	 */
+	public int
+	enableBigRequests () throws IOException {
+		byte[]		name = "BIG-REQUESTS".getBytes ();
+
+		writeRequestHeader (98, 0, 4 + name.length);	// QueryExtension.
+		writeShort (name.length);
+		writePadBytes (2);
+		writeBytes (name, 0, name.length);
+		flush ();
+
+		ByteBuffer	r = readReply ();
+
+		if (r.get (8) == 0)
+			return _maxRequestLength;
+
+		writeRequestHeader (r.get (9) & 0xff, 0, 0);	// BigReqEnable.
+		flush ();
+
+		return _maxRequestLength = readReply().getInt (8);
+	}
+
+	/**
+	 * Read bytes from the connection.
+	 *
+	 * @param n	The number of bytes to read.
+	 * @return	The bytes.
+	 * @throws IOException
+	 */
+	private ByteBuffer
+	read (
+		int			n
+	) throws IOException {
+		byte[]		ba = new byte[n];
+		int			pos = 0;
+
+		if (_pushBack >= 0 && n > 0) {
+			ba[pos++] = (byte) _pushBack;
+			_pushBack = -1;
+		}
+
+		while (pos < n) {
+			int			count = _in.read (ba, pos, n - pos);
+
+			if (count < 0)
+				throw new IOException ("Connection closed");
+
+			pos += count;
+		}
+
+		return ByteBuffer.wrap(ba).order (ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Read the next reply, error or event.
+	 *
+	 * @return	The packet, including any data following a reply.
+	 * @throws IOException
+	 */
+	public ByteBuffer
+	readPacket () throws IOException {
+		ByteBuffer	bb = read (32);
+
+		if (bb.get (0) != Reply)
+			return bb;
+
+		int			extra = bb.getInt (4) * 4;
+
+		if (extra == 0)
+			return bb;
+
+		ByteBuffer	reply = ByteBuffer.allocate(32 + extra).order (
+													ByteOrder.LITTLE_ENDIAN);
+
+		reply.put (bb.array ());
+		reply.put (read(extra).array ());
+
+		return reply;
+	}
+
+	/**
+	 * Read the next reply or error, queueing any events that come first.
+	 *
+	 * @return	The reply or error.
+	 * @throws IOException
+	 */
+	public ByteBuffer
+	readReply () throws IOException {
+		while (true) {
+			ByteBuffer	bb = readPacket ();
+
+			if (bb.get (0) == Reply || bb.get (0) == Error)
+				return bb;
+
+			_events.add (bb);
+		}
+	}
+
+	/**
+	 * Read the next reply, error or event, waiting for up to a time limit
+	 * for it to start arriving. Only TCP connections have time limits.
+	 *
+	 * @param timeout	The time limit, in milliseconds.
+	 * @return	The packet, or null if none arrives in time.
+	 * @throws IOException
+	 */
+	public ByteBuffer
+	readPacket (
+		int			timeout
+	) throws IOException {
+		if (_socket == null)
+			throw new IOException ("No time limits on a Unix domain socket");
+
+		_socket.setSoTimeout (timeout);
+		try {
+			int			b = _in.read ();
+
+			if (b < 0)
+				throw new IOException ("Connection closed");
+
+			_pushBack = b;
+		} catch (SocketTimeoutException e) {
+			return null;
+		} finally {
+			_socket.setSoTimeout (0);
+		}
+
+		return readPacket ();
+	}
+
+	/**
+	 * Return the next event, waiting for up to a time limit for it.
+	 *
+	 * @param timeout	The time limit, in milliseconds.
+	 * @return	The event, or null if none arrives in time.
+	 * @throws IOException	If a reply or error arrives instead.
+	 */
+	public ByteBuffer
+	nextEvent (
+		int			timeout
+	) throws IOException {
+		if (!_events.isEmpty ())
+			return _events.remove (0);
+
+		ByteBuffer	bb = readPacket (timeout);
+
+		if (bb != null && (bb.get (0) == Error || bb.get (0) == Reply))
+			throw new IOException ("Unexpected packet " + bb.get (0));
+
+		return bb;
+	}
+
+	/**
+	 * Wait until the server has processed every request written so far.
+	 * Events sent meanwhile are queued.
+	 *
+	 * @throws IOException
+	 */
+	public void
+	sync () throws IOException {
+		getInputFocus ();
+		flush ();
+
+		ByteBuffer	r = readReply ();
+
+		if (r.get (0) != Reply)
+			throw new IOException ("Error " + r.get (1) + " in request "
+												+ (r.getShort (2) & 0xffff));
+	}
+
+	/**
+	 * Write a GetInputFocus request, the simplest request with a reply.
+	 */
+	public void
+	getInputFocus () {
+		writeRequestHeader (43, 0, 0);
+	}
+
+	/**
+	 * Write a GrabServer request.
+	 */
+	public void
+	grabServer () {
+		writeRequestHeader (36, 0, 0);
+	}
+
+	/**
+	 * Write an UngrabServer request.
+	 */
+	public void
+	ungrabServer () {
+		writeRequestHeader (37, 0, 0);
+	}
+
+	/**
+	 * Create a window of the same depth and visual as its parent, with no
+	 * border.
+	 *
+	 * @param parent	The parent window.
+	 * @param x	The X coordinate of the window within its parent.
+	 * @param y	The Y coordinate of the window within its parent.
+	 * @param width	The window's width.
+	 * @param height	The window's height.
+	 * @param mask	The mask of the attribute values that follow.
+	 * @param values	The attribute values, in mask bit order.
+	 * @return	The window's ID.
+	 */
+	public int
+	createWindow (
+		int			parent,
+		int			x,
+		int			y,
+		int			width,
+		int			height,
+		int			mask,
+		int...		values
+	) {
+		int			id = allocateId ();
+
+		writeRequestHeader (1, 0, 28 + 4 * values.length);
+		writeInt (id);
+		writeInt (parent);
+		writeShort (x);
+		writeShort (y);
+		writeShort (width);
+		writeShort (height);
+		writeShort (0);		// Border width.
+		writeShort (0);		// Class CopyFromParent.
+		writeInt (0);		// Visual CopyFromParent.
+		writeInt (mask);
+		for (int v: values)
+			writeInt (v);
+
+		return id;
+	}
+
+	/**
+	 * Write a MapWindow request.
+	 *
+	 * @param window	The window to map.
+	 */
+	public void
+	mapWindow (
+		int			window
+	) {
+		writeRequestHeader (8, 0, 4);
+		writeInt (window);
+	}
+
+	/**
+	 * Send a QueryPointer request and wait for its reply.
+	 *
+	 * @param window	The window to report the pointer position in.
+	 * @return	The reply, or an error.
+	 * @throws IOException
+	 */
+	public ByteBuffer
+	queryPointer (
+		int			window
+	) throws IOException {
+		writeRequestHeader (38, 0, 4);
+		writeInt (window);
+		flush ();
+
+		return readReply ();
+	}
+
+	/**
+	 * Write a ChangeProperty request.
+	 *
+	 * @param mode	0=Replace, 1=Prepend, 2=Append.
+	 * @param window	The window whose property is changed.
+	 * @param property	The property's atom.
+	 * @param type	The type's atom.
+	 * @param format	8, 16 or 32 bits per item.
+	 * @param data	The data, a whole number of items.
+	 */
+	public void
+	changeProperty (
+		int			mode,
+		int			window,
+		int			property,
+		int			type,
+		int			format,
+		byte[]		data
+	) {
+		writeRequestHeader (18, mode, 20 + ((data.length + 3) & ~3));
+		writeInt (window);
+		writeInt (property);
+		writeInt (type);
+		writeByte (format);
+		writePadBytes (3);
+		writeInt (data.length / (format / 8));
+		writeBytes (data, 0, data.length);
+		writePadBytes (-data.length & 3);
+	}
+
+	/**
+	 * Send a GetProperty request for a property of any type, without
+	 * deleting it, and wait for its reply.
+	 *
+	 * @param window	The window whose property is read.
+	 * @param property	The property's atom.
+	 * @param offset	The offset to read from, in four-byte units.
+	 * @param length	The most to read, in four-byte units.
+	 * @return	The reply, or an error.
+	 * @throws IOException
+	 */
+	public ByteBuffer
+	getProperty (
+		int			window,
+		int			property,
+		int			offset,
+		int			length
+	) throws IOException {
+		writeRequestHeader (20, 0, 20);
+		writeInt (window);
+		writeInt (property);
+		writeInt (0);	// AnyPropertyType.
+		writeInt (offset);
+		writeInt (length);
+		flush ();
+
+		return readReply ();
+	}
+
+	/**
+	 * Write a RotateProperties request.
+	 *
+	 * @param window	The window whose properties are rotated.
+	 * @param delta	The number of positions to rotate by.
+	 * @param properties	The properties' atoms.
+	 */
+	public void
+	rotateProperties (
+		int			window,
+		int			delta,
+		int...		properties
+	) {
+		writeRequestHeader (114, 0, 8 + 4 * properties.length);
+		writeInt (window);
+		writeShort (properties.length);
+		writeShort (delta);
+		for (int p: properties)
+			writeInt (p);
+	}
+
+	/**
+	 * Create a pixmap.
+	 *
+	 * @param depth	The pixmap's depth, 1 or 32.
+	 * @param width	The pixmap's width.
+	 * @param height	The pixmap's height.
+	 * @return	The pixmap's ID.
+	 */
+	public int
+	createPixmap (
+		int			depth,
+		int			width,
+		int			height
+	) {
+		int			id = allocateId ();
+
+		writeRequestHeader (53, depth, 12);
+		writeInt (id);
+		writeInt (_rootWindow);
+		writeShort (width);
+		writeShort (height);
+
+		return id;
+	}
+
+	/**
+	 * Create a graphics context.
+	 *
+	 * @param drawable	The drawable it will be used with.
+	 * @param mask	The mask of the values that follow.
+	 * @param values	The values, in mask bit order.
+	 * @return	The graphics context's ID.
+	 */
+	public int
+	createGC (
+		int			drawable,
+		int			mask,
+		int...		values
+	) {
+		int			id = allocateId ();
+
+		writeRequestHeader (55, 0, 12 + 4 * values.length);
+		writeInt (id);
+		writeInt (drawable);
+		writeInt (mask);
+		for (int v: values)
+			writeInt (v);
+
+		return id;
+	}
+
+	/**
+	 * Free a graphics context.
+	 *
+	 * @param gc	The graphics context.
+	 */
+	public void
+	freeGC (
+		int			gc
+	) {
+		writeRequestHeader (60, 0, 4);
+		writeInt (gc);
+	}
+
+	/**
+	 * Write a PutImage request.
+	 *
+	 * @param format	The image format.
+	 * @param drawable	The drawable to draw on.
+	 * @param gc	The graphics context.
+	 * @param width	The width of the image.
+	 * @param height	The height of the image.
+	 * @param x	The X coordinate to draw at.
+	 * @param y	The Y coordinate to draw at.
+	 * @param leftPad	The number of bits to skip at the start of a row.
+	 * @param depth	The depth of the image.
+	 * @param data	The image.
+	 */
+	public void
+	putImage (
+		int			format,
+		int			drawable,
+		int			gc,
+		int			width,
+		int			height,
+		int			x,
+		int			y,
+		int			leftPad,
+		int			depth,
+		byte[]		data
+	) {
+		writeRequestHeader (72, format, 20 + ((data.length + 3) & ~3));
+		writeInt (drawable);
+		writeInt (gc);
+		writeShort (width);
+		writeShort (height);
+		writeShort (x);
+		writeShort (y);
+		writeByte (leftPad);
+		writeByte (depth);
+		writePadBytes (2);
+		writeBytes (data, 0, data.length);
+		writePadBytes (-data.length & 3);
+	}
+
+	/**
+	 * Write a GetImage request.
+	 *
+	 * @param format	The image format.
+	 * @param drawable	The drawable to read.
+	 * @param x	The X coordinate of the image.
+	 * @param y	The Y coordinate of the image.
+	 * @param width	The width of the image.
+	 * @param height	The height of the image.
+	 * @param planeMask	The planes to read.
+	 */
+	public void
+	writeGetImage (
+		int			format,
+		int			drawable,
+		int			x,
+		int			y,
+		int			width,
+		int			height,
+		int			planeMask
+	) {
+		writeRequestHeader (73, format, 16);
+		writeInt (drawable);
+		writeShort (x);
+		writeShort (y);
+		writeShort (width);
+		writeShort (height);
+		writeInt (planeMask);
+	}
+
+	/**
+	 * Send a GetImage request and wait for its reply.
+	 *
+	 * @param format	The image format.
+	 * @param drawable	The drawable to read.
+	 * @param x	The X coordinate of the image.
+	 * @param y	The Y coordinate of the image.
+	 * @param width	The width of the image.
+	 * @param height	The height of the image.
+	 * @param planeMask	The planes to read.
+	 * @return	The reply, or an error.
+	 * @throws IOException
+	 */
+	public ByteBuffer
+	getImage (
+		int			format,
+		int			drawable,
+		int			x,
+		int			y,
+		int			width,
+		int			height,
+		int			planeMask
+	) throws IOException {
+		writeGetImage (format, drawable, x, y, width, height, planeMask);
+		flush ();
+
+		return readReply ();
+	}
+}
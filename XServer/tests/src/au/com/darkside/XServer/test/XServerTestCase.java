@@ -0,0 +1,117 @@
+/**
+ * This class is the base of tests that run an X server.
+ */
+package au.com.darkside.XServer.test;
+
+import java.io.IOException;
+import java.util.Vector;
+
+import android.test.AndroidTestCase;
+
+import au.com.darkside.XServer.XServer;
+
+/**
+ * @author Matthew Kwan
+ *
+ * This class is the base of tests that run an X server and connect
+ * clients to it over TCP.
+ *
+ * Each test gets a new server, listening on a port of its own so a
+ * connection left over from an earlier test can't reach it. The screen
+ * is laid out at a fixed size, which creates the root window, but it
+ * is never attached to a window, so nothing is drawn.
+ *
+ * Tests that also connect over a Unix domain socket override
+ * getUnixSocketPath.
+ */
+public abstract class XServerTestCase extends AndroidTestCase {
+	protected static final int	ScreenWidth = 800;
+	protected static final int	ScreenHeight = 600;
+
+	private static int			_nextPort = 6150;
+
+	protected XServer			_xServer;
+	private int					_port;
+	private final Vector<XClient>	_clients = new Vector<XClient>();
+
+	/**
+	 * Start an X server.
+	 */
+	@Override
+	protected void
+	setUp () throws Exception {
+		super.setUp ();
+
+		_port = _nextPort++;
+		_xServer = new XServer (getContext (), _port, null);
+		_xServer.setUnixSocketPath (getUnixSocketPath ());
+		_xServer.getScreen().layout (0, 0, ScreenWidth, ScreenHeight);
+		assertTrue ("Listening on port " + _port, _xServer.start ());
+	}
+
+	/**
+	 * Disconnect the clients and stop the X server.
+	 */
+	@Override
+	protected void
+	tearDown () throws Exception {
+		for (XClient c: _clients)
+			c.close ();
+
+		_clients.clear ();
+		_xServer.stop ();
+
+		super.tearDown ();
+	}
+
+	/**
+	 * Return the path of a Unix domain socket for the X server to listen
+	 * on, as well as its TCP port.
+	 *
+	 * @return	The socket path, or null to listen on TCP only.
+	 */
+	protected String
+	getUnixSocketPath () {
+		return null;
+	}
+
+	/**
+	 * Return the TCP port the X server listens on.
+	 *
+	 * @return	The port.
+	 */
+	protected int
+	getPort () {
+		return _port;
+	}
+
+	/**
+	 * Connect a client to the X server over TCP.
+	 *
+	 * @return	The client.
+	 * @throws IOException
+	 */
+	protected XClient
+	connect () throws IOException {
+		XClient		c = new XClient ("127.0.0.1", _port);
+
+		_clients.add (c);
+
+		return c;
+	}
+
+	/**
+	 * Connect a client to the X server over its Unix domain socket.
+	 *
+	 * @return	The client.
+	 * @throws IOException
+	 */
+	protected XClient
+	connectLocal () throws IOException {
+		XClient		c = new XClient (_xServer.getUnixSocketPath ());
+
+		_clients.add (c);
+
+		return c;
+	}
+}